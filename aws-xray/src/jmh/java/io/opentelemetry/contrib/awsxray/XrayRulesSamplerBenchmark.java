@@ -0,0 +1,221 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.awsxray;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.common.Clock;
+import io.opentelemetry.sdk.resources.Resource;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
+import io.opentelemetry.sdk.trace.samplers.SamplingResult;
+import io.opentelemetry.semconv.resource.attributes.ResourceAttributes;
+import io.opentelemetry.semconv.trace.attributes.SemanticAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures finding the matching X-Ray sampling rule for a span, by a priority-ordered scan over all
+ * rules and with {@link SamplingRuleIndex}, and the cost of {@link XrayRulesSampler#shouldSample}
+ * as a whole.
+ *
+ * <p>The scan is measured both extracting the attributes of the span and evaluating the conditions
+ * on the resource for every rule, as rules did before {@link SpanRequestAttributes} and {@link
+ * SamplingRuleApplier#withResource}, and doing so once. Run with {@code -prof gc} to compare their
+ * allocation rates.
+ *
+ * <p>The rules match URL paths, HTTP methods, hosts and custom attributes in the way centralized
+ * rules typically do, and are followed by a default rule. Half of the spans match one of the rules,
+ * the others fall through to the default rule, which is the worst case for the scan.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class XrayRulesSamplerBenchmark {
+
+  private static final int NUM_SPANS = 1024;
+  private static final String TRACE_ID = "0123456789abcdef0123456789abcdef";
+
+  @Param({"10", "100", "1000"})
+  int numRules;
+
+  private final Resource resource =
+      Resource.builder().put(ResourceAttributes.SERVICE_NAME, "checkout-service").build();
+
+  private SamplingRuleApplier[] appliers;
+  private Map<String, Integer> attributeIndices;
+  private SamplingRuleIndex index;
+  private XrayRulesSampler sampler;
+  private Attributes[] spans;
+  private int next;
+
+  @Setup
+  public void setup() {
+    List<GetSamplingRulesResponse.SamplingRule> rules = new ArrayList<>();
+    for (int i = 0; i < numRules; i++) {
+      switch (i % 4) {
+        case 0:
+          rules.add(rule(i, "*", "*", "/api/v1/resource" + i + "/*", Collections.emptyMap()));
+          break;
+        case 1:
+          rules.add(
+              rule(
+                  i,
+                  "POST",
+                  "host" + i + ".example.com",
+                  "*",
+                  Collections.singletonMap("tenant", "tenant-" + i)));
+          break;
+        case 2:
+          rules.add(rule(i, "GET", "*", "/static/" + i + "/*.png", Collections.emptyMap()));
+          break;
+        default:
+          rules.add(rule(i, "*", "*.example" + i + ".com", "/health" + i, Collections.emptyMap()));
+          break;
+      }
+    }
+    rules.add(rule(numRules, "*", "*", "*", Collections.emptyMap()));
+
+    appliers =
+        rules.stream()
+            .sorted(Comparator.comparingInt(GetSamplingRulesResponse.SamplingRule::getPriority))
+            .map(rule -> new SamplingRuleApplier("CLIENT_ID", rule, Clock.getDefault()))
+            .map(applier -> applier.withResource(resource))
+            .filter(Objects::nonNull)
+            .toArray(SamplingRuleApplier[]::new);
+    attributeIndices = SpanRequestAttributes.attributeIndices(appliers);
+    index = new SamplingRuleIndex(appliers);
+    sampler =
+        new XrayRulesSampler("CLIENT_ID", resource, Clock.getDefault(), Sampler.alwaysOn(), rules);
+
+    Random random = new Random(0);
+    spans = new Attributes[NUM_SPANS];
+    for (int i = 0; i < NUM_SPANS; i++) {
+      int rule = random.nextInt(numRules);
+      boolean matching = random.nextBoolean();
+      String path;
+      String method;
+      String host;
+      switch (rule % 4) {
+        case 0:
+          path = (matching ? "/api/v1/resource" : "/api/v2/resource") + rule + "/items";
+          method = "GET";
+          host = "api.example.com";
+          break;
+        case 1:
+          path = "/orders";
+          method = matching ? "POST" : "PUT";
+          host = "host" + rule + ".example.com";
+          break;
+        case 2:
+          path = "/static/" + rule + (matching ? "/logo.png" : "/logo.svg");
+          method = "GET";
+          host = "cdn.example.com";
+          break;
+        default:
+          path = "/health" + rule;
+          method = "GET";
+          host = (matching ? "lb.example" : "lb.sample") + rule + ".com";
+          break;
+      }
+      spans[i] =
+          Attributes.builder()
+              .put(SemanticAttributes.HTTP_METHOD, method)
+              .put(SemanticAttributes.HTTP_HOST, host)
+              .put(SemanticAttributes.HTTP_TARGET, path)
+              .put(SemanticAttributes.HTTP_SCHEME, "https")
+              .put(SemanticAttributes.HTTP_USER_AGENT, "benchmark")
+              .put(AttributeKey.stringKey("tenant"), "tenant-" + rule)
+              .build();
+    }
+  }
+
+  @Benchmark
+  @Nullable
+  public SamplingRuleApplier linearScan() {
+    Attributes attributes = nextSpan();
+    for (SamplingRuleApplier applier : appliers) {
+      if (applier.matches(attributes, resource)) {
+        return applier;
+      }
+    }
+    return null;
+  }
+
+  @Benchmark
+  @Nullable
+  public SamplingRuleApplier linearScanExtractingOnce() {
+    SpanRequestAttributes attributes = SpanRequestAttributes.extract(nextSpan(), attributeIndices);
+    for (SamplingRuleApplier applier : appliers) {
+      if (applier.matches(attributes)) {
+        return applier;
+      }
+    }
+    return null;
+  }
+
+  @Benchmark
+  @Nullable
+  public SamplingRuleApplier index() {
+    return index.match(nextSpan());
+  }
+
+  @Benchmark
+  public SamplingResult shouldSample() {
+    return sampler.shouldSample(
+        Context.root(), TRACE_ID, "span", SpanKind.SERVER, nextSpan(), Collections.emptyList());
+  }
+
+  private Attributes nextSpan() {
+    Attributes attributes = spans[next];
+    next = (next + 1) & (NUM_SPANS - 1);
+    return attributes;
+  }
+
+  private static GetSamplingRulesResponse.SamplingRule rule(
+      int priority,
+      String httpMethod,
+      String host,
+      String urlPath,
+      Map<String, String> attributes) {
+    return GetSamplingRulesResponse.SamplingRule.create(
+        attributes,
+        0.05,
+        host,
+        httpMethod,
+        priority,
+        1,
+        "*",
+        null,
+        "rule-" + priority,
+        "*",
+        "*",
+        urlPath,
+        1);
+  }
+}
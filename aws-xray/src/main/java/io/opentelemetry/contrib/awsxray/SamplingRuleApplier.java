@@ -5,7 +5,6 @@
 
 package io.opentelemetry.contrib.awsxray;
 
-import io.opentelemetry.api.common.AttributeKey;
 import io.opentelemetry.api.common.Attributes;
 import io.opentelemetry.api.trace.SpanKind;
 import io.opentelemetry.context.Context;
@@ -18,7 +17,6 @@ import io.opentelemetry.sdk.trace.samplers.Sampler;
 import io.opentelemetry.sdk.trace.samplers.SamplingDecision;
 import io.opentelemetry.sdk.trace.samplers.SamplingResult;
 import io.opentelemetry.semconv.resource.attributes.ResourceAttributes;
-import io.opentelemetry.semconv.trace.attributes.SemanticAttributes;
 import java.time.Duration;
 import java.util.Collections;
 import java.util.Date;
@@ -28,7 +26,6 @@ import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 import javax.annotation.Nullable;
 
 final class SamplingRuleApplier {
@@ -56,13 +53,18 @@ final class SamplingRuleApplier {
   private final Sampler fixedRateSampler;
   private final boolean borrowing;
 
-  private final Map<String, Matcher> attributeMatchers;
+  // The keys of the custom attributes and the matchers of their values.
+  private final String[] attributeKeys;
+  private final Matcher[] attributeMatchers;
   private final Matcher urlPathMatcher;
   private final Matcher serviceNameMatcher;
   private final Matcher httpMethodMatcher;
   private final Matcher hostMatcher;
   private final Matcher serviceTypeMatcher;
   private final Matcher resourceArnMatcher;
+  // Matches the faas.id of spans if the resource ARN is only known from the spans, after the
+  // conditions on the resource have been evaluated by withResource.
+  private final Matcher faasIdMatcher;
 
   private final Statistics statistics;
 
@@ -100,12 +102,13 @@ final class SamplingRuleApplier {
     }
     fixedRateSampler = createFixedRate(rule.getFixedRate());
 
-    if (rule.getAttributes().isEmpty()) {
-      attributeMatchers = Collections.emptyMap();
-    } else {
-      attributeMatchers =
-          rule.getAttributes().entrySet().stream()
-              .collect(Collectors.toMap(Map.Entry::getKey, e -> toMatcher(e.getValue())));
+    attributeKeys = new String[rule.getAttributes().size()];
+    attributeMatchers = new Matcher[attributeKeys.length];
+    int i = 0;
+    for (Map.Entry<String, String> entry : rule.getAttributes().entrySet()) {
+      attributeKeys[i] = entry.getKey();
+      attributeMatchers[i] = toMatcher(entry.getValue());
+      i++;
     }
 
     urlPathMatcher = toMatcher(rule.getUrlPath());
@@ -114,6 +117,7 @@ final class SamplingRuleApplier {
     hostMatcher = toMatcher(rule.getHost());
     serviceTypeMatcher = toMatcher(rule.getServiceType());
     resourceArnMatcher = toMatcher(rule.getResourceArn());
+    faasIdMatcher = TrueMatcher.INSTANCE;
 
     statistics = new Statistics();
   }
@@ -126,13 +130,15 @@ final class SamplingRuleApplier {
       long reservoirEndTimeNanos,
       Sampler fixedRateSampler,
       boolean borrowing,
-      Map<String, Matcher> attributeMatchers,
+      String[] attributeKeys,
+      Matcher[] attributeMatchers,
       Matcher urlPathMatcher,
       Matcher serviceNameMatcher,
       Matcher httpMethodMatcher,
       Matcher hostMatcher,
       Matcher serviceTypeMatcher,
       Matcher resourceArnMatcher,
+      Matcher faasIdMatcher,
       Statistics statistics,
       long nextSnapshotTimeNanos) {
     this.clientId = clientId;
@@ -142,6 +148,7 @@ final class SamplingRuleApplier {
     this.reservoirEndTimeNanos = reservoirEndTimeNanos;
     this.fixedRateSampler = fixedRateSampler;
     this.borrowing = borrowing;
+    this.attributeKeys = attributeKeys;
     this.attributeMatchers = attributeMatchers;
     this.urlPathMatcher = urlPathMatcher;
     this.serviceNameMatcher = serviceNameMatcher;
@@ -149,65 +156,79 @@ final class SamplingRuleApplier {
     this.hostMatcher = hostMatcher;
     this.serviceTypeMatcher = serviceTypeMatcher;
     this.resourceArnMatcher = resourceArnMatcher;
+    this.faasIdMatcher = faasIdMatcher;
     this.statistics = statistics;
     this.nextSnapshotTimeNanos = nextSnapshotTimeNanos;
   }
 
   boolean matches(Attributes attributes, Resource resource) {
-    int matchedAttributes = 0;
-    String httpTarget = null;
-    String httpUrl = null;
-    String httpMethod = null;
-    String host = null;
-
-    for (Map.Entry<AttributeKey<?>, Object> entry : attributes.asMap().entrySet()) {
-      if (entry.getKey().equals(SemanticAttributes.HTTP_TARGET)) {
-        httpTarget = (String) entry.getValue();
-      } else if (entry.getKey().equals(SemanticAttributes.HTTP_URL)) {
-        httpUrl = (String) entry.getValue();
-      } else if (entry.getKey().equals(SemanticAttributes.HTTP_METHOD)) {
-        httpMethod = (String) entry.getValue();
-      } else if (entry.getKey().equals(SemanticAttributes.HTTP_HOST)) {
-        host = (String) entry.getValue();
-      }
+    SamplingRuleApplier applier = withResource(resource);
+    return applier != null
+        && applier.matches(
+            SpanRequestAttributes.extract(
+                attributes, SpanRequestAttributes.attributeIndices(applier)));
+  }
 
-      Matcher matcher = attributeMatchers.get(entry.getKey().getKey());
-      if (matcher == null) {
-        continue;
-      }
-      if (matcher.matches(entry.getValue().toString())) {
-        matchedAttributes++;
-      } else {
+  /**
+   * Returns whether this rule matches a span with the given attributes, which must have been
+   * extracted with the indices of the custom attributes of this rule. This rule must have been
+   * returned by {@link #withResource(Resource)} for the resource of the span.
+   */
+  boolean matches(SpanRequestAttributes attributes) {
+    // All attributes in the matched attributes must have been present in the span to be a match.
+    for (int i = 0; i < attributeKeys.length; i++) {
+      String value = attributes.getAttribute(attributeKeys[i]);
+      if (value == null || !attributeMatchers[i].matches(value)) {
         return false;
       }
     }
-    // All attributes in the matched attributes must have been present in the span to be a match.
-    if (matchedAttributes != attributeMatchers.size()) {
-      return false;
-    }
 
-    // URL Path may be in either http.target or http.url
-    if (httpTarget == null && httpUrl != null) {
-      int schemeEndIndex = httpUrl.indexOf("://");
-      // Per spec, http.url is always populated with scheme://host/target. If scheme doesn't
-      // match, assume it's bad instrumentation and ignore.
-      if (schemeEndIndex > 0) {
-        int pathIndex = httpUrl.indexOf('/', schemeEndIndex + "://".length());
-        if (pathIndex < 0) {
-          // No path, equivalent to root path.
-          httpTarget = "/";
-        } else {
-          httpTarget = httpUrl.substring(pathIndex);
-        }
-      }
-    }
+    return urlPathMatcher.matches(attributes.getUrlPath())
+        && httpMethodMatcher.matches(attributes.getHttpMethod())
+        && hostMatcher.matches(attributes.getHost())
+        && faasIdMatcher.matches(attributes.getFaasId());
+  }
 
-    return urlPathMatcher.matches(httpTarget)
-        && serviceNameMatcher.matches(resource.getAttribute(ResourceAttributes.SERVICE_NAME))
-        && httpMethodMatcher.matches(httpMethod)
-        && hostMatcher.matches(host)
-        && serviceTypeMatcher.matches(getServiceType(resource))
-        && resourceArnMatcher.matches(getArn(attributes, resource));
+  /**
+   * Returns this rule with its conditions on the given resource evaluated, or {@code null} if it
+   * can never match spans of the resource. The service name, the service type and, unless the
+   * resource is a Lambda function without faas.id, the resource ARN only depend on the resource,
+   * which never changes, so {@link #matches(SpanRequestAttributes)} of the returned rule does not
+   * evaluate them again.
+   */
+  @Nullable
+  SamplingRuleApplier withResource(Resource resource) {
+    if (!serviceNameMatcher.matches(resource.getAttribute(ResourceAttributes.SERVICE_NAME))
+        || !serviceTypeMatcher.matches(getServiceType(resource))) {
+      return null;
+    }
+    String arn = getArn(resource);
+    Matcher newFaasIdMatcher = TrueMatcher.INSTANCE;
+    if (arn == null && isLambda(resource)) {
+      // The ARN of a Lambda function may be set on the spans instead.
+      newFaasIdMatcher = resourceArnMatcher;
+    } else if (!resourceArnMatcher.matches(arn)) {
+      return null;
+    }
+    return new SamplingRuleApplier(
+        clientId,
+        ruleName,
+        clock,
+        reservoirSampler,
+        reservoirEndTimeNanos,
+        fixedRateSampler,
+        borrowing,
+        attributeKeys,
+        attributeMatchers,
+        urlPathMatcher,
+        serviceNameMatcher,
+        httpMethodMatcher,
+        hostMatcher,
+        serviceTypeMatcher,
+        resourceArnMatcher,
+        newFaasIdMatcher,
+        statistics,
+        nextSnapshotTimeNanos);
   }
 
   SamplingResult shouldSample(
@@ -289,6 +310,7 @@ final class SamplingRuleApplier {
         newReservoirEndTimeNanos,
         newFixedRateSampler,
         /* borrowing= */ false,
+        attributeKeys,
         attributeMatchers,
         urlPathMatcher,
         serviceNameMatcher,
@@ -296,6 +318,7 @@ final class SamplingRuleApplier {
         hostMatcher,
         serviceTypeMatcher,
         resourceArnMatcher,
+        faasIdMatcher,
         statistics,
         newNextSnapshotTimeNanos);
   }
@@ -309,6 +332,7 @@ final class SamplingRuleApplier {
         reservoirEndTimeNanos,
         fixedRateSampler,
         borrowing,
+        attributeKeys,
         attributeMatchers,
         urlPathMatcher,
         serviceNameMatcher,
@@ -316,6 +340,7 @@ final class SamplingRuleApplier {
         hostMatcher,
         serviceTypeMatcher,
         resourceArnMatcher,
+        faasIdMatcher,
         statistics,
         newNextSnapshotTimeNanos);
   }
@@ -324,26 +349,37 @@ final class SamplingRuleApplier {
     return ruleName;
   }
 
+  String[] getAttributeKeys() {
+    return attributeKeys;
+  }
+
+  Matcher getUrlPathMatcher() {
+    return urlPathMatcher;
+  }
+
+  Matcher getHttpMethodMatcher() {
+    return httpMethodMatcher;
+  }
+
+  Matcher getHostMatcher() {
+    return hostMatcher;
+  }
+
   @Nullable
-  private static String getArn(Attributes attributes, Resource resource) {
+  private static String getArn(Resource resource) {
     String arn = resource.getAttributes().get(ResourceAttributes.AWS_ECS_CONTAINER_ARN);
     if (arn != null) {
       return arn;
     }
-    String cloudPlatform = resource.getAttributes().get(ResourceAttributes.CLOUD_PLATFORM);
-    if (ResourceAttributes.CloudPlatformValues.AWS_LAMBDA.equals(cloudPlatform)) {
-      return getLambdaArn(attributes, resource);
+    if (isLambda(resource)) {
+      return resource.getAttributes().get(ResourceAttributes.FAAS_ID);
     }
     return null;
   }
 
-  @Nullable
-  private static String getLambdaArn(Attributes attributes, Resource resource) {
-    String arn = resource.getAttributes().get(ResourceAttributes.FAAS_ID);
-    if (arn != null) {
-      return arn;
-    }
-    return attributes.get(ResourceAttributes.FAAS_ID);
+  private static boolean isLambda(Resource resource) {
+    return ResourceAttributes.CloudPlatformValues.AWS_LAMBDA.equals(
+        resource.getAttributes().get(ResourceAttributes.CLOUD_PLATFORM));
   }
 
   @Nullable
@@ -363,7 +399,7 @@ final class SamplingRuleApplier {
     for (int i = 0; i < globPattern.length(); i++) {
       char c = globPattern.charAt(i);
       if (c == '*' || c == '?') {
-        return new PatternMatcher(toRegexPattern(globPattern));
+        return new PatternMatcher(toRegexPattern(globPattern), globPattern.substring(0, i));
       }
     }
 
@@ -398,8 +434,25 @@ final class SamplingRuleApplier {
     return Pattern.compile(patternBuilder.toString());
   }
 
-  private interface Matcher {
+  interface Matcher {
     boolean matches(@Nullable String s);
+
+    /**
+     * Returns the value a string must be equal to, ignoring case, to be matched, or {@code null} if
+     * this matcher is not an exact match.
+     */
+    @Nullable
+    default String getExactValue() {
+      return null;
+    }
+
+    /**
+     * Returns the prefix every matched string starts with, which is empty if matched strings can
+     * start with anything. Only meaningful if {@link #getExactValue()} is {@code null}.
+     */
+    default String getLiteralPrefix() {
+      return "";
+    }
   }
 
   private enum TrueMatcher implements Matcher {
@@ -432,6 +485,11 @@ final class SamplingRuleApplier {
       return target.equalsIgnoreCase(s);
     }
 
+    @Override
+    public String getExactValue() {
+      return target;
+    }
+
     @Override
     public String toString() {
       return target;
@@ -440,9 +498,12 @@ final class SamplingRuleApplier {
 
   private static class PatternMatcher implements Matcher {
     private final Pattern pattern;
+    // The literal characters before the first wildcard, which are matched case-sensitively.
+    private final String literalPrefix;
 
-    PatternMatcher(Pattern pattern) {
+    PatternMatcher(Pattern pattern, String literalPrefix) {
       this.pattern = pattern;
+      this.literalPrefix = literalPrefix;
     }
 
     @Override
@@ -453,6 +514,11 @@ final class SamplingRuleApplier {
       return pattern.matcher(s).matches();
     }
 
+    @Override
+    public String getLiteralPrefix() {
+      return literalPrefix;
+    }
+
     @Override
     public String toString() {
       return pattern.toString();
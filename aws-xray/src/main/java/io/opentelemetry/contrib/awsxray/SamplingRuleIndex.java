@@ -0,0 +1,206 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.awsxray;
+
+import io.opentelemetry.api.common.Attributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+import javax.annotation.Nullable;
+
+/**
+ * An index over the rules of an {@link XrayRulesSampler} which narrows down the rules that need to
+ * be evaluated for a span, using the fields rules commonly match exactly: the HTTP method, the host
+ * and the URL path. Conditions on the resource, such as the service name, have already been
+ * evaluated by {@link SamplingRuleApplier#withResource} for the rules in the index.
+ *
+ * <p>The rules are numbered in priority order, and each index entry is a bit set of the rules which
+ * can match a given value of a field. The candidates for a span are the intersection of the entries
+ * for all its fields, and they are evaluated in priority order, so the first one which matches is
+ * also the first match of a linear scan over all rules. Rules with a wildcard pattern for a field
+ * are candidates for every value of that field, with the exception of URL paths, for which the
+ * literal prefix of the pattern is indexed.
+ *
+ * <p>The index only depends on the matchers of the rules, so it is rebuilt when the rules change
+ * but can be reused for new targets of the same rules with {@link
+ * #withAppliers(SamplingRuleApplier[])}.
+ */
+final class SamplingRuleIndex {
+
+  private final SamplingRuleApplier[] appliers;
+  private final int numWords;
+
+  // The custom attributes matched by any rule, which are extracted from the span once.
+  private final Map<String, Integer> attributeIndices;
+
+  private final FieldIndex httpMethodIndex;
+  private final FieldIndex hostIndex;
+
+  // Rules matching URL paths exactly, by path ignoring case.
+  private final Map<String, long[]> exactUrlPathRules;
+  // Rules matching any URL path or a URL path with a literal prefix.
+  private final PrefixNode urlPathPrefixes;
+
+  SamplingRuleIndex(SamplingRuleApplier[] appliers) {
+    this.appliers = appliers;
+    numWords = (appliers.length + 63) >>> 6;
+    attributeIndices = SpanRequestAttributes.attributeIndices(appliers);
+
+    httpMethodIndex = new FieldIndex(appliers, SamplingRuleApplier::getHttpMethodMatcher);
+    hostIndex = new FieldIndex(appliers, SamplingRuleApplier::getHostMatcher);
+
+    exactUrlPathRules = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    urlPathPrefixes = new PrefixNode(numWords);
+    for (int i = 0; i < appliers.length; i++) {
+      SamplingRuleApplier.Matcher matcher = appliers[i].getUrlPathMatcher();
+      String exactValue = matcher.getExactValue();
+      if (exactValue != null) {
+        set(exactUrlPathRules.computeIfAbsent(exactValue, unused -> new long[numWords]), i);
+      } else {
+        set(urlPathPrefixes.getOrCreate(matcher.getLiteralPrefix(), numWords).rules, i);
+      }
+    }
+    // A path starting with a longer prefix also starts with all of its shorter prefixes.
+    urlPathPrefixes.inheritRules(new long[numWords]);
+  }
+
+  private SamplingRuleIndex(SamplingRuleApplier[] appliers, SamplingRuleIndex index) {
+    this.appliers = appliers;
+    numWords = index.numWords;
+    attributeIndices = index.attributeIndices;
+    httpMethodIndex = index.httpMethodIndex;
+    hostIndex = index.hostIndex;
+    exactUrlPathRules = index.exactUrlPathRules;
+    urlPathPrefixes = index.urlPathPrefixes;
+  }
+
+  /**
+   * Returns an index for the given appliers, which must have the same rules in the same order as
+   * the appliers this index has been built for.
+   */
+  SamplingRuleIndex withAppliers(SamplingRuleApplier[] appliers) {
+    return new SamplingRuleIndex(appliers, this);
+  }
+
+  /**
+   * Returns the applier of the rule with the highest priority which matches the given span
+   * attributes, or {@code null} if no rule matches.
+   */
+  @Nullable
+  SamplingRuleApplier match(Attributes attributes) {
+    SpanRequestAttributes requestAttributes =
+        SpanRequestAttributes.extract(attributes, attributeIndices);
+    long[] httpMethodRules = httpMethodIndex.get(requestAttributes.getHttpMethod());
+    long[] hostRules = hostIndex.get(requestAttributes.getHost());
+    String urlPath = requestAttributes.getUrlPath();
+    long[] prefixRules = urlPathPrefixes.find(urlPath).rules;
+    long[] exactRules = urlPath != null ? exactUrlPathRules.get(urlPath) : null;
+
+    for (int word = 0; word < numWords; word++) {
+      long urlPathRules = prefixRules[word];
+      if (exactRules != null) {
+        urlPathRules |= exactRules[word];
+      }
+      long candidates = httpMethodRules[word] & hostRules[word] & urlPathRules;
+      while (candidates != 0) {
+        int i = (word << 6) + Long.numberOfTrailingZeros(candidates);
+        if (appliers[i].matches(requestAttributes)) {
+          return appliers[i];
+        }
+        candidates &= candidates - 1;
+      }
+    }
+    return null;
+  }
+
+  private static void set(long[] bits, int i) {
+    bits[i >>> 6] |= 1L << i;
+  }
+
+  // The rules for a field which is either matched exactly or by a wildcard pattern.
+  private static final class FieldIndex {
+
+    // For each exact value, the rules matching it exactly or by a pattern.
+    private final Map<String, long[]> rulesByValue;
+    // The rules matching a value by a pattern.
+    private final long[] patternRules;
+
+    FieldIndex(
+        SamplingRuleApplier[] appliers,
+        Function<SamplingRuleApplier, SamplingRuleApplier.Matcher> getMatcher) {
+      int numWords = (appliers.length + 63) >>> 6;
+      rulesByValue = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+      patternRules = new long[numWords];
+      for (int i = 0; i < appliers.length; i++) {
+        String exactValue = getMatcher.apply(appliers[i]).getExactValue();
+        if (exactValue != null) {
+          set(rulesByValue.computeIfAbsent(exactValue, unused -> new long[numWords]), i);
+        } else {
+          set(patternRules, i);
+        }
+      }
+      for (long[] rules : rulesByValue.values()) {
+        for (int word = 0; word < numWords; word++) {
+          rules[word] |= patternRules[word];
+        }
+      }
+    }
+
+    long[] get(@Nullable String value) {
+      if (value == null) {
+        return patternRules;
+      }
+      long[] rules = rulesByValue.get(value);
+      return rules != null ? rules : patternRules;
+    }
+  }
+
+  // A trie of the literal prefixes of URL path patterns.
+  private static final class PrefixNode {
+
+    private final Map<Character, PrefixNode> children = new HashMap<>();
+    // The rules with this prefix, and after building the index also with any shorter prefix.
+    final long[] rules;
+
+    PrefixNode(int numWords) {
+      rules = new long[numWords];
+    }
+
+    PrefixNode getOrCreate(String prefix, int numWords) {
+      PrefixNode node = this;
+      for (int i = 0; i < prefix.length(); i++) {
+        node = node.children.computeIfAbsent(prefix.charAt(i), unused -> new PrefixNode(numWords));
+      }
+      return node;
+    }
+
+    void inheritRules(long[] parentRules) {
+      for (int word = 0; word < rules.length; word++) {
+        rules[word] |= parentRules[word];
+      }
+      for (PrefixNode child : children.values()) {
+        child.inheritRules(rules);
+      }
+    }
+
+    // Returns the node of the longest prefix of the given path.
+    PrefixNode find(@Nullable String path) {
+      PrefixNode node = this;
+      if (path == null) {
+        return node;
+      }
+      for (int i = 0; i < path.length(); i++) {
+        PrefixNode child = node.children.get(path.charAt(i));
+        if (child == null) {
+          break;
+        }
+        node = child;
+      }
+      return node;
+    }
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.awsxray;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.semconv.resource.attributes.ResourceAttributes;
+import io.opentelemetry.semconv.trace.attributes.SemanticAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * The attributes of a span which X-Ray sampling rules match against. They are extracted in a single
+ * pass over the span attributes for each sampling decision and shared by all the rules which are
+ * evaluated for it.
+ */
+final class SpanRequestAttributes {
+
+  private static final String[] NO_VALUES = new String[0];
+
+  @Nullable private String httpTarget;
+  @Nullable private String httpUrl;
+  @Nullable private String urlPath;
+  @Nullable private String httpMethod;
+  @Nullable private String host;
+  @Nullable private String faasId;
+
+  // The values of the custom attributes any rule matches against, by their index.
+  private final Map<String, Integer> attributeIndices;
+  private final String[] attributeValues;
+
+  /**
+   * Returns the indices of the custom attributes matched by the given rules, to be passed to {@link
+   * #extract(Attributes, Map)}.
+   */
+  static Map<String, Integer> attributeIndices(SamplingRuleApplier... appliers) {
+    Map<String, Integer> attributeIndices = new HashMap<>();
+    for (SamplingRuleApplier applier : appliers) {
+      for (String key : applier.getAttributeKeys()) {
+        attributeIndices.putIfAbsent(key, attributeIndices.size());
+      }
+    }
+    return attributeIndices.isEmpty() ? Collections.emptyMap() : attributeIndices;
+  }
+
+  /**
+   * Extracts the HTTP attributes and the custom attributes with the given indices from the given
+   * span attributes.
+   */
+  static SpanRequestAttributes extract(
+      Attributes attributes, Map<String, Integer> attributeIndices) {
+    SpanRequestAttributes requestAttributes = new SpanRequestAttributes(attributeIndices);
+    attributes.forEach(requestAttributes::put);
+    requestAttributes.urlPath = toUrlPath(requestAttributes.httpTarget, requestAttributes.httpUrl);
+    return requestAttributes;
+  }
+
+  private SpanRequestAttributes(Map<String, Integer> attributeIndices) {
+    this.attributeIndices = attributeIndices;
+    attributeValues = attributeIndices.isEmpty() ? NO_VALUES : new String[attributeIndices.size()];
+  }
+
+  private void put(AttributeKey<?> key, Object value) {
+    if (key.equals(SemanticAttributes.HTTP_TARGET)) {
+      httpTarget = (String) value;
+    } else if (key.equals(SemanticAttributes.HTTP_URL)) {
+      httpUrl = (String) value;
+    } else if (key.equals(SemanticAttributes.HTTP_METHOD)) {
+      httpMethod = (String) value;
+    } else if (key.equals(SemanticAttributes.HTTP_HOST)) {
+      host = (String) value;
+    } else if (key.equals(ResourceAttributes.FAAS_ID)) {
+      faasId = (String) value;
+    }
+
+    Integer index = attributeIndices.get(key.getKey());
+    if (index != null) {
+      attributeValues[index] = value.toString();
+    }
+  }
+
+  // URL Path may be in either http.target or http.url
+  @Nullable
+  private static String toUrlPath(@Nullable String httpTarget, @Nullable String httpUrl) {
+    if (httpTarget != null || httpUrl == null) {
+      return httpTarget;
+    }
+    int schemeEndIndex = httpUrl.indexOf("://");
+    // Per spec, http.url is always populated with scheme://host/target. If scheme doesn't
+    // match, assume it's bad instrumentation and ignore.
+    if (schemeEndIndex <= 0) {
+      return null;
+    }
+    int pathIndex = httpUrl.indexOf('/', schemeEndIndex + "://".length());
+    if (pathIndex < 0) {
+      // No path, equivalent to root path.
+      return "/";
+    }
+    return httpUrl.substring(pathIndex);
+  }
+
+  @Nullable
+  String getUrlPath() {
+    return urlPath;
+  }
+
+  @Nullable
+  String getHttpMethod() {
+    return httpMethod;
+  }
+
+  @Nullable
+  String getHost() {
+    return host;
+  }
+
+  @Nullable
+  String getFaasId() {
+    return faasId;
+  }
+
+  /**
+   * Returns the value of the custom attribute with the given key as a string, or {@code null} if
+   * the span does not have it or it has not been extracted.
+   */
+  @Nullable
+  String getAttribute(String key) {
+    Integer index = attributeIndices.get(key);
+    return index != null ? attributeValues[index] : null;
+  }
+}
@@ -30,10 +30,10 @@ final class XrayRulesSampler implements Sampler {
   private static final Logger logger = Logger.getLogger(XrayRulesSampler.class.getName());
 
   private final String clientId;
-  private final Resource resource;
   private final Clock clock;
   private final Sampler fallbackSampler;
   private final SamplingRuleApplier[] ruleAppliers;
+  private final SamplingRuleIndex ruleIndex;
 
   XrayRulesSampler(
       String clientId,
@@ -41,29 +41,33 @@ final class XrayRulesSampler implements Sampler {
       Clock clock,
       Sampler fallbackSampler,
       List<GetSamplingRulesResponse.SamplingRule> rules) {
-    this(
-        clientId,
-        resource,
-        clock,
-        fallbackSampler,
+    this.clientId = clientId;
+    this.clock = clock;
+    this.fallbackSampler = fallbackSampler;
+    ruleAppliers =
         rules.stream()
             // Lower priority value takes precedence so normal ascending sort.
             .sorted(Comparator.comparingInt(GetSamplingRulesResponse.SamplingRule::getPriority))
             .map(rule -> new SamplingRuleApplier(clientId, rule, clock))
-            .toArray(SamplingRuleApplier[]::new));
+            // The resource never changes, so rules which cannot match it are dropped here, and the
+            // remaining ones only need to evaluate their conditions on the span when sampling.
+            .map(applier -> applier.withResource(resource))
+            .filter(Objects::nonNull)
+            .toArray(SamplingRuleApplier[]::new);
+    ruleIndex = new SamplingRuleIndex(ruleAppliers);
   }
 
   private XrayRulesSampler(
       String clientId,
-      Resource resource,
       Clock clock,
       Sampler fallbackSampler,
-      SamplingRuleApplier[] ruleAppliers) {
+      SamplingRuleApplier[] ruleAppliers,
+      SamplingRuleIndex ruleIndex) {
     this.clientId = clientId;
-    this.resource = resource;
     this.clock = clock;
     this.fallbackSampler = fallbackSampler;
     this.ruleAppliers = ruleAppliers;
+    this.ruleIndex = ruleIndex;
   }
 
   @Override
@@ -74,11 +78,9 @@ final class XrayRulesSampler implements Sampler {
       SpanKind spanKind,
       Attributes attributes,
       List<LinkData> parentLinks) {
-    for (SamplingRuleApplier applier : ruleAppliers) {
-      if (applier.matches(attributes, resource)) {
-        return applier.shouldSample(
-            parentContext, traceId, name, spanKind, attributes, parentLinks);
-      }
+    SamplingRuleApplier applier = ruleIndex.match(attributes);
+    if (applier != null) {
+      return applier.shouldSample(parentContext, traceId, name, spanKind, attributes, parentLinks);
     }
 
     // In practice, X-Ray always returns a Default rule that matches all requests so it is a bug in
@@ -135,6 +137,8 @@ final class XrayRulesSampler implements Sampler {
                   return rule;
                 })
             .toArray(SamplingRuleApplier[]::new);
-    return new XrayRulesSampler(clientId, resource, clock, fallbackSampler, newAppliers);
+    // The rules are the same, only their targets changed, so the index does not need to be rebuilt.
+    return new XrayRulesSampler(
+        clientId, clock, fallbackSampler, newAppliers, ruleIndex.withAppliers(newAppliers));
   }
 }
@@ -130,6 +130,20 @@ class SamplingRuleApplierTest {
       assertThat(applier.matches(attributes, Resource.empty())).isFalse();
     }
 
+    @Test
+    void withResource() {
+      SamplingRuleApplier resourceApplier = applier.withResource(resource);
+      assertThat(resourceApplier).isNotNull();
+      assertThat(resourceApplier.matches(requestAttributes(resourceApplier, attributes))).isTrue();
+
+      // Rules which cannot match the resource are dropped.
+      assertThat(
+              applier.withResource(
+                  resource.toBuilder().put(SERVICE_NAME, "test-service-foo-baz").build()))
+          .isNull();
+      assertThat(applier.withResource(Resource.empty())).isNull();
+    }
+
     @Test
     void methodNotMatch() {
       Attributes attributes =
@@ -519,6 +533,33 @@ class SamplingRuleApplierTest {
       assertThat(applier.matches(attributes, resource)).isTrue();
     }
 
+    @Test
+    void withResourceEvaluatesSpanFaasId() {
+      SamplingRuleApplier resourceApplier =
+          applier.withResource(
+              Resource.create(
+                  removeAttribute(this.resource.getAttributes(), ResourceAttributes.FAAS_ID)));
+      assertThat(resourceApplier).isNotNull();
+      assertThat(
+              resourceApplier.matches(
+                  requestAttributes(
+                      resourceApplier,
+                      attributes.toBuilder()
+                          .put(
+                              ResourceAttributes.FAAS_ID,
+                              "arn:aws:xray:us-east-1:595986152929:my-service")
+                          .build())))
+          .isTrue();
+      assertThat(resourceApplier.matches(requestAttributes(resourceApplier, attributes))).isFalse();
+
+      assertThat(
+              applier.withResource(
+                  resource.toBuilder()
+                      .put(ResourceAttributes.FAAS_ID, "arn:aws:xray:us-east-1:595986152929:other")
+                      .build()))
+          .isNull();
+    }
+
     @Test
     void notLambdaNotMatches() {
       Resource resource =
@@ -721,6 +762,12 @@ class SamplingRuleApplierTest {
     }
   }
 
+  private static SpanRequestAttributes requestAttributes(
+      SamplingRuleApplier applier, Attributes attributes) {
+    return SpanRequestAttributes.extract(
+        attributes, SpanRequestAttributes.attributeIndices(applier));
+  }
+
   @SuppressWarnings({"unchecked", "rawtypes"})
   private static Attributes removeAttribute(Attributes attributes, AttributeKey<?> removedKey) {
     AttributesBuilder builder = Attributes.builder();
@@ -0,0 +1,208 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.awsxray;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.common.AttributesBuilder;
+import io.opentelemetry.sdk.common.Clock;
+import io.opentelemetry.sdk.resources.Resource;
+import io.opentelemetry.semconv.resource.attributes.ResourceAttributes;
+import io.opentelemetry.semconv.trace.attributes.SemanticAttributes;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import javax.annotation.Nullable;
+import org.junit.jupiter.api.Test;
+
+class SamplingRuleIndexTest {
+
+  private static final Resource RESOURCE =
+      Resource.builder().put(ResourceAttributes.SERVICE_NAME, "my-service").build();
+
+  private static final String[] SERVICE_NAMES = {"*", "my-service", "MY-SERVICE", "other", "my-*"};
+  private static final String[] HTTP_METHODS = {"*", "GET", "get", "POST", "P*", "?ET"};
+  private static final String[] HOSTS = {"*", "example.com", "*.example.com", "api.?xample.com"};
+  private static final String[] URL_PATHS = {
+    "*", "/", "/api", "/api/*", "/api/users", "/API/Users", "/a?i/*", "/static*", "*.png"
+  };
+
+  private static final String[] ANIMALS = {"*", "cat", "d*"};
+
+  private static final String[] SPAN_HTTP_METHODS = {"GET", "get", "POST", "PUT", "DELETE"};
+  private static final String[] SPAN_HOSTS = {"example.com", "api.example.com", "other.org"};
+  private static final String[] SPAN_URL_PATHS = {
+    "/", "/api", "/API", "/api/users", "/api/Users", "/apix/users", "/static/logo.png", "/other"
+  };
+  private static final String[] SPAN_URLS = {
+    "https://example.com", "https://example.com/api/users", "example.com/api", "http://a/static/x"
+  };
+
+  @Test
+  void matchesHighestPriorityRule() {
+    SamplingRuleIndex index =
+        index(
+            applier("a", "my-service", "POST", "*", "/api/*"),
+            applier("b", "other", "GET", "*", "*"),
+            applier("c", "*", "GET", "example.com", "/api/users"),
+            applier("d", "*", "*", "*", "/api/*"),
+            applier("e", "*", "*", "*", "*"));
+
+    assertThat(match(index, span("POST", "example.com", "/api/users"))).isEqualTo("a");
+    assertThat(match(index, span("get", "EXAMPLE.COM", "/API/USERS"))).isEqualTo("c");
+    assertThat(match(index, span("GET", "example.com", "/api/groups"))).isEqualTo("d");
+    assertThat(match(index, span("GET", null, "/api/users"))).isEqualTo("d");
+    assertThat(match(index, span(null, null, null))).isEqualTo("e");
+  }
+
+  @Test
+  void urlPathFromUrl() {
+    SamplingRuleIndex index =
+        index(applier("a", "*", "*", "*", "/api/*"), applier("b", "*", "*", "*", "/"));
+
+    assertThat(
+            match(
+                index, Attributes.of(SemanticAttributes.HTTP_URL, "https://example.com/api/users")))
+        .isEqualTo("a");
+    assertThat(match(index, Attributes.of(SemanticAttributes.HTTP_URL, "https://example.com")))
+        .isEqualTo("b");
+    assertThat(match(index, Attributes.of(SemanticAttributes.HTTP_URL, "example.com/api")))
+        .isNull();
+  }
+
+  @Test
+  void noRules() {
+    SamplingRuleIndex index = index();
+
+    assertThat(match(index, span("GET", "example.com", "/"))).isNull();
+  }
+
+  @Test
+  void sameResultAsLinearScan() {
+    Random random = new Random(0);
+    for (int numRules : new int[] {1, 10, 63, 64, 65, 200}) {
+      SamplingRuleApplier[] appliers = new SamplingRuleApplier[numRules];
+      for (int i = 0; i < numRules; i++) {
+        Map<String, String> ruleAttributes =
+            random.nextInt(4) == 0
+                ? Collections.singletonMap("animal", pick(random, ANIMALS))
+                : Collections.emptyMap();
+        appliers[i] =
+            applier(
+                "rule-" + i,
+                pick(random, SERVICE_NAMES),
+                pick(random, HTTP_METHODS),
+                pick(random, HOSTS),
+                pick(random, URL_PATHS),
+                ruleAttributes);
+      }
+      SamplingRuleIndex index = index(appliers);
+
+      for (int i = 0; i < 1000; i++) {
+        AttributesBuilder attributes = Attributes.builder();
+        if (random.nextInt(5) != 0) {
+          attributes.put(SemanticAttributes.HTTP_METHOD, pick(random, SPAN_HTTP_METHODS));
+        }
+        if (random.nextInt(5) != 0) {
+          attributes.put(SemanticAttributes.HTTP_HOST, pick(random, SPAN_HOSTS));
+        }
+        if (random.nextInt(5) != 0) {
+          attributes.put(SemanticAttributes.HTTP_TARGET, pick(random, SPAN_URL_PATHS));
+        }
+        if (random.nextInt(3) == 0) {
+          attributes.put(SemanticAttributes.HTTP_URL, pick(random, SPAN_URLS));
+        }
+        if (random.nextBoolean()) {
+          attributes.put(AttributeKey.stringKey("animal"), random.nextBoolean() ? "cat" : "dog");
+        }
+        Attributes spanAttributes = attributes.build();
+
+        assertThat(match(index, spanAttributes))
+            .as("rules %s, span %s", numRules, spanAttributes)
+            .isEqualTo(linearScan(appliers, spanAttributes));
+      }
+    }
+  }
+
+  // The rules of the sampler, which only keeps the rules that can match its resource.
+  private static SamplingRuleIndex index(SamplingRuleApplier... appliers) {
+    return new SamplingRuleIndex(
+        Arrays.stream(appliers)
+            .map(applier -> applier.withResource(RESOURCE))
+            .filter(Objects::nonNull)
+            .toArray(SamplingRuleApplier[]::new));
+  }
+
+  @Nullable
+  private static String match(SamplingRuleIndex index, Attributes attributes) {
+    SamplingRuleApplier applier = index.match(attributes);
+    return applier != null ? applier.getRuleName() : null;
+  }
+
+  @Nullable
+  private static String linearScan(SamplingRuleApplier[] appliers, Attributes attributes) {
+    for (SamplingRuleApplier applier : appliers) {
+      if (applier.matches(attributes, RESOURCE)) {
+        return applier.getRuleName();
+      }
+    }
+    return null;
+  }
+
+  private static String pick(Random random, String[] values) {
+    return values[random.nextInt(values.length)];
+  }
+
+  private static Attributes span(
+      @Nullable String httpMethod, @Nullable String host, @Nullable String httpTarget) {
+    AttributesBuilder attributes = Attributes.builder();
+    if (httpMethod != null) {
+      attributes.put(SemanticAttributes.HTTP_METHOD, httpMethod);
+    }
+    if (host != null) {
+      attributes.put(SemanticAttributes.HTTP_HOST, host);
+    }
+    if (httpTarget != null) {
+      attributes.put(SemanticAttributes.HTTP_TARGET, httpTarget);
+    }
+    return attributes.build();
+  }
+
+  private static SamplingRuleApplier applier(
+      String ruleName, String serviceName, String httpMethod, String host, String urlPath) {
+    return applier(ruleName, serviceName, httpMethod, host, urlPath, Collections.emptyMap());
+  }
+
+  private static SamplingRuleApplier applier(
+      String ruleName,
+      String serviceName,
+      String httpMethod,
+      String host,
+      String urlPath,
+      Map<String, String> attributes) {
+    return new SamplingRuleApplier(
+        "CLIENT_ID",
+        GetSamplingRulesResponse.SamplingRule.create(
+            attributes,
+            1.0,
+            host,
+            httpMethod,
+            1,
+            0,
+            "*",
+            null,
+            ruleName,
+            serviceName,
+            "*",
+            urlPath,
+            1),
+        Clock.getDefault());
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.awsxray;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.semconv.resource.attributes.ResourceAttributes;
+import io.opentelemetry.semconv.trace.attributes.SemanticAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class SpanRequestAttributesTest {
+
+  @Test
+  void extractsHttpAttributes() {
+    SpanRequestAttributes attributes =
+        SpanRequestAttributes.extract(
+            Attributes.builder()
+                .put(SemanticAttributes.HTTP_METHOD, "GET")
+                .put(SemanticAttributes.HTTP_HOST, "opentelemetry.io")
+                .put(SemanticAttributes.HTTP_TARGET, "/instrument-me")
+                .put(SemanticAttributes.HTTP_URL, "https://opentelemetry.io/ignored")
+                .put(ResourceAttributes.FAAS_ID, "arn:aws:lambda:us-west-2:123456789012:function:f")
+                .build(),
+            Collections.emptyMap());
+
+    assertThat(attributes.getHttpMethod()).isEqualTo("GET");
+    assertThat(attributes.getHost()).isEqualTo("opentelemetry.io");
+    assertThat(attributes.getUrlPath()).isEqualTo("/instrument-me");
+    assertThat(attributes.getFaasId())
+        .isEqualTo("arn:aws:lambda:us-west-2:123456789012:function:f");
+    assertThat(attributes.getAttribute("http.method")).isNull();
+  }
+
+  @Test
+  void urlPathFromUrl() {
+    assertThat(urlPath("https://opentelemetry.io/instrument-me?a=b"))
+        .isEqualTo("/instrument-me?a=b");
+    assertThat(urlPath("https://opentelemetry.io")).isEqualTo("/");
+    assertThat(urlPath("opentelemetry.io/instrument-me")).isNull();
+    assertThat(
+            SpanRequestAttributes.extract(Attributes.empty(), Collections.emptyMap()).getUrlPath())
+        .isNull();
+  }
+
+  @Test
+  void extractsIndexedAttributesAsStrings() {
+    Map<String, Integer> attributeIndices = new HashMap<>();
+    attributeIndices.put("animal", 0);
+    attributeIndices.put("speed", 1);
+    attributeIndices.put("color", 2);
+
+    SpanRequestAttributes attributes =
+        SpanRequestAttributes.extract(
+            Attributes.builder()
+                .put(AttributeKey.stringKey("animal"), "cat")
+                .put(AttributeKey.longKey("speed"), 10)
+                .put(AttributeKey.stringKey("size"), "small")
+                .build(),
+            attributeIndices);
+
+    assertThat(attributes.getAttribute("animal")).isEqualTo("cat");
+    assertThat(attributes.getAttribute("speed")).isEqualTo("10");
+    assertThat(attributes.getAttribute("color")).isNull();
+    assertThat(attributes.getAttribute("size")).isNull();
+  }
+
+  private static String urlPath(String url) {
+    return SpanRequestAttributes.extract(
+            Attributes.of(SemanticAttributes.HTTP_URL, url), Collections.emptyMap())
+        .getUrlPath();
+  }
+}
@@ -19,6 +19,7 @@ import io.opentelemetry.sdk.testing.time.TestClock;
 import io.opentelemetry.sdk.trace.samplers.Sampler;
 import io.opentelemetry.sdk.trace.samplers.SamplingDecision;
 import io.opentelemetry.sdk.trace.samplers.SamplingResult;
+import io.opentelemetry.semconv.resource.attributes.ResourceAttributes;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.Arrays;
@@ -169,6 +170,56 @@ class XrayRulesSamplerTest {
     assertThat(sampler.snapshot(Date.from(now))).hasSize(4);
   }
 
+  @Test
+  void dropsRulesNotMatchingResource() {
+    SamplingRule otherServiceRule =
+        SamplingRule.create(
+            Collections.emptyMap(),
+            1.0,
+            "*",
+            "*",
+            1,
+            1,
+            "*",
+            "*",
+            "other-service-rule",
+            "other-service",
+            "*",
+            "*",
+            1);
+    SamplingRule defaultRule =
+        SamplingRule.create(
+            Collections.emptyMap(),
+            0.0,
+            "*",
+            "*",
+            2,
+            0,
+            "*",
+            "*",
+            "default-rule",
+            "*",
+            "*",
+            "*",
+            1);
+
+    TestClock clock = TestClock.create();
+    XrayRulesSampler sampler =
+        new XrayRulesSampler(
+            "CLIENT_ID",
+            Resource.builder().put(ResourceAttributes.SERVICE_NAME, "cat-service").build(),
+            clock,
+            Sampler.alwaysOn(),
+            Arrays.asList(otherServiceRule, defaultRule));
+
+    assertThat(doSample(sampler, "cat-service"))
+        .isEqualTo(SamplingResult.create(SamplingDecision.DROP));
+    Instant now = Instant.ofEpochSecond(0, clock.now());
+    assertThat(sampler.snapshot(Date.from(now)))
+        .extracting(GetSamplingTargetsRequest.SamplingStatisticsDocument::getRuleName)
+        .containsExactly("default-rule");
+  }
+
   private static SamplingResult doSample(Sampler sampler, String name) {
     return sampler.shouldSample(
         Context.current(),
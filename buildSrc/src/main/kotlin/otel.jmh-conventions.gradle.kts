@@ -0,0 +1,29 @@
+plugins {
+  id("me.champeau.jmh")
+}
+
+dependencies {
+  jmh(platform(project(":dependencyManagement")))
+  jmh("org.openjdk.jmh:jmh-core")
+  jmh("org.openjdk.jmh:jmh-generator-bytecode")
+}
+
+// invoke jmh on a single benchmark class like so:
+//   ./gradlew -PjmhIncludeSingleClass=ConsistentReservoirSamplingSpanProcessorBenchmark :consistent-sampling:jmh
+// add profilers, e.g. for measuring allocation rates, like so:
+//   ./gradlew -PjmhProfilers=gc :consistent-sampling:jmh
+jmh {
+  failOnError.set(true)
+  resultFormat.set("JSON")
+  // Otherwise an error will happen:
+  // Could not expand ZIP 'byte-buddy-agent-1.9.7.jar'.
+  includeTests.set(false)
+  val jmhIncludeSingleClass: String? by project
+  if (jmhIncludeSingleClass != null) {
+    includes.add(jmhIncludeSingleClass as String)
+  }
+  val jmhProfilers: String? by project
+  if (jmhProfilers != null) {
+    profilers.addAll((jmhProfilers as String).split(','))
+  }
+}
@@ -1,12 +1,28 @@
 plugins {
   id("otel.java-conventions")
   id("otel.publish-conventions")
+  id("otel.jmh-conventions")
 }
 
 description = "Sampler and exporter implementations for consistent sampling"
 
 dependencies {
   api("io.opentelemetry:opentelemetry-sdk-trace")
+  testImplementation("io.opentelemetry:opentelemetry-sdk-metrics")
+  testImplementation("io.opentelemetry:opentelemetry-sdk-testing")
   testImplementation("org.hipparchus:hipparchus-core:2.1")
   testImplementation("org.hipparchus:hipparchus-stat:2.1")
+  jmh("com.fasterxml.jackson.core:jackson-core")
+}
+
+// replays recorded spans through a sampler and the reservoir sampling span processor like so:
+//   ./gradlew :consistent-sampling:replay -PreplayArgs="--input spans.json --sampler probability:0.1"
+tasks.register<JavaExec>("replay") {
+  description = "Replays recorded spans to measure sampling overhead and estimation errors"
+  classpath = sourceSets["jmh"].runtimeClasspath
+  mainClass.set("io.opentelemetry.contrib.samplers.TraceReplay")
+  val replayArgs: String? by project
+  if (replayArgs != null) {
+    args((replayArgs as String).trim().split(Regex("\\s+")))
+  }
 }
@@ -0,0 +1,247 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.common.InstrumentationScopeInfo;
+import io.opentelemetry.sdk.resources.Resource;
+import io.opentelemetry.sdk.trace.ReadableSpan;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the effect of {@link BatchOrdering} on the size and the compression time of export
+ * requests, using an exporter that writes every batch gzip-compressed to a local file.
+ *
+ * <p>The batch consists of the spans of many traces from several services and instrumentation
+ * scopes in random order, like the output of a reservoir. The exporter writes the resource and the
+ * instrumentation scope only when they change between consecutive spans, like the grouping of OTLP.
+ * The average time per export includes the ordering, the serialization and the compression. The
+ * number of exports and the compressed and uncompressed bytes are counted as secondary results,
+ * which are totals over all measurement iterations, so the sizes per export are their ratios.
+ * Counting them as operations instead would report them as time per byte.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class BatchOrderingBenchmark {
+
+  private static final int NUMBER_OF_SERVICES = 4;
+  private static final int NUMBER_OF_SCOPES = 4;
+  private static final int SPANS_PER_TRACE = 8;
+
+  @State(Scope.Benchmark)
+  public static class BenchmarkState {
+
+    @Param({"false", "true"})
+    boolean ordered;
+
+    @Param({"2048"})
+    int batchSize;
+
+    List<SpanData> spans;
+    FileSpanExporter exporter;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+      Random random = new Random(0x2a8f3c5d7e9b1f40L);
+      List<SdkTracerProvider> tracerProviders = new ArrayList<>();
+      List<Tracer> tracers = new ArrayList<>();
+      for (int i = 0; i < NUMBER_OF_SERVICES; ++i) {
+        SdkTracerProvider tracerProvider =
+            SdkTracerProvider.builder()
+                .setSampler(ConsistentSampler.alwaysOn())
+                .setResource(
+                    Resource.getDefault()
+                        .merge(
+                            Resource.create(
+                                Attributes.of(
+                                    AttributeKey.stringKey("service.name"), "service-" + i))))
+                .build();
+        tracerProviders.add(tracerProvider);
+        for (int j = 0; j < NUMBER_OF_SCOPES; ++j) {
+          tracers.add(tracerProvider.get("io.opentelemetry.instrumentation.library-" + j, "1.0"));
+        }
+      }
+
+      spans = new ArrayList<>();
+      while (spans.size() < batchSize) {
+        Tracer rootTracer = tracers.get(random.nextInt(tracers.size()));
+        Span root = rootTracer.spanBuilder("GET /api/resource").startSpan();
+        spans.add(endSpan(root));
+        for (int i = 1; i < SPANS_PER_TRACE && spans.size() < batchSize; ++i) {
+          // the spans of a trace come from the same service, but from different scopes
+          Tracer tracer =
+              tracers.get(
+                  tracers.indexOf(rootTracer) / NUMBER_OF_SCOPES * NUMBER_OF_SCOPES
+                      + random.nextInt(NUMBER_OF_SCOPES));
+          Span child =
+              tracer
+                  .spanBuilder("SELECT orders")
+                  .setParent(Context.root().with(root))
+                  .setAttribute("db.system", "postgresql")
+                  .setAttribute("db.statement", "SELECT * FROM orders WHERE id = ?")
+                  .setAttribute("thread.id", random.nextInt(16))
+                  .startSpan();
+          spans.add(endSpan(child));
+        }
+      }
+      Collections.shuffle(spans, random);
+      for (SdkTracerProvider tracerProvider : tracerProviders) {
+        tracerProvider.shutdown().join(10, TimeUnit.SECONDS);
+      }
+
+      exporter = new FileSpanExporter(Files.createTempFile("batch-ordering", ".gz"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+      Files.deleteIfExists(exporter.file);
+    }
+
+    private static SpanData endSpan(Span span) {
+      span.end();
+      return ((ReadableSpan) span).toSpanData();
+    }
+  }
+
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  @State(Scope.Thread)
+  public static class Sizes {
+    public long exports;
+    public long compressedBytes;
+    public long uncompressedBytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      exports = 0;
+      compressedBytes = 0;
+      uncompressedBytes = 0;
+    }
+  }
+
+  @Benchmark
+  public void export(BenchmarkState state, Sizes sizes) throws IOException {
+    List<SpanData> batch = new ArrayList<>(state.spans);
+    if (state.ordered) {
+      BatchOrdering.groupByResourceScopeAndTrace(batch);
+    }
+    state.exporter.export(batch);
+    sizes.exports += 1;
+    sizes.uncompressedBytes += state.exporter.lastUncompressedBytes;
+    sizes.compressedBytes += Files.size(state.exporter.file);
+  }
+
+  /**
+   * A stand-in for a network exporter, which writes every batch to a file using a simple text
+   * format and gzip compression.
+   */
+  private static final class FileSpanExporter implements SpanExporter {
+    private final Path file;
+    private long lastUncompressedBytes;
+
+    private FileSpanExporter(Path file) {
+      this.file = file;
+    }
+
+    @Override
+    public CompletableResultCode export(Collection<SpanData> spans) {
+      StringBuilder text = new StringBuilder();
+      Resource resource = null;
+      InstrumentationScopeInfo scope = null;
+      for (SpanData span : spans) {
+        if (!span.getResource().equals(resource)) {
+          resource = span.getResource();
+          scope = null;
+          text.append("resource ").append(resource.getAttributes()).append('\n');
+        }
+        if (!span.getInstrumentationScopeInfo().equals(scope)) {
+          scope = span.getInstrumentationScopeInfo();
+          text.append("scope ")
+              .append(scope.getName())
+              .append(' ')
+              .append(scope.getVersion())
+              .append('\n');
+        }
+        text.append(span.getTraceId())
+            .append(' ')
+            .append(span.getSpanId())
+            .append(' ')
+            .append(span.getParentSpanId())
+            .append(' ')
+            .append(span.getSpanContext().getTraceState().asMap())
+            .append(' ')
+            .append(span.getName())
+            .append(' ')
+            .append(span.getKind())
+            .append(' ')
+            .append(span.getStartEpochNanos())
+            .append(' ')
+            .append(span.getEndEpochNanos())
+            .append(' ')
+            .append(span.getAttributes())
+            .append('\n');
+      }
+      lastUncompressedBytes = text.length();
+      try (Writer writer =
+          new BufferedWriter(
+              new OutputStreamWriter(
+                  new GZIPOutputStream(Files.newOutputStream(file)), StandardCharsets.UTF_8))) {
+        writer.write(text.toString());
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      return CompletableResultCode.ofSuccess();
+    }
+
+    @Override
+    public CompletableResultCode flush() {
+      return CompletableResultCode.ofSuccess();
+    }
+
+    @Override
+    public CompletableResultCode shutdown() {
+      return CompletableResultCode.ofSuccess();
+    }
+  }
+}
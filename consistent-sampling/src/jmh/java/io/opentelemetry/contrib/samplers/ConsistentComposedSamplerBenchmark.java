@@ -0,0 +1,109 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.trace.data.LinkData;
+import io.opentelemetry.sdk.trace.samplers.SamplingResult;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the sampling decision of a nested tree of binary compositions, as built by {@link
+ * ConsistentSampler#and(ConsistentSampler)} and {@link ConsistentSampler#or(ConsistentSampler)},
+ * with the flat composition built by {@link ConsistentSampler#composedAndBuilder()} and {@link
+ * ConsistentSampler#composedOrBuilder()}.
+ *
+ * <p>The composed samplers are probability based samplers with different probabilities, and a
+ * sampler in the middle whose p-value makes the result final (an always-on sampler for "or", a
+ * sampler returning an invalid p-value for "and"), which allows the flat composition to skip the
+ * remaining samplers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConsistentComposedSamplerBenchmark {
+
+  private static final String TRACE_ID = "0123456789abcdef0123456789abcdef";
+  private static final String NAME = "name";
+  private static final List<LinkData> LINKS = Collections.emptyList();
+
+  private static final ConsistentSampler INVALID_P_SAMPLER =
+      new ConsistentSampler() {
+        @Override
+        protected int getP(int parentP, boolean isRoot) {
+          return OtelTraceState.getInvalidP();
+        }
+
+        @Override
+        boolean isStateless() {
+          return true;
+        }
+
+        @Override
+        public String getDescription() {
+          return "InvalidPSampler";
+        }
+      };
+
+  @Param({"2", "6", "16"})
+  int numberOfSamplers;
+
+  @Param({"and", "or"})
+  String operator;
+
+  @Param({"nested", "flat"})
+  String composition;
+
+  private ConsistentSampler sampler;
+
+  @Setup
+  public void setup() {
+    boolean isAnd = operator.equals("and");
+    List<ConsistentSampler> samplers = new ArrayList<>(numberOfSamplers);
+    for (int i = 0; i < numberOfSamplers; ++i) {
+      if (i == numberOfSamplers / 2) {
+        samplers.add(isAnd ? INVALID_P_SAMPLER : ConsistentSampler.alwaysOn());
+      } else {
+        samplers.add(ConsistentSampler.probabilityBased(Math.pow(0.5, i + 1)));
+      }
+    }
+    if (composition.equals("nested")) {
+      sampler = samplers.get(0);
+      for (int i = 1; i < numberOfSamplers; ++i) {
+        sampler = isAnd ? sampler.and(samplers.get(i)) : sampler.or(samplers.get(i));
+      }
+    } else {
+      ConsistentComposedSamplerBuilder builder =
+          isAnd ? ConsistentSampler.composedAndBuilder() : ConsistentSampler.composedOrBuilder();
+      sampler = builder.addAll(samplers).build();
+    }
+  }
+
+  @Benchmark
+  public SamplingResult shouldSample() {
+    return sampler.shouldSample(
+        Context.root(), TRACE_ID, NAME, SpanKind.INTERNAL, Attributes.empty(), LINKS);
+  }
+}
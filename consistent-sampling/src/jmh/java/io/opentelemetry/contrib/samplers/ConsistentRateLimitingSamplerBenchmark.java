@@ -0,0 +1,51 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of the rate estimation in {@link ConsistentRateLimitingSampler#getP(int,
+ * boolean)} for different numbers of threads sampling spans concurrently.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConsistentRateLimitingSamplerBenchmark {
+
+  private final ConsistentRateLimitingSampler sampler = new ConsistentRateLimitingSampler(1000, 5);
+
+  @Benchmark
+  @Threads(1)
+  public int getP_01Thread() {
+    return sampler.getP(OtelTraceState.getInvalidP(), true);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public int getP_04Threads() {
+    return sampler.getP(OtelTraceState.getInvalidP(), true);
+  }
+
+  @Benchmark
+  @Threads(16)
+  public int getP_16Threads() {
+    return sampler.getP(OtelTraceState.getInvalidP(), true);
+  }
+}
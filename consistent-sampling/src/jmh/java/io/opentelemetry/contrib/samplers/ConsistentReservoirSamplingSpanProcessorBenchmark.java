@@ -0,0 +1,138 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.trace.ReadableSpan;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.SpanProcessor;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the throughput of {@link ConsistentReservoirSamplingSpanProcessor#onEnd(ReadableSpan)}
+ * for different numbers of threads ending spans concurrently.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ConsistentReservoirSamplingSpanProcessorBenchmark {
+
+  private static final int NUMBER_OF_SPANS = 1024;
+
+  @State(Scope.Benchmark)
+  public static class BenchmarkState {
+
+    @Param({"1", "64"})
+    int stripeCount;
+
+    @Param({"1000"})
+    int reservoirSize;
+
+    SpanProcessor processor;
+    ReadableSpan[] spans;
+
+    @Setup(Level.Trial)
+    public void setup() {
+      processor =
+          ConsistentReservoirSamplingSpanProcessor.builder(new NoopSpanExporter())
+              .setReservoirSize(reservoirSize)
+              .setExportPeriod(Duration.ofMillis(100))
+              .setStripeCount(stripeCount)
+              .build();
+
+      SdkTracerProvider tracerProvider =
+          SdkTracerProvider.builder().setSampler(ConsistentSampler.alwaysOn()).build();
+      Tracer tracer = tracerProvider.get("benchmark");
+      spans = new ReadableSpan[NUMBER_OF_SPANS];
+      for (int i = 0; i < NUMBER_OF_SPANS; ++i) {
+        Span span = tracer.spanBuilder("span").startSpan();
+        span.end();
+        spans[i] = (ReadableSpan) span;
+      }
+      tracerProvider.shutdown().join(10, TimeUnit.SECONDS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      processor.shutdown().join(10, TimeUnit.SECONDS);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class ThreadState {
+    int index;
+  }
+
+  private static void endSpan(BenchmarkState benchmarkState, ThreadState threadState) {
+    int index = threadState.index;
+    benchmarkState.processor.onEnd(benchmarkState.spans[index]);
+    threadState.index = (index + 1) & (NUMBER_OF_SPANS - 1);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public void onEnd_01Thread(BenchmarkState benchmarkState, ThreadState threadState) {
+    endSpan(benchmarkState, threadState);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void onEnd_04Threads(BenchmarkState benchmarkState, ThreadState threadState) {
+    endSpan(benchmarkState, threadState);
+  }
+
+  @Benchmark
+  @Threads(16)
+  public void onEnd_16Threads(BenchmarkState benchmarkState, ThreadState threadState) {
+    endSpan(benchmarkState, threadState);
+  }
+
+  @Benchmark
+  @Threads(64)
+  public void onEnd_64Threads(BenchmarkState benchmarkState, ThreadState threadState) {
+    endSpan(benchmarkState, threadState);
+  }
+
+  private static final class NoopSpanExporter implements SpanExporter {
+
+    @Override
+    public CompletableResultCode export(Collection<SpanData> spans) {
+      return CompletableResultCode.ofSuccess();
+    }
+
+    @Override
+    public CompletableResultCode flush() {
+      return CompletableResultCode.ofSuccess();
+    }
+
+    @Override
+    public CompletableResultCode shutdown() {
+      return CompletableResultCode.ofSuccess();
+    }
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.TraceFlags;
+import io.opentelemetry.api.trace.TraceState;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.trace.data.LinkData;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of {@link ConsistentSampler#shouldSample(Context, String, String, SpanKind,
+ * Attributes, List)} including the update of the trace state for all kinds of consistent samplers,
+ * and of the corresponding {@link ConsistentThresholdSampler}s.
+ *
+ * <p>Run with {@code -prof gc} to check that the sampling decision does not allocate any objects,
+ * if the parent trace state only contains p- and r-values, or, for threshold samplers, if there is
+ * no parent trace state.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConsistentSamplerBenchmark {
+
+  private static final String TRACE_ID = "0123456789abcdef0123456789abcdef";
+  private static final String SPAN_ID = "0123456789abcdef";
+  private static final String NAME = "name";
+  private static final List<LinkData> LINKS = Collections.emptyList();
+
+  @Param({
+    "alwaysOn",
+    "alwaysOff",
+    "probabilityBased",
+    "parentBased",
+    "rateLimited",
+    "composedAnd",
+    "composedOr",
+    "thresholdProbabilityBased",
+    "thresholdParentBased",
+    "thresholdRateLimited",
+    "thresholdComposedAnd"
+  })
+  String samplerType;
+
+  /**
+   * The parent of the sampled span, which is either not existing, a span with valid p- and r-value,
+   * a span without any trace state, a span with further sub-keys in the trace state, or a span with
+   * a threshold.
+   */
+  @Param({
+    "root",
+    "childWithValidState",
+    "childWithoutState",
+    "childWithOtherKeyValuePairs",
+    "childWithThreshold"
+  })
+  String parentType;
+
+  private Sampler sampler;
+  private Context parentContext;
+  private TraceState parentTraceState;
+
+  private static Sampler createSampler(String samplerType) {
+    switch (samplerType) {
+      case "alwaysOn":
+        return ConsistentSampler.alwaysOn();
+      case "alwaysOff":
+        return ConsistentSampler.alwaysOff();
+      case "probabilityBased":
+        return ConsistentSampler.probabilityBased(0.01);
+      case "parentBased":
+        return ConsistentSampler.parentBased(ConsistentSampler.probabilityBased(0.01));
+      case "rateLimited":
+        return ConsistentSampler.rateLimited(1000, 5);
+      case "composedAnd":
+        return ConsistentSampler.probabilityBased(0.5)
+            .and(ConsistentSampler.probabilityBased(0.01));
+      case "composedOr":
+        return ConsistentSampler.probabilityBased(0.5).or(ConsistentSampler.probabilityBased(0.01));
+      case "thresholdProbabilityBased":
+        return ConsistentThresholdSampler.probabilityBased(0.01);
+      case "thresholdParentBased":
+        return ConsistentThresholdSampler.parentBased(
+            ConsistentThresholdSampler.probabilityBased(0.01));
+      case "thresholdRateLimited":
+        return ConsistentThresholdSampler.rateLimited(1000, 5);
+      case "thresholdComposedAnd":
+        return ConsistentThresholdSampler.probabilityBased(0.5)
+            .and(ConsistentThresholdSampler.probabilityBased(0.01));
+      default:
+        throw new IllegalArgumentException(samplerType);
+    }
+  }
+
+  private static Context createParentContext(String parentType) {
+    TraceState traceState;
+    switch (parentType) {
+      case "root":
+        return Context.root();
+      case "childWithValidState":
+        traceState = TraceState.builder().put(OtelTraceState.TRACE_STATE_KEY, "p:1;r:3").build();
+        break;
+      case "childWithoutState":
+        traceState = TraceState.getDefault();
+        break;
+      case "childWithOtherKeyValuePairs":
+        traceState =
+            TraceState.builder().put(OtelTraceState.TRACE_STATE_KEY, "p:1;r:3;x:5").build();
+        break;
+      case "childWithThreshold":
+        traceState = TraceState.builder().put(OtelTraceState.TRACE_STATE_KEY, "th:8").build();
+        break;
+      default:
+        throw new IllegalArgumentException(parentType);
+    }
+    SpanContext spanContext =
+        SpanContext.create(TRACE_ID, SPAN_ID, TraceFlags.getSampled(), traceState);
+    return Span.wrap(spanContext).storeInContext(Context.root());
+  }
+
+  @Setup
+  public void setup() {
+    sampler = createSampler(samplerType);
+    parentContext = createParentContext(parentType);
+    parentTraceState = Span.fromContext(parentContext).getSpanContext().getTraceState();
+  }
+
+  @Benchmark
+  public TraceState shouldSample() {
+    return sampler
+        .shouldSample(parentContext, TRACE_ID, NAME, SpanKind.INTERNAL, Attributes.empty(), LINKS)
+        .getUpdatedTraceState(parentTraceState);
+  }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.SpanId;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.TraceFlags;
+import io.opentelemetry.api.trace.TraceId;
+import io.opentelemetry.api.trace.TraceState;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.common.InstrumentationScopeInfo;
+import io.opentelemetry.sdk.trace.ReadWriteSpan;
+import io.opentelemetry.sdk.trace.ReadableSpan;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.SpanProcessor;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/**
+ * Measures the throughput of {@link ConsistentTailSamplingSpanProcessor#onEnd(ReadableSpan)} with
+ * 100k concurrent traces. Every operation ends the child span of a new trace, which is buffered,
+ * and the local root span of the trace started 100k operations earlier, which decides that trace.
+ * The number of concurrent traces is shared by all benchmark threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ConsistentTailSamplingSpanProcessorBenchmark {
+
+  private static final int NUMBER_OF_CONCURRENT_TRACES = 100_000;
+
+  @State(Scope.Benchmark)
+  public static class BenchmarkState {
+
+    @Param({"1", "16"})
+    int stripeCount;
+
+    SpanProcessor processor;
+    SpanData rootSpanData;
+    SpanData childSpanData;
+    final AtomicLong threadCounter = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setup() {
+      processor =
+          ConsistentTailSamplingSpanProcessor.builder(new NoopSpanProcessor())
+              .setSamplingProbability(0.1)
+              .setMaxBufferedSpans(4 * NUMBER_OF_CONCURRENT_TRACES)
+              .setDecisionWait(Duration.ofMinutes(10))
+              .setStripeCount(stripeCount)
+              .build();
+
+      SdkTracerProvider tracerProvider =
+          SdkTracerProvider.builder().setSampler(ConsistentSampler.alwaysOn()).build();
+      Span rootSpan = tracerProvider.get("benchmark").spanBuilder("root").startSpan();
+      Span childSpan =
+          tracerProvider
+              .get("benchmark")
+              .spanBuilder("child")
+              .setParent(Context.root().with(rootSpan))
+              .startSpan();
+      childSpan.end();
+      rootSpan.end();
+      rootSpanData = ((ReadableSpan) rootSpan).toSpanData();
+      childSpanData = ((ReadableSpan) childSpan).toSpanData();
+      tracerProvider.shutdown().join(10, TimeUnit.SECONDS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      processor.shutdown().join(10, TimeUnit.SECONDS);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class ThreadState {
+    long threadIndex;
+    int concurrentTraces;
+    long traceIndex;
+
+    @Setup(Level.Trial)
+    public void setup(BenchmarkState benchmarkState, BenchmarkParams params) {
+      threadIndex = benchmarkState.threadCounter.getAndIncrement();
+      concurrentTraces = NUMBER_OF_CONCURRENT_TRACES / params.getThreads();
+    }
+  }
+
+  private static String getTraceId(long threadIndex, long traceIndex) {
+    // the lower half of the trace id is expected to be random
+    return TraceId.fromLongs(threadIndex, traceIndex * 0x9E3779B97F4A7C15L);
+  }
+
+  private static void endSpans(BenchmarkState benchmarkState, ThreadState threadState) {
+    long traceIndex = threadState.traceIndex++;
+    String traceId = getTraceId(threadState.threadIndex, traceIndex);
+    SpanContext rootSpanContext =
+        SpanContext.create(
+            traceId, SpanId.fromLong(1), TraceFlags.getSampled(), TraceState.getDefault());
+    SpanContext childSpanContext =
+        SpanContext.create(
+            traceId, SpanId.fromLong(2), TraceFlags.getSampled(), TraceState.getDefault());
+    benchmarkState.processor.onEnd(
+        new BenchmarkSpan(childSpanContext, rootSpanContext, benchmarkState.childSpanData));
+
+    long decidedTraceIndex = traceIndex - threadState.concurrentTraces;
+    if (decidedTraceIndex >= 0) {
+      SpanContext decidedRootSpanContext =
+          SpanContext.create(
+              getTraceId(threadState.threadIndex, decidedTraceIndex),
+              SpanId.fromLong(1),
+              TraceFlags.getSampled(),
+              TraceState.getDefault());
+      benchmarkState.processor.onEnd(
+          new BenchmarkSpan(
+              decidedRootSpanContext, SpanContext.getInvalid(), benchmarkState.rootSpanData));
+    }
+  }
+
+  @Benchmark
+  @Threads(1)
+  public void onEnd_01Thread(BenchmarkState benchmarkState, ThreadState threadState) {
+    endSpans(benchmarkState, threadState);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void onEnd_04Threads(BenchmarkState benchmarkState, ThreadState threadState) {
+    endSpans(benchmarkState, threadState);
+  }
+
+  @Benchmark
+  @Threads(16)
+  public void onEnd_16Threads(BenchmarkState benchmarkState, ThreadState threadState) {
+    endSpans(benchmarkState, threadState);
+  }
+
+  /**
+   * A lightweight span with the given span contexts and otherwise the properties of the given span
+   * data, as creating SDK spans with distinct trace ids for every operation would dominate the
+   * benchmark.
+   */
+  private static final class BenchmarkSpan implements ReadableSpan {
+    private final SpanContext spanContext;
+    private final SpanContext parentSpanContext;
+    private final SpanData spanData;
+
+    private BenchmarkSpan(
+        SpanContext spanContext, SpanContext parentSpanContext, SpanData spanData) {
+      this.spanContext = spanContext;
+      this.parentSpanContext = parentSpanContext;
+      this.spanData = spanData;
+    }
+
+    @Override
+    public SpanContext getSpanContext() {
+      return spanContext;
+    }
+
+    @Override
+    public SpanContext getParentSpanContext() {
+      return parentSpanContext;
+    }
+
+    @Override
+    public String getName() {
+      return spanData.getName();
+    }
+
+    @Override
+    public SpanData toSpanData() {
+      return spanData;
+    }
+
+    @Override
+    @Deprecated
+    public io.opentelemetry.sdk.common.InstrumentationLibraryInfo getInstrumentationLibraryInfo() {
+      return spanData.getInstrumentationLibraryInfo();
+    }
+
+    @Override
+    public InstrumentationScopeInfo getInstrumentationScopeInfo() {
+      return spanData.getInstrumentationScopeInfo();
+    }
+
+    @Override
+    public boolean hasEnded() {
+      return true;
+    }
+
+    @Override
+    public long getLatencyNanos() {
+      return spanData.getEndEpochNanos() - spanData.getStartEpochNanos();
+    }
+
+    @Override
+    public SpanKind getKind() {
+      return spanData.getKind();
+    }
+
+    @Override
+    @Nullable
+    public <T> T getAttribute(AttributeKey<T> key) {
+      return spanData.getAttributes().get(key);
+    }
+  }
+
+  private static final class NoopSpanProcessor implements SpanProcessor {
+
+    @Override
+    public void onStart(Context parentContext, ReadWriteSpan span) {}
+
+    @Override
+    public boolean isStartRequired() {
+      return false;
+    }
+
+    @Override
+    public void onEnd(ReadableSpan span) {}
+
+    @Override
+    public boolean isEndRequired() {
+      return true;
+    }
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Measures the cost of parsing and serializing the {@link OtelTraceState}. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OtelTraceStateBenchmark {
+
+  @Param({"", "r:3", "p:1;r:3", "p:1;r:3;x:5;y:abc"})
+  String traceState;
+
+  private OtelTraceState otelTraceState;
+
+  @Setup
+  public void setup() {
+    otelTraceState = OtelTraceState.parse(traceState);
+  }
+
+  @Benchmark
+  public OtelTraceState parse() {
+    return OtelTraceState.parse(traceState);
+  }
+
+  @Benchmark
+  public int parsePacked() {
+    return OtelTraceState.parsePacked(traceState);
+  }
+
+  @Benchmark
+  public String serialize() {
+    return otelTraceState.serialize();
+  }
+}
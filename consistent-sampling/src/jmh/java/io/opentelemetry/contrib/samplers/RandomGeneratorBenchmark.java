@@ -0,0 +1,80 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of generating random values with the default {@link RandomGenerator} and with a
+ * {@link RandomGenerator} backed by a {@link StripedRandomLongSupplier}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RandomGeneratorBenchmark {
+
+  private final RandomGenerator randomGenerator = RandomGenerator.getDefault();
+  private final RandomGenerator stripedRandomGenerator =
+      RandomGenerator.createStriped(16, 0x6f1d2c83a5e94b07L);
+
+  @Benchmark
+  @Threads(1)
+  public int numberOfLeadingZerosOfRandomLong_01Thread() {
+    return randomGenerator.numberOfLeadingZerosOfRandomLong();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public int numberOfLeadingZerosOfRandomLong_04Threads() {
+    return randomGenerator.numberOfLeadingZerosOfRandomLong();
+  }
+
+  @Benchmark
+  @Threads(1)
+  public int numberOfLeadingZerosOfRandomLongStriped_01Thread() {
+    return stripedRandomGenerator.numberOfLeadingZerosOfRandomLong();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public int numberOfLeadingZerosOfRandomLongStriped_04Threads() {
+    return stripedRandomGenerator.numberOfLeadingZerosOfRandomLong();
+  }
+
+  @Benchmark
+  public boolean nextBoolean() {
+    return randomGenerator.nextBoolean(0.3);
+  }
+
+  @Benchmark
+  public boolean nextBooleanStriped() {
+    return stripedRandomGenerator.nextBoolean(0.3);
+  }
+
+  @Benchmark
+  public long roundStochastically() {
+    return randomGenerator.roundStochastically(12.3);
+  }
+
+  @Benchmark
+  public BitSet generateRandomBitSet() {
+    return randomGenerator.generateRandomBitSet(1000, 100);
+  }
+}
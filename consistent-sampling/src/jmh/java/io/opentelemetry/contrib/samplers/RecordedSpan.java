@@ -0,0 +1,57 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+
+/**
+ * A span as recorded from real traffic, with everything needed to create it again with the SDK.
+ *
+ * @see RecordedSpans
+ */
+final class RecordedSpan {
+
+  final String traceId;
+  final String spanId;
+  // empty for root spans
+  final String parentSpanId;
+  final String name;
+  final String scopeName;
+  final SpanKind kind;
+  final StatusCode statusCode;
+  final long startEpochNanos;
+  final long endEpochNanos;
+  final Attributes attributes;
+
+  RecordedSpan(
+      String traceId,
+      String spanId,
+      String parentSpanId,
+      String name,
+      String scopeName,
+      SpanKind kind,
+      StatusCode statusCode,
+      long startEpochNanos,
+      long endEpochNanos,
+      Attributes attributes) {
+    this.traceId = traceId;
+    this.spanId = spanId;
+    this.parentSpanId = parentSpanId;
+    this.name = name;
+    this.scopeName = scopeName;
+    this.kind = kind;
+    this.statusCode = statusCode;
+    this.startEpochNanos = startEpochNanos;
+    this.endEpochNanos = Math.max(startEpochNanos, endEpochNanos);
+    this.attributes = attributes;
+  }
+
+  boolean hasParent() {
+    return !parentSpanId.isEmpty();
+  }
+}
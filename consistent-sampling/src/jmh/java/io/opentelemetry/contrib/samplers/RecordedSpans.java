@@ -0,0 +1,547 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.AttributeType;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.common.AttributesBuilder;
+import io.opentelemetry.api.internal.OtelEncodingUtils;
+import io.opentelemetry.api.trace.SpanId;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.TraceId;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads and writes recorded spans for {@link TraceReplay}.
+ *
+ * <p>Two formats are supported, optionally gzip compressed:
+ *
+ * <p>1) OTLP JSON, as written by the file exporter of the collector, which is a sequence of {@code
+ * ExportTraceServiceRequest}s, one per line or concatenated. Trace and span ids may be hex or
+ * base64 encoded, enums may be given by name or number. Array and map attribute values, events and
+ * links are ignored, as they do not affect sampling.
+ *
+ * <p>2) A simple binary format, which is much faster to read and can be created from OTLP JSON
+ * using {@link #writeBinary(List, Path)}. It starts with the magic number {@code 0x4f545253} and
+ * the version {@code 1}, followed by the number of spans and the spans. Every span consists of the
+ * trace id as two longs, the span id and the parent span id (0 for root spans) as longs, the start
+ * and end epoch nanos as longs, the ordinals of the span kind and the status code as bytes, the
+ * name and the instrumentation scope name, the number of attributes as int, and the attributes,
+ * each given by its key, a type byte (0 string, 1 boolean, 2 long, 3 double) and its value. Strings
+ * are written as the length of their UTF-8 encoding as int followed by the bytes, all numbers are
+ * big-endian.
+ */
+final class RecordedSpans {
+
+  private static final int BINARY_MAGIC = 0x4f545253;
+  private static final int BINARY_VERSION = 1;
+  private static final int GZIP_MAGIC = 0x1f8b;
+
+  private static final byte STRING_TYPE = 0;
+  private static final byte BOOLEAN_TYPE = 1;
+  private static final byte LONG_TYPE = 2;
+  private static final byte DOUBLE_TYPE = 3;
+
+  private static final SpanKind[] SPAN_KINDS = SpanKind.values();
+  private static final StatusCode[] STATUS_CODES = StatusCode.values();
+
+  private RecordedSpans() {}
+
+  /**
+   * Reads the spans from the given file, whose format is detected from its content.
+   *
+   * @param path the file
+   * @return the spans in the order of the file
+   * @throws IOException if the file cannot be read or has an invalid format
+   */
+  static List<RecordedSpan> read(Path path) throws IOException {
+    try (InputStream in = open(path)) {
+      in.mark(4);
+      int magic = new DataInputStream(in).readInt();
+      in.reset();
+      if (magic == BINARY_MAGIC) {
+        return readBinary(new DataInputStream(in));
+      }
+      return readOtlpJson(in);
+    }
+  }
+
+  private static InputStream open(Path path) throws IOException {
+    InputStream in = new BufferedInputStream(Files.newInputStream(path));
+    in.mark(2);
+    int magic = (in.read() << 8) | in.read();
+    in.reset();
+    if (magic == GZIP_MAGIC) {
+      in = new BufferedInputStream(new GZIPInputStream(in));
+    }
+    return in;
+  }
+
+  /**
+   * Writes the spans to the given file in the binary format.
+   *
+   * @param spans the spans
+   * @param path the file
+   * @throws IOException if the file cannot be written
+   */
+  static void writeBinary(List<RecordedSpan> spans, Path path) throws IOException {
+    try (OutputStream out = Files.newOutputStream(path);
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out))) {
+      data.writeInt(BINARY_MAGIC);
+      data.writeInt(BINARY_VERSION);
+      data.writeInt(spans.size());
+      for (RecordedSpan span : spans) {
+        data.writeLong(OtelEncodingUtils.longFromBase16String(span.traceId, 0));
+        data.writeLong(OtelEncodingUtils.longFromBase16String(span.traceId, 16));
+        data.writeLong(OtelEncodingUtils.longFromBase16String(span.spanId, 0));
+        data.writeLong(
+            span.hasParent() ? OtelEncodingUtils.longFromBase16String(span.parentSpanId, 0) : 0);
+        data.writeLong(span.startEpochNanos);
+        data.writeLong(span.endEpochNanos);
+        data.writeByte(span.kind.ordinal());
+        data.writeByte(span.statusCode.ordinal());
+        writeString(data, span.name);
+        writeString(data, span.scopeName);
+        writeAttributes(data, span.attributes);
+      }
+    }
+  }
+
+  private static void writeAttributes(DataOutputStream data, Attributes attributes)
+      throws IOException {
+    int count = 0;
+    for (AttributeKey<?> key : attributes.asMap().keySet()) {
+      if (getTypeByte(key.getType()) >= 0) {
+        count += 1;
+      }
+    }
+    data.writeInt(count);
+    for (Map.Entry<AttributeKey<?>, Object> entry : attributes.asMap().entrySet()) {
+      byte type = getTypeByte(entry.getKey().getType());
+      if (type < 0) {
+        continue;
+      }
+      writeString(data, entry.getKey().getKey());
+      data.writeByte(type);
+      Object value = entry.getValue();
+      switch (type) {
+        case STRING_TYPE:
+          writeString(data, (String) value);
+          break;
+        case BOOLEAN_TYPE:
+          data.writeBoolean((Boolean) value);
+          break;
+        case LONG_TYPE:
+          data.writeLong((Long) value);
+          break;
+        default:
+          data.writeDouble((Double) value);
+          break;
+      }
+    }
+  }
+
+  private static byte getTypeByte(AttributeType type) {
+    switch (type) {
+      case STRING:
+        return STRING_TYPE;
+      case BOOLEAN:
+        return BOOLEAN_TYPE;
+      case LONG:
+        return LONG_TYPE;
+      case DOUBLE:
+        return DOUBLE_TYPE;
+      default:
+        return -1;
+    }
+  }
+
+  private static void writeString(DataOutputStream data, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    data.writeInt(bytes.length);
+    data.write(bytes);
+  }
+
+  private static List<RecordedSpan> readBinary(DataInputStream data) throws IOException {
+    if (data.readInt() != BINARY_MAGIC) {
+      throw new IOException("not a recorded span file");
+    }
+    int version = data.readInt();
+    if (version != BINARY_VERSION) {
+      throw new IOException("unsupported version " + version);
+    }
+    int numberOfSpans = data.readInt();
+    List<RecordedSpan> spans = new ArrayList<>(numberOfSpans);
+    for (int i = 0; i < numberOfSpans; ++i) {
+      String traceId = TraceId.fromLongs(data.readLong(), data.readLong());
+      String spanId = SpanId.fromLong(data.readLong());
+      long parentSpanId = data.readLong();
+      long startEpochNanos = data.readLong();
+      long endEpochNanos = data.readLong();
+      SpanKind kind = SPAN_KINDS[data.readUnsignedByte()];
+      StatusCode statusCode = STATUS_CODES[data.readUnsignedByte()];
+      String name = readString(data);
+      String scopeName = readString(data);
+      Attributes attributes = readAttributes(data);
+      spans.add(
+          new RecordedSpan(
+              traceId,
+              spanId,
+              (parentSpanId != 0) ? SpanId.fromLong(parentSpanId) : "",
+              name,
+              scopeName,
+              kind,
+              statusCode,
+              startEpochNanos,
+              endEpochNanos,
+              attributes));
+    }
+    return spans;
+  }
+
+  private static Attributes readAttributes(DataInputStream data) throws IOException {
+    int count = data.readInt();
+    if (count == 0) {
+      return Attributes.empty();
+    }
+    AttributesBuilder builder = Attributes.builder();
+    for (int i = 0; i < count; ++i) {
+      String key = readString(data);
+      byte type = data.readByte();
+      switch (type) {
+        case STRING_TYPE:
+          builder.put(key, readString(data));
+          break;
+        case BOOLEAN_TYPE:
+          builder.put(key, data.readBoolean());
+          break;
+        case LONG_TYPE:
+          builder.put(key, data.readLong());
+          break;
+        case DOUBLE_TYPE:
+          builder.put(key, data.readDouble());
+          break;
+        default:
+          throw new IOException("invalid attribute type " + type);
+      }
+    }
+    return builder.build();
+  }
+
+  private static String readString(DataInputStream data) throws IOException {
+    byte[] bytes = new byte[data.readInt()];
+    data.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static List<RecordedSpan> readOtlpJson(InputStream in) throws IOException {
+    List<RecordedSpan> spans = new ArrayList<>();
+    try (JsonParser parser = new JsonFactory().createParser(in)) {
+      // the file may contain any number of requests
+      while (parser.nextToken() != null) {
+        expect(parser, JsonToken.START_OBJECT);
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          String field = parser.getCurrentName();
+          parser.nextToken();
+          if ("resourceSpans".equals(field)) {
+            readArray(parser, () -> readResourceSpans(parser, spans));
+          } else {
+            parser.skipChildren();
+          }
+        }
+      }
+    }
+    return spans;
+  }
+
+  private static void readResourceSpans(JsonParser parser, List<RecordedSpan> spans)
+      throws IOException {
+    expect(parser, JsonToken.START_OBJECT);
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      parser.nextToken();
+      if ("scopeSpans".equals(field) || "instrumentationLibrarySpans".equals(field)) {
+        readArray(parser, () -> readScopeSpans(parser, spans));
+      } else {
+        parser.skipChildren();
+      }
+    }
+  }
+
+  private static void readScopeSpans(JsonParser parser, List<RecordedSpan> spans)
+      throws IOException {
+    expect(parser, JsonToken.START_OBJECT);
+    // the scope may follow the spans, which are therefore completed at the end of the object
+    String scopeName = "";
+    List<SpanFields> scopeSpans = new ArrayList<>();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      parser.nextToken();
+      if ("scope".equals(field) || "instrumentationLibrary".equals(field)) {
+        scopeName = readScopeName(parser);
+      } else if ("spans".equals(field)) {
+        readArray(parser, () -> scopeSpans.add(readSpan(parser)));
+      } else {
+        parser.skipChildren();
+      }
+    }
+    for (SpanFields span : scopeSpans) {
+      spans.add(span.toRecordedSpan(scopeName));
+    }
+  }
+
+  private static String readScopeName(JsonParser parser) throws IOException {
+    expect(parser, JsonToken.START_OBJECT);
+    String name = "";
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      parser.nextToken();
+      if ("name".equals(field)) {
+        name = parser.getValueAsString("");
+      } else {
+        parser.skipChildren();
+      }
+    }
+    return name;
+  }
+
+  private static SpanFields readSpan(JsonParser parser) throws IOException {
+    expect(parser, JsonToken.START_OBJECT);
+    SpanFields span = new SpanFields();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      parser.nextToken();
+      switch (field) {
+        case "traceId":
+          span.traceId = decodeId(parser.getValueAsString(""), TraceId.getLength());
+          break;
+        case "spanId":
+          span.spanId = decodeId(parser.getValueAsString(""), SpanId.getLength());
+          break;
+        case "parentSpanId":
+          String parentSpanId = parser.getValueAsString("");
+          span.parentSpanId =
+              parentSpanId.isEmpty() ? "" : decodeId(parentSpanId, SpanId.getLength());
+          break;
+        case "name":
+          span.name = parser.getValueAsString("");
+          break;
+        case "kind":
+          span.kind = decodeSpanKind(parser);
+          break;
+        case "startTimeUnixNano":
+          span.startEpochNanos = parser.getValueAsLong();
+          break;
+        case "endTimeUnixNano":
+          span.endEpochNanos = parser.getValueAsLong();
+          break;
+        case "attributes":
+          readArray(parser, () -> readAttribute(parser, span.attributes));
+          break;
+        case "status":
+          span.statusCode = readStatusCode(parser);
+          break;
+        default:
+          parser.skipChildren();
+      }
+    }
+    if (!TraceId.isValid(span.traceId) || !SpanId.isValid(span.spanId)) {
+      throw new IOException("span " + span.name + " has an invalid trace or span id");
+    }
+    return span;
+  }
+
+  private static void readAttribute(JsonParser parser, AttributesBuilder attributes)
+      throws IOException {
+    expect(parser, JsonToken.START_OBJECT);
+    String key = "";
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      parser.nextToken();
+      if ("key".equals(field)) {
+        key = parser.getValueAsString("");
+      } else if ("value".equals(field)) {
+        // relies on the key preceding the value, as written by all known exporters
+        readAttributeValue(parser, key, attributes);
+      } else {
+        parser.skipChildren();
+      }
+    }
+  }
+
+  private static void readAttributeValue(
+      JsonParser parser, String key, AttributesBuilder attributes) throws IOException {
+    expect(parser, JsonToken.START_OBJECT);
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      parser.nextToken();
+      switch (field) {
+        case "stringValue":
+          attributes.put(key, parser.getValueAsString(""));
+          break;
+        case "boolValue":
+          attributes.put(key, parser.getValueAsBoolean());
+          break;
+        case "intValue":
+          attributes.put(key, parser.getValueAsLong());
+          break;
+        case "doubleValue":
+          attributes.put(key, parser.getValueAsDouble());
+          break;
+        default:
+          // array, map and bytes values are not supported
+          parser.skipChildren();
+      }
+    }
+  }
+
+  private static StatusCode readStatusCode(JsonParser parser) throws IOException {
+    expect(parser, JsonToken.START_OBJECT);
+    StatusCode statusCode = StatusCode.UNSET;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      parser.nextToken();
+      if ("code".equals(field)) {
+        statusCode = decodeStatusCode(parser);
+      } else {
+        parser.skipChildren();
+      }
+    }
+    return statusCode;
+  }
+
+  private static SpanKind decodeSpanKind(JsonParser parser) throws IOException {
+    if (parser.currentToken() == JsonToken.VALUE_STRING) {
+      String name = parser.getText().toUpperCase(Locale.ROOT);
+      for (SpanKind kind : SPAN_KINDS) {
+        if (name.equals(kind.name()) || name.equals("SPAN_KIND_" + kind.name())) {
+          return kind;
+        }
+      }
+      return SpanKind.INTERNAL;
+    }
+    switch (parser.getValueAsInt()) {
+      case 2:
+        return SpanKind.SERVER;
+      case 3:
+        return SpanKind.CLIENT;
+      case 4:
+        return SpanKind.PRODUCER;
+      case 5:
+        return SpanKind.CONSUMER;
+      default:
+        return SpanKind.INTERNAL;
+    }
+  }
+
+  private static StatusCode decodeStatusCode(JsonParser parser) throws IOException {
+    if (parser.currentToken() == JsonToken.VALUE_STRING) {
+      String name = parser.getText().toUpperCase(Locale.ROOT);
+      for (StatusCode statusCode : STATUS_CODES) {
+        if (name.equals(statusCode.name()) || name.equals("STATUS_CODE_" + statusCode.name())) {
+          return statusCode;
+        }
+      }
+      return StatusCode.UNSET;
+    }
+    switch (parser.getValueAsInt()) {
+      case 1:
+        return StatusCode.OK;
+      case 2:
+        return StatusCode.ERROR;
+      default:
+        return StatusCode.UNSET;
+    }
+  }
+
+  // the OTLP JSON encoding uses hex ids, but the generic protobuf JSON mapping uses base64
+  private static String decodeId(String id, int hexLength) {
+    if (id.length() == hexLength) {
+      return id.toLowerCase(Locale.ROOT);
+    }
+    try {
+      byte[] bytes = Base64.getDecoder().decode(id);
+      if (2 * bytes.length == hexLength) {
+        char[] chars = new char[hexLength];
+        OtelEncodingUtils.bytesToBase16(bytes, chars, bytes.length);
+        return new String(chars);
+      }
+    } catch (IllegalArgumentException e) {
+      // invalid ids are reported by the caller
+    }
+    return id;
+  }
+
+  private static void expect(JsonParser parser, JsonToken token) throws IOException {
+    if (parser.currentToken() != token) {
+      throw new IOException(
+          "expected "
+              + token
+              + " but found "
+              + parser.currentToken()
+              + " at "
+              + parser.getCurrentLocation());
+    }
+  }
+
+  private static void readArray(JsonParser parser, ElementReader elementReader) throws IOException {
+    expect(parser, JsonToken.START_ARRAY);
+    while (parser.nextToken() != JsonToken.END_ARRAY) {
+      elementReader.read();
+    }
+  }
+
+  @FunctionalInterface
+  private interface ElementReader {
+    void read() throws IOException;
+  }
+
+  private static final class SpanFields {
+    private String traceId = "";
+    private String spanId = "";
+    private String parentSpanId = "";
+    private String name = "";
+    private SpanKind kind = SpanKind.INTERNAL;
+    private StatusCode statusCode = StatusCode.UNSET;
+    private long startEpochNanos;
+    private long endEpochNanos;
+    private final AttributesBuilder attributes = Attributes.builder();
+
+    private RecordedSpan toRecordedSpan(String scopeName) {
+      return new RecordedSpan(
+          traceId,
+          spanId,
+          parentSpanId,
+          name,
+          scopeName,
+          kind,
+          statusCode,
+          startEpochNanos,
+          endEpochNanos,
+          attributes.build());
+    }
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.sdk.trace.ReadableSpan;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of finalizing a full {@link Reservoir} with {@link Reservoir#getResult()},
+ * which adjusts the p-values of the kept spans at the end of every export period, and the cost of
+ * adding spans to a full reservoir.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReservoirBenchmark {
+
+  @Param({"1000", "10000", "100000"})
+  int reservoirSize;
+
+  private Reservoir reservoir;
+  private ReadableSpan[] spans;
+  private int[] rvals;
+  private long[] priorities;
+  private int index;
+
+  @Setup
+  public void setup() {
+    SdkTracerProvider tracerProvider =
+        SdkTracerProvider.builder().setSampler(ConsistentSampler.alwaysOn()).build();
+    Tracer tracer = tracerProvider.get("benchmark");
+    SplittableRandom random = new SplittableRandom(0x5b3fa4c9a2f0e1d7L);
+    // twice as many spans as fit into the reservoir, such that p-values need to be adjusted
+    int numberOfSpans = 2 * reservoirSize;
+    spans = new ReadableSpan[numberOfSpans];
+    rvals = new int[numberOfSpans];
+    priorities = new long[numberOfSpans];
+    reservoir =
+        new Reservoir(reservoirSize, Reservoir.UNLIMITED_BYTES, RandomGenerator.getDefault());
+    for (int i = 0; i < numberOfSpans; ++i) {
+      Span span = tracer.spanBuilder("span").startSpan();
+      span.end();
+      spans[i] = (ReadableSpan) span;
+      rvals[i] = Math.min(Long.numberOfLeadingZeros(random.nextLong()), OtelTraceState.getMaxR());
+      priorities[i] = random.nextLong();
+      reservoir.add(spans[i], 0, rvals[i], priorities[i]);
+    }
+    tracerProvider.shutdown().join(10, TimeUnit.SECONDS);
+  }
+
+  @Benchmark
+  public List<SpanData> getResult() {
+    return reservoir.getResult();
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public void add() {
+    int i = index;
+    reservoir.add(spans[i], 0, rvals[i], priorities[i]);
+    index = (i + 1 == spans.length) ? 0 : i + 1;
+  }
+}
@@ -0,0 +1,655 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanBuilder;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.TraceFlags;
+import io.opentelemetry.api.trace.TraceState;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.trace.IdGenerator;
+import io.opentelemetry.sdk.trace.ReadWriteSpan;
+import io.opentelemetry.sdk.trace.ReadableSpan;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.SpanProcessor;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import javax.annotation.Nullable;
+
+/**
+ * Replays recorded spans through a sampler and a {@link ConsistentReservoirSamplingSpanProcessor},
+ * to measure their overhead and the accuracy of the estimated span counts for real traffic.
+ *
+ * <p>The spans are read from a local file (see {@link RecordedSpans}) and created again with the
+ * SDK in the order of their recorded start and end times, keeping their trace ids, span ids, parent
+ * relationships, names, kinds, attributes, status codes and instrumentation scopes. Hence, the
+ * sampler sees the same inputs as in production, and the span processor receives the spans in the
+ * same order. Parents that are not part of the recording are treated as sampled remote parents. The
+ * replay runs either as fast as possible or paced by the recorded timestamps, optionally sped up by
+ * a factor. At maximum speed, rate limiting samplers and export periods observe time compressed
+ * accordingly.
+ *
+ * <p>For every replay, the following is reported:
+ *
+ * <ul>
+ *   <li>the throughput of the replay, which creates and ends the spans on a single thread,
+ *   <li>the bytes allocated by the replay thread per span, which includes the allocations of the
+ *       SDK, the sampler and {@link SpanProcessor#onEnd(ReadableSpan)}, if the JVM supports
+ *       measuring them,
+ *   <li>the heap retained at the end of the replay before the final flush, which is dominated by
+ *       the reservoir and the spans of unfinished traces,
+ *   <li>the numbers of sampled and exported spans, the number of export calls, and the estimated
+ *       serialized size of the exported spans (see {@link SpanSizeEstimator}),
+ *   <li>the relative error of the span count estimated from the adjusted counts of the sampled and
+ *       the exported spans, in total and summed over span names.
+ * </ul>
+ *
+ * <p>Run it with {@code ./gradlew :consistent-sampling:replay -PreplayArgs="--input spans.json"},
+ * see {@link #USAGE} for all options. Everything runs locally, nothing is sent over the network.
+ */
+public final class TraceReplay {
+
+  private static final String USAGE =
+      "usage: TraceReplay --input <file> [options]\n"
+          + "  --input <file>               recorded spans, OTLP JSON or binary, optionally"
+          + " gzipped\n"
+          + "  --convert <file>             only write the spans to the given file in binary"
+          + " format\n"
+          + "  --sampler <spec>             alwaysOn (default), alwaysOff, probability:<p>,\n"
+          + "                               rateLimited:<spans per second>:<adaptation seconds>,\n"
+          + "                               threshold:<p>, thresholdRateLimited:<spans per"
+          + " second>:\n"
+          + "                               <adaptation seconds>, each optionally prefixed by\n"
+          + "                               parentBased:\n"
+          + "  --speed <factor|max>         replay speed relative to the recording (default max)\n"
+          + "  --iterations <n>             number of replays, e.g. to warm up (default 1)\n"
+          + "  --reservoir-size <n>         reservoir size (default 2048)\n"
+          + "  --export-period <millis>     export period (default 5000)\n"
+          + "  --max-reservoir-bytes <n>    size limit of the reservoir (default unlimited)\n"
+          + "  --stripe-count <n>           number of reservoir stripes (default 1)\n"
+          + "  --stratify <spanName|spanKind|scope>\n"
+          + "                               stratifies the reservoir\n"
+          + "  --keep-whole-traces          keeps or discards the spans of a trace together\n"
+          + "  --boost-errors <boost>       boosts spans with error status";
+
+  private TraceReplay() {}
+
+  @SuppressWarnings("SystemOut")
+  public static void main(String[] args) throws IOException {
+    Options options;
+    try {
+      options = Options.parse(args);
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.err.println(USAGE);
+      System.exit(2);
+      return;
+    }
+
+    long startNanos = System.nanoTime();
+    List<RecordedSpan> spans = RecordedSpans.read(options.input);
+    System.out.printf(
+        Locale.ROOT,
+        "read %d spans from %s in %.3f s%n",
+        spans.size(),
+        options.input,
+        (System.nanoTime() - startNanos) * 1e-9);
+    if (options.convertTo != null) {
+      RecordedSpans.writeBinary(spans, options.convertTo);
+      System.out.printf(Locale.ROOT, "wrote %d spans to %s%n", spans.size(), options.convertTo);
+      return;
+    }
+
+    for (int i = 1; i <= options.iterations; ++i) {
+      Result result =
+          replay(
+              spans,
+              options.sampler,
+              exporter ->
+                  options
+                      .configure(ConsistentReservoirSamplingSpanProcessor.builder(exporter))
+                      .build(),
+              options.speed);
+      System.out.printf(
+          Locale.ROOT,
+          "%nreplay %d of %d (%s)%n%s",
+          i,
+          options.iterations,
+          options.sampler.getDescription(),
+          result);
+    }
+  }
+
+  /**
+   * Replays the given spans.
+   *
+   * @param recordedSpans the recorded spans
+   * @param sampler the sampler
+   * @param processorFactory creates the span processor for a given exporter
+   * @param speed the replay speed relative to the recording, or {@link Double#POSITIVE_INFINITY}
+   *     for maximum speed
+   * @return the result
+   */
+  static Result replay(
+      List<RecordedSpan> recordedSpans,
+      Sampler sampler,
+      Function<SpanExporter, SpanProcessor> processorFactory,
+      double speed) {
+    List<RecordedSpan> spans = new ArrayList<>(recordedSpans);
+    spans.sort(Comparator.comparingLong(span -> span.startEpochNanos));
+    Result result = new Result();
+    for (RecordedSpan span : spans) {
+      result.recordedCounts.merge(span.name, 1.0, Double::sum);
+    }
+
+    CountingExporter exporter = new CountingExporter();
+    SampledSpanCounter sampledSpanCounter = new SampledSpanCounter();
+    ReplayIdGenerator idGenerator = new ReplayIdGenerator();
+    SdkTracerProvider tracerProvider =
+        SdkTracerProvider.builder()
+            .setSampler(sampler)
+            .setIdGenerator(idGenerator)
+            .addSpanProcessor(sampledSpanCounter)
+            .addSpanProcessor(processorFactory.apply(exporter))
+            .build();
+
+    Replayer replayer = new Replayer(tracerProvider, idGenerator, speed);
+    long baselineHeap = getUsedHeapAfterGc();
+    long startAllocatedBytes = getAllocatedBytes();
+    long startNanos = System.nanoTime();
+    PriorityQueue<ReplayedSpan> openSpans =
+        new PriorityQueue<>(Comparator.comparingLong(span -> span.recorded.endEpochNanos));
+    long firstEpochNanos = spans.isEmpty() ? 0 : spans.get(0).startEpochNanos;
+    for (RecordedSpan span : spans) {
+      while (!openSpans.isEmpty()
+          && openSpans.peek().recorded.endEpochNanos <= span.startEpochNanos) {
+        replayer.end(openSpans.poll(), startNanos, firstEpochNanos);
+      }
+      openSpans.add(replayer.start(span, startNanos, firstEpochNanos));
+    }
+    while (!openSpans.isEmpty()) {
+      replayer.end(openSpans.poll(), startNanos, firstEpochNanos);
+    }
+    result.replayNanos = System.nanoTime() - startNanos;
+    long allocatedBytes = getAllocatedBytes() - startAllocatedBytes;
+    result.allocatedBytesPerSpan =
+        (startAllocatedBytes < 0 || spans.isEmpty()) ? -1 : (double) allocatedBytes / spans.size();
+    // may be slightly negative due to noise, for example if classes were unloaded
+    result.retainedHeapBytes = Math.max(0, getUsedHeapAfterGc() - baselineHeap);
+
+    tracerProvider.forceFlush().join(1, TimeUnit.MINUTES);
+    tracerProvider.shutdown().join(1, TimeUnit.MINUTES);
+
+    result.numberOfSpans = spans.size();
+    result.numberOfSampledSpans = sampledSpanCounter.numberOfSpans;
+    result.sampledCounts.putAll(sampledSpanCounter.adjustedCounts);
+    synchronized (exporter) {
+      result.numberOfExportedSpans = exporter.numberOfSpans;
+      result.numberOfExports = exporter.numberOfExports.get();
+      result.exportedBytes = exporter.numberOfBytes;
+      result.exportedCounts.putAll(exporter.adjustedCounts);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the adjusted count of a span, given by its threshold if the span was sampled by a
+   * {@link ConsistentThresholdSampler}, and by its p-value otherwise.
+   */
+  static double getAdjustedCount(SpanContext spanContext) {
+    return OtelTraceState.parse(spanContext.getTraceState().get(OtelTraceState.TRACE_STATE_KEY))
+        .getAdjustedCount();
+  }
+
+  private static long getUsedHeapAfterGc() {
+    MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+    for (int i = 0; i < 3; ++i) {
+      memoryBean.gc();
+    }
+    return memoryBean.getHeapMemoryUsage().getUsed();
+  }
+
+  // returns -1 if allocations cannot be measured
+  private static long getAllocatedBytes() {
+    ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    if (threadBean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threadBean)
+          .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  /** Creates and ends the spans of a replay and keeps track of the contexts of their parents. */
+  private static final class Replayer {
+
+    private final SdkTracerProvider tracerProvider;
+    private final ReplayIdGenerator idGenerator;
+    private final double speed;
+    // the contexts of the spans of unfinished traces by trace id and span id
+    private final Map<String, ReplayedTrace> traces = new HashMap<>();
+
+    private Replayer(
+        SdkTracerProvider tracerProvider, ReplayIdGenerator idGenerator, double speed) {
+      this.tracerProvider = tracerProvider;
+      this.idGenerator = idGenerator;
+      this.speed = speed;
+    }
+
+    private ReplayedSpan start(RecordedSpan recorded, long startNanos, long firstEpochNanos) {
+      pace(recorded.startEpochNanos, startNanos, firstEpochNanos);
+      ReplayedTrace trace = traces.computeIfAbsent(recorded.traceId, unused -> new ReplayedTrace());
+      SpanBuilder spanBuilder =
+          tracerProvider
+              .get(recorded.scopeName)
+              .spanBuilder(recorded.name)
+              .setSpanKind(recorded.kind)
+              .setAllAttributes(recorded.attributes)
+              .setStartTimestamp(recorded.startEpochNanos, TimeUnit.NANOSECONDS);
+      if (recorded.hasParent()) {
+        SpanContext parentSpanContext = trace.spanContexts.get(recorded.parentSpanId);
+        if (parentSpanContext == null) {
+          parentSpanContext =
+              SpanContext.createFromRemoteParent(
+                  recorded.traceId,
+                  recorded.parentSpanId,
+                  TraceFlags.getSampled(),
+                  TraceState.getDefault());
+        }
+        spanBuilder.setParent(Context.root().with(Span.wrap(parentSpanContext)));
+      } else {
+        spanBuilder.setNoParent();
+      }
+      idGenerator.traceId = recorded.traceId;
+      idGenerator.spanId = recorded.spanId;
+      Span span = spanBuilder.startSpan();
+      trace.spanContexts.put(recorded.spanId, span.getSpanContext());
+      trace.numberOfOpenSpans += 1;
+      return new ReplayedSpan(recorded, span);
+    }
+
+    private void end(ReplayedSpan replayed, long startNanos, long firstEpochNanos) {
+      RecordedSpan recorded = replayed.recorded;
+      pace(recorded.endEpochNanos, startNanos, firstEpochNanos);
+      if (recorded.statusCode != StatusCode.UNSET) {
+        replayed.span.setStatus(recorded.statusCode);
+      }
+      replayed.span.end(recorded.endEpochNanos, TimeUnit.NANOSECONDS);
+      ReplayedTrace trace = traces.get(recorded.traceId);
+      if (trace != null) {
+        trace.numberOfOpenSpans -= 1;
+        if (trace.numberOfOpenSpans == 0) {
+          traces.remove(recorded.traceId);
+        }
+      }
+    }
+
+    private void pace(long epochNanos, long startNanos, long firstEpochNanos) {
+      if (Double.isInfinite(speed)) {
+        return;
+      }
+      long targetNanos = startNanos + (long) ((epochNanos - firstEpochNanos) / speed);
+      long remainingNanos;
+      while ((remainingNanos = targetNanos - System.nanoTime()) > 0) {
+        LockSupport.parkNanos(remainingNanos);
+      }
+    }
+  }
+
+  private static final class ReplayedTrace {
+    private final Map<String, SpanContext> spanContexts = new HashMap<>();
+    private int numberOfOpenSpans;
+  }
+
+  private static final class ReplayedSpan {
+    private final RecordedSpan recorded;
+    private final Span span;
+
+    private ReplayedSpan(RecordedSpan recorded, Span span) {
+      this.recorded = recorded;
+      this.span = span;
+    }
+  }
+
+  /** Assigns the recorded ids to the replayed spans, the replay is single-threaded. */
+  private static final class ReplayIdGenerator implements IdGenerator {
+    private String traceId = "";
+    private String spanId = "";
+
+    @Override
+    public String generateSpanId() {
+      return spanId;
+    }
+
+    @Override
+    public String generateTraceId() {
+      return traceId;
+    }
+  }
+
+  /** Counts the spans sampled by the sampler, weighted with their adjusted counts. */
+  private static final class SampledSpanCounter implements SpanProcessor {
+    // only accessed by the replay thread
+    private final Map<String, Double> adjustedCounts = new HashMap<>();
+    private long numberOfSpans;
+
+    @Override
+    public void onStart(Context parentContext, ReadWriteSpan span) {}
+
+    @Override
+    public boolean isStartRequired() {
+      return false;
+    }
+
+    @Override
+    public void onEnd(ReadableSpan span) {
+      if (span.getSpanContext().isSampled()) {
+        numberOfSpans += 1;
+        adjustedCounts.merge(span.getName(), getAdjustedCount(span.getSpanContext()), Double::sum);
+      }
+    }
+
+    @Override
+    public boolean isEndRequired() {
+      return true;
+    }
+  }
+
+  /** Counts the exported spans, weighted with their adjusted counts, and their sizes. */
+  private static final class CountingExporter implements SpanExporter {
+    private final AtomicLong numberOfExports = new AtomicLong();
+    // guarded by this
+    private final Map<String, Double> adjustedCounts = new HashMap<>();
+    private long numberOfSpans;
+    private long numberOfBytes;
+
+    @Override
+    public CompletableResultCode export(Collection<SpanData> spans) {
+      numberOfExports.incrementAndGet();
+      synchronized (this) {
+        for (SpanData span : spans) {
+          numberOfSpans += 1;
+          numberOfBytes += SpanSizeEstimator.estimateSize(span);
+          adjustedCounts.merge(
+              span.getName(), getAdjustedCount(span.getSpanContext()), Double::sum);
+        }
+      }
+      return CompletableResultCode.ofSuccess();
+    }
+
+    @Override
+    public CompletableResultCode flush() {
+      return CompletableResultCode.ofSuccess();
+    }
+
+    @Override
+    public CompletableResultCode shutdown() {
+      return CompletableResultCode.ofSuccess();
+    }
+  }
+
+  /** The measurements of a replay. */
+  static final class Result {
+    private final Map<String, Double> recordedCounts = new HashMap<>();
+    private final Map<String, Double> sampledCounts = new HashMap<>();
+    private final Map<String, Double> exportedCounts = new HashMap<>();
+    private long numberOfSpans;
+    private long replayNanos;
+    private double allocatedBytesPerSpan;
+    private long retainedHeapBytes;
+    private long numberOfSampledSpans;
+    private long numberOfExportedSpans;
+    private long numberOfExports;
+    private long exportedBytes;
+
+    /** Returns the relative error of the total estimated span count. */
+    double getTotalError(Map<String, Double> estimatedCounts) {
+      double estimated = estimatedCounts.values().stream().mapToDouble(Double::doubleValue).sum();
+      return (estimated - numberOfSpans) / Math.max(1, numberOfSpans);
+    }
+
+    /**
+     * Returns the absolute errors of the estimated span counts summed over all span names, relative
+     * to the total span count.
+     */
+    double getSpanNameError(Map<String, Double> estimatedCounts) {
+      double sumOfErrors = 0;
+      for (Map.Entry<String, Double> entry : recordedCounts.entrySet()) {
+        sumOfErrors +=
+            Math.abs(estimatedCounts.getOrDefault(entry.getKey(), 0.0) - entry.getValue());
+      }
+      return sumOfErrors / Math.max(1, numberOfSpans);
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+      double seconds = replayNanos * 1e-9;
+      sb.append(
+          String.format(
+              Locale.ROOT,
+              "  replayed spans:      %d in %.3f s (%.0f spans/s)%n",
+              numberOfSpans,
+              seconds,
+              numberOfSpans / Math.max(seconds, 1e-9)));
+      sb.append(
+          (allocatedBytesPerSpan >= 0)
+              ? String.format(
+                  Locale.ROOT, "  allocated:           %.0f bytes/span%n", allocatedBytesPerSpan)
+              : String.format(Locale.ROOT, "  allocated:           not supported by this JVM%n"));
+      sb.append(String.format(Locale.ROOT, "  retained heap:       %d bytes%n", retainedHeapBytes));
+      sb.append(
+          String.format(
+              Locale.ROOT,
+              "  sampled spans:       %d, count error %+.2f%% total, %.2f%% by span name%n",
+              numberOfSampledSpans,
+              100 * getTotalError(sampledCounts),
+              100 * getSpanNameError(sampledCounts)));
+      sb.append(
+          String.format(
+              Locale.ROOT,
+              "  exported spans:      %d in %d exports, about %d bytes%n",
+              numberOfExportedSpans,
+              numberOfExports,
+              exportedBytes));
+      sb.append(
+          String.format(
+              Locale.ROOT,
+              "  exported estimates:  count error %+.2f%% total, %.2f%% by span name%n",
+              100 * getTotalError(exportedCounts),
+              100 * getSpanNameError(exportedCounts)));
+      return sb.toString();
+    }
+  }
+
+  private static final class Options {
+    private Path input = Paths.get("");
+    @Nullable private Path convertTo;
+    private Sampler sampler = ConsistentSampler.alwaysOn();
+    private double speed = Double.POSITIVE_INFINITY;
+    private int iterations = 1;
+    private int reservoirSize = 2048;
+    private long exportPeriodMillis = 5000;
+    private long maxReservoirBytes = Reservoir.UNLIMITED_BYTES;
+    private int stripeCount = 1;
+    @Nullable private SpanStratifier stratifier;
+    private boolean keepWholeTraces;
+    private int errorBoost;
+
+    private static Options parse(String[] args) {
+      Options options = new Options();
+      boolean hasInput = false;
+      for (int i = 0; i < args.length; ++i) {
+        String option = args[i];
+        if ("--keep-whole-traces".equals(option)) {
+          options.keepWholeTraces = true;
+          continue;
+        }
+        if (i + 1 >= args.length) {
+          throw new IllegalArgumentException("missing value for " + option);
+        }
+        String value = args[++i];
+        try {
+          switch (option) {
+            case "--input":
+              options.input = Paths.get(value);
+              hasInput = true;
+              break;
+            case "--convert":
+              options.convertTo = Paths.get(value);
+              break;
+            case "--sampler":
+              options.sampler = parseSampler(value);
+              break;
+            case "--speed":
+              options.speed =
+                  "max".equals(value) ? Double.POSITIVE_INFINITY : Double.parseDouble(value);
+              break;
+            case "--iterations":
+              options.iterations = Integer.parseInt(value);
+              break;
+            case "--reservoir-size":
+              options.reservoirSize = Integer.parseInt(value);
+              break;
+            case "--export-period":
+              options.exportPeriodMillis = Long.parseLong(value);
+              break;
+            case "--max-reservoir-bytes":
+              options.maxReservoirBytes = Long.parseLong(value);
+              break;
+            case "--stripe-count":
+              options.stripeCount = Integer.parseInt(value);
+              break;
+            case "--stratify":
+              options.stratifier = parseStratifier(value);
+              break;
+            case "--boost-errors":
+              options.errorBoost = Integer.parseInt(value);
+              break;
+            default:
+              throw new IllegalArgumentException("unknown option " + option);
+          }
+        } catch (NumberFormatException e) {
+          throw new IllegalArgumentException("invalid value " + value + " for " + option, e);
+        }
+      }
+      if (!hasInput) {
+        throw new IllegalArgumentException("missing --input");
+      }
+      if (!(options.speed > 0)) {
+        throw new IllegalArgumentException("speed must be positive");
+      }
+      return options;
+    }
+
+    private static Sampler parseSampler(String spec) {
+      String[] parts = spec.split(":", -1);
+      boolean isParentBased = "parentBased".equals(parts[0]);
+      int offset = isParentBased ? 1 : 0;
+      String type = parts[offset];
+      int numberOfArguments = parts.length - offset - 1;
+      switch (type) {
+        case "alwaysOn":
+          checkNumberOfArguments(spec, numberOfArguments, 0);
+          return wrap(ConsistentSampler.alwaysOn(), isParentBased);
+        case "alwaysOff":
+          checkNumberOfArguments(spec, numberOfArguments, 0);
+          return wrap(ConsistentSampler.alwaysOff(), isParentBased);
+        case "probability":
+          checkNumberOfArguments(spec, numberOfArguments, 1);
+          return wrap(
+              ConsistentSampler.probabilityBased(Double.parseDouble(parts[offset + 1])),
+              isParentBased);
+        case "rateLimited":
+          checkNumberOfArguments(spec, numberOfArguments, 2);
+          return wrap(
+              ConsistentSampler.rateLimited(
+                  Double.parseDouble(parts[offset + 1]), Double.parseDouble(parts[offset + 2])),
+              isParentBased);
+        case "threshold":
+          checkNumberOfArguments(spec, numberOfArguments, 1);
+          return wrap(
+              ConsistentThresholdSampler.probabilityBased(Double.parseDouble(parts[offset + 1])),
+              isParentBased);
+        case "thresholdRateLimited":
+          checkNumberOfArguments(spec, numberOfArguments, 2);
+          return wrap(
+              ConsistentThresholdSampler.rateLimited(
+                  Double.parseDouble(parts[offset + 1]), Double.parseDouble(parts[offset + 2])),
+              isParentBased);
+        default:
+          throw new IllegalArgumentException("unknown sampler " + spec);
+      }
+    }
+
+    private static void checkNumberOfArguments(String spec, int actual, int expected) {
+      if (actual != expected) {
+        throw new IllegalArgumentException(
+            "sampler " + spec + " needs " + expected + " argument(s)");
+      }
+    }
+
+    private static Sampler wrap(ConsistentSampler sampler, boolean isParentBased) {
+      return isParentBased ? ConsistentSampler.parentBased(sampler) : sampler;
+    }
+
+    private static Sampler wrap(ConsistentThresholdSampler sampler, boolean isParentBased) {
+      return isParentBased ? ConsistentThresholdSampler.parentBased(sampler) : sampler;
+    }
+
+    private static SpanStratifier parseStratifier(String value) {
+      switch (value) {
+        case "spanName":
+          return SpanStratifier.spanName();
+        case "spanKind":
+          return SpanStratifier.spanKind();
+        case "scope":
+          return SpanStratifier.instrumentationScope();
+        default:
+          throw new IllegalArgumentException("unknown stratifier " + value);
+      }
+    }
+
+    private ConsistentReservoirSamplingSpanProcessorBuilder configure(
+        ConsistentReservoirSamplingSpanProcessorBuilder builder) {
+      builder
+          .setReservoirSize(reservoirSize)
+          .setExportPeriod(Duration.ofMillis(exportPeriodMillis))
+          .setMaxReservoirBytes(maxReservoirBytes)
+          .setStripeCount(stripeCount)
+          .setKeepWholeTraces(keepWholeTraces);
+      if (stratifier != null) {
+        builder.setStratifier(stratifier);
+      }
+      if (errorBoost > 0) {
+        builder.setPrioritizer(SpanPrioritizer.errors(errorBoost));
+      }
+      return builder;
+    }
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.TraceState;
+import io.opentelemetry.sdk.common.InstrumentationScopeInfo;
+import io.opentelemetry.sdk.trace.ReadableSpan;
+import io.opentelemetry.sdk.trace.data.DelegatingSpanData;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link ReadableSpan} whose p-value has been adjusted by a span processor, before it is passed
+ * on to a downstream span processor. All other properties are those of the original span.
+ */
+final class AdjustedReadableSpan implements ReadableSpan {
+
+  private final ReadableSpan delegate;
+  private final SpanContext spanContext;
+
+  private AdjustedReadableSpan(ReadableSpan delegate, SpanContext spanContext) {
+    this.delegate = delegate;
+    this.spanContext = spanContext;
+  }
+
+  /**
+   * Returns the given span with the "ot" sub-key of its trace state replaced by the given one.
+   *
+   * @param span the span
+   * @param otelTraceState the adjusted "ot" sub-key of the trace state
+   * @return the adjusted span
+   */
+  static ReadableSpan create(ReadableSpan span, OtelTraceState otelTraceState) {
+    SpanContext spanContext = span.getSpanContext();
+    TraceState traceState =
+        spanContext.getTraceState().toBuilder()
+            .put(OtelTraceState.TRACE_STATE_KEY, otelTraceState.serialize())
+            .build();
+    return new AdjustedReadableSpan(
+        span,
+        SpanContext.create(
+            spanContext.getTraceId(),
+            spanContext.getSpanId(),
+            spanContext.getTraceFlags(),
+            traceState));
+  }
+
+  @Override
+  public SpanContext getSpanContext() {
+    return spanContext;
+  }
+
+  @Override
+  public SpanContext getParentSpanContext() {
+    return delegate.getParentSpanContext();
+  }
+
+  @Override
+  public String getName() {
+    return delegate.getName();
+  }
+
+  @Override
+  public SpanData toSpanData() {
+    return new DelegatingSpanData(delegate.toSpanData()) {
+      @Override
+      public SpanContext getSpanContext() {
+        return spanContext;
+      }
+    };
+  }
+
+  @Override
+  @Deprecated
+  public io.opentelemetry.sdk.common.InstrumentationLibraryInfo getInstrumentationLibraryInfo() {
+    return delegate.getInstrumentationLibraryInfo();
+  }
+
+  @Override
+  public InstrumentationScopeInfo getInstrumentationScopeInfo() {
+    return delegate.getInstrumentationScopeInfo();
+  }
+
+  @Override
+  public boolean hasEnded() {
+    return delegate.hasEnded();
+  }
+
+  @Override
+  public long getLatencyNanos() {
+    return delegate.getLatencyNanos();
+  }
+
+  @Override
+  public SpanKind getKind() {
+    return delegate.getKind();
+  }
+
+  @Override
+  @Nullable
+  public <T> T getAttribute(AttributeKey<T> key) {
+    return delegate.getAttribute(key);
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import io.opentelemetry.sdk.common.InstrumentationScopeInfo;
+import io.opentelemetry.sdk.resources.Resource;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Orders a batch of spans before export, such that spans of the same resource, the same
+ * instrumentation scope and the same trace are adjacent.
+ *
+ * <p>The spans kept by a reservoir come out in the order of its heap, which scatters the spans of a
+ * trace across the batch. Exporters like OTLP group spans by resource and instrumentation scope
+ * anyway, and backends group them by trace, while compression benefits from similar spans being
+ * close to each other. Resources and instrumentation scopes are ordered by their first occurrence
+ * in the batch, traces by their trace ids. Otherwise, the order of the spans is preserved.
+ */
+final class BatchOrdering {
+
+  private static final Comparator<Entry> ENTRY_COMPARATOR =
+      Comparator.<Entry>comparingInt(entry -> entry.resourceIndex)
+          .thenComparingInt(entry -> entry.scopeIndex)
+          .thenComparing(entry -> entry.spanData.getSpanContext().getTraceId());
+
+  private static final class Entry {
+    private final SpanData spanData;
+    private final int resourceIndex;
+    private final int scopeIndex;
+
+    private Entry(SpanData spanData, int resourceIndex, int scopeIndex) {
+      this.spanData = spanData;
+      this.resourceIndex = resourceIndex;
+      this.scopeIndex = scopeIndex;
+    }
+  }
+
+  private BatchOrdering() {}
+
+  /**
+   * Sorts the given spans in place by resource, instrumentation scope and trace id.
+   *
+   * @param batch the spans to be exported
+   */
+  static void groupByResourceScopeAndTrace(List<SpanData> batch) {
+    if (batch.size() < 2) {
+      return;
+    }
+    Map<Resource, Integer> resourceIndices = new HashMap<>();
+    Map<InstrumentationScopeInfo, Integer> scopeIndices = new HashMap<>();
+    Entry[] entries = new Entry[batch.size()];
+    for (int i = 0; i < entries.length; ++i) {
+      SpanData spanData = batch.get(i);
+      int resourceIndex = getIndex(resourceIndices, spanData.getResource(), resourceIndices.size());
+      int scopeIndex =
+          getIndex(scopeIndices, spanData.getInstrumentationScopeInfo(), scopeIndices.size());
+      entries[i] = new Entry(spanData, resourceIndex, scopeIndex);
+    }
+    // the sort is stable, hence the spans of a trace keep their relative order
+    Arrays.sort(entries, ENTRY_COMPARATOR);
+    for (int i = 0; i < entries.length; ++i) {
+      batch.set(i, entries[i].spanData);
+    }
+  }
+
+  private static <K> int getIndex(Map<K, Integer> indices, K key, int nextIndex) {
+    Integer index = indices.putIfAbsent(key, nextIndex);
+    return (index != null) ? index : nextIndex;
+  }
+}
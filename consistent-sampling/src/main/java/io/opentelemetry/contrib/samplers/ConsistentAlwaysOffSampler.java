@@ -23,6 +23,11 @@ final class ConsistentAlwaysOffSampler extends ConsistentSampler {
     return OtelTraceState.getMaxP();
   }
 
+  @Override
+  boolean isStateless() {
+    return true;
+  }
+
   @Override
   public String getDescription() {
     return "ConsistentAlwaysOffSampler";
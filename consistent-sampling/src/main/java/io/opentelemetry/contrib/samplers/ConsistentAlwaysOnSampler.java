@@ -23,6 +23,11 @@ final class ConsistentAlwaysOnSampler extends ConsistentSampler {
     return 0;
   }
 
+  @Override
+  boolean isStateless() {
+    return true;
+  }
+
   @Override
   public String getDescription() {
     return "ConsistentAlwaysOnSampler";
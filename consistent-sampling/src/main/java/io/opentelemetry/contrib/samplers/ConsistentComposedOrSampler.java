@@ -7,6 +7,8 @@ package io.opentelemetry.contrib.samplers;
 
 import static java.util.Objects.requireNonNull;
 
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.SpanKind;
 import javax.annotation.concurrent.Immutable;
 
 /**
@@ -33,10 +35,28 @@ final class ConsistentComposedOrSampler extends ConsistentSampler {
             + '}';
   }
 
+  ConsistentSampler getSampler1() {
+    return sampler1;
+  }
+
+  ConsistentSampler getSampler2() {
+    return sampler2;
+  }
+
   @Override
   protected int getP(int parentP, boolean isRoot) {
-    int p1 = sampler1.getP(parentP, isRoot);
-    int p2 = sampler2.getP(parentP, isRoot);
+    return combine(sampler1.getP(parentP, isRoot), sampler2.getP(parentP, isRoot));
+  }
+
+  @Override
+  protected int getP(
+      int parentP, boolean isRoot, String name, SpanKind spanKind, Attributes attributes) {
+    return combine(
+        sampler1.getP(parentP, isRoot, name, spanKind, attributes),
+        sampler2.getP(parentP, isRoot, name, spanKind, attributes));
+  }
+
+  private static int combine(int p1, int p2) {
     if (OtelTraceState.isValidP(p1)) {
       if (OtelTraceState.isValidP(p2)) {
         return Math.min(p1, p2);
@@ -50,6 +70,11 @@ final class ConsistentComposedOrSampler extends ConsistentSampler {
     }
   }
 
+  @Override
+  boolean isStateless() {
+    return sampler1.isStateless() && sampler2.isStateless();
+  }
+
   @Override
   public String getDescription() {
     return description;
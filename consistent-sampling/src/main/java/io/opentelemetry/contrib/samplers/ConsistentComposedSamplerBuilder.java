@@ -0,0 +1,118 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A builder for a {@link ConsistentSampler} composed of any number of consistent samplers, which
+ * are either all combined by "and" (see {@link ConsistentSampler#composedAndBuilder()}) or all
+ * combined by "or" (see {@link ConsistentSampler#composedOrBuilder()}).
+ *
+ * <p>Unlike repeated calls of {@link ConsistentSampler#and(ConsistentSampler)} or {@link
+ * ConsistentSampler#or(ConsistentSampler)}, which result in a nested tree of binary compositions,
+ * the built sampler evaluates all samplers in a single loop and stops as soon as the result is
+ * final. Composed samplers of the same kind that are added, are flattened into their components.
+ * Stateless samplers added more than once are only evaluated once, stateful samplers, such as
+ * rate-limiting ones, are evaluated as often as they have been added, as their state depends on
+ * every evaluation. Probability-based samplers whose sampling probability is not a power of two
+ * draw a random p-value on every evaluation and are therefore treated like stateful samplers. The
+ * sampling decisions are the same as for the nested tree.
+ */
+public final class ConsistentComposedSamplerBuilder {
+
+  private final boolean isAnd;
+  private final List<ConsistentSampler> samplers = new ArrayList<>();
+  private final Set<ConsistentSampler> addedStatelessSamplers =
+      Collections.newSetFromMap(new IdentityHashMap<>());
+
+  ConsistentComposedSamplerBuilder(boolean isAnd) {
+    this.isAnd = isAnd;
+  }
+
+  /**
+   * Adds a consistent sampler to the composition.
+   *
+   * @param sampler the consistent sampler
+   * @return this builder
+   * @throws IllegalArgumentException if the sampler derives r-values from the trace id (see {@link
+   *     ConsistentSampler#withTraceIdRandomness()})
+   */
+  public ConsistentComposedSamplerBuilder add(ConsistentSampler sampler) {
+    requireNonNull(sampler, "sampler");
+    ConsistentSampler.checkComposable(sampler);
+    if (isAnd && sampler instanceof ConsistentComposedAndSampler) {
+      ConsistentComposedAndSampler composedSampler = (ConsistentComposedAndSampler) sampler;
+      add(composedSampler.getSampler1());
+      add(composedSampler.getSampler2());
+    } else if (!isAnd && sampler instanceof ConsistentComposedOrSampler) {
+      ConsistentComposedOrSampler composedSampler = (ConsistentComposedOrSampler) sampler;
+      add(composedSampler.getSampler1());
+      add(composedSampler.getSampler2());
+    } else if (sampler instanceof ConsistentMultiComposedSampler
+        && ((ConsistentMultiComposedSampler) sampler).isAnd() == isAnd) {
+      for (ConsistentSampler component : ((ConsistentMultiComposedSampler) sampler).getSamplers()) {
+        add(component);
+      }
+    } else if (!sampler.isStateless() || addedStatelessSamplers.add(sampler)) {
+      samplers.add(sampler);
+    }
+    return this;
+  }
+
+  /**
+   * Adds consistent samplers to the composition.
+   *
+   * @param samplers the consistent samplers
+   * @return this builder
+   */
+  public ConsistentComposedSamplerBuilder addAll(Iterable<? extends ConsistentSampler> samplers) {
+    requireNonNull(samplers, "samplers");
+    for (ConsistentSampler sampler : samplers) {
+      add(sampler);
+    }
+    return this;
+  }
+
+  /**
+   * Returns the composed consistent sampler.
+   *
+   * <p>If no sampler has been added, a sampler that samples all spans is returned for "and", and a
+   * sampler that does not sample any span for "or". If a single sampler has been added, it is
+   * returned as it is.
+   *
+   * @return the composed consistent sampler
+   */
+  public ConsistentSampler build() {
+    if (samplers.isEmpty()) {
+      return isAnd ? ConsistentSampler.alwaysOn() : ConsistentSampler.alwaysOff();
+    }
+    if (samplers.size() == 1) {
+      return samplers.get(0);
+    }
+    // stateful samplers first, as they are never skipped
+    List<ConsistentSampler> orderedSamplers = new ArrayList<>(samplers.size());
+    for (ConsistentSampler sampler : samplers) {
+      if (!sampler.isStateless()) {
+        orderedSamplers.add(sampler);
+      }
+    }
+    int numberOfStatefulSamplers = orderedSamplers.size();
+    for (ConsistentSampler sampler : samplers) {
+      if (sampler.isStateless()) {
+        orderedSamplers.add(sampler);
+      }
+    }
+    return new ConsistentMultiComposedSampler(
+        orderedSamplers.toArray(new ConsistentSampler[0]), numberOfStatefulSamplers, isAnd);
+  }
+}
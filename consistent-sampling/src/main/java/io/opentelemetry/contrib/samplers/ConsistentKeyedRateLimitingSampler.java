@@ -0,0 +1,261 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import static java.util.Objects.requireNonNull;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.contrib.samplers.ConsistentRateLimitingSampler.SamplingProbabilityEstimator;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+import javax.annotation.Nullable;
+
+/**
+ * This consistent {@link Sampler} limits the rate of sampled spans separately for every key
+ * extracted from the spans, for example the span name. Hence, frequent keys cannot use up the
+ * budget of rare keys.
+ *
+ * <p>For every key, the sampling probability is estimated in the same way as by {@link
+ * ConsistentRateLimitingSampler}. The estimates are kept in a table with a bounded number of keys.
+ * If the table is full, approximately the least recently used key is evicted. If an evicted key
+ * occurs again, its estimation starts over as if no spans with that key had been seen for the
+ * adaptation time.
+ *
+ * <p>Looking up the estimate of a key that is already in the table does not take any lock, so
+ * threads sampling spans with the same key do not contend with each other. The time of the last use
+ * of a key is only recorded with a resolution of {@link #ACCESS_TIME_RESOLUTION_NANOS}, so that
+ * frequent keys are not written by every thread for every span, and keys used within the same
+ * interval are evicted in arbitrary order.
+ *
+ * <p>Finding the least recently used keys requires a scan of the whole table. To keep the cost of
+ * high key cardinality bounded, a scan evicts a batch of keys, down to a low-water mark of 7/8 of
+ * the maximum number of keys, so that the scan is amortized over the insertions until the table is
+ * full again. Only one thread scans the table at a time, other threads inserting new keys in the
+ * meantime do not wait for it. Hence, the number of keys may briefly exceed the maximum by the
+ * number of concurrently inserting threads.
+ */
+final class ConsistentKeyedRateLimitingSampler extends ConsistentSampler {
+
+  /** Extracts the key of a span, which may depend on the span name, kind, and attributes. */
+  @FunctionalInterface
+  interface KeyExtractor {
+
+    /**
+     * Returns the key of the given span.
+     *
+     * @param name the name of the span
+     * @param spanKind the kind of the span
+     * @param attributes the attributes of the span
+     * @return the key, or null if the span has no key
+     */
+    @Nullable
+    Object getKey(String name, SpanKind spanKind, Attributes attributes);
+  }
+
+  private static final double MAX_ADAPTATION_TIME_NANOS = 1e18;
+  // visible for testing
+  static final long ACCESS_TIME_RESOLUTION_NANOS = 1_000_000L;
+
+  // used for all spans without key
+  private static final Object NO_KEY = new Object();
+
+  private static final class Entry {
+
+    final SamplingProbabilityEstimator estimator;
+    volatile long lastAccessNanoTime;
+
+    Entry(SamplingProbabilityEstimator estimator, long lastAccessNanoTime) {
+      this.estimator = estimator;
+      this.lastAccessNanoTime = lastAccessNanoTime;
+    }
+  }
+
+  private final String description;
+  private final double targetSpansPerSecondLimit;
+  private final double adaptationTimeSeconds;
+  private final long adaptationTimeNanos;
+  private final KeyExtractor keyExtractor;
+  private final LongSupplier nanoTimeSupplier;
+  private final int maxNumberOfKeys;
+  private final int lowWaterNumberOfKeys;
+  private final ConcurrentHashMap<Object, Entry> entries = new ConcurrentHashMap<>();
+  // set while a thread evicts keys, never checked to look up a key
+  private final AtomicBoolean evicting = new AtomicBoolean();
+  // only accessed by the evicting thread
+  private long numberOfEvictionScans;
+
+  /**
+   * Constructor.
+   *
+   * @param targetSpansPerSecondLimit the desired spans per second limit per key
+   * @param adaptationTimeSeconds the typical time to adapt to a new load (time constant used for
+   *     exponential smoothing)
+   * @param keyExtractor the function extracting the key from the span
+   * @param keyDescription a description of the key
+   * @param maxNumberOfKeys the maximum number of keys for which the rate is tracked
+   * @param randomGenerator a random generator
+   * @param nanoTimeSupplier a supplier for the current nano time
+   */
+  ConsistentKeyedRateLimitingSampler(
+      double targetSpansPerSecondLimit,
+      double adaptationTimeSeconds,
+      KeyExtractor keyExtractor,
+      String keyDescription,
+      int maxNumberOfKeys,
+      RandomGenerator randomGenerator,
+      LongSupplier nanoTimeSupplier) {
+    super(randomGenerator);
+
+    ConsistentRateLimitingSampler.checkArguments(targetSpansPerSecondLimit, adaptationTimeSeconds);
+    if (maxNumberOfKeys <= 0) {
+      throw new IllegalArgumentException("Maximum number of keys must be positive!");
+    }
+    this.description =
+        String.format(
+            "ConsistentKeyedRateLimitingSampler{%.6f, %.6f, %s, %d}",
+            targetSpansPerSecondLimit, adaptationTimeSeconds, keyDescription, maxNumberOfKeys);
+    this.targetSpansPerSecondLimit = targetSpansPerSecondLimit;
+    this.adaptationTimeSeconds = adaptationTimeSeconds;
+    // capped to avoid overflows when subtracted from the current nano time
+    this.adaptationTimeNanos =
+        (long) Math.min(MAX_ADAPTATION_TIME_NANOS, 1e9 * adaptationTimeSeconds);
+    this.keyExtractor = requireNonNull(keyExtractor);
+    this.nanoTimeSupplier = requireNonNull(nanoTimeSupplier);
+    this.maxNumberOfKeys = maxNumberOfKeys;
+    this.lowWaterNumberOfKeys = maxNumberOfKeys - maxNumberOfKeys / 8;
+  }
+
+  private SamplingProbabilityEstimator getEstimator(Object key, long currentNanoTime) {
+    Entry entry = entries.get(key);
+    if (entry != null) {
+      if (currentNanoTime - entry.lastAccessNanoTime >= ACCESS_TIME_RESOLUTION_NANOS) {
+        entry.lastAccessNanoTime = currentNanoTime;
+      }
+      return entry.estimator;
+    }
+    // start as if no spans had been seen for the adaptation time, otherwise the first spans of
+    // a new key would hardly be sampled
+    Entry newEntry =
+        new Entry(
+            new SamplingProbabilityEstimator(
+                targetSpansPerSecondLimit,
+                adaptationTimeSeconds,
+                currentNanoTime - adaptationTimeNanos),
+            currentNanoTime);
+    entry = entries.putIfAbsent(key, newEntry);
+    if (entry != null) {
+      // inserted concurrently by another thread
+      return entry.estimator;
+    }
+    if (entries.size() > maxNumberOfKeys) {
+      evict(key, currentNanoTime);
+    }
+    return newEntry.estimator;
+  }
+
+  // Evicts keys until the number of keys is within bounds again, unless another thread is already
+  // evicting keys. That thread checks the number of keys again when it is done, so keys inserted in
+  // the meantime are accounted for.
+  private void evict(Object insertedKey, long currentNanoTime) {
+    while (entries.size() > maxNumberOfKeys && evicting.compareAndSet(false, true)) {
+      boolean evicted;
+      try {
+        evicted = evictLeastRecentlyUsed(insertedKey, currentNanoTime);
+      } finally {
+        evicting.set(false);
+      }
+      if (!evicted) {
+        return;
+      }
+    }
+  }
+
+  // Removes the least recently used keys other than the given, just inserted key until the number
+  // of keys is down to the low-water mark. A thread which still uses the estimator of an evicted
+  // key counts its span in the evicted estimator, which has no effect on later spans of that key.
+  private boolean evictLeastRecentlyUsed(Object insertedKey, long currentNanoTime) {
+    numberOfEvictionScans += 1;
+    // the ages are taken once, keys used during the scan become younger and are spared below
+    long[] ages = new long[entries.size()];
+    int numberOfAges = 0;
+    for (Entry entry : entries.values()) {
+      if (numberOfAges == ages.length) {
+        ages = Arrays.copyOf(ages, 2 * numberOfAges + 1);
+      }
+      ages[numberOfAges++] = currentNanoTime - entry.lastAccessNanoTime;
+    }
+    int numberOfKeysToEvict = numberOfAges - lowWaterNumberOfKeys;
+    if (numberOfKeysToEvict <= 0) {
+      return false;
+    }
+    Arrays.sort(ages, 0, numberOfAges);
+    long minAgeToEvict = ages[numberOfAges - numberOfKeysToEvict];
+
+    int numberOfEvictedKeys = 0;
+    Iterator<Map.Entry<Object, Entry>> iterator = entries.entrySet().iterator();
+    while (numberOfEvictedKeys < numberOfKeysToEvict && iterator.hasNext()) {
+      Map.Entry<Object, Entry> entry = iterator.next();
+      if (currentNanoTime - entry.getValue().lastAccessNanoTime >= minAgeToEvict
+          && !entry.getKey().equals(insertedKey)) {
+        iterator.remove();
+        numberOfEvictedKeys += 1;
+      }
+    }
+    return numberOfEvictedKeys > 0;
+  }
+
+  // visible for testing
+  int getLowWaterNumberOfKeys() {
+    return lowWaterNumberOfKeys;
+  }
+
+  // visible for testing
+  long getNumberOfEvictionScans() {
+    return numberOfEvictionScans;
+  }
+
+  // visible for testing
+  int getNumberOfKeys() {
+    return entries.size();
+  }
+
+  // visible for testing
+  boolean hasKey(Object key) {
+    return entries.containsKey(key);
+  }
+
+  @Override
+  protected int getP(int parentP, boolean isRoot) {
+    // no information about the span is available, all spans share the same budget
+    return getP(NO_KEY);
+  }
+
+  @Override
+  protected int getP(
+      int parentP, boolean isRoot, String name, SpanKind spanKind, Attributes attributes) {
+    Object key = keyExtractor.getKey(name, spanKind, attributes);
+    return getP((key != null) ? key : NO_KEY);
+  }
+
+  private int getP(Object key) {
+    long currentNanoTime = nanoTimeSupplier.getAsLong();
+    double samplingProbability =
+        getEstimator(key, currentNanoTime).countSpanAndGetSamplingProbability(currentNanoTime);
+    return ConsistentRateLimitingSampler.getStochasticallyRoundedP(
+        samplingProbability, randomGenerator);
+  }
+
+  @Override
+  public String getDescription() {
+    return description;
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.SpanKind;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A consistent sampler composed of any number of consistent samplers, which are evaluated in a
+ * single loop over an array.
+ *
+ * <p>If the samplers are combined by "and", a span is sampled if all samplers would sample, hence
+ * the largest p-value is taken, and any invalid p-value makes the result invalid. If combined by
+ * "or", a span is sampled if any sampler would sample, hence the smallest valid p-value is taken.
+ * The decisions are the same as for nested {@link ConsistentComposedAndSampler}s or {@link
+ * ConsistentComposedOrSampler}s, respectively.
+ *
+ * <p>The evaluation is stopped as soon as the result is final, which is the case for an invalid
+ * p-value when combined by "and", and for a p-value of 0 when combined by "or". A p-value of {@link
+ * OtelTraceState#getMaxP()} is not final for "and", as a subsequent invalid p-value would still
+ * change the result. Samplers whose p-values have side effects, like updating rate estimates, must
+ * see every span, therefore they are placed at the beginning of the array and never skipped.
+ */
+@Immutable
+final class ConsistentMultiComposedSampler extends ConsistentSampler {
+
+  @SuppressWarnings("Immutable") // never modified
+  private final ConsistentSampler[] samplers;
+
+  // the samplers at indices smaller than this are always evaluated
+  private final int numberOfStatefulSamplers;
+  private final boolean isAnd;
+  private final String description;
+
+  /**
+   * Constructor.
+   *
+   * @param samplers the samplers, at least two, those that are not stateless first
+   * @param numberOfStatefulSamplers the number of samplers that are not stateless
+   * @param isAnd true, if the samplers are combined by "and", false, if combined by "or"
+   */
+  ConsistentMultiComposedSampler(
+      ConsistentSampler[] samplers, int numberOfStatefulSamplers, boolean isAnd) {
+    this.samplers = samplers;
+    this.numberOfStatefulSamplers = numberOfStatefulSamplers;
+    this.isAnd = isAnd;
+    StringBuilder sb =
+        new StringBuilder("ConsistentMultiComposedSampler{operator=")
+            .append(isAnd ? "and" : "or")
+            .append(",samplers=[");
+    for (int i = 0; i < samplers.length; ++i) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      sb.append(samplers[i].getDescription());
+    }
+    this.description = sb.append("]}").toString();
+  }
+
+  boolean isAnd() {
+    return isAnd;
+  }
+
+  // visible for testing
+  ConsistentSampler[] getSamplers() {
+    return samplers.clone();
+  }
+
+  @Override
+  protected int getP(int parentP, boolean isRoot) {
+    int p = samplers[0].getP(parentP, isRoot);
+    for (int i = 1; i < samplers.length; ++i) {
+      if (i >= numberOfStatefulSamplers && isFinal(p)) {
+        break;
+      }
+      p = combine(p, samplers[i].getP(parentP, isRoot));
+    }
+    return p;
+  }
+
+  @Override
+  protected int getP(
+      int parentP, boolean isRoot, String name, SpanKind spanKind, Attributes attributes) {
+    int p = samplers[0].getP(parentP, isRoot, name, spanKind, attributes);
+    for (int i = 1; i < samplers.length; ++i) {
+      if (i >= numberOfStatefulSamplers && isFinal(p)) {
+        break;
+      }
+      p = combine(p, samplers[i].getP(parentP, isRoot, name, spanKind, attributes));
+    }
+    return p;
+  }
+
+  private boolean isFinal(int p) {
+    return isAnd ? !OtelTraceState.isValidP(p) : p == 0;
+  }
+
+  private int combine(int p1, int p2) {
+    boolean isValidP1 = OtelTraceState.isValidP(p1);
+    boolean isValidP2 = OtelTraceState.isValidP(p2);
+    if (isValidP1 && isValidP2) {
+      return isAnd ? Math.max(p1, p2) : Math.min(p1, p2);
+    }
+    if (isAnd) {
+      return OtelTraceState.getInvalidP();
+    }
+    return isValidP1 ? p1 : p2;
+  }
+
+  @Override
+  boolean isStateless() {
+    return numberOfStatefulSamplers == 0;
+  }
+
+  @Override
+  public String getDescription() {
+    return description;
+  }
+}
@@ -7,6 +7,8 @@ package io.opentelemetry.contrib.samplers;
 
 import static java.util.Objects.requireNonNull;
 
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.SpanKind;
 import javax.annotation.concurrent.Immutable;
 
 /**
@@ -54,6 +56,21 @@ final class ConsistentParentBasedSampler extends ConsistentSampler {
     }
   }
 
+  @Override
+  protected int getP(
+      int parentP, boolean isRoot, String name, SpanKind spanKind, Attributes attributes) {
+    if (isRoot) {
+      return rootSampler.getP(parentP, isRoot, name, spanKind, attributes);
+    } else {
+      return parentP;
+    }
+  }
+
+  @Override
+  boolean isStateless() {
+    return rootSampler.isStateless();
+  }
+
   @Override
   public String getDescription() {
     return description;
@@ -62,6 +62,12 @@ final class ConsistentProbabilityBasedSampler extends ConsistentSampler {
     }
   }
 
+  // a random p-value is drawn, unless the sampling probability is a power of two
+  @Override
+  boolean isStateless() {
+    return lowerPValue == upperPValue;
+  }
+
   @Override
   public String getDescription() {
     return description;
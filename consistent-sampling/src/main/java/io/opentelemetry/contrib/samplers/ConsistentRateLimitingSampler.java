@@ -8,9 +8,9 @@ package io.opentelemetry.contrib.samplers;
 import static java.util.Objects.requireNonNull;
 
 import io.opentelemetry.sdk.trace.samplers.Sampler;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.LongSupplier;
-import javax.annotation.concurrent.Immutable;
 
 /**
  * This consistent {@link Sampler} adjusts the sampling probability dynamically to limit the rate of
@@ -64,27 +64,131 @@ import javax.annotation.concurrent.Immutable;
  *   <li>{@code decayFactor} corresponds to {@code b(n)}
  *   <li>{@code adaptationTimeSeconds} corresponds to {@code -1 / ln(1 - a)}
  * </ul>
+ *
+ * <p>To avoid contention between threads sampling spans concurrently, the recursion is not
+ * evaluated for every span. Instead, spans are only counted using a striped counter, and the
+ * estimate as well as the resulting sampling probability are refreshed at most once per refresh
+ * interval by a single thread, which applies all spans counted since the last refresh as if they
+ * had been uniformly distributed over the elapsed time. All other threads just read the current
+ * sampling probability. The refresh interval is 1ms, or 1% of the adaptation time if that is
+ * smaller. Compared to updating the estimate for every span, the sampling probability therefore
+ * lags behind by up to one refresh interval, which is negligible compared to the adaptation time.
  */
 final class ConsistentRateLimitingSampler extends ConsistentSampler {
 
-  @Immutable
-  private static final class State {
-    private final double effectiveWindowCount;
-    private final double effectiveWindowNanos;
-    private final long lastNanoTime;
+  private static final double MAX_REFRESH_INTERVAL_NANOS = 1e6;
+
+  /**
+   * Estimates the sampling probability needed to satisfy a given rate of sampled spans, as
+   * described for {@link ConsistentRateLimitingSampler}.
+   *
+   * <p>This class is thread-safe.
+   */
+  static final class SamplingProbabilityEstimator {
+
+    private final double inverseAdaptationTimeNanos;
+    private final double targetSpansPerNanosecondLimit;
+    private final long refreshIntervalNanos;
+
+    // striped counter of all spans, incremented by all threads
+    private final LongAdder spanCount = new LongAdder();
+
+    // guards the refresh of the estimate
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private volatile long nextRefreshNanoTime;
+    private volatile double samplingProbability = 1.;
+
+    // only accessed by the thread holding the refreshing flag
+    private double effectiveWindowCount;
+    private double effectiveWindowNanos;
+    private long lastRefreshNanoTime;
+    private long lastSpanCount;
+
+    /**
+     * Constructor.
+     *
+     * @param targetSpansPerSecondLimit the desired spans per second limit
+     * @param adaptationTimeSeconds the typical time to adapt to a new load (time constant used for
+     *     exponential smoothing)
+     * @param startNanoTime the nano time from which on spans are counted
+     */
+    SamplingProbabilityEstimator(
+        double targetSpansPerSecondLimit, double adaptationTimeSeconds, long startNanoTime) {
+      this.inverseAdaptationTimeNanos = 1e-9 / adaptationTimeSeconds;
+      this.targetSpansPerNanosecondLimit = 1e-9 * targetSpansPerSecondLimit;
+      this.refreshIntervalNanos =
+          (long) Math.min(MAX_REFRESH_INTERVAL_NANOS, 1e7 * adaptationTimeSeconds);
+      this.lastRefreshNanoTime = startNanoTime;
+      this.nextRefreshNanoTime = startNanoTime;
+    }
+
+    /**
+     * Counts a span and returns the sampling probability for it.
+     *
+     * @param currentNanoTime the current nano time
+     * @return the sampling probability, which may be greater than 1
+     */
+    double countSpanAndGetSamplingProbability(long currentNanoTime) {
+      spanCount.increment();
+      if (currentNanoTime - nextRefreshNanoTime >= 0 && refreshing.compareAndSet(false, true)) {
+        try {
+          refresh(currentNanoTime);
+        } finally {
+          refreshing.set(false);
+        }
+      }
+      return samplingProbability;
+    }
 
-    public State(double effectiveWindowCount, double effectiveWindowNanos, long lastNanoTime) {
-      this.effectiveWindowCount = effectiveWindowCount;
-      this.effectiveWindowNanos = effectiveWindowNanos;
-      this.lastNanoTime = lastNanoTime;
+    /**
+     * Updates the estimate with all spans counted since the last refresh and publishes the new
+     * sampling probability.
+     *
+     * <p>Must only be called by the thread that has set the refreshing flag.
+     *
+     * @param currentNanoTime the current nano time
+     */
+    private void refresh(long currentNanoTime) {
+      long currentSpanCount = spanCount.sum();
+      long spanCountDelta = currentSpanCount - lastSpanCount;
+      if (spanCountDelta <= 0) {
+        return;
+      }
+      lastSpanCount = currentSpanCount;
+      if (currentNanoTime <= lastRefreshNanoTime) {
+        effectiveWindowCount += spanCountDelta;
+      } else {
+        long nanoTimeDelta = currentNanoTime - lastRefreshNanoTime;
+        double scaledNanoTimeDelta = nanoTimeDelta * inverseAdaptationTimeNanos;
+        double decayFactor = Math.exp(-scaledNanoTimeDelta);
+        // the spans are assumed to be uniformly distributed over the elapsed time, therefore the
+        // elapsed time as well as the span count are weighted by the average decay over the
+        // elapsed time, which tends to 1 for short time intervals
+        double effectiveNanoTimeDelta =
+            (scaledNanoTimeDelta > 0.)
+                ? -Math.expm1(-scaledNanoTimeDelta) / inverseAdaptationTimeNanos
+                : nanoTimeDelta;
+        if (decayFactor > 0.) {
+          effectiveWindowCount =
+              effectiveWindowCount * decayFactor
+                  + spanCountDelta * (effectiveNanoTimeDelta / nanoTimeDelta);
+          effectiveWindowNanos = effectiveWindowNanos * decayFactor + effectiveNanoTimeDelta;
+        } else {
+          // only the spans since the last refresh are relevant, e.g. for a zero adaptation time
+          effectiveWindowCount = spanCountDelta;
+          effectiveWindowNanos = nanoTimeDelta;
+        }
+        lastRefreshNanoTime = currentNanoTime;
+      }
+      samplingProbability =
+          (effectiveWindowNanos * targetSpansPerNanosecondLimit) / effectiveWindowCount;
+      nextRefreshNanoTime = currentNanoTime + refreshIntervalNanos;
     }
   }
 
   private final String description;
   private final LongSupplier nanoTimeSupplier;
-  private final double inverseAdaptationTimeNanos;
-  private final double targetSpansPerNanosecondLimit;
-  private final AtomicReference<State> state;
+  private final SamplingProbabilityEstimator estimator;
 
   /**
    * Constructor.
@@ -117,46 +221,36 @@ final class ConsistentRateLimitingSampler extends ConsistentSampler {
       LongSupplier nanoTimeSupplier) {
     super(randomGenerator);
 
-    if (targetSpansPerSecondLimit < 0.0) {
-      throw new IllegalArgumentException("Limit for sampled spans per second must be nonnegative!");
-    }
-    if (adaptationTimeSeconds < 0.0) {
-      throw new IllegalArgumentException("Adaptation rate must be nonnegative!");
-    }
+    checkArguments(targetSpansPerSecondLimit, adaptationTimeSeconds);
     this.description =
         String.format(
             "ConsistentRateLimitingSampler{%.6f, %.6f}",
             targetSpansPerSecondLimit, adaptationTimeSeconds);
     this.nanoTimeSupplier = requireNonNull(nanoTimeSupplier);
-
-    this.inverseAdaptationTimeNanos = 1e-9 / adaptationTimeSeconds;
-    this.targetSpansPerNanosecondLimit = 1e-9 * targetSpansPerSecondLimit;
-
-    this.state = new AtomicReference<>(new State(0, 0, nanoTimeSupplier.getAsLong()));
+    this.estimator =
+        new SamplingProbabilityEstimator(
+            targetSpansPerSecondLimit, adaptationTimeSeconds, nanoTimeSupplier.getAsLong());
   }
 
-  private State updateState(State oldState, long currentNanoTime) {
-    if (currentNanoTime <= oldState.lastNanoTime) {
-      return new State(
-          oldState.effectiveWindowCount + 1, oldState.effectiveWindowNanos, oldState.lastNanoTime);
+  static void checkArguments(double targetSpansPerSecondLimit, double adaptationTimeSeconds) {
+    if (targetSpansPerSecondLimit < 0.0) {
+      throw new IllegalArgumentException("Limit for sampled spans per second must be nonnegative!");
+    }
+    if (adaptationTimeSeconds < 0.0) {
+      throw new IllegalArgumentException("Adaptation rate must be nonnegative!");
     }
-    long nanoTimeDelta = currentNanoTime - oldState.lastNanoTime;
-    double decayFactor = Math.exp(-nanoTimeDelta * inverseAdaptationTimeNanos);
-    double currentEffectiveWindowCount = oldState.effectiveWindowCount * decayFactor + 1;
-    double currentEffectiveWindowNanos =
-        oldState.effectiveWindowNanos * decayFactor + nanoTimeDelta;
-    return new State(currentEffectiveWindowCount, currentEffectiveWindowNanos, currentNanoTime);
   }
 
-  @Override
-  protected int getP(int parentP, boolean isRoot) {
-    long currentNanoTime = nanoTimeSupplier.getAsLong();
-    State currentState = state.updateAndGet(s -> updateState(s, currentNanoTime));
-
-    double samplingProbability =
-        (currentState.effectiveWindowNanos * targetSpansPerNanosecondLimit)
-            / currentState.effectiveWindowCount;
-
+  /**
+   * Returns a p-value for the given sampling probability, which is randomly chosen among the two
+   * closest p-values such that the expected sampling probability is as given.
+   *
+   * @param samplingProbability the sampling probability, values greater than 1 are treated as 1
+   * @param randomGenerator the random generator
+   * @return the p-value
+   */
+  static int getStochasticallyRoundedP(
+      double samplingProbability, RandomGenerator randomGenerator) {
     if (samplingProbability >= 1.) {
       return 0;
     }
@@ -180,6 +274,13 @@ final class ConsistentRateLimitingSampler extends ConsistentSampler {
     }
   }
 
+  @Override
+  protected int getP(int parentP, boolean isRoot) {
+    double samplingProbability =
+        estimator.countSpanAndGetSamplingProbability(nanoTimeSupplier.getAsLong());
+    return getStochasticallyRoundedP(samplingProbability, randomGenerator);
+  }
+
   @Override
   public String getDescription() {
     return description;
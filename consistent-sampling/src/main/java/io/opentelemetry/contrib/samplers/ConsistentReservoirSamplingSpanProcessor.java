@@ -8,39 +8,91 @@ package io.opentelemetry.contrib.samplers;
 import static io.opentelemetry.api.internal.Utils.checkArgument;
 import static java.util.Objects.requireNonNull;
 
-import io.opentelemetry.api.trace.SpanContext;
-import io.opentelemetry.api.trace.TraceState;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.Meter;
+import io.opentelemetry.api.metrics.MeterProvider;
+import io.opentelemetry.api.metrics.ObservableLongGauge;
 import io.opentelemetry.context.Context;
 import io.opentelemetry.sdk.common.CompletableResultCode;
 import io.opentelemetry.sdk.internal.DaemonThreadFactory;
 import io.opentelemetry.sdk.trace.ReadWriteSpan;
 import io.opentelemetry.sdk.trace.ReadableSpan;
 import io.opentelemetry.sdk.trace.SpanProcessor;
-import io.opentelemetry.sdk.trace.data.DelegatingSpanData;
 import io.opentelemetry.sdk.trace.data.SpanData;
 import io.opentelemetry.sdk.trace.export.SpanExporter;
-import java.util.ArrayList;
-import java.util.BitSet;
+import java.time.Duration;
 import java.util.Collections;
 import java.util.List;
-import java.util.PriorityQueue;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+import java.util.function.IntToLongFunction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
+import javax.annotation.Nullable;
 
 /**
  * A {@link SpanProcessor} which periodically exports a fixed maximum number of spans. If the number
  * of spans in a period exceeds the fixed reservoir (buffer) size, spans will be consistently
  * (compare {@link ConsistentSampler}) sampled.
+ *
+ * <p>Optionally, spans can be stratified, for example by span name, using {@link
+ * ConsistentReservoirSamplingSpanProcessorBuilder#setStratifier(SpanStratifier)}. In this case, a
+ * separate reservoir is used for every stratum, so that rare strata are not crowded out by frequent
+ * ones. The reservoir size is split among the strata as described in {@link
+ * ConsistentReservoirSamplingSpanProcessorBuilder#setMinSpansPerStratum(int)}. The p-values are
+ * adjusted for every stratum individually, hence the adjusted counts remain unbiased.
+ *
+ * <p>By default, every span is sampled individually, which may result in incomplete traces, if the
+ * number of spans exceeds the reservoir size. Using {@link
+ * ConsistentReservoirSamplingSpanProcessorBuilder#setKeepWholeTraces(boolean)}, the spans of a
+ * trace are kept or discarded together instead.
+ *
+ * <p>Individually sampled spans can be favoured, for example if they have failed or are slow, using
+ * {@link ConsistentReservoirSamplingSpanProcessorBuilder#setPrioritizer(SpanPrioritizer)}. Favoured
+ * spans are kept more often, but with correspondingly smaller adjusted counts, so that estimates
+ * remain unbiased.
+ *
+ * <p>The reservoir size can also be adapted to the exporter at the end of every period, see {@link
+ * ConsistentReservoirSamplingSpanProcessorBuilder#setAdaptiveReservoirSize(int, int)}. The current
+ * reservoir size is reported as metric, if a {@link MeterProvider} is configured.
+ *
+ * <p>In addition to the number of spans, the reservoir can be bounded by the estimated serialized
+ * size of the kept spans, see {@link
+ * ConsistentReservoirSamplingSpanProcessorBuilder#setMaxReservoirBytes(long)}. Large spans then
+ * weigh more than small ones, so that memory consumption and the size of the export requests are
+ * predictable even if the sizes of the spans vary a lot.
+ *
+ * <p>Before every export, the spans are ordered such that spans of the same resource, the same
+ * instrumentation scope and the same trace are adjacent, which improves the compression of the
+ * export requests.
+ *
+ * <p>With a {@link MeterProvider}, the processor also reports the numbers of offered, kept and
+ * discarded spans, the largest discarded r-values, the durations and outcomes of the exports, and
+ * the time spent waiting for the reservoir locks. These are accumulated per stripe and only
+ * recorded once per period, so that the overhead for every ended span is negligible.
  */
 public final class ConsistentReservoirSamplingSpanProcessor implements SpanProcessor {
 
   private static final String WORKER_THREAD_NAME =
       ConsistentReservoirSamplingSpanProcessor.class.getSimpleName() + "_WorkerThread";
+  private static final String EXPORTER_THREAD_NAME =
+      ConsistentReservoirSamplingSpanProcessor.class.getSimpleName() + "_ExporterThread";
+  private static final String INSTRUMENTATION_SCOPE_NAME = "io.opentelemetry.contrib.samplers";
+  private static final AttributeKey<String> SPAN_PROCESSOR_TYPE_LABEL =
+      AttributeKey.stringKey("spanProcessorType");
+  private static final Attributes SPAN_PROCESSOR_TYPE_ATTRIBUTES =
+      Attributes.of(
+          SPAN_PROCESSOR_TYPE_LABEL,
+          ConsistentReservoirSamplingSpanProcessor.class.getSimpleName());
 
   private final Worker worker;
   private final AtomicBoolean isShutdown = new AtomicBoolean(false);
@@ -48,278 +100,15 @@ public final class ConsistentReservoirSamplingSpanProcessor implements SpanProce
   // visible for testing
   static final long DEFAULT_EXPORT_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
 
-  private static final class ReadableSpanWithPriority {
-
-    private final ReadableSpan readableSpan;
-    private int pval;
-    private final int rval;
-    private final long priority;
-
-    public static ReadableSpanWithPriority create(
-        ReadableSpan readableSpan, RandomGenerator randomGenerator) {
-      String otelTraceStateString =
-          readableSpan.getSpanContext().getTraceState().get(OtelTraceState.TRACE_STATE_KEY);
-      OtelTraceState otelTraceState = OtelTraceState.parse(otelTraceStateString);
-      int pval;
-      int rval;
-      long priority = randomGenerator.nextLong();
-      if (otelTraceState.hasValidR()) {
-        rval = otelTraceState.getR();
-      } else {
-        rval =
-            Math.min(randomGenerator.numberOfLeadingZerosOfRandomLong(), OtelTraceState.getMaxR());
-      }
-
-      if (otelTraceState.hasValidP()) {
-        pval = otelTraceState.getP();
-      } else {
-        // if the p-value is not defined assume it is zero,
-        // which corresponds to an adjusted count of 1
-        pval = 0;
-      }
-
-      return new ReadableSpanWithPriority(readableSpan, pval, rval, priority);
-    }
-
-    private ReadableSpanWithPriority(ReadableSpan readableSpan, int pval, int rval, long priority) {
-      this.readableSpan = readableSpan;
-      this.pval = pval;
-      this.rval = rval;
-      this.priority = priority;
-    }
-
-    private ReadableSpan getReadableSpan() {
-      return readableSpan;
-    }
-
-    private int getP() {
-      return pval;
-    }
-
-    private void setP(int pval) {
-      this.pval = pval;
-    }
-
-    private int getR() {
-      return rval;
-    }
-
-    private static int compareRthenPriority(
-        ReadableSpanWithPriority s1, ReadableSpanWithPriority s2) {
-      int compareR = Integer.compare(s1.rval, s2.rval);
-      if (compareR != 0) {
-        return compareR;
-      }
-      return Long.compare(s1.priority, s2.priority);
-    }
-  }
-
   /**
-   * A reservoir sampling buffer that collects a fixed number of spans.
-   *
-   * <p>Consistent sampling requires that spans are sampled only if r-value >= p-value, where
-   * p-value describes which sampling rate from the discrete set of possible sampling rates is
-   * applied. Consistent sampling allows to choose the sampling rate (the p-value) individually for
-   * every span. Therefore, the number of sampled spans can be reduced by increasing the p-value of
-   * spans, such that spans for which r-value < p-value get discarded. To reduce the number of
-   * sampled spans one can therefore apply the following procedure until the desired number of spans
-   * are left:
-   *
-   * <p>1) Randomly choose a span among the spans with smallest p-values
-   *
-   * <p>2) Increment its p-value by 1
-   *
-   * <p>3) Discard the span, if r-value < p-value
-   *
-   * <p>4) continue with 1)
-   *
-   * <p>By always incrementing one of the smallest p-values, this approach tries to balance the
-   * sampling rates (p-values). Balanced sampling rates are better for estimation (compare <a
-   * href="https://arxiv.org/abs/0803.0473">VarOpt sampling</a>).
-   *
-   * <p>This sampling approach can be implemented in a streaming fashion. In order to ensure that
-   * spans have fair chances regardless of processing order, a uniform random number (priority) is
-   * associated with its p-value. When choosing a span among all spans with smallest p-value, we
-   * take that with the smallest priority. For that, a priority queue is needed.
-   *
-   * <p>In the following, an equivalent and more efficient sampling approach is described, that is
-   * based on a priority queue where the minimum is the span with the smallest r-value. In this way
-   * the {@code add}-operation will have a worst case time complexity of {@code O(log n)} where
-   * {@code n} denotes the reservoir size. We use the following notation:
-   *
-   * <p>Z := {@code reservoirSize}
-   *
-   * <p>L := {@code maxDiscardedRValue}
-   *
-   * <p>R := {@code numberOfDiscardedSpansWithMaxDiscardedRValue}
-   *
-   * <p>K := {@code numSampledSpansWithGreaterRValueAndSmallPValue}
+   * Returns a new {@link ConsistentReservoirSamplingSpanProcessorBuilder} that exports spans to the
+   * given {@link SpanExporter}.
    *
-   * <p>X := {@code numberOfSampledSpansWithMaxDiscardedRValue}
-   *
-   * <p>The sampling approach described above can be equivalently performed by keeping Z spans with
-   * largest r-values (in case of ties with highest priority) and adjusting the corresponding
-   * p-values in a finalization step. We know that the largest r-value among the dropped spans is L
-   * and that we had to discard exactly R spans with (r-value == L). This implies that their
-   * corresponding p-values were raised to (L + 1) which finally violated the sampling condition
-   * (r-value >= p-value). We only raise the p-value of some span, if it belongs to the set of spans
-   * with minimum p-value. Therefore, the minimum p-value must be given by L. To determine the
-   * p-values of all finally kept spans, we consider 3 cases:
-   *
-   * <p>1) For all X kept spans with r-value == L the corresponding p-value must also be L.
-   * Otherwise, the span would have been discarded. There are R spans with (r-value == L) which have
-   * been discarded. Therefore, among the original (X + R) spans with (r-value == L) we have kept X
-   * spans.
-   *
-   * <p>2) For spans with (p-value > L) the p-value will not be changed as they do not belong to the
-   * set of spans with minimal p-values.
-   *
-   * <p>3) For the remaining K spans for which (r-value > L) and (p-value <= L) the p-value needs to
-   * be adjusted. The new p-value will be either L or (L + 1). When starting to sample the first
-   * spans with (p-value == L), we have N = R + K + X spans which all have (r-value >= L) and
-   * (p-value == L). This set can be divided into two sets of spans dependent on whether (r-value ==
-   * L) or (r-value > L). We know that there were (R + X) spans with (r-value == L) and K spans with
-   * (r-value > L). When randomly selecting a span to increase its p-value, the span will only be
-   * discarded if the span belongs to the first set (r-value == L). We will call such an event
-   * "failure". If the selected span belongs to the second set (r-value > L), its p-value will be
-   * increased by 1 to (L + 1) but the span will not be dropped. The sampling procedure will be
-   * stopped after R "failures". The number of "successes" follows a <a
-   * href="https://en.wikipedia.org/wiki/Negative_hypergeometric_distribution">negative
-   * hypergeometric distribution</a>. Therefore, we need to sample a random value from a negative
-   * hypergeometric distribution with N = R + X + K elements of which K are "successes" and after
-   * drawing R "failures", in order to determine how many spans out of K will get a p-value equal to
-   * (L + 1). The expected number is given by R * K / (N - K + 1) = R * K / (R + X + 1). Instead of
-   * drawing the number from the negative hypergeometric distribution we could also set it to the
-   * stochastically rounded expected value. This makes this reservoir sampling approach not fully
-   * equivalent to the approach described initially, but leads to a smaller variance when
-   * estimating.
+   * @param spanExporter a span exporter
+   * @return a builder
    */
-  private static final class Reservoir {
-    private final int reservoirSize;
-    private int maxDiscardedRValue = 0;
-    private long numberOfDiscardedSpansWithMaxDiscardedRValue = 0;
-    private final PriorityQueue<ReadableSpanWithPriority> queue;
-    private final RandomGenerator randomGenerator;
-
-    public Reservoir(int reservoirSize, RandomGenerator randomGenerator) {
-      if (reservoirSize < 1) {
-        throw new IllegalArgumentException();
-      }
-      this.reservoirSize = reservoirSize;
-      this.queue =
-          new PriorityQueue<>(reservoirSize, ReadableSpanWithPriority::compareRthenPriority);
-      this.randomGenerator = randomGenerator;
-    }
-
-    public void add(ReadableSpanWithPriority readableSpanWithPriority) {
-
-      if (queue.size() < reservoirSize) {
-        queue.add(readableSpanWithPriority);
-        return;
-      }
-
-      ReadableSpanWithPriority head = queue.peek();
-      if (ReadableSpanWithPriority.compareRthenPriority(readableSpanWithPriority, head) > 0) {
-        queue.remove();
-        queue.add(readableSpanWithPriority);
-        readableSpanWithPriority = head;
-      }
-      if (readableSpanWithPriority.getR() > maxDiscardedRValue) {
-        maxDiscardedRValue = readableSpanWithPriority.getR();
-        numberOfDiscardedSpansWithMaxDiscardedRValue = 1;
-      } else if (readableSpanWithPriority.getR() == maxDiscardedRValue) {
-        numberOfDiscardedSpansWithMaxDiscardedRValue += 1;
-      }
-    }
-
-    public List<SpanData> getResult() {
-
-      if (numberOfDiscardedSpansWithMaxDiscardedRValue == 0) {
-        return queue.stream().map(x -> x.readableSpan.toSpanData()).collect(Collectors.toList());
-      }
-
-      List<ReadableSpanWithPriority> readableSpansWithPriority = new ArrayList<>(queue.size());
-      int numberOfSampledSpansWithMaxDiscardedRValue = 0;
-      int numSampledSpansWithGreaterRValueAndSmallPValue = 0;
-      for (ReadableSpanWithPriority readableSpanWithPriority : queue) {
-        if (readableSpanWithPriority.getR() == maxDiscardedRValue) {
-          numberOfSampledSpansWithMaxDiscardedRValue += 1;
-        } else if (readableSpanWithPriority.getP() <= maxDiscardedRValue) {
-          numSampledSpansWithGreaterRValueAndSmallPValue += 1;
-        }
-        readableSpansWithPriority.add(readableSpanWithPriority);
-      }
-
-      double expectedNumPValueIncrements =
-          numSampledSpansWithGreaterRValueAndSmallPValue
-              * (numberOfDiscardedSpansWithMaxDiscardedRValue
-                  / (double)
-                      (numberOfDiscardedSpansWithMaxDiscardedRValue
-                          + numberOfSampledSpansWithMaxDiscardedRValue
-                          + 1L));
-      int roundedExpectedNumPValueIncrements =
-          Math.toIntExact(randomGenerator.roundStochastically(expectedNumPValueIncrements));
-
-      BitSet incrementIndicators =
-          randomGenerator.generateRandomBitSet(
-              numSampledSpansWithGreaterRValueAndSmallPValue, roundedExpectedNumPValueIncrements);
-
-      int incrementIndicatorIndex = 0;
-      List<SpanData> result = new ArrayList<>(queue.size());
-      for (ReadableSpanWithPriority readableSpanWithPriority : readableSpansWithPriority) {
-        if (readableSpanWithPriority.getP() <= maxDiscardedRValue) {
-          readableSpanWithPriority.setP(maxDiscardedRValue);
-          if (readableSpanWithPriority.getR() > maxDiscardedRValue) {
-            if (incrementIndicators.get(incrementIndicatorIndex)) {
-              readableSpanWithPriority.setP(maxDiscardedRValue + 1);
-            }
-            incrementIndicatorIndex += 1;
-          }
-        }
-
-        SpanData spanData = readableSpanWithPriority.getReadableSpan().toSpanData();
-        SpanContext spanContext = spanData.getSpanContext();
-        TraceState traceState = spanContext.getTraceState();
-        String otelTraceStateString = traceState.get(OtelTraceState.TRACE_STATE_KEY);
-        OtelTraceState otelTraceState = OtelTraceState.parse(otelTraceStateString);
-        if ((!otelTraceState.hasValidR() && readableSpanWithPriority.getP() > 0)
-            || (otelTraceState.hasValidR()
-                && readableSpanWithPriority.getP() != otelTraceState.getP())) {
-          otelTraceState.setP(readableSpanWithPriority.getP());
-          spanData = updateSpanDataWithOtelTraceState(spanData, otelTraceState);
-        }
-        result.add(spanData);
-      }
-
-      return result;
-    }
-
-    public boolean isEmpty() {
-      return queue.isEmpty();
-    }
-  }
-
-  private static SpanData updateSpanDataWithOtelTraceState(
-      SpanData spanData, OtelTraceState otelTraceState) {
-    SpanContext spanContext = spanData.getSpanContext();
-    TraceState traceState = spanContext.getTraceState();
-    String updatedOtelTraceStateString = otelTraceState.serialize();
-    TraceState updatedTraceState =
-        traceState.toBuilder()
-            .put(OtelTraceState.TRACE_STATE_KEY, updatedOtelTraceStateString)
-            .build();
-    SpanContext updatedSpanContext =
-        SpanContext.create(
-            spanContext.getTraceId(),
-            spanContext.getSpanId(),
-            spanContext.getTraceFlags(),
-            updatedTraceState);
-    return new DelegatingSpanData(spanData) {
-      @Override
-      public SpanContext getSpanContext() {
-        return updatedSpanContext;
-      }
-    };
+  public static ConsistentReservoirSamplingSpanProcessorBuilder builder(SpanExporter spanExporter) {
+    return new ConsistentReservoirSamplingSpanProcessorBuilder(spanExporter);
   }
 
   // visible for testing
@@ -329,8 +118,12 @@ public final class ConsistentReservoirSamplingSpanProcessor implements SpanProce
       long exportPeriodNanos,
       long exporterTimeoutNanos,
       RandomGenerator randomGenerator) {
-    return new ConsistentReservoirSamplingSpanProcessor(
-        spanExporter, exportPeriodNanos, reservoirSize, exporterTimeoutNanos, randomGenerator);
+    return builder(spanExporter)
+        .setReservoirSize(reservoirSize)
+        .setExportPeriod(Duration.ofNanos(exportPeriodNanos))
+        .setExporterTimeout(Duration.ofNanos(exporterTimeoutNanos))
+        .setRandomGenerator(randomGenerator)
+        .build();
   }
 
   /**
@@ -372,21 +165,69 @@ public final class ConsistentReservoirSamplingSpanProcessor implements SpanProce
     return create(spanExporter, reservoirSize, exportPeriodNanos, DEFAULT_EXPORT_TIMEOUT_NANOS);
   }
 
-  private ConsistentReservoirSamplingSpanProcessor(
+  ConsistentReservoirSamplingSpanProcessor(
       SpanExporter spanExporter,
       long exportPeriodNanos,
       int reservoirSize,
+      int minReservoirSize,
+      int maxReservoirSize,
+      long maxReservoirBytes,
       long exporterTimeoutNanos,
+      int stripeCount,
+      int maxPendingExports,
+      @Nullable SpanStratifier stratifier,
+      int maxStrata,
+      int minSpansPerStratum,
+      boolean keepWholeTraces,
+      int maxSpansPerTrace,
+      @Nullable SpanPrioritizer prioritizer,
+      MeterProvider meterProvider,
       RandomGenerator randomGenerator) {
     requireNonNull(spanExporter, "spanExporter");
     checkArgument(exportPeriodNanos > 0, "export period must be positive");
     checkArgument(reservoirSize > 0, "reservoir size must be positive");
+    checkArgument(
+        minReservoirSize > 0 && minReservoirSize <= reservoirSize,
+        "min reservoir size must be positive and not greater than the reservoir size");
+    checkArgument(
+        maxReservoirSize >= reservoirSize,
+        "max reservoir size must not be smaller than the reservoir size");
+    checkArgument(maxReservoirBytes > 0, "max reservoir bytes must be positive");
     checkArgument(exporterTimeoutNanos > 0, "exporter timeout must be positive");
+    checkArgument(stripeCount > 0, "stripe count must be positive");
+    checkArgument(maxPendingExports >= 0, "max pending exports must be non-negative");
+    checkArgument(maxStrata > 0, "max strata must be positive");
+    checkArgument(minSpansPerStratum > 0, "min spans per stratum must be positive");
+    checkArgument(maxSpansPerTrace > 0, "max spans per trace must be positive");
+    if (stratifier != null) {
+      checkArgument(
+          (long) maxStrata * minSpansPerStratum <= minReservoirSize,
+          "reservoir size must not be smaller than max strata times min spans per stratum");
+    }
+    checkArgument(
+        prioritizer == null || !keepWholeTraces,
+        "prioritizer must not be set if whole traces are kept");
+    requireNonNull(meterProvider, "meterProvider");
     requireNonNull(randomGenerator, "randomGenerator");
 
     this.worker =
         new Worker(
-            spanExporter, exportPeriodNanos, reservoirSize, exporterTimeoutNanos, randomGenerator);
+            spanExporter,
+            exportPeriodNanos,
+            new ReservoirSizeController(
+                reservoirSize, minReservoirSize, maxReservoirSize, exporterTimeoutNanos),
+            maxReservoirBytes,
+            exporterTimeoutNanos,
+            stripeCount,
+            maxPendingExports,
+            stratifier,
+            (stratifier != null) ? maxStrata : 1,
+            minSpansPerStratum,
+            keepWholeTraces,
+            maxSpansPerTrace,
+            prioritizer,
+            meterProvider,
+            randomGenerator);
     Thread workerThread = new DaemonThreadFactory(WORKER_THREAD_NAME).newThread(worker);
     workerThread.start();
   }
@@ -425,6 +266,39 @@ public final class ConsistentReservoirSamplingSpanProcessor implements SpanProce
     return worker.forceFlush();
   }
 
+  /**
+   * Returns the number of batches that have been handed over to the exporter thread, but whose
+   * export has not yet completed. Always zero, if exports are not pipelined.
+   *
+   * @return the number of pending exports
+   * @see ConsistentReservoirSamplingSpanProcessorBuilder#setMaxPendingExports(int)
+   */
+  public int getPendingExportCount() {
+    return worker.pendingExports.get();
+  }
+
+  /**
+   * Returns the total number of batches that were dropped, because the maximum number of pending
+   * exports was reached. Always zero, if exports are not pipelined.
+   *
+   * @return the number of dropped batches
+   * @see ConsistentReservoirSamplingSpanProcessorBuilder#setMaxPendingExports(int)
+   */
+  public long getDroppedExportCount() {
+    return worker.droppedExports.get();
+  }
+
+  /**
+   * Returns the reservoir size, which is the maximum number of spans exported, for the next export
+   * period. Only changes, if the reservoir size is adaptive.
+   *
+   * @return the reservoir size
+   * @see ConsistentReservoirSamplingSpanProcessorBuilder#setAdaptiveReservoirSize(int, int)
+   */
+  public int getReservoirSize() {
+    return worker.reservoirSizeController.getReservoirSize();
+  }
+
   // Visible for testing
   boolean isReservoirEmpty() {
     return worker.isReservoirEmpty();
@@ -435,43 +309,217 @@ public final class ConsistentReservoirSamplingSpanProcessor implements SpanProce
     private static final Logger logger = Logger.getLogger(Worker.class.getName());
     private final SpanExporter spanExporter;
     private final long exportPeriodNanos;
-    private final int reservoirSize;
+    private final ReservoirSizeController reservoirSizeController;
     private final long exporterTimeoutNanos;
 
     private long nextExportTime;
 
     private final RandomGenerator randomGenerator;
-    private final Object reservoirLock = new Object();
-    private Reservoir reservoir;
+    @Nullable private final SpanStratifier stratifier;
+    private final boolean keepWholeTraces;
+    @Nullable private final SpanPrioritizer prioritizer;
+    // used to derive the priorities of traces from their trace ids
+    private final long traceIdHashSeed;
+    // used to derive the r-values of traces that were not sampled consistently from their trace ids
+    private final long traceRValueSeed;
+    private final int maxSpansPerTrace;
+    private final long maxReservoirBytes;
+    // only accessed by the worker thread, creates the reservoirs of the strata of the current
+    // period
+    private IntFunction<SpanReservoir> reservoirFactory;
+    // only accessed by the worker thread, the stripes refer to the strata of the current period
+    private Strata strata;
+    // every stripe is used as lock for its own reservoir
+    private final ReservoirStripe[] stripes;
     private final BlockingQueue<CompletableResultCode> signal;
     private volatile boolean continueWork = true;
 
-    private static Reservoir createReservoir(int reservoirSize, RandomGenerator randomGenerator) {
-      return new Reservoir(reservoirSize, randomGenerator);
-    }
+    // only used for pipelined exports
+    private final int maxPendingExports;
+    @Nullable private final ExecutorService exportExecutor;
+    private final AtomicInteger pendingExports = new AtomicInteger();
+    private final AtomicLong droppedExports = new AtomicLong();
+
+    private final ObservableLongGauge reservoirSizeGauge;
+    private final ReservoirSamplingMetrics metrics;
+    // only accessed by the worker thread, accumulated over all stripes when swapping reservoirs
+    private long periodOfferedSpans;
+    private long periodSampledLockWaitNanos;
 
     private Worker(
         SpanExporter spanExporter,
         long exportPeriodNanos,
-        int reservoirSize,
+        ReservoirSizeController reservoirSizeController,
+        long maxReservoirBytes,
         long exporterTimeoutNanos,
+        int stripeCount,
+        int maxPendingExports,
+        @Nullable SpanStratifier stratifier,
+        int maxStrata,
+        int minSpansPerStratum,
+        boolean keepWholeTraces,
+        int maxSpansPerTrace,
+        @Nullable SpanPrioritizer prioritizer,
+        MeterProvider meterProvider,
         RandomGenerator randomGenerator) {
       this.spanExporter = spanExporter;
       this.exportPeriodNanos = exportPeriodNanos;
-      this.reservoirSize = reservoirSize;
+      this.reservoirSizeController = reservoirSizeController;
       this.exporterTimeoutNanos = exporterTimeoutNanos;
       this.randomGenerator = randomGenerator;
-      synchronized (reservoirLock) {
-        this.reservoir = createReservoir(reservoirSize, randomGenerator);
+      this.stratifier = stratifier;
+      this.keepWholeTraces = keepWholeTraces;
+      this.prioritizer = prioritizer;
+      this.traceIdHashSeed = randomGenerator.nextLong();
+      this.traceRValueSeed = randomGenerator.nextLong();
+      this.maxSpansPerTrace = maxSpansPerTrace;
+      this.maxReservoirBytes = maxReservoirBytes;
+      int reservoirSize = reservoirSizeController.getReservoirSize();
+      this.reservoirFactory = createReservoirFactory(reservoirSize);
+      this.strata = Strata.create(reservoirSize, maxStrata, minSpansPerStratum);
+      this.stripes = new ReservoirStripe[roundUpToPowerOfTwo(stripeCount)];
+      for (int i = 0; i < stripes.length; ++i) {
+        stripes[i] = new ReservoirStripe(new StratifiedReservoir(strata, reservoirFactory));
       }
       this.signal = new ArrayBlockingQueue<>(1);
+      this.maxPendingExports = maxPendingExports;
+      if (maxPendingExports > 0) {
+        this.exportExecutor =
+            Executors.newSingleThreadExecutor(new DaemonThreadFactory(EXPORTER_THREAD_NAME));
+      } else {
+        this.exportExecutor = null;
+      }
+
+      Meter meter = meterProvider.meterBuilder(INSTRUMENTATION_SCOPE_NAME).build();
+      this.reservoirSizeGauge =
+          meter
+              .gaugeBuilder("reservoirSize")
+              .ofLongs()
+              .setUnit("1")
+              .setDescription("The maximum number of spans exported for the current period")
+              .buildWithCallback(
+                  result ->
+                      result.record(
+                          reservoirSizeController.getReservoirSize(),
+                          SPAN_PROCESSOR_TYPE_ATTRIBUTES));
+      this.metrics = new ReservoirSamplingMetrics(meter, SPAN_PROCESSOR_TYPE_ATTRIBUTES);
+    }
+
+    /**
+     * Returns a factory for the reservoirs of the strata of a period, which get a share of the
+     * maximum reservoir bytes proportional to their quota of the reservoir size.
+     *
+     * @param reservoirSize the reservoir size of the period
+     * @return the reservoir factory
+     */
+    private IntFunction<SpanReservoir> createReservoirFactory(int reservoirSize) {
+      IntToLongFunction byteQuota;
+      if (maxReservoirBytes == Reservoir.UNLIMITED_BYTES) {
+        byteQuota = quota -> Reservoir.UNLIMITED_BYTES;
+      } else {
+        double bytesPerSpan = (double) maxReservoirBytes / reservoirSize;
+        byteQuota = quota -> Math.max(1, (long) (bytesPerSpan * quota));
+      }
+      if (keepWholeTraces) {
+        return quota ->
+            new TraceReservoir(
+                quota, byteQuota.applyAsLong(quota), maxSpansPerTrace, randomGenerator);
+      } else {
+        return quota -> new Reservoir(quota, byteQuota.applyAsLong(quota), randomGenerator);
+      }
+    }
+
+    private static int roundUpToPowerOfTwo(int stripeCount) {
+      return (stripeCount > 1) ? Integer.highestOneBit(stripeCount - 1) << 1 : 1;
+    }
+
+    private ReservoirStripe getStripe() {
+      if (stripes.length == 1) {
+        return stripes[0];
+      }
+      // Fibonacci hashing spreads consecutive thread ids evenly over the stripes
+      long hash = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+      return stripes[(int) (hash >>> 32) & (stripes.length - 1)];
     }
 
     private void addSpan(ReadableSpan span) {
-      ReadableSpanWithPriority readableSpanWithPriority =
-          ReadableSpanWithPriority.create(span, randomGenerator);
-      synchronized (reservoirLock) {
-        reservoir.add(readableSpanWithPriority);
+      String otelTraceStateString =
+          span.getSpanContext().getTraceState().get(OtelTraceState.TRACE_STATE_KEY);
+      OtelTraceState otelTraceState = OtelTraceState.parse(otelTraceStateString);
+      int pval = otelTraceState.getPForSpan();
+      int rval = otelTraceState.getRForSpan(span.getSpanContext().getTraceId());
+      if (!OtelTraceState.isValidR(rval)) {
+        // the span was not sampled consistently, its r-value is random, but the same for all spans
+        // of its trace if whole traces are kept
+        long randomLong =
+            keepWholeTraces
+                ? OtelTraceState.hashTraceId(span.getSpanContext().getTraceId(), traceRValueSeed)
+                : randomGenerator.nextLong();
+        rval = Math.min(Long.numberOfLeadingZeros(randomLong), OtelTraceState.getMaxR());
+      }
+      long priority;
+      if (keepWholeTraces) {
+        // all spans of a trace need the same priority, which is therefore derived from the trace id
+        priority = getTracePriority(span.getSpanContext().getTraceId());
+      } else {
+        priority = randomGenerator.nextLong();
+      }
+
+      int boost = 0;
+      if (prioritizer != null) {
+        boost = Math.min(Math.max(prioritizer.getBoost(span), 0), OtelTraceState.getMaxR());
+      }
+
+      Object stratumKey = (stratifier != null) ? stratifier.getStratum(span) : null;
+      ReservoirStripe stripe = getStripe();
+      if (ReservoirSamplingMetrics.isLockWaitMeasured(priority)) {
+        long startNanoTime = System.nanoTime();
+        synchronized (stripe) {
+          stripe.sampledLockWaitNanos += System.nanoTime() - startNanoTime;
+          stripe.add(stratumKey, span, pval, rval, priority, boost);
+        }
+      } else {
+        synchronized (stripe) {
+          stripe.add(stratumKey, span, pval, rval, priority, boost);
+        }
+      }
+    }
+
+    private long getTracePriority(String traceId) {
+      return OtelTraceState.hashTraceId(traceId, traceIdHashSeed);
+    }
+
+    /**
+     * Replaces the reservoirs of all stripes by new ones for the strata of the next period and
+     * returns the merged content of the replaced reservoirs. The counters of the stripes are reset
+     * and their sums are available in {@link #periodOfferedSpans} and {@link
+     * #periodSampledLockWaitNanos}.
+     *
+     * @return a reservoir containing all spans of the current period
+     */
+    private StratifiedReservoir swapReservoirs() {
+      int reservoirSize = reservoirSizeController.getReservoirSize();
+      strata = strata.next(reservoirSize);
+      reservoirFactory = createReservoirFactory(reservoirSize);
+      periodOfferedSpans = 0;
+      periodSampledLockWaitNanos = 0;
+      StratifiedReservoir result = swapReservoir(stripes[0]);
+      for (int i = 1; i < stripes.length; ++i) {
+        result.addAll(swapReservoir(stripes[i]));
+      }
+      return result;
+    }
+
+    private StratifiedReservoir swapReservoir(ReservoirStripe stripe) {
+      StratifiedReservoir newReservoir = new StratifiedReservoir(strata, reservoirFactory);
+      synchronized (stripe) {
+        StratifiedReservoir oldReservoir = stripe.reservoir;
+        stripe.reservoir = newReservoir;
+        periodOfferedSpans += stripe.numberOfOfferedSpans;
+        periodSampledLockWaitNanos += stripe.sampledLockWaitNanos;
+        stripe.numberOfOfferedSpans = 0;
+        stripe.sampledLockWaitNanos = 0;
+        return oldReservoir;
       }
     }
 
@@ -482,16 +530,20 @@ public final class ConsistentReservoirSamplingSpanProcessor implements SpanProce
       while (continueWork) {
 
         if (completableResultCode != null || System.nanoTime() >= nextExportTime) {
-          Reservoir oldReservoir;
-          Reservoir newReservoir = createReservoir(reservoirSize, randomGenerator);
-          synchronized (reservoirLock) {
-            oldReservoir = reservoir;
-            reservoir = newReservoir;
-          }
-          exportCurrentBatch(oldReservoir.getResult());
-          updateNextExportTime();
-          if (completableResultCode != null) {
-            completableResultCode.succeed();
+          StratifiedReservoir oldReservoir = swapReservoirs();
+          List<SpanData> batch = oldReservoir.getResult();
+          boolean hasDiscardedSpans = oldReservoir.hasDiscardedSpans();
+          metrics.recordPeriod(
+              periodOfferedSpans, batch.size(), periodSampledLockWaitNanos, oldReservoir);
+          if (exportExecutor != null) {
+            submitBatch(exportExecutor, batch, hasDiscardedSpans, completableResultCode);
+            updateNextExportTime();
+          } else {
+            exportCurrentBatch(batch, hasDiscardedSpans);
+            updateNextExportTime();
+            if (completableResultCode != null) {
+              completableResultCode.succeed();
+            }
           }
         }
 
@@ -507,6 +559,58 @@ public final class ConsistentReservoirSamplingSpanProcessor implements SpanProce
       }
     }
 
+    /**
+     * Hands the given batch over to the exporter thread, so that the worker can continue with the
+     * next period without waiting for the export to complete. The batch is dropped if the maximum
+     * number of pending exports has been reached.
+     *
+     * @param exportExecutor the executor running the exports
+     * @param batch the batch to export
+     * @param hasDiscardedSpans whether spans have been discarded in the period of the batch
+     * @param flushResult the result of a flush request that completes with the export, or null
+     */
+    private void submitBatch(
+        ExecutorService exportExecutor,
+        List<SpanData> batch,
+        boolean hasDiscardedSpans,
+        @Nullable CompletableResultCode flushResult) {
+      if (batch.isEmpty() && flushResult == null) {
+        return;
+      }
+      // only incremented by the worker thread, hence checking and incrementing need not be atomic
+      if (pendingExports.get() >= maxPendingExports) {
+        dropBatch(flushResult);
+        return;
+      }
+      pendingExports.incrementAndGet();
+      try {
+        exportExecutor.execute(
+            () -> {
+              try {
+                exportCurrentBatch(batch, hasDiscardedSpans);
+              } finally {
+                pendingExports.decrementAndGet();
+                if (flushResult != null) {
+                  flushResult.succeed();
+                }
+              }
+            });
+      } catch (RejectedExecutionException e) {
+        // the processor has been shut down concurrently
+        pendingExports.decrementAndGet();
+        dropBatch(flushResult);
+      }
+    }
+
+    private void dropBatch(@Nullable CompletableResultCode flushResult) {
+      droppedExports.incrementAndGet();
+      reservoirSizeController.recordDroppedExport();
+      logger.log(Level.FINE, "Too many pending exports, dropping batch");
+      if (flushResult != null) {
+        flushResult.fail();
+      }
+    }
+
     private void updateNextExportTime() {
       nextExportTime = System.nanoTime() + exportPeriodNanos;
     }
@@ -518,6 +622,10 @@ public final class ConsistentReservoirSamplingSpanProcessor implements SpanProce
       flushResult.whenComplete(
           () -> {
             continueWork = false;
+            if (exportExecutor != null) {
+              exportExecutor.shutdown();
+            }
+            reservoirSizeGauge.close();
             CompletableResultCode shutdownResult = spanExporter.shutdown();
             shutdownResult.whenComplete(
                 () -> {
@@ -538,28 +646,65 @@ public final class ConsistentReservoirSamplingSpanProcessor implements SpanProce
       return flushResult;
     }
 
-    private void exportCurrentBatch(List<SpanData> batch) {
+    private void exportCurrentBatch(List<SpanData> batch, boolean hasDiscardedSpans) {
       if (batch.isEmpty()) {
         return;
       }
+      BatchOrdering.groupByResourceScopeAndTrace(batch);
 
+      long startNanoTime = System.nanoTime();
+      boolean isSuccess = false;
       try {
         CompletableResultCode result = spanExporter.export(Collections.unmodifiableList(batch));
         result.join(exporterTimeoutNanos, TimeUnit.NANOSECONDS);
-        if (!result.isSuccess()) {
+        // not successful either, if the export did not complete within the timeout
+        isSuccess = result.isSuccess();
+        if (!isSuccess) {
           logger.log(Level.FINE, "Exporter failed");
         }
       } catch (RuntimeException e) {
         logger.log(Level.WARNING, "Exporter threw an Exception", e);
       } finally {
+        long durationNanos = System.nanoTime() - startNanoTime;
+        reservoirSizeController.recordExport(isSuccess, durationNanos, hasDiscardedSpans);
+        metrics.recordExport(isSuccess, durationNanos);
         batch.clear();
       }
     }
 
     private boolean isReservoirEmpty() {
-      synchronized (reservoirLock) {
-        return reservoir.isEmpty();
+      for (ReservoirStripe stripe : stripes) {
+        synchronized (stripe) {
+          if (!stripe.reservoir.isEmpty()) {
+            return false;
+          }
+        }
       }
+      return true;
+    }
+  }
+
+  private static final class ReservoirStripe {
+    // guarded by this
+    private StratifiedReservoir reservoir;
+    // guarded by this, reset whenever the reservoir is swapped
+    private long numberOfOfferedSpans;
+    private long sampledLockWaitNanos;
+
+    private ReservoirStripe(StratifiedReservoir reservoir) {
+      this.reservoir = reservoir;
+    }
+
+    // must be called while holding the lock of this stripe
+    private void add(
+        @Nullable Object stratumKey,
+        ReadableSpan span,
+        int pval,
+        int rval,
+        long priority,
+        int boost) {
+      numberOfOfferedSpans += 1;
+      reservoir.add(stratumKey, span, pval, rval, priority, boost);
     }
   }
 }
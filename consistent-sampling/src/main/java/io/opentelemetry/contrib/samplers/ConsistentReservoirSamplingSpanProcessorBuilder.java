@@ -0,0 +1,319 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import static java.util.Objects.requireNonNull;
+
+import io.opentelemetry.api.metrics.MeterProvider;
+import io.opentelemetry.sdk.trace.export.SpanExporter;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+/** A builder for {@link ConsistentReservoirSamplingSpanProcessor}. */
+public final class ConsistentReservoirSamplingSpanProcessorBuilder {
+
+  private static final int DEFAULT_RESERVOIR_SIZE = 2048;
+  private static final long DEFAULT_EXPORT_PERIOD_MILLIS = 5000;
+  private static final int DEFAULT_STRIPE_COUNT = 1;
+  private static final int DEFAULT_MAX_PENDING_EXPORTS = 0;
+  private static final int DEFAULT_MAX_STRATA = 64;
+  private static final int DEFAULT_MIN_SPANS_PER_STRATUM = 4;
+  private static final int DEFAULT_MAX_SPANS_PER_TRACE = 1024;
+
+  private final SpanExporter spanExporter;
+
+  private int reservoirSize = DEFAULT_RESERVOIR_SIZE;
+  private boolean isReservoirSizeAdaptive = false;
+  private int minReservoirSize;
+  private int maxReservoirSize;
+  private long maxReservoirBytes = Reservoir.UNLIMITED_BYTES;
+  private long exportPeriodNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_EXPORT_PERIOD_MILLIS);
+  private long exporterTimeoutNanos =
+      ConsistentReservoirSamplingSpanProcessor.DEFAULT_EXPORT_TIMEOUT_NANOS;
+  private int stripeCount = DEFAULT_STRIPE_COUNT;
+  private int maxPendingExports = DEFAULT_MAX_PENDING_EXPORTS;
+  @Nullable private SpanStratifier stratifier;
+  private int maxStrata = DEFAULT_MAX_STRATA;
+  private int minSpansPerStratum = DEFAULT_MIN_SPANS_PER_STRATUM;
+  private boolean keepWholeTraces = false;
+  private int maxSpansPerTrace = DEFAULT_MAX_SPANS_PER_TRACE;
+  @Nullable private SpanPrioritizer prioritizer;
+  private MeterProvider meterProvider = MeterProvider.noop();
+  private RandomGenerator randomGenerator = RandomGenerator.getDefault();
+
+  ConsistentReservoirSamplingSpanProcessorBuilder(SpanExporter spanExporter) {
+    this.spanExporter = requireNonNull(spanExporter, "spanExporter");
+  }
+
+  /**
+   * Sets the maximum number of spans exported per period. If unset, defaults to {@value
+   * DEFAULT_RESERVOIR_SIZE}. Must be positive.
+   */
+  public ConsistentReservoirSamplingSpanProcessorBuilder setReservoirSize(int reservoirSize) {
+    this.reservoirSize = reservoirSize;
+    return this;
+  }
+
+  /**
+   * Makes the reservoir size adaptive within the given bounds. If unset, the reservoir size is
+   * constant. The reservoir size set by {@link #setReservoirSize(int)} is used as initial value and
+   * must lie within the bounds. The lower bound must be positive.
+   *
+   * <p>At the end of every export period, the reservoir size for the next period is adjusted based
+   * on the feedback of the exporter, using additive increase and multiplicative decrease. The size
+   * is halved, if an export fails, times out, takes longer than half of the exporter timeout, or if
+   * a batch is dropped because too many exports are pending. After a successful export of a period
+   * in which spans had to be discarded, the size is increased by a sixteenth of the difference
+   * between the bounds. The current value can be queried using {@link
+   * ConsistentReservoirSamplingSpanProcessor#getReservoirSize()} and is reported as metric, if a
+   * {@link MeterProvider} is set.
+   */
+  public ConsistentReservoirSamplingSpanProcessorBuilder setAdaptiveReservoirSize(
+      int minReservoirSize, int maxReservoirSize) {
+    this.isReservoirSizeAdaptive = true;
+    this.minReservoirSize = minReservoirSize;
+    this.maxReservoirSize = maxReservoirSize;
+    return this;
+  }
+
+  /**
+   * Sets the maximum total size in bytes of the spans exported per period, in addition to the
+   * maximum number of spans. If unset, only the number of spans is limited. Must be positive.
+   *
+   * <p>The size of a span is estimated from the numbers of its attributes, events and links and the
+   * lengths of its strings, roughly as serialized by OTLP. If the spans of a period exceed either
+   * limit, the spans with smallest r-values are discarded, so that large spans weigh more in
+   * eviction decisions, and heap usage and the size of the export requests stay predictable. The
+   * p-values of the kept spans are adjusted as if only the number of spans was limited, hence the
+   * adjusted counts remain unbiased. To limit the size only, set a large reservoir size. If strata
+   * are used, the size limit is split among them proportionally to their share of the reservoir
+   * size. As with the reservoir size, every stripe may hold up to the maximum size during a period.
+   *
+   * <p>Spans are converted to {@link io.opentelemetry.sdk.trace.data.SpanData} for estimating their
+   * size when they end, not only if they are kept, which adds some overhead per span.
+   */
+  public ConsistentReservoirSamplingSpanProcessorBuilder setMaxReservoirBytes(
+      long maxReservoirBytes) {
+    this.maxReservoirBytes = maxReservoirBytes;
+    return this;
+  }
+
+  /**
+   * Sets the export period. If unset, defaults to {@value DEFAULT_EXPORT_PERIOD_MILLIS}ms. Must be
+   * positive.
+   */
+  public ConsistentReservoirSamplingSpanProcessorBuilder setExportPeriod(Duration exportPeriod) {
+    requireNonNull(exportPeriod, "exportPeriod");
+    return setExportPeriod(exportPeriod.toNanos(), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Sets the export period. If unset, defaults to {@value DEFAULT_EXPORT_PERIOD_MILLIS}ms. Must be
+   * positive.
+   */
+  public ConsistentReservoirSamplingSpanProcessorBuilder setExportPeriod(
+      long exportPeriod, TimeUnit unit) {
+    requireNonNull(unit, "unit");
+    this.exportPeriodNanos = unit.toNanos(exportPeriod);
+    return this;
+  }
+
+  /**
+   * Sets the maximum time an export is allowed to run before being cancelled. If unset, defaults to
+   * 30s. Must be positive.
+   */
+  public ConsistentReservoirSamplingSpanProcessorBuilder setExporterTimeout(
+      Duration exporterTimeout) {
+    requireNonNull(exporterTimeout, "exporterTimeout");
+    return setExporterTimeout(exporterTimeout.toNanos(), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Sets the maximum time an export is allowed to run before being cancelled. If unset, defaults to
+   * 30s. Must be positive.
+   */
+  public ConsistentReservoirSamplingSpanProcessorBuilder setExporterTimeout(
+      long exporterTimeout, TimeUnit unit) {
+    requireNonNull(unit, "unit");
+    this.exporterTimeoutNanos = unit.toNanos(exporterTimeout);
+    return this;
+  }
+
+  /**
+   * Sets the number of stripes the reservoir is split into. If unset, defaults to {@value
+   * DEFAULT_STRIPE_COUNT}. Must be positive and will be rounded up to the next power of two.
+   *
+   * <p>Every stripe is an independent reservoir guarded by its own lock. Spans ending on different
+   * threads are distributed over the stripes, which are merged into a single reservoir at the end
+   * of every export period. The exported spans and their adjusted p-values are statistically the
+   * same as with a single reservoir, but threads ending spans concurrently rarely contend for the
+   * same lock. As every stripe may hold up to {@code reservoirSize} spans during a period, memory
+   * consumption grows with the number of stripes. A good choice for highly concurrent applications
+   * is the number of available processors.
+   */
+  public ConsistentReservoirSamplingSpanProcessorBuilder setStripeCount(int stripeCount) {
+    this.stripeCount = stripeCount;
+    return this;
+  }
+
+  /**
+   * Sets the maximum number of batches that may be pending for export. If unset, defaults to
+   * {@value DEFAULT_MAX_PENDING_EXPORTS}. Must be non-negative.
+   *
+   * <p>If zero, batches are exported synchronously by the thread that also rotates the reservoir at
+   * the end of each export period and serves flush requests. A slow exporter therefore delays the
+   * start of the next period.
+   *
+   * <p>If positive, exports are pipelined: batches are handed over to a separate exporter thread,
+   * which exports them one after the other, and the reservoir is rotated on schedule regardless of
+   * the exporter. If the given number of batches is already pending, further batches are dropped.
+   * The number of pending and dropped batches can be queried using {@link
+   * ConsistentReservoirSamplingSpanProcessor#getPendingExportCount()} and {@link
+   * ConsistentReservoirSamplingSpanProcessor#getDroppedExportCount()}.
+   */
+  public ConsistentReservoirSamplingSpanProcessorBuilder setMaxPendingExports(
+      int maxPendingExports) {
+    this.maxPendingExports = maxPendingExports;
+    return this;
+  }
+
+  /**
+   * Sets the {@link SpanStratifier} that assigns spans to strata. If unset, spans are not
+   * stratified and all spans share a single reservoir.
+   *
+   * <p>If set, a separate reservoir is used for every stratum, so that spans of rare strata are
+   * still exported, when the spans of frequent strata exceed the reservoir size. Predefined
+   * stratifiers are available for the span name, the span kind, the instrumentation scope, and
+   * attributes.
+   */
+  public ConsistentReservoirSamplingSpanProcessorBuilder setStratifier(SpanStratifier stratifier) {
+    this.stratifier = requireNonNull(stratifier, "stratifier");
+    return this;
+  }
+
+  /**
+   * Sets the maximum number of strata per export period including the shared overflow stratum. If
+   * unset, defaults to {@value DEFAULT_MAX_STRATA}. Must be positive. Only relevant if a {@link
+   * SpanStratifier} is set.
+   *
+   * <p>Spans of strata that occur after the maximum number of strata has been reached in a period,
+   * and spans for which the stratifier returns null, are assigned to the overflow stratum.
+   */
+  public ConsistentReservoirSamplingSpanProcessorBuilder setMaxStrata(int maxStrata) {
+    this.maxStrata = maxStrata;
+    return this;
+  }
+
+  /**
+   * Sets the number of spans per period every stratum is guaranteed to keep. If unset, defaults to
+   * {@value DEFAULT_MIN_SPANS_PER_STRATUM}. Must be positive. Only relevant if a {@link
+   * SpanStratifier} is set, in which case the maximum number of strata times this value must not
+   * exceed the reservoir size.
+   *
+   * <p>The rest of the reservoir size is split among the strata proportionally to the number of
+   * spans they had in the previous period, and what remains is given to the overflow stratum.
+   * Strata that did not occur in the previous period only get the minimum. Hence, the number of
+   * exported spans per period never exceeds the reservoir size.
+   */
+  public ConsistentReservoirSamplingSpanProcessorBuilder setMinSpansPerStratum(
+      int minSpansPerStratum) {
+    this.minSpansPerStratum = minSpansPerStratum;
+    return this;
+  }
+
+  /**
+   * Sets whether the spans of a trace are kept or discarded together. If unset, defaults to {@code
+   * false}, and every span is sampled individually.
+   *
+   * <p>If enabled, the reservoir keeps whole traces, grouped by trace id, as long as their total
+   * number of spans does not exceed the reservoir size. Spans of consistently sampled traces share
+   * the same r-value, and the traces with the largest r-values are kept. Ties are broken by a
+   * priority derived from the trace id, so that the same traces are preferred across export periods
+   * and spans of a trace that is still running at the end of a period are likely to be kept in the
+   * next period as well. Memory consumption is bounded by the reservoir size, regardless of whether
+   * traces complete within a period. If a {@link SpanStratifier} is set, traces are kept or
+   * discarded as a whole within every stratum.
+   */
+  public ConsistentReservoirSamplingSpanProcessorBuilder setKeepWholeTraces(
+      boolean keepWholeTraces) {
+    this.keepWholeTraces = keepWholeTraces;
+    return this;
+  }
+
+  /**
+   * Sets the maximum number of spans of a single trace kept per period. If unset, defaults to
+   * {@value DEFAULT_MAX_SPANS_PER_TRACE}. Must be positive. Only relevant if whole traces are kept.
+   * A trace exceeding this limit is consistently thinned to a random subset of its spans, whose
+   * p-values are increased accordingly, which limits the share of the reservoir a single large
+   * trace can take without biasing the adjusted counts.
+   */
+  public ConsistentReservoirSamplingSpanProcessorBuilder setMaxSpansPerTrace(int maxSpansPerTrace) {
+    this.maxSpansPerTrace = maxSpansPerTrace;
+    return this;
+  }
+
+  /**
+   * Sets the {@link SpanPrioritizer} that assigns boosts to spans. If unset, all spans have the
+   * same chance of being kept. Must not be set if whole traces are kept.
+   *
+   * <p>A span with boost {@code b} is kept about {@code 2^b} times as likely as a span without
+   * boost, and the p-value of a kept span is adjusted such that its adjusted count is {@code 2^b}
+   * times smaller. Hence, failed or slow spans can be favoured without biasing the estimates
+   * derived from the adjusted counts. Predefined prioritizers are available for errors, latencies,
+   * and span kinds.
+   */
+  public ConsistentReservoirSamplingSpanProcessorBuilder setPrioritizer(
+      SpanPrioritizer prioritizer) {
+    this.prioritizer = requireNonNull(prioritizer, "prioritizer");
+    return this;
+  }
+
+  /**
+   * Sets the {@link MeterProvider} to use to collect metrics related to sampling. If not set, uses
+   * a noop meter provider.
+   */
+  public ConsistentReservoirSamplingSpanProcessorBuilder setMeterProvider(
+      MeterProvider meterProvider) {
+    this.meterProvider = requireNonNull(meterProvider, "meterProvider");
+    return this;
+  }
+
+  /**
+   * Sets the {@link RandomGenerator} used to draw random values. If not set, uses {@link
+   * RandomGenerator#getDefault()}.
+   */
+  public ConsistentReservoirSamplingSpanProcessorBuilder setRandomGenerator(
+      RandomGenerator randomGenerator) {
+    this.randomGenerator = requireNonNull(randomGenerator, "randomGenerator");
+    return this;
+  }
+
+  /**
+   * Returns a {@link ConsistentReservoirSamplingSpanProcessor} with the configuration of this
+   * builder.
+   */
+  public ConsistentReservoirSamplingSpanProcessor build() {
+    return new ConsistentReservoirSamplingSpanProcessor(
+        spanExporter,
+        exportPeriodNanos,
+        reservoirSize,
+        isReservoirSizeAdaptive ? minReservoirSize : reservoirSize,
+        isReservoirSizeAdaptive ? maxReservoirSize : reservoirSize,
+        maxReservoirBytes,
+        exporterTimeoutNanos,
+        stripeCount,
+        maxPendingExports,
+        stratifier,
+        maxStrata,
+        minSpansPerStratum,
+        keepWholeTraces,
+        maxSpansPerTrace,
+        prioritizer,
+        meterProvider,
+        randomGenerator);
+  }
+}
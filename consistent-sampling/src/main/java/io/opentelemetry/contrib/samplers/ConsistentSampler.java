@@ -7,6 +7,7 @@ package io.opentelemetry.contrib.samplers;
 
 import static java.util.Objects.requireNonNull;
 
+import io.opentelemetry.api.common.AttributeKey;
 import io.opentelemetry.api.common.Attributes;
 import io.opentelemetry.api.trace.Span;
 import io.opentelemetry.api.trace.SpanContext;
@@ -58,7 +59,7 @@ public abstract class ConsistentSampler implements Sampler {
    * @param randomGenerator a random generator
    * @return a sampler
    */
-  static final ConsistentSampler probabilityBased(
+  public static final ConsistentSampler probabilityBased(
       double samplingProbability, RandomGenerator randomGenerator) {
     return new ConsistentProbabilityBasedSampler(samplingProbability, randomGenerator);
   }
@@ -70,6 +71,7 @@ public abstract class ConsistentSampler implements Sampler {
    * @param rootSampler the root sampler
    */
   public static final ConsistentSampler parentBased(ConsistentSampler rootSampler) {
+    checkComposable(rootSampler);
     return new ConsistentParentBasedSampler(rootSampler);
   }
 
@@ -80,8 +82,9 @@ public abstract class ConsistentSampler implements Sampler {
    * @param rootSampler the root sampler
    * @param randomGenerator a random generator
    */
-  static final ConsistentSampler parentBased(
+  public static final ConsistentSampler parentBased(
       ConsistentSampler rootSampler, RandomGenerator randomGenerator) {
+    checkComposable(rootSampler);
     return new ConsistentParentBasedSampler(rootSampler, randomGenerator);
   }
 
@@ -117,6 +120,89 @@ public abstract class ConsistentSampler implements Sampler {
         targetSpansPerSecondLimit, adaptationTimeSeconds, randomGenerator, nanoTimeSupplier);
   }
 
+  /**
+   * Returns a new {@link ConsistentSampler} that attempts to adjust the sampling probability
+   * dynamically to meet the target span rate separately for every span name.
+   *
+   * <p>The rates are tracked for at most {@code maxNumberOfSpanNames} span names. If exceeded, the
+   * least recently used span name is evicted.
+   *
+   * @param targetSpansPerSecondLimit the desired spans per second limit per span name
+   * @param adaptationTimeSeconds the typical time to adapt to a new load (time constant used for
+   *     exponential smoothing)
+   * @param maxNumberOfSpanNames the maximum number of span names for which the rate is tracked
+   */
+  public static final ConsistentSampler rateLimitedPerSpanName(
+      double targetSpansPerSecondLimit, double adaptationTimeSeconds, int maxNumberOfSpanNames) {
+    return new ConsistentKeyedRateLimitingSampler(
+        targetSpansPerSecondLimit,
+        adaptationTimeSeconds,
+        (name, spanKind, attributes) -> name,
+        "spanName",
+        maxNumberOfSpanNames,
+        RandomGenerator.getDefault(),
+        System::nanoTime);
+  }
+
+  /**
+   * Returns a new {@link ConsistentSampler} that attempts to adjust the sampling probability
+   * dynamically to meet the target span rate separately for every value of the given attribute. All
+   * spans without that attribute share the same budget.
+   *
+   * <p>The rates are tracked for at most {@code maxNumberOfAttributeValues} attribute values. If
+   * exceeded, the least recently used attribute value is evicted.
+   *
+   * @param targetSpansPerSecondLimit the desired spans per second limit per attribute value
+   * @param adaptationTimeSeconds the typical time to adapt to a new load (time constant used for
+   *     exponential smoothing)
+   * @param attributeKey the key of the attribute
+   * @param maxNumberOfAttributeValues the maximum number of attribute values for which the rate is
+   *     tracked
+   */
+  public static final ConsistentSampler rateLimitedPerAttribute(
+      double targetSpansPerSecondLimit,
+      double adaptationTimeSeconds,
+      AttributeKey<?> attributeKey,
+      int maxNumberOfAttributeValues) {
+    requireNonNull(attributeKey, "attributeKey");
+    return new ConsistentKeyedRateLimitingSampler(
+        targetSpansPerSecondLimit,
+        adaptationTimeSeconds,
+        (name, spanKind, attributes) -> attributes.get(attributeKey),
+        attributeKey.getKey(),
+        maxNumberOfAttributeValues,
+        RandomGenerator.getDefault(),
+        System::nanoTime);
+  }
+
+  /**
+   * Returns a builder for a {@link ConsistentSampler} that samples a span if all added consistent
+   * samplers would sample the span.
+   *
+   * <p>This is equivalent to combining all samplers using {@link #and(ConsistentSampler)}, but the
+   * composed sampler evaluates the samplers in a single loop instead of a nested tree, and skips
+   * the remaining samplers as soon as the result is final.
+   *
+   * @return a builder
+   */
+  public static final ConsistentComposedSamplerBuilder composedAndBuilder() {
+    return new ConsistentComposedSamplerBuilder(/* isAnd= */ true);
+  }
+
+  /**
+   * Returns a builder for a {@link ConsistentSampler} that samples a span if any of the added
+   * consistent samplers would sample the span.
+   *
+   * <p>This is equivalent to combining all samplers using {@link #or(ConsistentSampler)}, but the
+   * composed sampler evaluates the samplers in a single loop instead of a nested tree, and skips
+   * the remaining samplers as soon as the result is final.
+   *
+   * @return a builder
+   */
+  public static final ConsistentComposedSamplerBuilder composedOrBuilder() {
+    return new ConsistentComposedSamplerBuilder(/* isAnd= */ false);
+  }
+
   /**
    * Returns a {@link ConsistentSampler} that samples a span if both this and the other given
    * consistent sampler would sample the span.
@@ -133,6 +219,8 @@ public abstract class ConsistentSampler implements Sampler {
    * @return the composed consistent sampler
    */
   public ConsistentSampler and(ConsistentSampler otherConsistentSampler) {
+    checkComposable(this);
+    checkComposable(otherConsistentSampler);
     if (otherConsistentSampler == this) {
       return this;
     }
@@ -155,12 +243,64 @@ public abstract class ConsistentSampler implements Sampler {
    * @return the composed consistent sampler
    */
   public ConsistentSampler or(ConsistentSampler otherConsistentSampler) {
+    checkComposable(this);
+    checkComposable(otherConsistentSampler);
     if (otherConsistentSampler == this) {
       return this;
     }
     return new ConsistentComposedOrSampler(this, otherConsistentSampler);
   }
 
+  /**
+   * Returns a {@link ConsistentSampler} that makes the same sampling decisions as this sampler, but
+   * derives the r-value from the trace id instead of generating a random one.
+   *
+   * <p>W3C trace ids with the random flag, like those generated by the OpenTelemetry SDK, carry 56
+   * random bits, from which every participant can derive the same r-value. Therefore, no random
+   * number needs to be generated for root spans, and the r-value is omitted from the propagated
+   * trace state, which keeps the trace state small. An r-value received from the parent always
+   * takes precedence and is propagated as usual, hence this sampler interoperates with peers that
+   * generate and propagate r-values. Peers receiving a p-value without r-value must derive the
+   * r-value from the trace id as well, otherwise they ignore the p-value.
+   *
+   * <p>Since the r-value is derived from 56 bits, sampling probabilities smaller than 2^-56 are not
+   * supported. This must be the outermost sampler, as the r-value is determined before any composed
+   * sampler is evaluated. Composing the returned sampler with other samplers using {@link
+   * #and(ConsistentSampler)}, {@link #or(ConsistentSampler)}, the composed sampler builders or
+   * {@link #parentBased(ConsistentSampler)} is rejected, call this method on the composed sampler
+   * instead.
+   *
+   * @return a sampler deriving the r-value from the trace id
+   */
+  public ConsistentSampler withTraceIdRandomness() {
+    return new ConsistentTraceIdRandomnessSampler(this);
+  }
+
+  // whether missing r-values are derived from the trace id and not propagated
+  boolean isRDerivedFromTraceId() {
+    return false;
+  }
+
+  /**
+   * Throws an {@link IllegalArgumentException}, if the given sampler derives r-values from the
+   * trace id, which would be ignored if it was composed with other samplers.
+   *
+   * @param sampler the sampler to be composed
+   */
+  static void checkComposable(ConsistentSampler sampler) {
+    if (sampler.isRDerivedFromTraceId()) {
+      throw new IllegalArgumentException(
+          "A sampler deriving r-values from the trace id must be the outermost sampler!");
+    }
+  }
+
+  // whether getP has no side effects, like updating rate estimates or drawing random values, in
+  // which case its evaluation may be skipped by composed samplers, unknown subclasses are
+  // conservatively assumed stateful
+  boolean isStateless() {
+    return false;
+  }
+
   protected final RandomGenerator randomGenerator;
 
   protected ConsistentSampler(RandomGenerator randomGenerator) {
@@ -171,14 +311,11 @@ public abstract class ConsistentSampler implements Sampler {
     this(RandomGenerator.getDefault());
   }
 
-  private static final boolean isInvariantViolated(
-      OtelTraceState otelTraceState, boolean isParentSampled) {
-    if (otelTraceState.hasValidR() && otelTraceState.hasValidP()) {
+  private static final boolean isInvariantViolated(int p, int r, boolean isParentSampled) {
+    if (OtelTraceState.isValidR(r) && OtelTraceState.isValidP(p)) {
       // if valid p- and r-values are given, they must be consistent with the isParentSampled flag
       // see
       // https://github.com/open-telemetry/opentelemetry-specification/blob/main/specification/trace/tracestate-probability-sampling.md#sampled-flag
-      int p = otelTraceState.getP();
-      int r = otelTraceState.getR();
       int maxP = OtelTraceState.getMaxP();
       boolean isInvariantTrue = ((p <= r) == isParentSampled) || (isParentSampled && (p == maxP));
       return !isInvariantTrue;
@@ -203,60 +340,141 @@ public abstract class ConsistentSampler implements Sampler {
 
     TraceState parentTraceState = parentSpanContext.getTraceState();
     String otelTraceStateString = parentTraceState.get(OtelTraceState.TRACE_STATE_KEY);
-    OtelTraceState otelTraceState = OtelTraceState.parse(otelTraceStateString);
 
-    if (!otelTraceState.hasValidR() || isInvariantViolated(otelTraceState, isParentSampled)) {
+    // fast path for trace states only consisting of p- and r-values, which avoids any allocations
+    // by using cached sampling results, other key-value pairs need to be parsed and preserved
+    OtelTraceState otelTraceState = null;
+    int p;
+    int r;
+    int packed = OtelTraceState.parsePacked(otelTraceStateString);
+    if (packed != OtelTraceState.HAS_OTHER_KEY_VALUE_PAIRS) {
+      p = OtelTraceState.getPackedP(packed);
+      r = OtelTraceState.getPackedR(packed);
+    } else {
+      otelTraceState = OtelTraceState.parse(otelTraceStateString);
+      if (otelTraceState.hasValidThreshold()
+          || (!otelTraceState.hasValidR() && otelTraceState.hasValidRandomValue())) {
+        return shouldSampleThresholdFormat(
+            otelTraceState, traceId, isRoot, isParentSampled, name, spanKind, attributes);
+      }
+      p = otelTraceState.getP();
+      r = otelTraceState.getR();
+    }
+
+    // derive r-value from the trace id if not available and enabled
+    boolean isRDerived = false;
+    if (!OtelTraceState.isValidR(r) && isRDerivedFromTraceId()) {
+      r = OtelTraceState.getRFromTraceId(traceId);
+      isRDerived = true;
+    }
+
+    if (!OtelTraceState.isValidR(r) || isInvariantViolated(p, r, isParentSampled)) {
       // unset p-value in case of an invalid r-value or in case of any invariant violation
-      otelTraceState.invalidateP();
+      p = OtelTraceState.getInvalidP();
     }
 
     // generate new r-value if not available
-    if (!otelTraceState.hasValidR()) {
-      otelTraceState.setR(
-          Math.min(randomGenerator.numberOfLeadingZerosOfRandomLong(), OtelTraceState.getMaxR()));
+    if (!OtelTraceState.isValidR(r)) {
+      r = Math.min(randomGenerator.numberOfLeadingZerosOfRandomLong(), OtelTraceState.getMaxR());
     }
 
-    // determine and set new p-value that is used for the sampling decision
-    int newP = getP(otelTraceState.getP(), isRoot);
-    otelTraceState.setP(newP);
+    // determine new p-value that is used for the sampling decision
+    p = getP(p, isRoot, name, spanKind, attributes);
+    if (!OtelTraceState.isValidP(p)) {
+      p = OtelTraceState.getInvalidP();
+    }
 
     // determine sampling decision
-    boolean isSampled;
-    if (otelTraceState.hasValidP()) {
-      isSampled = (otelTraceState.getP() <= otelTraceState.getR());
-    } else {
-      // if new p-value is invalid, respect sampling decision of parent
-      isSampled = isParentSampled;
-    }
-    SamplingDecision samplingDecision =
-        isSampled ? SamplingDecision.RECORD_AND_SAMPLE : SamplingDecision.DROP;
+    boolean isSampled = isSampled(p, r, isParentSampled);
 
     // invalidate p-value if not sampled
     if (!isSampled) {
-      otelTraceState.invalidateP();
+      p = OtelTraceState.getInvalidP();
     }
 
-    String newOtTraceState = otelTraceState.serialize();
+    if (otelTraceState == null) {
+      return isRDerived
+          ? ConsistentSamplingResult.getWithoutR(p, isSampled)
+          : ConsistentSamplingResult.get(p, r, isSampled);
+    }
 
-    return new SamplingResult() {
+    if (isRDerived) {
+      otelTraceState.invalidateR();
+    } else {
+      otelTraceState.setR(r);
+    }
+    otelTraceState.setP(p);
+    return ConsistentSamplingResult.create(
+        isSampled ? SamplingDecision.RECORD_AND_SAMPLE : SamplingDecision.DROP,
+        otelTraceState.serialize());
+  }
 
-      @Override
-      public SamplingDecision getDecision() {
-        return samplingDecision;
-      }
+  /**
+   * Makes the sampling decision for a trace state written by threshold samplers, which is kept out
+   * of the path for p- and r-values.
+   *
+   * <p>If no r-value has been propagated, the r-value is derived from the random value, which is
+   * either propagated or given by the trace id, and the decision is propagated as threshold, the
+   * format in which the trace was received. Otherwise, the decision is propagated as p-value. A
+   * missing p-value is derived from the threshold.
+   */
+  private SamplingResult shouldSampleThresholdFormat(
+      OtelTraceState otelTraceState,
+      String traceId,
+      boolean isRoot,
+      boolean isParentSampled,
+      String name,
+      SpanKind spanKind,
+      Attributes attributes) {
+    boolean isRDerived = !otelTraceState.hasValidR();
+    int r;
+    if (isRDerived) {
+      long randomValue =
+          otelTraceState.hasValidRandomValue()
+              ? otelTraceState.getRandomValue()
+              : OtelTraceState.getRandomValueFromTraceId(traceId);
+      r = OtelTraceState.getRFromRandomValue(randomValue);
+    } else {
+      r = otelTraceState.getR();
+    }
+    int p =
+        otelTraceState.hasValidP()
+            ? otelTraceState.getP()
+            : OtelTraceState.getPForThreshold(otelTraceState.getThreshold());
+    if (isInvariantViolated(p, r, isParentSampled)) {
+      p = OtelTraceState.getInvalidP();
+    }
 
-      @Override
-      public Attributes getAttributes() {
-        return Attributes.empty();
-      }
+    p = getP(p, isRoot, name, spanKind, attributes);
+    if (!OtelTraceState.isValidP(p)) {
+      p = OtelTraceState.getInvalidP();
+    }
+    boolean isSampled = isSampled(p, r, isParentSampled);
+    if (!isSampled) {
+      p = OtelTraceState.getInvalidP();
+    }
 
-      @Override
-      public TraceState getUpdatedTraceState(TraceState parentTraceState) {
-        return parentTraceState.toBuilder()
-            .put(OtelTraceState.TRACE_STATE_KEY, newOtTraceState)
-            .build();
-      }
-    };
+    if (isRDerived) {
+      otelTraceState.invalidateP();
+      otelTraceState.setThreshold(
+          OtelTraceState.isValidP(p)
+              ? OtelTraceState.getThresholdForP(p)
+              : OtelTraceState.getInvalidThreshold());
+    } else {
+      otelTraceState.setP(p);
+      otelTraceState.invalidateThreshold();
+    }
+    return ConsistentSamplingResult.create(
+        isSampled ? SamplingDecision.RECORD_AND_SAMPLE : SamplingDecision.DROP,
+        otelTraceState.serialize());
+  }
+
+  private static boolean isSampled(int p, int r, boolean isParentSampled) {
+    if (OtelTraceState.isValidP(p)) {
+      return p <= r;
+    }
+    // if new p-value is invalid, respect sampling decision of parent
+    return isParentSampled;
   }
 
   /**
@@ -284,11 +502,11 @@ public abstract class ConsistentSampler implements Sampler {
    * <p>Any other p-values have no meaning and will lead to inconsistent sampling decisions. The
    * parent sampled flag will define the sampling decision in this case.
    *
-   * <p>NOTE: In future, further information like span attributes could be also added as arguments
-   * such that the sampling probability could be made dependent on those extra arguments. However,
-   * in any case the returned p-value must not depend directly or indirectly on the r-value. In
+   * <p>NOTE: The returned p-value must not depend directly or indirectly on the r-value. In
    * particular this means that the parent sampled flag must not be used for the calculation of the
-   * p-value as the sampled flag depends itself on the r-value.
+   * p-value as the sampled flag depends itself on the r-value. Samplers that need further
+   * information about the span should override {@link #getP(int, boolean, String, SpanKind,
+   * Attributes)} instead.
    *
    * @param parentP is the p-value (if known) that was used for a consistent sampling decision by
    *     the parent
@@ -297,6 +515,32 @@ public abstract class ConsistentSampler implements Sampler {
    */
   protected abstract int getP(int parentP, boolean isRoot);
 
+  /**
+   * Returns the p-value that is used for the sampling decision of a span with given name, kind, and
+   * attributes.
+   *
+   * <p>This allows making the sampling probability dependent on the span, for example to limit the
+   * rate of sampled spans per span name. The same restrictions as for {@link #getP(int, boolean)}
+   * apply. In particular, the trace ID is intentionally not passed, as the r-value may be derived
+   * from it.
+   *
+   * <p>Samplers composed of other samplers must override this method and delegate to the same
+   * method of their components. By default, the span is ignored and {@link #getP(int, boolean)} is
+   * returned.
+   *
+   * @param parentP is the p-value (if known) that was used for a consistent sampling decision by
+   *     the parent
+   * @param isRoot is true for the root span
+   * @param name the name of the span
+   * @param spanKind the kind of the span
+   * @param attributes the attributes of the span
+   * @return the p-value
+   */
+  protected int getP(
+      int parentP, boolean isRoot, String name, SpanKind spanKind, Attributes attributes) {
+    return getP(parentP, isRoot);
+  }
+
   /**
    * Returns the sampling probability for a given p-value.
    *
@@ -0,0 +1,206 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.TraceState;
+import io.opentelemetry.sdk.trace.samplers.SamplingDecision;
+import io.opentelemetry.sdk.trace.samplers.SamplingResult;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A {@link SamplingResult} that sets the {@link OtelTraceState} of the sampled span.
+ *
+ * <p>The results for trace states only consisting of p- and r-values, or only of a p-value if the
+ * r-value is derived from the trace id, are cached, such that no objects are allocated for the
+ * sampling decision in the common case. If the serialized {@link OtelTraceState} is empty, the
+ * {@link OtelTraceState#TRACE_STATE_KEY} entry is removed from the trace state.
+ */
+@Immutable
+final class ConsistentSamplingResult implements SamplingResult {
+
+  private static final int NUMBER_OF_R_VALUES = OtelTraceState.getMaxR() + 1;
+
+  // results with valid p-value are indexed by p * NUMBER_OF_R_VALUES + r, those with invalid
+  // p-value follow thereafter and are indexed by the r-value and the sampling decision
+  private static final int NUMBER_OF_CACHED_RESULTS =
+      NUMBER_OF_R_VALUES * NUMBER_OF_R_VALUES + 2 * NUMBER_OF_R_VALUES;
+
+  // lazily populated, as only a small fraction of all results is typically needed, racy
+  // initialization is fine as the results are immutable
+  @SuppressWarnings("Immutable") // never exposed
+  private static final ConsistentSamplingResult[] cachedResults =
+      new ConsistentSamplingResult[NUMBER_OF_CACHED_RESULTS];
+
+  // results without r-value are indexed by the p-value, those with invalid p-value follow
+  // thereafter and are indexed by the sampling decision
+  @SuppressWarnings("Immutable") // never exposed
+  private static final ConsistentSamplingResult[] cachedResultsWithoutR =
+      new ConsistentSamplingResult[OtelTraceState.getMaxP() + 3];
+
+  private static final int THRESHOLD_CACHE_BITS = 6;
+
+  // results of sampled spans for trace states only consisting of a threshold, direct-mapped by the
+  // threshold, as thresholds are arbitrary 56-bit values but typically only a few are in use
+  @SuppressWarnings("Immutable") // never exposed
+  private static final ThresholdResult[] cachedThresholdResults =
+      new ThresholdResult[1 << THRESHOLD_CACHE_BITS];
+
+  @Immutable
+  private static final class ThresholdResult {
+    private final long threshold;
+    private final ConsistentSamplingResult result;
+
+    private ThresholdResult(long threshold, ConsistentSamplingResult result) {
+      this.threshold = threshold;
+      this.result = result;
+    }
+  }
+
+  private final SamplingDecision decision;
+  private final String otelTraceState;
+  private final TraceState traceStateForEmptyParent;
+
+  private ConsistentSamplingResult(SamplingDecision decision, String otelTraceState) {
+    this.decision = decision;
+    this.otelTraceState = otelTraceState;
+    this.traceStateForEmptyParent =
+        otelTraceState.isEmpty()
+            ? TraceState.getDefault()
+            : TraceState.builder().put(OtelTraceState.TRACE_STATE_KEY, otelTraceState).build();
+  }
+
+  /**
+   * Returns a new sampling result.
+   *
+   * @param decision the sampling decision
+   * @param otelTraceState the serialized {@link OtelTraceState}
+   * @return a sampling result
+   */
+  static ConsistentSamplingResult create(SamplingDecision decision, String otelTraceState) {
+    return new ConsistentSamplingResult(decision, otelTraceState);
+  }
+
+  /**
+   * Returns a cached sampling result for an {@link OtelTraceState} only consisting of the given p-
+   * and r-value.
+   *
+   * <p>The r-value must be valid. A valid p-value requires the span to be sampled and the p-value
+   * to be not greater than the r-value, as for consistent sampling decisions.
+   *
+   * @param p the p-value or an invalid p-value
+   * @param r the r-value
+   * @param isSampled the sampling decision
+   * @return a sampling result
+   */
+  static ConsistentSamplingResult get(int p, int r, boolean isSampled) {
+    int index;
+    if (OtelTraceState.isValidP(p)) {
+      index = p * NUMBER_OF_R_VALUES + r;
+    } else {
+      index = NUMBER_OF_R_VALUES * NUMBER_OF_R_VALUES + 2 * r + (isSampled ? 1 : 0);
+    }
+    ConsistentSamplingResult result = cachedResults[index];
+    if (result == null) {
+      result =
+          new ConsistentSamplingResult(
+              isSampled ? SamplingDecision.RECORD_AND_SAMPLE : SamplingDecision.DROP,
+              serialize(p, r));
+      cachedResults[index] = result;
+    }
+    return result;
+  }
+
+  /**
+   * Returns a cached sampling result for an {@link OtelTraceState} only consisting of the given
+   * p-value, which is used if the r-value is derived from the trace id and therefore not
+   * propagated.
+   *
+   * <p>A valid p-value requires the span to be sampled.
+   *
+   * @param p the p-value or an invalid p-value
+   * @param isSampled the sampling decision
+   * @return a sampling result
+   */
+  static ConsistentSamplingResult getWithoutR(int p, boolean isSampled) {
+    int index;
+    if (OtelTraceState.isValidP(p)) {
+      index = p;
+    } else {
+      index = OtelTraceState.getMaxP() + 1 + (isSampled ? 1 : 0);
+    }
+    ConsistentSamplingResult result = cachedResultsWithoutR[index];
+    if (result == null) {
+      result =
+          new ConsistentSamplingResult(
+              isSampled ? SamplingDecision.RECORD_AND_SAMPLE : SamplingDecision.DROP,
+              OtelTraceState.isValidP(p) ? "p:" + p : "");
+      cachedResultsWithoutR[index] = result;
+    }
+    return result;
+  }
+
+  /**
+   * Returns a cached sampling result of a sampled span for an {@link OtelTraceState} only
+   * consisting of the given threshold, which is used by {@link ConsistentThresholdSampler}s if the
+   * random value is given by the trace id.
+   *
+   * @param threshold the threshold, which must be smaller than {@link
+   *     OtelTraceState#getMaxThreshold()}
+   * @return a sampling result
+   */
+  static ConsistentSamplingResult getForThreshold(long threshold) {
+    // multiplicative hashing, as the low bits of thresholds are often zero
+    int index = (int) ((threshold * 0x9E3779B97F4A7C15L) >>> (Long.SIZE - THRESHOLD_CACHE_BITS));
+    ThresholdResult cached = cachedThresholdResults[index];
+    if (cached != null && cached.threshold == threshold) {
+      return cached.result;
+    }
+    OtelTraceState otelTraceState = OtelTraceState.parse(null);
+    otelTraceState.setThreshold(threshold);
+    ConsistentSamplingResult result =
+        new ConsistentSamplingResult(
+            SamplingDecision.RECORD_AND_SAMPLE, otelTraceState.serialize());
+    cachedThresholdResults[index] = new ThresholdResult(threshold, result);
+    return result;
+  }
+
+  private static String serialize(int p, int r) {
+    if (OtelTraceState.isValidP(p)) {
+      return "p:" + p + ";r:" + r;
+    } else {
+      return "r:" + r;
+    }
+  }
+
+  @Override
+  public SamplingDecision getDecision() {
+    return decision;
+  }
+
+  @Override
+  public Attributes getAttributes() {
+    return Attributes.empty();
+  }
+
+  @Override
+  public TraceState getUpdatedTraceState(TraceState parentTraceState) {
+    if (parentTraceState.isEmpty()) {
+      return traceStateForEmptyParent;
+    }
+    String parentOtelTraceState = parentTraceState.get(OtelTraceState.TRACE_STATE_KEY);
+    if (otelTraceState.isEmpty()) {
+      if (parentOtelTraceState == null) {
+        return parentTraceState;
+      }
+      return parentTraceState.toBuilder().remove(OtelTraceState.TRACE_STATE_KEY).build();
+    }
+    if (otelTraceState.equals(parentOtelTraceState)) {
+      return parentTraceState;
+    }
+    return parentTraceState.toBuilder().put(OtelTraceState.TRACE_STATE_KEY, otelTraceState).build();
+  }
+}
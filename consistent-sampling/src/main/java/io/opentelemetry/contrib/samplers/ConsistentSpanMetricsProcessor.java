@@ -0,0 +1,295 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import static io.opentelemetry.api.internal.Utils.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.Meter;
+import io.opentelemetry.api.metrics.MeterProvider;
+import io.opentelemetry.api.metrics.ObservableDoubleCounter;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.trace.ReadWriteSpan;
+import io.opentelemetry.sdk.trace.ReadableSpan;
+import io.opentelemetry.sdk.trace.SpanProcessor;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * A {@link SpanProcessor} which estimates the number and the duration distribution of all spans,
+ * including those that were not sampled, from the consistently sampled spans, and reports them as
+ * metrics.
+ *
+ * <p>Every sampled span is weighted by its adjusted count {@code 2^p}, where p is the p-value in
+ * its trace state (compare {@link ConsistentSampler}), or by the reciprocal of the sampling
+ * probability given by its threshold, if it was sampled by a {@link ConsistentThresholdSampler},
+ * which makes the reported counts unbiased estimates. Spans with neither are counted once. Spans
+ * with a p-value of {@link OtelTraceState#getMaxP()} have an adjusted count of zero and are not
+ * counted. As the estimates are computed in-process, the sampled spans need not be exported to
+ * derive request rates, error rates and durations (RED metrics).
+ *
+ * <p>The metrics are reported by span name, span kind and status code:
+ *
+ * <ul>
+ *   <li>{@code estimatedSpanCount}: the estimated number of spans
+ *   <li>{@code estimatedSpanDuration}: the estimated total duration of all spans in milliseconds
+ *   <li>{@code estimatedSpanDurationBucket}: the estimated number of spans whose duration is less
+ *       than or equal to the bucket boundary given by the {@code le} attribute, in milliseconds
+ * </ul>
+ *
+ * <p>The number of distinct combinations of span name, span kind and status code is bounded, see
+ * {@link ConsistentSpanMetricsProcessorBuilder#setMaxCardinality(int)}. Spans of further
+ * combinations are counted in a single overflow series, see {@link
+ * ConsistentSpanMetricsProcessorBuilder#setOverflowAttributes(Attributes)}.
+ *
+ * <p>All counts are accumulated in {@link DoubleAdder}s, as adjusted counts need not be integers,
+ * and only read when the metrics are collected, so ending spans on many threads concurrently does
+ * not cause contention.
+ */
+public final class ConsistentSpanMetricsProcessor implements SpanProcessor {
+
+  private static final String INSTRUMENTATION_SCOPE_NAME = "io.opentelemetry.contrib.samplers";
+  private static final AttributeKey<String> SPAN_NAME_KEY = AttributeKey.stringKey("span.name");
+  private static final AttributeKey<String> SPAN_KIND_KEY = AttributeKey.stringKey("span.kind");
+  private static final AttributeKey<String> STATUS_CODE_KEY = AttributeKey.stringKey("status.code");
+  private static final AttributeKey<Double> BUCKET_BOUNDARY_KEY = AttributeKey.doubleKey("le");
+
+  private static final SpanKind[] SPAN_KINDS = SpanKind.values();
+  private static final StatusCode[] STATUS_CODES = StatusCode.values();
+
+  private final int maxCardinality;
+  private final double[] durationBucketBoundariesMillis;
+
+  // the series of a span name, indexed by span kind and status code, created on demand
+  private final ConcurrentMap<String, AtomicReferenceArray<Series>> seriesByName =
+      new ConcurrentHashMap<>();
+  // all created series including the overflow series, for collection
+  private final Queue<Series> allSeries = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger numberOfSeries = new AtomicInteger();
+  private final Series overflowSeries;
+
+  private final ObservableDoubleCounter spanCountCounter;
+  private final ObservableDoubleCounter spanDurationCounter;
+  private final ObservableDoubleCounter spanDurationBucketCounter;
+  private final AtomicBoolean isShutdown = new AtomicBoolean(false);
+
+  /**
+   * Returns a new {@link ConsistentSpanMetricsProcessorBuilder} that reports the metrics to the
+   * given {@link MeterProvider}.
+   *
+   * @param meterProvider a meter provider
+   * @return a builder
+   */
+  public static ConsistentSpanMetricsProcessorBuilder builder(MeterProvider meterProvider) {
+    return new ConsistentSpanMetricsProcessorBuilder(meterProvider);
+  }
+
+  ConsistentSpanMetricsProcessor(
+      MeterProvider meterProvider,
+      int maxCardinality,
+      List<Double> durationBucketBoundariesMillis,
+      Attributes overflowAttributes) {
+    requireNonNull(meterProvider, "meterProvider");
+    checkArgument(maxCardinality > 0, "max cardinality must be positive");
+    requireNonNull(durationBucketBoundariesMillis, "durationBucketBoundariesMillis");
+    requireNonNull(overflowAttributes, "overflowAttributes");
+    this.maxCardinality = maxCardinality;
+    this.durationBucketBoundariesMillis = new double[durationBucketBoundariesMillis.size()];
+    for (int i = 0; i < this.durationBucketBoundariesMillis.length; ++i) {
+      double boundary = durationBucketBoundariesMillis.get(i);
+      checkArgument(
+          !Double.isNaN(boundary)
+              && (i == 0 || boundary > this.durationBucketBoundariesMillis[i - 1]),
+          "duration bucket boundaries must be strictly increasing");
+      this.durationBucketBoundariesMillis[i] = boundary;
+    }
+    this.overflowSeries = new Series(overflowAttributes);
+    allSeries.add(overflowSeries);
+
+    Meter meter = meterProvider.meterBuilder(INSTRUMENTATION_SCOPE_NAME).build();
+    this.spanCountCounter =
+        meter
+            .counterBuilder("estimatedSpanCount")
+            .ofDoubles()
+            .setUnit("1")
+            .setDescription("The estimated number of spans, including those not sampled")
+            .buildWithCallback(
+                result -> {
+                  for (Series series : allSeries) {
+                    result.record(series.count.sum(), series.attributes);
+                  }
+                });
+    this.spanDurationCounter =
+        meter
+            .counterBuilder("estimatedSpanDuration")
+            .ofDoubles()
+            .setUnit("ms")
+            .setDescription(
+                "The estimated total duration of all spans, including those not sampled")
+            .buildWithCallback(
+                result -> {
+                  for (Series series : allSeries) {
+                    result.record(series.durationMillis.sum(), series.attributes);
+                  }
+                });
+    this.spanDurationBucketCounter =
+        meter
+            .counterBuilder("estimatedSpanDurationBucket")
+            .ofDoubles()
+            .setUnit("1")
+            .setDescription(
+                "The estimated number of spans, including those not sampled, "
+                    + "whose duration is less than or equal to the bucket boundary")
+            .buildWithCallback(
+                result -> {
+                  for (Series series : allSeries) {
+                    double cumulativeCount = 0;
+                    for (int i = 0; i < series.bucketAttributes.length; ++i) {
+                      cumulativeCount += series.bucketCounts[i].sum();
+                      result.record(cumulativeCount, series.bucketAttributes[i]);
+                    }
+                  }
+                });
+  }
+
+  @Override
+  public void onStart(Context parentContext, ReadWriteSpan span) {}
+
+  @Override
+  public boolean isStartRequired() {
+    return false;
+  }
+
+  @Override
+  public void onEnd(ReadableSpan span) {
+    if (span == null || !span.getSpanContext().isSampled()) {
+      return;
+    }
+    double adjustedCount = getAdjustedCount(span.getSpanContext());
+    if (adjustedCount == 0) {
+      return;
+    }
+    Series series = getSeries(span.getName(), span.getKind(), SpanStatus.getStatusCode(span));
+    double durationMillis = span.getLatencyNanos() * 1e-6;
+    series.count.add(adjustedCount);
+    series.durationMillis.add(adjustedCount * durationMillis);
+    series.bucketCounts[getBucketIndex(durationMillis)].add(adjustedCount);
+  }
+
+  @Override
+  public boolean isEndRequired() {
+    return true;
+  }
+
+  @Override
+  public CompletableResultCode shutdown() {
+    if (isShutdown.getAndSet(true)) {
+      return CompletableResultCode.ofSuccess();
+    }
+    spanCountCounter.close();
+    spanDurationCounter.close();
+    spanDurationBucketCounter.close();
+    return CompletableResultCode.ofSuccess();
+  }
+
+  // visible for testing
+  static double getAdjustedCount(SpanContext spanContext) {
+    return OtelTraceState.parse(spanContext.getTraceState().get(OtelTraceState.TRACE_STATE_KEY))
+        .getAdjustedCount();
+  }
+
+  // returns the index of the first bucket whose upper bound is not smaller than the given duration
+  private int getBucketIndex(double durationMillis) {
+    int low = 0;
+    int high = durationBucketBoundariesMillis.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (durationBucketBoundariesMillis[mid] < durationMillis) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  private Series getSeries(String name, SpanKind spanKind, StatusCode statusCode) {
+    int index = spanKind.ordinal() * STATUS_CODES.length + statusCode.ordinal();
+    AtomicReferenceArray<Series> seriesOfName = seriesByName.get(name);
+    if (seriesOfName != null) {
+      Series series = seriesOfName.get(index);
+      if (series != null) {
+        return series;
+      }
+    }
+    // checked first to avoid contention on the counter, once the limit has been reached
+    if (numberOfSeries.get() >= maxCardinality) {
+      return overflowSeries;
+    }
+    if (numberOfSeries.incrementAndGet() > maxCardinality) {
+      numberOfSeries.decrementAndGet();
+      return overflowSeries;
+    }
+    if (seriesOfName == null) {
+      seriesOfName =
+          seriesByName.computeIfAbsent(
+              name, n -> new AtomicReferenceArray<>(SPAN_KINDS.length * STATUS_CODES.length));
+    }
+    Series newSeries =
+        new Series(
+            Attributes.of(
+                SPAN_NAME_KEY,
+                name,
+                SPAN_KIND_KEY,
+                spanKind.name(),
+                STATUS_CODE_KEY,
+                statusCode.name()));
+    if (seriesOfName.compareAndSet(index, null, newSeries)) {
+      allSeries.add(newSeries);
+      return newSeries;
+    }
+    // created concurrently by another thread
+    numberOfSeries.decrementAndGet();
+    return seriesOfName.get(index);
+  }
+
+  private final class Series {
+    private final Attributes attributes;
+    private final Attributes[] bucketAttributes;
+    private final DoubleAdder count = new DoubleAdder();
+    private final DoubleAdder durationMillis = new DoubleAdder();
+    // the last bucket counts the spans exceeding the largest bucket boundary
+    private final DoubleAdder[] bucketCounts;
+
+    private Series(Attributes attributes) {
+      this.attributes = attributes;
+      this.bucketAttributes = new Attributes[durationBucketBoundariesMillis.length];
+      for (int i = 0; i < bucketAttributes.length; ++i) {
+        bucketAttributes[i] =
+            attributes.toBuilder()
+                .put(BUCKET_BOUNDARY_KEY, durationBucketBoundariesMillis[i])
+                .build();
+      }
+      this.bucketCounts = new DoubleAdder[durationBucketBoundariesMillis.length + 1];
+      for (int i = 0; i < bucketCounts.length; ++i) {
+        bucketCounts[i] = new DoubleAdder();
+      }
+    }
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import static java.util.Objects.requireNonNull;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.MeterProvider;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/** A builder for {@link ConsistentSpanMetricsProcessor}. */
+public final class ConsistentSpanMetricsProcessorBuilder {
+
+  private static final int DEFAULT_MAX_CARDINALITY = 1000;
+  private static final List<Double> DEFAULT_DURATION_BUCKET_BOUNDARIES_MILLIS =
+      Collections.unmodifiableList(
+          Arrays.asList(
+              0d, 5d, 10d, 25d, 50d, 75d, 100d, 250d, 500d, 750d, 1_000d, 2_500d, 5_000d, 7_500d,
+              10_000d));
+  private static final Attributes DEFAULT_OVERFLOW_ATTRIBUTES =
+      Attributes.of(AttributeKey.booleanKey("otel.metric.overflow"), true);
+
+  private final MeterProvider meterProvider;
+
+  private int maxCardinality = DEFAULT_MAX_CARDINALITY;
+  private List<Double> durationBucketBoundariesMillis = DEFAULT_DURATION_BUCKET_BOUNDARIES_MILLIS;
+  private Attributes overflowAttributes = DEFAULT_OVERFLOW_ATTRIBUTES;
+
+  ConsistentSpanMetricsProcessorBuilder(MeterProvider meterProvider) {
+    this.meterProvider = requireNonNull(meterProvider, "meterProvider");
+  }
+
+  /**
+   * Sets the maximum number of distinct combinations of span name, span kind and status code, for
+   * which separate metrics are reported. If unset, defaults to {@value DEFAULT_MAX_CARDINALITY}.
+   * Must be positive. Spans of further combinations are counted in the overflow series.
+   */
+  public ConsistentSpanMetricsProcessorBuilder setMaxCardinality(int maxCardinality) {
+    this.maxCardinality = maxCardinality;
+    return this;
+  }
+
+  /**
+   * Sets the upper bounds in milliseconds of the buckets of the span duration distribution. If
+   * unset, defaults to the default bucket boundaries of explicit bucket histograms. Must be
+   * strictly increasing.
+   */
+  public ConsistentSpanMetricsProcessorBuilder setDurationBucketBoundaries(
+      List<Double> durationBucketBoundariesMillis) {
+    requireNonNull(durationBucketBoundariesMillis, "durationBucketBoundariesMillis");
+    this.durationBucketBoundariesMillis = new ArrayList<>(durationBucketBoundariesMillis);
+    return this;
+  }
+
+  /**
+   * Sets the attributes of the overflow series, which counts all spans whose combination of span
+   * name, span kind and status code exceeds the maximum cardinality. If unset, defaults to {@code
+   * otel.metric.overflow=true}.
+   */
+  public ConsistentSpanMetricsProcessorBuilder setOverflowAttributes(
+      Attributes overflowAttributes) {
+    this.overflowAttributes = requireNonNull(overflowAttributes, "overflowAttributes");
+    return this;
+  }
+
+  /**
+   * Returns a {@link ConsistentSpanMetricsProcessor} with the configuration of this builder.
+   *
+   * @return a span processor
+   */
+  public ConsistentSpanMetricsProcessor build() {
+    return new ConsistentSpanMetricsProcessor(
+        meterProvider, maxCardinality, durationBucketBoundariesMillis, overflowAttributes);
+  }
+}
@@ -0,0 +1,427 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import static io.opentelemetry.api.internal.Utils.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+import io.opentelemetry.api.internal.OtelEncodingUtils;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.internal.DaemonThreadFactory;
+import io.opentelemetry.sdk.trace.ReadWriteSpan;
+import io.opentelemetry.sdk.trace.ReadableSpan;
+import io.opentelemetry.sdk.trace.SpanProcessor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+
+/**
+ * A {@link SpanProcessor} which consistently samples whole traces after they have ended (tail
+ * sampling), keeping traces with errors or long latencies with a higher probability than all other
+ * traces, and passes the spans of kept traces on to a downstream {@link SpanProcessor}.
+ *
+ * <p>The sampled spans of a trace are buffered until its local root span, which is a span without
+ * parent or with a remote parent, has ended, or until the decision wait time has passed since the
+ * first span of the trace. A trace is considered interesting, if any of its spans has an error
+ * status or a latency of at least the configured threshold. Interesting traces are sampled with the
+ * boosted sampling probability, all other traces with the regular sampling probability. The
+ * sampling probability of a trace is translated into a p-value, which is stochastically rounded as
+ * for {@link ConsistentRateLimitingSampler}, but only once per trace. Every span whose p-value is
+ * smaller is raised to that p-value, and only spans whose r-value is not smaller than the raised
+ * p-value are kept. Since the r-value is independent of the properties of the trace, the adjusted
+ * counts of the kept spans remain unbiased estimates. The p-values of interesting traces are lower
+ * than those of other traces, according to their boosted sampling probability. Spans that were not
+ * sampled consistently have neither an r-value nor a p-value, they are treated as if their p-value
+ * was zero and get a random r-value, which is the same for all spans of a trace. Spans sampled by a
+ * {@link ConsistentThresholdSampler} are treated as if their p-value was the largest one whose
+ * threshold does not exceed theirs, and their threshold is raised instead of their p-value.
+ *
+ * <p>The memory is bounded by a budget of buffered spans. If the budget is exceeded, the traces
+ * that have been buffered longest are decided early with the spans seen so far. Spans arriving for
+ * a trace that has already been decided are decided immediately with the p-value of the trace, as
+ * long as the decision is remembered, which is the case for a number of recently decided traces
+ * bounded by the span budget as well.
+ *
+ * <p>Spans that were not sampled are passed on immediately and unchanged. Buffered traces are
+ * distributed over stripes by their trace id, every stripe is guarded by its own lock. The spans of
+ * decided traces are passed on outside of these locks.
+ */
+public final class ConsistentTailSamplingSpanProcessor implements SpanProcessor {
+
+  private static final String WORKER_THREAD_NAME =
+      ConsistentTailSamplingSpanProcessor.class.getSimpleName() + "_WorkerThread";
+  // the minimum interval between checks for traces whose decision wait time has passed
+  private static final long MIN_EXPIRATION_CHECK_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final SpanProcessor downstreamProcessor;
+  private final double samplingProbability;
+  private final double boostedSamplingProbability;
+  private final long latencyThresholdNanos;
+  private final long decisionWaitNanos;
+  private final int maxBufferedSpansPerStripe;
+  private final RandomGenerator randomGenerator;
+  private final long traceRValueSeed;
+  private final LongSupplier nanoTimeSupplier;
+  private final TraceStripe[] stripes;
+  private final ScheduledExecutorService executor;
+  private final ScheduledFuture<?> expirationFuture;
+  private final AtomicBoolean isShutdown = new AtomicBoolean(false);
+
+  /**
+   * Returns a new {@link ConsistentTailSamplingSpanProcessorBuilder} that passes the spans of kept
+   * traces on to the given downstream {@link SpanProcessor}.
+   *
+   * @param downstreamProcessor the span processor to which kept spans are passed on
+   * @return a builder
+   */
+  public static ConsistentTailSamplingSpanProcessorBuilder builder(
+      SpanProcessor downstreamProcessor) {
+    return new ConsistentTailSamplingSpanProcessorBuilder(downstreamProcessor);
+  }
+
+  ConsistentTailSamplingSpanProcessor(
+      SpanProcessor downstreamProcessor,
+      double samplingProbability,
+      double boostedSamplingProbability,
+      long latencyThresholdNanos,
+      long decisionWaitNanos,
+      int maxBufferedSpans,
+      int stripeCount,
+      RandomGenerator randomGenerator,
+      LongSupplier nanoTimeSupplier) {
+    requireNonNull(downstreamProcessor, "downstreamProcessor");
+    checkArgument(
+        samplingProbability >= 0 && samplingProbability <= 1,
+        "sampling probability must be in range [0.0, 1.0]");
+    checkArgument(
+        boostedSamplingProbability >= samplingProbability && boostedSamplingProbability <= 1,
+        "boosted sampling probability must be in range [sampling probability, 1.0]");
+    checkArgument(latencyThresholdNanos >= 0, "latency threshold must be non-negative");
+    checkArgument(decisionWaitNanos > 0, "decision wait must be positive");
+    checkArgument(stripeCount > 0, "stripe count must be positive");
+    checkArgument(
+        maxBufferedSpans >= stripeCount,
+        "max buffered spans must not be smaller than the stripe count");
+    requireNonNull(randomGenerator, "randomGenerator");
+    requireNonNull(nanoTimeSupplier, "nanoTimeSupplier");
+    this.downstreamProcessor = downstreamProcessor;
+    this.samplingProbability = samplingProbability;
+    this.boostedSamplingProbability = boostedSamplingProbability;
+    this.latencyThresholdNanos = latencyThresholdNanos;
+    this.decisionWaitNanos = decisionWaitNanos;
+    this.randomGenerator = randomGenerator;
+    this.traceRValueSeed = randomGenerator.nextLong();
+    this.nanoTimeSupplier = nanoTimeSupplier;
+
+    int numberOfStripes = (stripeCount > 1) ? Integer.highestOneBit(stripeCount - 1) << 1 : 1;
+    if (numberOfStripes > maxBufferedSpans) {
+      numberOfStripes >>>= 1;
+    }
+    this.maxBufferedSpansPerStripe = maxBufferedSpans / numberOfStripes;
+    this.stripes = new TraceStripe[numberOfStripes];
+    for (int i = 0; i < numberOfStripes; ++i) {
+      stripes[i] = new TraceStripe();
+    }
+
+    this.executor =
+        Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(WORKER_THREAD_NAME));
+    long expirationCheckIntervalNanos =
+        Math.max(MIN_EXPIRATION_CHECK_INTERVAL_NANOS, decisionWaitNanos / 4);
+    this.expirationFuture =
+        executor.scheduleWithFixedDelay(
+            this::expireTraces,
+            expirationCheckIntervalNanos,
+            expirationCheckIntervalNanos,
+            TimeUnit.NANOSECONDS);
+  }
+
+  @Override
+  public void onStart(Context parentContext, ReadWriteSpan span) {
+    downstreamProcessor.onStart(parentContext, span);
+  }
+
+  @Override
+  public boolean isStartRequired() {
+    return downstreamProcessor.isStartRequired();
+  }
+
+  @Override
+  public void onEnd(ReadableSpan span) {
+    if (span == null) {
+      return;
+    }
+    SpanContext spanContext = span.getSpanContext();
+    if (!spanContext.isSampled()) {
+      downstreamProcessor.onEnd(span);
+      return;
+    }
+    boolean isInteresting = isInteresting(span);
+    SpanContext parentSpanContext = span.getParentSpanContext();
+    boolean isLocalRoot = !parentSpanContext.isValid() || parentSpanContext.isRemote();
+    long nanoTime = nanoTimeSupplier.getAsLong();
+
+    String traceId = spanContext.getTraceId();
+    TraceStripe stripe = getStripe(traceId);
+    int decidedPval;
+    List<PendingTrace> decidedTraces;
+    synchronized (stripe) {
+      Integer pval = stripe.decidedTraces.get(traceId);
+      if (pval != null) {
+        decidedPval = pval;
+        decidedTraces = Collections.emptyList();
+      } else {
+        decidedPval = OtelTraceState.getInvalidP();
+        decidedTraces = stripe.add(traceId, span, isInteresting, isLocalRoot, nanoTime);
+      }
+    }
+    if (OtelTraceState.isValidP(decidedPval)) {
+      passOn(span, decidedPval);
+    }
+    passOn(decidedTraces);
+  }
+
+  private boolean isInteresting(ReadableSpan span) {
+    if (span.getLatencyNanos() >= latencyThresholdNanos) {
+      return true;
+    }
+    return SpanStatus.isError(span);
+  }
+
+  private TraceStripe getStripe(String traceId) {
+    if (stripes.length == 1) {
+      return stripes[0];
+    }
+    // the lower half of the trace id is random
+    long hash = OtelEncodingUtils.longFromBase16String(traceId, 16) * 0x9E3779B97F4A7C15L;
+    return stripes[(int) (hash >>> 32) & (stripes.length - 1)];
+  }
+
+  // must be called while holding the lock of the stripe the trace belongs to
+  private int decide(PendingTrace trace) {
+    return ConsistentRateLimitingSampler.getStochasticallyRoundedP(
+        trace.isInteresting ? boostedSamplingProbability : samplingProbability, randomGenerator);
+  }
+
+  private void passOn(List<PendingTrace> traces) {
+    for (PendingTrace trace : traces) {
+      for (ReadableSpan span : trace.spans) {
+        passOn(span, trace.pval);
+      }
+    }
+  }
+
+  /**
+   * Raises the p-value of the given span to the given one, if it is smaller, and passes it on to
+   * the downstream span processor, if the span is still sampled. The threshold of spans sampled by
+   * threshold samplers is raised instead (see {@link OtelTraceState#raiseP(int, int)}).
+   *
+   * @param span the span
+   * @param tracePval the p-value of the trace
+   */
+  private void passOn(ReadableSpan span, int tracePval) {
+    SpanContext spanContext = span.getSpanContext();
+    OtelTraceState otelTraceState =
+        OtelTraceState.parse(spanContext.getTraceState().get(OtelTraceState.TRACE_STATE_KEY));
+    int pval = otelTraceState.getPForSpan();
+    if (tracePval <= pval) {
+      downstreamProcessor.onEnd(span);
+      return;
+    }
+    int rval = otelTraceState.getRForSpan(spanContext.getTraceId());
+    if (!OtelTraceState.isValidR(rval)) {
+      // the span was not sampled consistently, its r-value is random, but the same for all spans
+      // of its trace
+      rval =
+          Math.min(
+              Long.numberOfLeadingZeros(
+                  OtelTraceState.hashTraceId(spanContext.getTraceId(), traceRValueSeed)),
+              OtelTraceState.getMaxR());
+    }
+    if (rval < tracePval) {
+      return;
+    }
+    otelTraceState.raiseP(tracePval, rval);
+    downstreamProcessor.onEnd(AdjustedReadableSpan.create(span, otelTraceState));
+  }
+
+  /** Decides all traces whose decision wait time has passed. */
+  // visible for testing
+  void expireTraces() {
+    long expirationNanoTime = nanoTimeSupplier.getAsLong() - decisionWaitNanos;
+    for (TraceStripe stripe : stripes) {
+      List<PendingTrace> decidedTraces;
+      synchronized (stripe) {
+        decidedTraces = stripe.removeExpired(expirationNanoTime);
+      }
+      passOn(decidedTraces);
+    }
+  }
+
+  private void decideAll() {
+    for (TraceStripe stripe : stripes) {
+      List<PendingTrace> decidedTraces;
+      synchronized (stripe) {
+        decidedTraces = stripe.removeAll();
+      }
+      passOn(decidedTraces);
+    }
+  }
+
+  @Override
+  public boolean isEndRequired() {
+    return true;
+  }
+
+  /**
+   * Decides all buffered traces, passes their kept spans on to the downstream span processor, and
+   * shuts the downstream span processor down.
+   */
+  @Override
+  public CompletableResultCode shutdown() {
+    if (isShutdown.getAndSet(true)) {
+      return CompletableResultCode.ofSuccess();
+    }
+    expirationFuture.cancel(false);
+    executor.shutdown();
+    decideAll();
+    return downstreamProcessor.shutdown();
+  }
+
+  /**
+   * Decides all buffered traces, without waiting for their local root spans, and flushes the
+   * downstream span processor.
+   */
+  @Override
+  public CompletableResultCode forceFlush() {
+    decideAll();
+    return downstreamProcessor.forceFlush();
+  }
+
+  // visible for testing
+  int getNumberOfBufferedSpans() {
+    int numberOfBufferedSpans = 0;
+    for (TraceStripe stripe : stripes) {
+      synchronized (stripe) {
+        numberOfBufferedSpans += stripe.numberOfBufferedSpans;
+      }
+    }
+    return numberOfBufferedSpans;
+  }
+
+  private static final class PendingTrace {
+    private final String traceId;
+    private final long firstNanoTime;
+    private final List<ReadableSpan> spans = new ArrayList<>(4);
+    private boolean isInteresting;
+    // only valid once decided
+    private int pval = OtelTraceState.getInvalidP();
+
+    private PendingTrace(String traceId, long firstNanoTime) {
+      this.traceId = traceId;
+      this.firstNanoTime = firstNanoTime;
+    }
+  }
+
+  /** The buffered traces of a stripe, all fields are guarded by the stripe. */
+  private final class TraceStripe {
+    // in the order of their first spans
+    private final Map<String, PendingTrace> pendingTraces = new LinkedHashMap<>();
+    private int numberOfBufferedSpans;
+    // the p-values of recently decided traces, in the order of their decisions
+    private final Map<String, Integer> decidedTraces = new LinkedHashMap<>();
+
+    /**
+     * Adds a span to its trace and returns the traces decided as a consequence, which is the trace
+     * of the span, if it is the local root, and the traces that have been buffered longest, if the
+     * span budget is exceeded.
+     */
+    private List<PendingTrace> add(
+        String traceId,
+        ReadableSpan span,
+        boolean isInteresting,
+        boolean isLocalRoot,
+        long nanoTime) {
+      PendingTrace trace = pendingTraces.get(traceId);
+      if (trace == null) {
+        trace = new PendingTrace(traceId, nanoTime);
+        pendingTraces.put(traceId, trace);
+      }
+      trace.spans.add(span);
+      trace.isInteresting |= isInteresting;
+      numberOfBufferedSpans += 1;
+
+      List<PendingTrace> decided = Collections.emptyList();
+      if (isLocalRoot) {
+        pendingTraces.remove(traceId);
+        decided = new ArrayList<>();
+        decided.add(trace);
+        decide(trace);
+      }
+      if (numberOfBufferedSpans > maxBufferedSpansPerStripe) {
+        if (decided.isEmpty()) {
+          decided = new ArrayList<>();
+        }
+        Iterator<PendingTrace> iterator = pendingTraces.values().iterator();
+        while (numberOfBufferedSpans > maxBufferedSpansPerStripe && iterator.hasNext()) {
+          PendingTrace eldestTrace = iterator.next();
+          iterator.remove();
+          decided.add(eldestTrace);
+          decide(eldestTrace);
+        }
+      }
+      return decided;
+    }
+
+    private List<PendingTrace> removeExpired(long expirationNanoTime) {
+      List<PendingTrace> decided = Collections.emptyList();
+      Iterator<PendingTrace> iterator = pendingTraces.values().iterator();
+      while (iterator.hasNext()) {
+        PendingTrace trace = iterator.next();
+        if (trace.firstNanoTime - expirationNanoTime > 0) {
+          break;
+        }
+        iterator.remove();
+        if (decided.isEmpty()) {
+          decided = new ArrayList<>();
+        }
+        decided.add(trace);
+        decide(trace);
+      }
+      return decided;
+    }
+
+    private List<PendingTrace> removeAll() {
+      List<PendingTrace> decided = new ArrayList<>(pendingTraces.values());
+      pendingTraces.clear();
+      for (PendingTrace trace : decided) {
+        decide(trace);
+      }
+      return decided;
+    }
+
+    private void decide(PendingTrace trace) {
+      trace.pval = ConsistentTailSamplingSpanProcessor.this.decide(trace);
+      numberOfBufferedSpans -= trace.spans.size();
+      decidedTraces.put(trace.traceId, trace.pval);
+      if (decidedTraces.size() > maxBufferedSpansPerStripe) {
+        Iterator<Integer> iterator = decidedTraces.values().iterator();
+        iterator.next();
+        iterator.remove();
+      }
+    }
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import static java.util.Objects.requireNonNull;
+
+import io.opentelemetry.sdk.trace.SpanProcessor;
+import java.time.Duration;
+import java.util.function.LongSupplier;
+
+/** A builder for {@link ConsistentTailSamplingSpanProcessor}. */
+public final class ConsistentTailSamplingSpanProcessorBuilder {
+
+  private static final double DEFAULT_SAMPLING_PROBABILITY = 0.1;
+  private static final double DEFAULT_BOOSTED_SAMPLING_PROBABILITY = 1.;
+  private static final long DEFAULT_LATENCY_THRESHOLD_MILLIS = 1000;
+  private static final long DEFAULT_DECISION_WAIT_MILLIS = 30_000;
+  private static final int DEFAULT_MAX_BUFFERED_SPANS = 100_000;
+  private static final int DEFAULT_STRIPE_COUNT = 1;
+
+  private final SpanProcessor downstreamProcessor;
+
+  private double samplingProbability = DEFAULT_SAMPLING_PROBABILITY;
+  private double boostedSamplingProbability = DEFAULT_BOOSTED_SAMPLING_PROBABILITY;
+  private long latencyThresholdNanos = DEFAULT_LATENCY_THRESHOLD_MILLIS * 1_000_000;
+  private long decisionWaitNanos = DEFAULT_DECISION_WAIT_MILLIS * 1_000_000;
+  private int maxBufferedSpans = DEFAULT_MAX_BUFFERED_SPANS;
+  private int stripeCount = DEFAULT_STRIPE_COUNT;
+  private RandomGenerator randomGenerator = RandomGenerator.getDefault();
+  private LongSupplier nanoTimeSupplier = System::nanoTime;
+
+  ConsistentTailSamplingSpanProcessorBuilder(SpanProcessor downstreamProcessor) {
+    this.downstreamProcessor = requireNonNull(downstreamProcessor, "downstreamProcessor");
+  }
+
+  /**
+   * Sets the probability with which traces without errors and long latencies are kept. If unset,
+   * defaults to {@value DEFAULT_SAMPLING_PROBABILITY}. Must be in range [0.0, 1.0].
+   */
+  public ConsistentTailSamplingSpanProcessorBuilder setSamplingProbability(
+      double samplingProbability) {
+    this.samplingProbability = samplingProbability;
+    return this;
+  }
+
+  /**
+   * Sets the probability with which traces containing a span with an error status or a latency of
+   * at least the latency threshold are kept. If unset, defaults to {@value
+   * DEFAULT_BOOSTED_SAMPLING_PROBABILITY}. Must not be smaller than the sampling probability and
+   * not greater than 1.0.
+   */
+  public ConsistentTailSamplingSpanProcessorBuilder setBoostedSamplingProbability(
+      double boostedSamplingProbability) {
+    this.boostedSamplingProbability = boostedSamplingProbability;
+    return this;
+  }
+
+  /**
+   * Sets the span latency from which on a trace is kept with the boosted sampling probability. If
+   * unset, defaults to {@value DEFAULT_LATENCY_THRESHOLD_MILLIS}ms. Must not be negative.
+   */
+  public ConsistentTailSamplingSpanProcessorBuilder setLatencyThreshold(Duration latencyThreshold) {
+    requireNonNull(latencyThreshold, "latencyThreshold");
+    this.latencyThresholdNanos = latencyThreshold.toNanos();
+    return this;
+  }
+
+  /**
+   * Sets the maximum time to wait for the local root span of a trace, after its first span has
+   * ended. If unset, defaults to {@value DEFAULT_DECISION_WAIT_MILLIS}ms. Must be positive.
+   */
+  public ConsistentTailSamplingSpanProcessorBuilder setDecisionWait(Duration decisionWait) {
+    requireNonNull(decisionWait, "decisionWait");
+    this.decisionWaitNanos = decisionWait.toNanos();
+    return this;
+  }
+
+  /**
+   * Sets the maximum number of buffered spans. If exceeded, the traces buffered longest are decided
+   * early. If unset, defaults to {@value DEFAULT_MAX_BUFFERED_SPANS}. Must not be smaller than the
+   * stripe count.
+   */
+  public ConsistentTailSamplingSpanProcessorBuilder setMaxBufferedSpans(int maxBufferedSpans) {
+    this.maxBufferedSpans = maxBufferedSpans;
+    return this;
+  }
+
+  /**
+   * Sets the number of stripes the buffered traces are distributed over, which is rounded up to the
+   * next power of two. Every stripe is guarded by its own lock and gets an equal share of the span
+   * budget. If unset, defaults to {@value DEFAULT_STRIPE_COUNT}. Must be positive.
+   */
+  public ConsistentTailSamplingSpanProcessorBuilder setStripeCount(int stripeCount) {
+    this.stripeCount = stripeCount;
+    return this;
+  }
+
+  /**
+   * Sets the {@link RandomGenerator} used to draw random values. If not set, uses {@link
+   * RandomGenerator#getDefault()}.
+   */
+  public ConsistentTailSamplingSpanProcessorBuilder setRandomGenerator(
+      RandomGenerator randomGenerator) {
+    this.randomGenerator = requireNonNull(randomGenerator, "randomGenerator");
+    return this;
+  }
+
+  // visible for testing
+  ConsistentTailSamplingSpanProcessorBuilder setNanoTimeSupplier(LongSupplier nanoTimeSupplier) {
+    this.nanoTimeSupplier = nanoTimeSupplier;
+    return this;
+  }
+
+  /**
+   * Returns a {@link ConsistentTailSamplingSpanProcessor} with the configuration of this builder.
+   *
+   * @return a span processor
+   */
+  public ConsistentTailSamplingSpanProcessor build() {
+    return new ConsistentTailSamplingSpanProcessor(
+        downstreamProcessor,
+        samplingProbability,
+        boostedSamplingProbability,
+        latencyThresholdNanos,
+        decisionWaitNanos,
+        maxBufferedSpans,
+        stripeCount,
+        randomGenerator,
+        nanoTimeSupplier);
+  }
+}
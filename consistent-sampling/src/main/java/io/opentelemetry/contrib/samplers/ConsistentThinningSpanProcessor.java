@@ -0,0 +1,146 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import static io.opentelemetry.api.internal.Utils.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.contrib.samplers.ConsistentRateLimitingSampler.SamplingProbabilityEstimator;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.trace.ReadWriteSpan;
+import io.opentelemetry.sdk.trace.ReadableSpan;
+import io.opentelemetry.sdk.trace.SpanProcessor;
+import java.util.function.LongSupplier;
+
+/**
+ * A {@link SpanProcessor} which limits the rate of spans passed to a downstream {@link
+ * SpanProcessor} by consistently thinning the sampled spans, without buffering them.
+ *
+ * <p>The rate of sampled spans ending is estimated as for {@link ConsistentRateLimitingSampler}.
+ * From that, the probability with which spans need to be kept to meet the target rate is derived,
+ * which is stochastically rounded to a power of two {@code 2^-d} as for the rate limiting sampler.
+ * The p-value of every span is raised by {@code d}, and the span is kept, if its r-value is still
+ * not smaller than the raised p-value. Given that a span was sampled with p-value p, its r-value is
+ * at least p, hence it is kept with probability {@code 2^-d}, and its adjusted count {@code 2^(p +
+ * d)} remains an unbiased estimate. Kept spans are passed on immediately with the raised p-value in
+ * their trace state, dropped spans are not passed on at all. If the rate of sampled spans is below
+ * the target, d is zero and all spans are passed on unchanged.
+ *
+ * <p>Spans without a valid p-value are treated as if their p-value was zero. Spans with a p-value
+ * but without a valid r-value are kept or dropped based on the r-value derived from their trace id
+ * (compare {@link ConsistentSampler#withTraceIdRandomness()}). Spans without both, which were not
+ * sampled consistently, are kept with probability {@code 2^-d}. Spans sampled by a {@link
+ * ConsistentThresholdSampler} are treated as if their p-value was the largest one whose threshold
+ * does not exceed theirs, and their threshold is raised to the one of the raised p-value instead.
+ * Spans that were not sampled are passed on unchanged and are not counted.
+ *
+ * <p>In contrast to the {@link ConsistentReservoirSamplingSpanProcessor}, which buffers all spans
+ * of an export period, the memory needed is constant, and the added latency is that of parsing and
+ * updating the trace state.
+ */
+public final class ConsistentThinningSpanProcessor implements SpanProcessor {
+
+  private final SpanProcessor downstreamProcessor;
+  private final SamplingProbabilityEstimator estimator;
+  private final RandomGenerator randomGenerator;
+  private final LongSupplier nanoTimeSupplier;
+
+  /**
+   * Returns a new {@link ConsistentThinningSpanProcessorBuilder} that passes at most the given
+   * number of spans per second to the given downstream {@link SpanProcessor}.
+   *
+   * @param downstreamProcessor the span processor to which kept spans are passed on
+   * @param targetSpansPerSecondLimit the desired spans per second limit
+   * @return a builder
+   */
+  public static ConsistentThinningSpanProcessorBuilder builder(
+      SpanProcessor downstreamProcessor, double targetSpansPerSecondLimit) {
+    return new ConsistentThinningSpanProcessorBuilder(
+        downstreamProcessor, targetSpansPerSecondLimit);
+  }
+
+  ConsistentThinningSpanProcessor(
+      SpanProcessor downstreamProcessor,
+      double targetSpansPerSecondLimit,
+      double adaptationTimeSeconds,
+      RandomGenerator randomGenerator,
+      LongSupplier nanoTimeSupplier) {
+    requireNonNull(downstreamProcessor, "downstreamProcessor");
+    checkArgument(
+        targetSpansPerSecondLimit >= 0, "target spans per second limit must be non-negative");
+    checkArgument(adaptationTimeSeconds >= 0, "adaptation time must be non-negative");
+    requireNonNull(randomGenerator, "randomGenerator");
+    requireNonNull(nanoTimeSupplier, "nanoTimeSupplier");
+    this.downstreamProcessor = downstreamProcessor;
+    this.randomGenerator = randomGenerator;
+    this.nanoTimeSupplier = nanoTimeSupplier;
+    this.estimator =
+        new SamplingProbabilityEstimator(
+            targetSpansPerSecondLimit, adaptationTimeSeconds, nanoTimeSupplier.getAsLong());
+  }
+
+  @Override
+  public void onStart(Context parentContext, ReadWriteSpan span) {
+    downstreamProcessor.onStart(parentContext, span);
+  }
+
+  @Override
+  public boolean isStartRequired() {
+    return downstreamProcessor.isStartRequired();
+  }
+
+  @Override
+  public void onEnd(ReadableSpan span) {
+    if (span == null) {
+      return;
+    }
+    SpanContext spanContext = span.getSpanContext();
+    if (!spanContext.isSampled()) {
+      downstreamProcessor.onEnd(span);
+      return;
+    }
+    double keepProbability =
+        estimator.countSpanAndGetSamplingProbability(nanoTimeSupplier.getAsLong());
+    int pIncrement =
+        ConsistentRateLimitingSampler.getStochasticallyRoundedP(keepProbability, randomGenerator);
+    if (pIncrement == 0) {
+      downstreamProcessor.onEnd(span);
+      return;
+    }
+
+    OtelTraceState otelTraceState =
+        OtelTraceState.parse(spanContext.getTraceState().get(OtelTraceState.TRACE_STATE_KEY));
+    int pval = otelTraceState.getPForSpan();
+    int rval = otelTraceState.getRForSpan(spanContext.getTraceId());
+    if (!OtelTraceState.isValidR(rval)) {
+      // the span was not sampled consistently, it is kept with probability 2^(-pIncrement)
+      rval = Math.min(randomGenerator.numberOfLeadingZerosOfRandomLong(), OtelTraceState.getMaxR());
+    }
+    int raisedPval = Math.min(pval + pIncrement, OtelTraceState.getMaxP());
+    if (rval < raisedPval) {
+      return;
+    }
+    otelTraceState.raiseP(raisedPval, rval);
+    downstreamProcessor.onEnd(AdjustedReadableSpan.create(span, otelTraceState));
+  }
+
+  @Override
+  public boolean isEndRequired() {
+    return true;
+  }
+
+  @Override
+  public CompletableResultCode shutdown() {
+    return downstreamProcessor.shutdown();
+  }
+
+  @Override
+  public CompletableResultCode forceFlush() {
+    return downstreamProcessor.forceFlush();
+  }
+}
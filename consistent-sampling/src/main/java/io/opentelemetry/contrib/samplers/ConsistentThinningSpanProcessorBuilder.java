@@ -0,0 +1,72 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import static java.util.Objects.requireNonNull;
+
+import io.opentelemetry.sdk.trace.SpanProcessor;
+import java.time.Duration;
+import java.util.function.LongSupplier;
+
+/** A builder for {@link ConsistentThinningSpanProcessor}. */
+public final class ConsistentThinningSpanProcessorBuilder {
+
+  private static final long DEFAULT_ADAPTATION_TIME_MILLIS = 10_000;
+
+  private final SpanProcessor downstreamProcessor;
+  private final double targetSpansPerSecondLimit;
+
+  private double adaptationTimeSeconds = DEFAULT_ADAPTATION_TIME_MILLIS * 1e-3;
+  private RandomGenerator randomGenerator = RandomGenerator.getDefault();
+  private LongSupplier nanoTimeSupplier = System::nanoTime;
+
+  ConsistentThinningSpanProcessorBuilder(
+      SpanProcessor downstreamProcessor, double targetSpansPerSecondLimit) {
+    this.downstreamProcessor = requireNonNull(downstreamProcessor, "downstreamProcessor");
+    this.targetSpansPerSecondLimit = targetSpansPerSecondLimit;
+  }
+
+  /**
+   * Sets the typical time to adapt to a new load, which is the time constant used for exponential
+   * smoothing of the span rate. If unset, defaults to {@value DEFAULT_ADAPTATION_TIME_MILLIS}ms.
+   * Must not be negative.
+   */
+  public ConsistentThinningSpanProcessorBuilder setAdaptationTime(Duration adaptationTime) {
+    requireNonNull(adaptationTime, "adaptationTime");
+    this.adaptationTimeSeconds = adaptationTime.toNanos() * 1e-9;
+    return this;
+  }
+
+  /**
+   * Sets the {@link RandomGenerator} used to draw random values. If not set, uses {@link
+   * RandomGenerator#getDefault()}.
+   */
+  public ConsistentThinningSpanProcessorBuilder setRandomGenerator(
+      RandomGenerator randomGenerator) {
+    this.randomGenerator = requireNonNull(randomGenerator, "randomGenerator");
+    return this;
+  }
+
+  // visible for testing
+  ConsistentThinningSpanProcessorBuilder setNanoTimeSupplier(LongSupplier nanoTimeSupplier) {
+    this.nanoTimeSupplier = nanoTimeSupplier;
+    return this;
+  }
+
+  /**
+   * Returns a {@link ConsistentThinningSpanProcessor} with the configuration of this builder.
+   *
+   * @return a span processor
+   */
+  public ConsistentThinningSpanProcessor build() {
+    return new ConsistentThinningSpanProcessor(
+        downstreamProcessor,
+        targetSpansPerSecondLimit,
+        adaptationTimeSeconds,
+        randomGenerator,
+        nanoTimeSupplier);
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import static java.util.Objects.requireNonNull;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.SpanKind;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A consistent threshold sampler composed of two consistent threshold samplers.
+ *
+ * <p>If combined by "and", a span is sampled if both samplers would sample, hence the larger
+ * threshold is taken, and any invalid threshold makes the result invalid. If combined by "or", a
+ * span is sampled if any sampler would sample, hence the smaller valid threshold is taken.
+ */
+@Immutable
+final class ConsistentThresholdComposedSampler extends ConsistentThresholdSampler {
+
+  private final ConsistentThresholdSampler sampler1;
+  private final ConsistentThresholdSampler sampler2;
+  private final boolean isAnd;
+  private final String description;
+
+  ConsistentThresholdComposedSampler(
+      ConsistentThresholdSampler sampler1, ConsistentThresholdSampler sampler2, boolean isAnd) {
+    this.sampler1 = requireNonNull(sampler1);
+    this.sampler2 = requireNonNull(sampler2);
+    this.isAnd = isAnd;
+    this.description =
+        "ConsistentThresholdComposedSampler{operator="
+            + (isAnd ? "and" : "or")
+            + ",sampler1="
+            + sampler1.getDescription()
+            + ",sampler2="
+            + sampler2.getDescription()
+            + '}';
+  }
+
+  @Override
+  protected long getThreshold(long parentThreshold, boolean isRoot) {
+    return combine(
+        sampler1.getThreshold(parentThreshold, isRoot),
+        sampler2.getThreshold(parentThreshold, isRoot));
+  }
+
+  @Override
+  protected long getThreshold(
+      long parentThreshold, boolean isRoot, String name, SpanKind spanKind, Attributes attributes) {
+    return combine(
+        sampler1.getThreshold(parentThreshold, isRoot, name, spanKind, attributes),
+        sampler2.getThreshold(parentThreshold, isRoot, name, spanKind, attributes));
+  }
+
+  private long combine(long threshold1, long threshold2) {
+    boolean isValid1 = OtelTraceState.isValidThreshold(threshold1);
+    boolean isValid2 = OtelTraceState.isValidThreshold(threshold2);
+    if (isValid1 && isValid2) {
+      return isAnd ? Math.max(threshold1, threshold2) : Math.min(threshold1, threshold2);
+    }
+    if (!isAnd && isValid1) {
+      return threshold1;
+    }
+    if (!isAnd && isValid2) {
+      return threshold2;
+    }
+    return OtelTraceState.getInvalidThreshold();
+  }
+
+  @Override
+  public String getDescription() {
+    return description;
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import static java.util.Objects.requireNonNull;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.SpanKind;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A consistent threshold sampler that makes the same sampling decision as the parent and falls back
+ * to an alternative consistent threshold sampler for root spans.
+ */
+@Immutable
+final class ConsistentThresholdParentBasedSampler extends ConsistentThresholdSampler {
+
+  private final ConsistentThresholdSampler rootSampler;
+  private final String description;
+
+  /**
+   * Constructs a new consistent parent based threshold sampler using the given root sampler.
+   *
+   * @param rootSampler the root sampler
+   */
+  ConsistentThresholdParentBasedSampler(ConsistentThresholdSampler rootSampler) {
+    this.rootSampler = requireNonNull(rootSampler);
+    this.description =
+        "ConsistentThresholdParentBasedSampler{rootSampler=" + rootSampler.getDescription() + '}';
+  }
+
+  @Override
+  protected long getThreshold(long parentThreshold, boolean isRoot) {
+    if (isRoot) {
+      return rootSampler.getThreshold(parentThreshold, isRoot);
+    } else {
+      return parentThreshold;
+    }
+  }
+
+  @Override
+  protected long getThreshold(
+      long parentThreshold, boolean isRoot, String name, SpanKind spanKind, Attributes attributes) {
+    if (isRoot) {
+      return rootSampler.getThreshold(parentThreshold, isRoot, name, spanKind, attributes);
+    } else {
+      return parentThreshold;
+    }
+  }
+
+  @Override
+  public String getDescription() {
+    return description;
+  }
+}
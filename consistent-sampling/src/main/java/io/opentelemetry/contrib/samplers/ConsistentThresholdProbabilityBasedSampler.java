@@ -0,0 +1,43 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A consistent threshold sampler that samples with a fixed probability, which is not restricted to
+ * powers of two.
+ */
+@Immutable
+final class ConsistentThresholdProbabilityBasedSampler extends ConsistentThresholdSampler {
+
+  private final long threshold;
+  private final String description;
+
+  /**
+   * Constructor.
+   *
+   * @param samplingProbability the sampling probability
+   */
+  ConsistentThresholdProbabilityBasedSampler(double samplingProbability) {
+    if (samplingProbability < 0.0 || samplingProbability > 1.0) {
+      throw new IllegalArgumentException("Sampling probability must be in range [0.0, 1.0]!");
+    }
+    this.threshold = calculateThreshold(samplingProbability);
+    this.description =
+        String.format("ConsistentThresholdProbabilityBasedSampler{%.6f}", samplingProbability);
+  }
+
+  @Override
+  protected long getThreshold(long parentThreshold, boolean isRoot) {
+    return threshold;
+  }
+
+  @Override
+  public String getDescription() {
+    return description;
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import static java.util.Objects.requireNonNull;
+
+import io.opentelemetry.contrib.samplers.ConsistentRateLimitingSampler.SamplingProbabilityEstimator;
+import java.util.function.LongSupplier;
+
+/**
+ * A consistent threshold sampler that adjusts the sampling probability dynamically to limit the
+ * rate of sampled spans.
+ *
+ * <p>The sampling probability is estimated as for {@link ConsistentRateLimitingSampler}. In
+ * contrast to the latter, it is directly translated into a threshold instead of being rounded
+ * stochastically to one of the two closest powers of two, which avoids the additional variance and
+ * the random number needed for every span.
+ */
+final class ConsistentThresholdRateLimitingSampler extends ConsistentThresholdSampler {
+
+  private final String description;
+  private final LongSupplier nanoTimeSupplier;
+  private final SamplingProbabilityEstimator estimator;
+
+  /**
+   * Constructor.
+   *
+   * @param targetSpansPerSecondLimit the desired spans per second limit
+   * @param adaptationTimeSeconds the typical time to adapt to a new load (time constant used for
+   *     exponential smoothing)
+   * @param nanoTimeSupplier a supplier for the current nano time
+   */
+  ConsistentThresholdRateLimitingSampler(
+      double targetSpansPerSecondLimit,
+      double adaptationTimeSeconds,
+      LongSupplier nanoTimeSupplier) {
+    ConsistentRateLimitingSampler.checkArguments(targetSpansPerSecondLimit, adaptationTimeSeconds);
+    this.description =
+        String.format(
+            "ConsistentThresholdRateLimitingSampler{%.6f, %.6f}",
+            targetSpansPerSecondLimit, adaptationTimeSeconds);
+    this.nanoTimeSupplier = requireNonNull(nanoTimeSupplier);
+    this.estimator =
+        new SamplingProbabilityEstimator(
+            targetSpansPerSecondLimit, adaptationTimeSeconds, nanoTimeSupplier.getAsLong());
+  }
+
+  @Override
+  protected long getThreshold(long parentThreshold, boolean isRoot) {
+    double samplingProbability =
+        estimator.countSpanAndGetSamplingProbability(nanoTimeSupplier.getAsLong());
+    return calculateThreshold(Math.min(samplingProbability, 1.));
+  }
+
+  @Override
+  public String getDescription() {
+    return description;
+  }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.trace.data.LinkData;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
+import io.opentelemetry.sdk.trace.samplers.SamplingDecision;
+import io.opentelemetry.sdk.trace.samplers.SamplingResult;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/**
+ * Abstract base class for consistent samplers that decide based on a 56-bit rejection threshold
+ * instead of a p-value.
+ *
+ * <p>Every span has a 56-bit random value, and it is sampled if its random value is not smaller
+ * than the rejection threshold {@code t}, which happens with probability {@code (2^56 - t) / 2^56}.
+ * Hence, any sampling probability that is a multiple of {@code 2^-56} is supported exactly, not
+ * only powers of two, and the sampling decision is a single comparison, which does not need any
+ * random number. The threshold of sampled spans is propagated in the trace state as {@code th},
+ * encoded as up to 14 hex digits without trailing zeros, the random value is given by the rightmost
+ * 56 bits of the trace id, unless it is propagated explicitly as {@code rv}, encoded as exactly 14
+ * hex digits.
+ *
+ * <p>Threshold samplers interoperate with p-value based {@link ConsistentSampler}s. If an r-value
+ * is received, the random value is derived from it and the trace id, such that both kinds of
+ * samplers make the same decisions for power-of-two sampling probabilities (see {@link
+ * OtelTraceState#getRandomValueFromR(int, String)}). In such traces, the decision is propagated as
+ * p-value, if the sampling probability is a power of two, so that p-value based peers understand
+ * it, and as threshold otherwise. A received p-value without threshold is translated into the
+ * corresponding threshold. Conversely, {@link ConsistentSampler}s derive the r-value from the
+ * random value, and the p-value from the threshold, when receiving a trace state in this format.
+ */
+public abstract class ConsistentThresholdSampler implements Sampler {
+
+  private static final double THRESHOLD_SCALE = OtelTraceState.getMaxThreshold();
+
+  /**
+   * Returns a {@link ConsistentThresholdSampler} that samples each span with a fixed probability.
+   *
+   * <p>The sampling probability is rounded to the nearest multiple of {@code 2^-56}.
+   *
+   * @param samplingProbability the sampling probability
+   * @return a sampler
+   */
+  public static final ConsistentThresholdSampler probabilityBased(double samplingProbability) {
+    return new ConsistentThresholdProbabilityBasedSampler(samplingProbability);
+  }
+
+  /**
+   * Returns a new {@link ConsistentThresholdSampler} that respects the sampling decision of the
+   * parent span or falls-back to the given sampler if it is a root span.
+   *
+   * @param rootSampler the root sampler
+   */
+  public static final ConsistentThresholdSampler parentBased(
+      ConsistentThresholdSampler rootSampler) {
+    return new ConsistentThresholdParentBasedSampler(rootSampler);
+  }
+
+  /**
+   * Returns a new {@link ConsistentThresholdSampler} that attempts to adjust the sampling
+   * probability dynamically to meet the target span rate.
+   *
+   * <p>The rate is estimated as for {@link ConsistentSampler#rateLimited(double, double)}, but the
+   * estimated sampling probability is used exactly instead of being rounded stochastically to a
+   * power of two.
+   *
+   * @param targetSpansPerSecondLimit the desired spans per second limit
+   * @param adaptationTimeSeconds the typical time to adapt to a new load (time constant used for
+   *     exponential smoothing)
+   */
+  public static final ConsistentThresholdSampler rateLimited(
+      double targetSpansPerSecondLimit, double adaptationTimeSeconds) {
+    return rateLimited(targetSpansPerSecondLimit, adaptationTimeSeconds, System::nanoTime);
+  }
+
+  /**
+   * Returns a new {@link ConsistentThresholdSampler} that attempts to adjust the sampling
+   * probability dynamically to meet the target span rate.
+   *
+   * @param targetSpansPerSecondLimit the desired spans per second limit
+   * @param adaptationTimeSeconds the typical time to adapt to a new load (time constant used for
+   *     exponential smoothing)
+   * @param nanoTimeSupplier a supplier for the current nano time
+   */
+  static final ConsistentThresholdSampler rateLimited(
+      double targetSpansPerSecondLimit,
+      double adaptationTimeSeconds,
+      LongSupplier nanoTimeSupplier) {
+    return new ConsistentThresholdRateLimitingSampler(
+        targetSpansPerSecondLimit, adaptationTimeSeconds, nanoTimeSupplier);
+  }
+
+  /**
+   * Returns a {@link ConsistentThresholdSampler} that samples a span if both this and the other
+   * given sampler would sample the span, which is the case if the random value is not smaller than
+   * the larger of both thresholds.
+   *
+   * <p>If the other sampler is the same as this, this sampler will be returned.
+   *
+   * @param otherSampler the other sampler
+   * @return the composed sampler
+   */
+  public ConsistentThresholdSampler and(ConsistentThresholdSampler otherSampler) {
+    if (otherSampler == this) {
+      return this;
+    }
+    return new ConsistentThresholdComposedSampler(this, otherSampler, /* isAnd= */ true);
+  }
+
+  /**
+   * Returns a {@link ConsistentThresholdSampler} that samples a span if either this or the other
+   * given sampler would sample the span, which is the case if the random value is not smaller than
+   * the smaller of both thresholds.
+   *
+   * <p>If the other sampler is the same as this, this sampler will be returned.
+   *
+   * @param otherSampler the other sampler
+   * @return the composed sampler
+   */
+  public ConsistentThresholdSampler or(ConsistentThresholdSampler otherSampler) {
+    if (otherSampler == this) {
+      return this;
+    }
+    return new ConsistentThresholdComposedSampler(this, otherSampler, /* isAnd= */ false);
+  }
+
+  @Override
+  public final SamplingResult shouldSample(
+      Context parentContext,
+      String traceId,
+      String name,
+      SpanKind spanKind,
+      Attributes attributes,
+      List<LinkData> parentLinks) {
+
+    SpanContext parentSpanContext = Span.fromContext(parentContext).getSpanContext();
+    boolean isRoot = !parentSpanContext.isValid();
+    boolean isParentSampled = parentSpanContext.isSampled();
+    String otelTraceStateString =
+        parentSpanContext.getTraceState().get(OtelTraceState.TRACE_STATE_KEY);
+
+    // fast path for parents without trace state, like for root spans, the random value is given by
+    // the trace id, and the result only depends on the threshold, which avoids any allocations
+    if (otelTraceStateString == null) {
+      long threshold =
+          getThreshold(OtelTraceState.getInvalidThreshold(), isRoot, name, spanKind, attributes);
+      if (!OtelTraceState.isValidThreshold(threshold)) {
+        return ConsistentSamplingResult.getWithoutR(OtelTraceState.getInvalidP(), isParentSampled);
+      }
+      if (OtelTraceState.getRandomValueFromTraceId(traceId) >= threshold) {
+        return ConsistentSamplingResult.getForThreshold(threshold);
+      }
+      return ConsistentSamplingResult.getWithoutR(
+          OtelTraceState.getInvalidP(), /* isSampled= */ false);
+    }
+
+    OtelTraceState otelTraceState = OtelTraceState.parse(otelTraceStateString);
+    long randomValue;
+    if (otelTraceState.hasValidRandomValue()) {
+      randomValue = otelTraceState.getRandomValue();
+    } else {
+      if (!otelTraceState.hasValidR()
+          && otelTraceState.hasValidP()
+          && !otelTraceState.hasValidThreshold()) {
+        // the r-value of a p-value without r-value is derived from the trace id by p-value based
+        // peers, it is propagated explicitly, so that the decision can be propagated as p-value
+        otelTraceState.setR(OtelTraceState.getRFromTraceId(traceId));
+      }
+      randomValue =
+          otelTraceState.hasValidR()
+              ? OtelTraceState.getRandomValueFromR(otelTraceState.getR(), traceId)
+              : OtelTraceState.getRandomValueFromTraceId(traceId);
+    }
+
+    long parentThreshold = OtelTraceState.getInvalidThreshold();
+    if (otelTraceState.hasValidThreshold()) {
+      parentThreshold = otelTraceState.getThreshold();
+    } else if (otelTraceState.hasValidP()) {
+      parentThreshold = OtelTraceState.getThresholdForP(otelTraceState.getP());
+    }
+    if (OtelTraceState.isValidThreshold(parentThreshold)
+        && (randomValue >= parentThreshold) != isParentSampled) {
+      // unset the parent threshold if inconsistent with the sampled flag
+      parentThreshold = OtelTraceState.getInvalidThreshold();
+    }
+
+    long threshold = getThreshold(parentThreshold, isRoot, name, spanKind, attributes);
+    boolean isSampled;
+    if (OtelTraceState.isValidThreshold(threshold)) {
+      isSampled = randomValue >= threshold;
+    } else {
+      // if the new threshold is invalid, respect sampling decision of parent
+      isSampled = isParentSampled;
+    }
+
+    // in traces with r-values, the decision is propagated as p-value if possible, which is also
+    // understood by p-value based peers
+    otelTraceState.invalidateP();
+    otelTraceState.invalidateThreshold();
+    if (isSampled && OtelTraceState.isValidThreshold(threshold)) {
+      int p = OtelTraceState.getPForThreshold(threshold);
+      if (otelTraceState.hasValidR() && OtelTraceState.isValidP(p)) {
+        otelTraceState.setP(p);
+      } else {
+        otelTraceState.setThreshold(threshold);
+      }
+    }
+    return ConsistentSamplingResult.create(
+        isSampled ? SamplingDecision.RECORD_AND_SAMPLE : SamplingDecision.DROP,
+        otelTraceState.serialize());
+  }
+
+  /**
+   * Returns the rejection threshold that is used for the sampling decision.
+   *
+   * <p>The threshold {@code t} corresponds to the sampling probability {@code (2^56 - t) / 2^56}.
+   * Thresholds outside of the range {@code [0, 2^56]} are invalid, in which case the sampling
+   * decision of the parent is respected.
+   *
+   * <p>NOTE: As for {@link ConsistentSampler#getP(int, boolean)}, the returned threshold must not
+   * depend directly or indirectly on the random value, and therefore also not on the parent sampled
+   * flag.
+   *
+   * @param parentThreshold the threshold (if known) that was used for a consistent sampling
+   *     decision by the parent
+   * @param isRoot is true for the root span
+   * @return the threshold
+   */
+  protected abstract long getThreshold(long parentThreshold, boolean isRoot);
+
+  /**
+   * Returns the rejection threshold that is used for the sampling decision of a span with given
+   * name, kind, and attributes.
+   *
+   * <p>Samplers composed of other samplers must override this method and delegate to the same
+   * method of their components. By default, the span is ignored and {@link #getThreshold(long,
+   * boolean)} is returned.
+   *
+   * @param parentThreshold the threshold (if known) that was used for a consistent sampling
+   *     decision by the parent
+   * @param isRoot is true for the root span
+   * @param name the name of the span
+   * @param spanKind the kind of the span
+   * @param attributes the attributes of the span
+   * @return the threshold
+   */
+  protected long getThreshold(
+      long parentThreshold, boolean isRoot, String name, SpanKind spanKind, Attributes attributes) {
+    return getThreshold(parentThreshold, isRoot);
+  }
+
+  /**
+   * Returns the rejection threshold for the given sampling probability, which is rounded to the
+   * nearest multiple of {@code 2^-56}.
+   *
+   * @param samplingProbability the sampling probability
+   * @return the threshold
+   * @throws IllegalArgumentException if the sampling probability is not in the range [0,1]
+   */
+  protected static long calculateThreshold(double samplingProbability) {
+    if (!(samplingProbability >= 0.0 && samplingProbability <= 1.0)) {
+      throw new IllegalArgumentException();
+    }
+    return OtelTraceState.getMaxThreshold() - Math.round(samplingProbability * THRESHOLD_SCALE);
+  }
+
+  /**
+   * Returns the sampling probability for a given rejection threshold.
+   *
+   * @param threshold the threshold
+   * @return the sampling probability in the range [0,1]
+   * @throws IllegalArgumentException if the given threshold is invalid
+   */
+  protected static double calculateSamplingProbability(long threshold) {
+    if (!OtelTraceState.isValidThreshold(threshold)) {
+      throw new IllegalArgumentException("Invalid threshold!");
+    }
+    return (OtelTraceState.getMaxThreshold() - threshold) / THRESHOLD_SCALE;
+  }
+}
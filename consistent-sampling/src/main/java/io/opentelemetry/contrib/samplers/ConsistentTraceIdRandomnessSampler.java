@@ -0,0 +1,63 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import static java.util.Objects.requireNonNull;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.SpanKind;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A consistent sampler that makes the same sampling decisions as the given consistent sampler, but
+ * derives missing r-values from the trace id instead of generating them.
+ *
+ * <p>A derived r-value is not propagated, as every participant can derive it again from the trace
+ * id. An r-value received from the parent is still used and propagated.
+ */
+@Immutable
+final class ConsistentTraceIdRandomnessSampler extends ConsistentSampler {
+
+  private final ConsistentSampler delegate;
+  private final String description;
+
+  ConsistentTraceIdRandomnessSampler(ConsistentSampler delegate) {
+    this.delegate = requireNonNull(delegate);
+    this.description =
+        "ConsistentTraceIdRandomnessSampler{delegate=" + delegate.getDescription() + '}';
+  }
+
+  @Override
+  protected int getP(int parentP, boolean isRoot) {
+    return delegate.getP(parentP, isRoot);
+  }
+
+  @Override
+  protected int getP(
+      int parentP, boolean isRoot, String name, SpanKind spanKind, Attributes attributes) {
+    return delegate.getP(parentP, isRoot, name, spanKind, attributes);
+  }
+
+  @Override
+  boolean isRDerivedFromTraceId() {
+    return true;
+  }
+
+  @Override
+  public ConsistentSampler withTraceIdRandomness() {
+    return this;
+  }
+
+  @Override
+  boolean isStateless() {
+    return delegate.isStateless();
+  }
+
+  @Override
+  public String getDescription() {
+    return description;
+  }
+}
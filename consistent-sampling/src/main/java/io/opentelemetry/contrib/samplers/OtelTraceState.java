@@ -5,6 +5,7 @@
 
 package io.opentelemetry.contrib.samplers;
 
+import io.opentelemetry.api.internal.OtelEncodingUtils;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -21,9 +22,27 @@ final class OtelTraceState {
   private static final int INVALID_P = -1;
   private static final int INVALID_R = -1;
   private static final int TRACE_STATE_SIZE_LIMIT = 256;
+  private static final long TRACE_ID_RANDOMNESS_MASK = 0x00FFFFFFFFFFFFFFL;
+  private static final int TRACE_ID_RANDOMNESS_BITS = 56;
+  private static final String THRESHOLD_SUBKEY = "th";
+  private static final String RANDOM_VALUE_SUBKEY = "rv";
+  private static final int MAX_HEX_DIGITS = TRACE_ID_RANDOMNESS_BITS / 4;
+  private static final long MAX_THRESHOLD = 1L << TRACE_ID_RANDOMNESS_BITS;
+  private static final long INVALID_THRESHOLD = -1;
+  private static final long INVALID_RANDOM_VALUE = -1;
+
+  /**
+   * Returned by {@link #parsePacked(String)} if the string contains key-value pairs other than the
+   * p- and r-value, which includes the threshold and the random value.
+   */
+  public static final int HAS_OTHER_KEY_VALUE_PAIRS = -1;
+
+  private static final int PARSE_ERROR = -2;
 
   private int rval; // valid in the interval [0, MAX_R]
   private int pval; // valid in the interval [0, MAX_P]
+  private long threshold = INVALID_THRESHOLD; // valid in the interval [0, MAX_THRESHOLD]
+  private long randomValue = INVALID_RANDOM_VALUE; // valid in the interval [0, MAX_THRESHOLD)
 
   private final List<String> otherKeyValuePairs;
 
@@ -83,6 +102,52 @@ final class OtelTraceState {
     }
   }
 
+  public boolean hasValidThreshold() {
+    return isValidThreshold(threshold);
+  }
+
+  public boolean hasValidRandomValue() {
+    return isValidRandomValue(randomValue);
+  }
+
+  public void invalidateThreshold() {
+    threshold = INVALID_THRESHOLD;
+  }
+
+  public void invalidateRandomValue() {
+    randomValue = INVALID_RANDOM_VALUE;
+  }
+
+  /**
+   * Sets a new rejection threshold.
+   *
+   * <p>If the given threshold is invalid, the current threshold is invalidated.
+   *
+   * @param threshold the new threshold
+   */
+  public void setThreshold(long threshold) {
+    if (isValidThreshold(threshold)) {
+      this.threshold = threshold;
+    } else {
+      invalidateThreshold();
+    }
+  }
+
+  /**
+   * Sets a new random value.
+   *
+   * <p>If the given random value is invalid, the current random value is invalidated.
+   *
+   * @param randomValue the new random value
+   */
+  public void setRandomValue(long randomValue) {
+    if (isValidRandomValue(randomValue)) {
+      this.randomValue = randomValue;
+    } else {
+      invalidateRandomValue();
+    }
+  }
+
   /**
    * Returns a string representing this state.
    *
@@ -99,6 +164,21 @@ final class OtelTraceState {
       }
       sb.append("r:").append(rval);
     }
+    // a threshold of MAX_THRESHOLD cannot be encoded, it is never needed for sampled spans
+    if (hasValidThreshold() && threshold < MAX_THRESHOLD) {
+      if (sb.length() > 0) {
+        sb.append(';');
+      }
+      sb.append(THRESHOLD_SUBKEY).append(':');
+      appendThreshold(sb, threshold);
+    }
+    if (hasValidRandomValue()) {
+      if (sb.length() > 0) {
+        sb.append(';');
+      }
+      sb.append(RANDOM_VALUE_SUBKEY).append(':');
+      appendHexDigits(sb, randomValue, MAX_HEX_DIGITS);
+    }
     for (String pair : otherKeyValuePairs) {
       int ex = sb.length();
       if (ex != 0) {
@@ -115,6 +195,22 @@ final class OtelTraceState {
     return sb.toString();
   }
 
+  // trailing zeros are omitted, a threshold of zero is encoded as a single zero
+  private static void appendThreshold(StringBuilder sb, long threshold) {
+    if (threshold == 0) {
+      sb.append('0');
+      return;
+    }
+    int numberOfDigits = MAX_HEX_DIGITS - Long.numberOfTrailingZeros(threshold) / 4;
+    appendHexDigits(sb, threshold >>> (4 * (MAX_HEX_DIGITS - numberOfDigits)), numberOfDigits);
+  }
+
+  private static void appendHexDigits(StringBuilder sb, long value, int numberOfDigits) {
+    for (int shift = 4 * (numberOfDigits - 1); shift >= 0; shift -= 4) {
+      sb.append(Character.forDigit((int) (value >>> shift) & 0xF, 16));
+    }
+  }
+
   private static boolean isValueByte(char c) {
     return isLowerCaseAlphaNum(c) || isUpperCaseAlpha(c) || c == '.' || c == '_' || c == '-';
   }
@@ -155,6 +251,32 @@ final class OtelTraceState {
     return invalidValue;
   }
 
+  /**
+   * Parses at least the given minimum number of and at most 14 lowercase hex digits, which are the
+   * most significant digits of a 56-bit value whose omitted trailing digits are zero.
+   */
+  private static long parseHexDigits(
+      String ts, int from, int to, int minNumberOfDigits, long invalidValue) {
+    int numberOfDigits = to - from;
+    if (numberOfDigits < minNumberOfDigits || numberOfDigits > MAX_HEX_DIGITS) {
+      return invalidValue;
+    }
+    long value = 0;
+    for (int i = from; i < to; ++i) {
+      char c = ts.charAt(i);
+      int digit;
+      if (isDigit(c)) {
+        digit = c - '0';
+      } else if (c >= 'a' && c <= 'f') {
+        digit = c - 'a' + 10;
+      } else {
+        return invalidValue;
+      }
+      value = (value << 4) | digit;
+    }
+    return value << (4 * (MAX_HEX_DIGITS - numberOfDigits));
+  }
+
   public static boolean isValidR(int v) {
     return 0 <= v && v <= MAX_R;
   }
@@ -163,6 +285,14 @@ final class OtelTraceState {
     return 0 <= v && v <= MAX_P;
   }
 
+  public static boolean isValidThreshold(long v) {
+    return 0 <= v && v <= MAX_THRESHOLD;
+  }
+
+  public static boolean isValidRandomValue(long v) {
+    return 0 <= v && v < MAX_THRESHOLD;
+  }
+
   /**
    * Parses the OtelTraceState from a given string.
    *
@@ -172,16 +302,42 @@ final class OtelTraceState {
    * @return the parsed OtelTraceState or a new empty OtelTraceState in case of parsing errors
    */
   public static OtelTraceState parse(@Nullable String ts) {
-    List<String> otherKeyValuePairs = null;
+    int packed = parse(ts, null);
+    if (packed == HAS_OTHER_KEY_VALUE_PAIRS) {
+      OtelTraceState otelTraceState = new OtelTraceState(INVALID_R, INVALID_P, new ArrayList<>());
+      packed = parse(ts, otelTraceState);
+      if (packed == PARSE_ERROR) {
+        return new OtelTraceState();
+      }
+      otelTraceState.rval = getPackedR(packed);
+      otelTraceState.pval = getPackedP(packed);
+      return otelTraceState;
+    }
+    if (packed == PARSE_ERROR) {
+      return new OtelTraceState();
+    }
+    return new OtelTraceState(getPackedR(packed), getPackedP(packed), Collections.emptyList());
+  }
+
+  /**
+   * Parses the given string.
+   *
+   * @param ts the string
+   * @param otelTraceState the state collecting the threshold, the random value, and all other
+   *     key-value pairs, or null if parsing should be stopped with {@link
+   *     #HAS_OTHER_KEY_VALUE_PAIRS} at the first key-value pair other than the p- and r-value
+   * @return the packed p- and r-value, {@link #HAS_OTHER_KEY_VALUE_PAIRS}, or {@link #PARSE_ERROR}
+   */
+  private static int parse(@Nullable String ts, @Nullable OtelTraceState otelTraceState) {
     int p = INVALID_P;
     int r = INVALID_R;
 
     if (ts == null || ts.isEmpty()) {
-      return new OtelTraceState();
+      return pack(p, r);
     }
 
     if (ts.length() > TRACE_STATE_SIZE_LIMIT) {
-      return new OtelTraceState();
+      return PARSE_ERROR;
     }
 
     int startPos = 0;
@@ -196,7 +352,7 @@ final class OtelTraceState {
         }
       }
       if (colonPos == startPos || colonPos == len || ts.charAt(colonPos) != ':') {
-        return new OtelTraceState();
+        return PARSE_ERROR;
       }
 
       int separatorPos = colonPos + 1;
@@ -208,15 +364,20 @@ final class OtelTraceState {
         p = parseOneOrTwoDigitNumber(ts, colonPos + 1, separatorPos, MAX_P, INVALID_P);
       } else if (colonPos - startPos == 1 && ts.charAt(startPos) == R_SUBKEY) {
         r = parseOneOrTwoDigitNumber(ts, colonPos + 1, separatorPos, MAX_R, INVALID_R);
+      } else if (otelTraceState == null) {
+        return HAS_OTHER_KEY_VALUE_PAIRS;
+      } else if (colonPos - startPos == 2 && ts.startsWith(THRESHOLD_SUBKEY, startPos)) {
+        otelTraceState.threshold =
+            parseHexDigits(ts, colonPos + 1, separatorPos, 1, INVALID_THRESHOLD);
+      } else if (colonPos - startPos == 2 && ts.startsWith(RANDOM_VALUE_SUBKEY, startPos)) {
+        otelTraceState.randomValue =
+            parseHexDigits(ts, colonPos + 1, separatorPos, MAX_HEX_DIGITS, INVALID_RANDOM_VALUE);
       } else {
-        if (otherKeyValuePairs == null) {
-          otherKeyValuePairs = new ArrayList<>();
-        }
-        otherKeyValuePairs.add(ts.substring(startPos, separatorPos));
+        otelTraceState.otherKeyValuePairs.add(ts.substring(startPos, separatorPos));
       }
 
       if (separatorPos < len && ts.charAt(separatorPos) != ';') {
-        return new OtelTraceState();
+        return PARSE_ERROR;
       }
 
       if (separatorPos == len) {
@@ -227,12 +388,297 @@ final class OtelTraceState {
 
       // test for a trailing ;
       if (startPos == len) {
-        return new OtelTraceState();
+        return PARSE_ERROR;
+      }
+    }
+
+    return pack(p, r);
+  }
+
+  /**
+   * Parses the p- and r-value from a given string without allocating any objects.
+   *
+   * <p>The p- and r-value are packed into a single non-negative int, which can be unpacked using
+   * {@link #getPackedP(int)} and {@link #getPackedR(int)}. In case of parsing errors, both are
+   * invalid, in the same way as {@link #parse(String)} returns an empty OtelTraceState. If the
+   * string contains other key-value pairs, which would need to be preserved, {@link
+   * #HAS_OTHER_KEY_VALUE_PAIRS} is returned instead and the string must be parsed using {@link
+   * #parse(String)}.
+   *
+   * @param ts the string
+   * @return the packed p- and r-value or {@link #HAS_OTHER_KEY_VALUE_PAIRS}
+   */
+  public static int parsePacked(@Nullable String ts) {
+    int packed = parse(ts, null);
+    return (packed == PARSE_ERROR) ? pack(INVALID_P, INVALID_R) : packed;
+  }
+
+  /**
+   * Returns the p-value of a packed result of {@link #parsePacked(String)}.
+   *
+   * @param packed the packed p- and r-value
+   * @return the p-value
+   */
+  public static int getPackedP(int packed) {
+    return (packed >>> 8) - 1;
+  }
+
+  /**
+   * Returns the r-value of a packed result of {@link #parsePacked(String)}.
+   *
+   * @param packed the packed p- and r-value
+   * @return the r-value
+   */
+  public static int getPackedR(int packed) {
+    return (packed & 0xFF) - 1;
+  }
+
+  /**
+   * Derives an r-value from the given trace id.
+   *
+   * <p>W3C trace ids with the random flag, like those generated by the OpenTelemetry SDK, have 56
+   * random bits in their rightmost 7 bytes. The r-value is the number of leading ones of these 56
+   * bits, which is geometrically distributed like a generated r-value, but capped at 56 instead of
+   * {@link #getMaxR()}. As the r-value is a function of the trace id, all participants derive the
+   * same r-value without propagating it. It is the r-value of the random value threshold samplers
+   * use in the absence of a propagated random value (see {@link #getRFromRandomValue(long)}), hence
+   * both kinds of samplers make the same decisions for the same trace id.
+   *
+   * @param traceId the trace id as lowercase base16 string of length 32
+   * @return the r-value
+   */
+  public static int getRFromTraceId(String traceId) {
+    return getRFromRandomValue(getRandomValueFromTraceId(traceId));
+  }
+
+  /**
+   * Returns a pseudorandom hash of the given trace id, which is a different function of the trace
+   * id for every seed.
+   *
+   * <p>For a random seed, the hash is independent of the bits of the trace id a sampler might have
+   * based its decision on, and can serve as randomness shared by all spans of a trace, where the
+   * trace id itself cannot be used.
+   *
+   * @param traceId the trace id as lowercase base16 string of length 32
+   * @param seed the seed
+   * @return the hash
+   */
+  public static long hashTraceId(String traceId, long seed) {
+    long high = OtelEncodingUtils.longFromBase16String(traceId, 0);
+    long low = OtelEncodingUtils.longFromBase16String(traceId, 16);
+    return mix64(mix64(high ^ seed) ^ low);
+  }
+
+  // the finalizer of the 64-bit MurmurHash3
+  private static long mix64(long x) {
+    x = (x ^ (x >>> 33)) * 0xff51afd7ed558ccdL;
+    x = (x ^ (x >>> 33)) * 0xc4ceb9fe1a85ec53L;
+    return x ^ (x >>> 33);
+  }
+
+  /**
+   * Returns the r-value of a span with this trace state, if it has been sampled consistently.
+   *
+   * <p>A propagated r-value or random value is used if available. Otherwise, the r-value is only
+   * derived from the trace id if a p-value or threshold has been propagated, as consistent samplers
+   * only omit the randomness if every participant derives it from the trace id. For spans that were
+   * not sampled consistently, the trace id may not be random or may have been used for the sampling
+   * decision, like by the {@code TraceIdRatioBased} sampler, and an invalid r-value is returned.
+   *
+   * @param traceId the trace id as lowercase base16 string of length 32
+   * @return the r-value or an invalid r-value
+   */
+  public int getRForSpan(String traceId) {
+    if (hasValidR()) {
+      return rval;
+    }
+    if (hasValidRandomValue()) {
+      return getRFromRandomValue(randomValue);
+    }
+    if (hasValidP() || hasValidThreshold()) {
+      return getRFromTraceId(traceId);
+    }
+    return INVALID_R;
+  }
+
+  /**
+   * Returns the p-value with which span processors treat a span with this trace state.
+   *
+   * <p>This is the propagated p-value, or for spans sampled by threshold samplers the largest
+   * p-value whose threshold does not exceed the propagated threshold, which takes precedence. As
+   * the random value of a sampled span is not smaller than its threshold, its r-value (see {@link
+   * #getRForSpan(String)}) is not smaller than this p-value. If neither is defined, the p-value is
+   * assumed to be zero, which corresponds to an adjusted count of 1.
+   *
+   * @return the p-value
+   */
+  public int getPForSpan() {
+    if (hasValidThreshold()) {
+      return getFloorPForThreshold(threshold);
+    }
+    return hasValidP() ? pval : 0;
+  }
+
+  /**
+   * Returns the adjusted count of a sampled span with this trace state, which is the reciprocal of
+   * its sampling probability, given by its threshold or p-value. The threshold takes precedence, as
+   * span processors adjust the threshold of spans sampled by threshold samplers (see {@link
+   * #raiseP(int, int)}). Spans with neither were not sampled consistently and are counted once.
+   *
+   * @return the adjusted count, which is zero for a sampling probability of zero
+   */
+  public double getAdjustedCount() {
+    if (hasValidThreshold()) {
+      return (threshold == MAX_THRESHOLD)
+          ? 0.
+          : (double) MAX_THRESHOLD / (double) (MAX_THRESHOLD - threshold);
+    }
+    if (hasValidP()) {
+      return (pval < MAX_P) ? Math.scalb(1., pval) : 0.;
+    }
+    return 1.;
+  }
+
+  /**
+   * Lowers the sampling probability of a span with this trace state to at most {@code 2^-pval},
+   * after it has been kept by a span processor based on its r-value (see {@link
+   * #getRForSpan(String)}).
+   *
+   * <p>The adjustment is made in the format in which the span was sampled. The threshold of spans
+   * sampled by threshold samplers is raised to the threshold of the given p-value, as keeping a
+   * span with an r-value of at least {@code pval} corresponds to keeping it with a random value of
+   * at least that threshold. No p-value is added to those spans. For all other spans, the p-value
+   * is set to the given one, unless it would only make an undefined p-value of a span without
+   * r-value explicitly zero.
+   *
+   * <p>Spans that were not sampled consistently have no r-value (see {@link #getRForSpan(String)}),
+   * and are kept by span processors based on an r-value drawn by the processor. Once a p-value is
+   * set, consumers of the span, like downstream span processors or backends, would derive a
+   * different r-value from the trace id, which may be smaller than the p-value. The drawn r-value
+   * is therefore set as well.
+   *
+   * @param pval the adjusted p-value, which is not smaller than {@link #getPForSpan()}
+   * @param rval the r-value based on which the span has been kept, which is only set if the span
+   *     has no r-value of its own
+   * @return {@code true} if this trace state has been changed
+   */
+  public boolean raiseP(int pval, int rval) {
+    if (hasValidThreshold()) {
+      // thresholds for p-values greater than 56 cannot be encoded, the largest one is used instead
+      long raisedThreshold =
+          Math.min(Math.max(threshold, getThresholdForP(pval)), MAX_THRESHOLD - 1);
+      if (raisedThreshold <= threshold) {
+        return false;
+      }
+      threshold = raisedThreshold;
+      return true;
+    }
+    if (hasValidR() ? pval != this.pval : pval > 0) {
+      if (!hasValidR() && !hasValidRandomValue() && !hasValidP()) {
+        setR(rval);
       }
+      setP(pval);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns the random value given by the rightmost 56 bits of the given trace id, which is used by
+   * threshold sampling if no random value is propagated.
+   *
+   * @param traceId the trace id as lowercase base16 string of length 32
+   * @return the random value
+   */
+  public static long getRandomValueFromTraceId(String traceId) {
+    return OtelEncodingUtils.longFromBase16String(traceId, 16) & TRACE_ID_RANDOMNESS_MASK;
+  }
+
+  /**
+   * Returns a random value that is consistent with the given r-value.
+   *
+   * <p>The random value has r leading ones followed by a zero, the remaining bits are taken from
+   * the rightmost bits of the trace id. Therefore, it is at least {@link #getThresholdForP(int)
+   * getThresholdForP(p)} if and only if {@code p <= r}, and sampling decisions based on thresholds
+   * are the same as those based on p-values for all p-values up to 56. As the r-value is
+   * geometrically distributed, the random value is uniformly distributed, if the trace id bits are
+   * random.
+   *
+   * @param r the r-value
+   * @param traceId the trace id as lowercase base16 string of length 32
+   * @return the random value
+   */
+  public static long getRandomValueFromR(int r, String traceId) {
+    if (r >= TRACE_ID_RANDOMNESS_BITS) {
+      return TRACE_ID_RANDOMNESS_MASK;
+    }
+    long remainingBitsMask = (1L << (TRACE_ID_RANDOMNESS_BITS - 1 - r)) - 1;
+    return getThresholdForP(r) | (getRandomValueFromTraceId(traceId) & remainingBitsMask);
+  }
+
+  /**
+   * Returns the r-value that is consistent with the given random value, which is the number of its
+   * leading ones, compare {@link #getRandomValueFromR(int, String)}.
+   *
+   * @param randomValue the random value
+   * @return the r-value, at most 56
+   */
+  public static int getRFromRandomValue(long randomValue) {
+    return Long.numberOfLeadingZeros(~(randomValue << (Long.SIZE - TRACE_ID_RANDOMNESS_BITS)));
+  }
+
+  /**
+   * Returns the rejection threshold corresponding to the given p-value.
+   *
+   * <p>A span is sampled if its random value is not smaller than the threshold, which has
+   * probability {@code 2^-p}. p-values greater than 56 correspond to probabilities that cannot be
+   * represented by a threshold, they are mapped to {@link #getMaxThreshold()}.
+   *
+   * @param p the p-value
+   * @return the threshold
+   */
+  public static long getThresholdForP(int p) {
+    if (p > TRACE_ID_RANDOMNESS_BITS) {
+      return MAX_THRESHOLD;
+    }
+    return MAX_THRESHOLD - (MAX_THRESHOLD >>> p);
+  }
+
+  /**
+   * Returns the p-value corresponding to the given threshold, if the sampling probability of the
+   * threshold is a power of two, or an invalid p-value otherwise.
+   *
+   * @param threshold the threshold
+   * @return the p-value
+   */
+  public static int getPForThreshold(long threshold) {
+    if (!isValidThreshold(threshold)) {
+      return INVALID_P;
+    }
+    if (threshold == MAX_THRESHOLD) {
+      return MAX_P;
+    }
+    long samplingProbabilityNumerator = MAX_THRESHOLD - threshold;
+    if (Long.bitCount(samplingProbabilityNumerator) != 1) {
+      return INVALID_P;
+    }
+    return Long.numberOfLeadingZeros(samplingProbabilityNumerator)
+        - (Long.SIZE - 1 - TRACE_ID_RANDOMNESS_BITS);
+  }
+
+  // the largest p-value whose threshold does not exceed the given valid threshold
+  private static int getFloorPForThreshold(long threshold) {
+    if (threshold == MAX_THRESHOLD) {
+      return MAX_P;
     }
+    // the sampling probability is (MAX_THRESHOLD - threshold) / 2^56, and at most 2^-p if the
+    // numerator does not exceed 2^(56 - p)
+    return Long.numberOfLeadingZeros(MAX_THRESHOLD - threshold - 1)
+        - (Long.SIZE - TRACE_ID_RANDOMNESS_BITS);
+  }
 
-    return new OtelTraceState(
-        r, p, (otherKeyValuePairs != null) ? otherKeyValuePairs : Collections.emptyList());
+  private static int pack(int p, int r) {
+    return ((p + 1) << 8) | (r + 1);
   }
 
   public int getR() {
@@ -243,6 +689,25 @@ final class OtelTraceState {
     return pval;
   }
 
+  public long getThreshold() {
+    return threshold;
+  }
+
+  public long getRandomValue() {
+    return randomValue;
+  }
+
+  /**
+   * Returns the threshold that corresponds to a sampling probability of zero.
+   *
+   * <p>No random value reaches this threshold, which cannot be encoded in the trace state.
+   *
+   * @return the maximum threshold
+   */
+  public static long getMaxThreshold() {
+    return MAX_THRESHOLD;
+  }
+
   public static int getMaxP() {
     return MAX_P;
   }
@@ -272,4 +737,13 @@ final class OtelTraceState {
   public static int getInvalidP() {
     return INVALID_P;
   }
+
+  /**
+   * Returns a threshold that is guaranteed to be invalid.
+   *
+   * @return an invalid threshold
+   */
+  public static long getInvalidThreshold() {
+    return INVALID_THRESHOLD;
+  }
 }
@@ -11,81 +11,26 @@ import java.util.BitSet;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.LongSupplier;
 
-final class RandomGenerator {
+/**
+ * A source of the random values needed for consistent sampling, which draws all its randomness from
+ * a thread-safe random long supplier.
+ *
+ * <p>No per-thread state is kept, which makes this class suitable for virtual threads, where
+ * thread-local buffers would be created for every task and discarded right away. Every method
+ * consumes whole random longs and uses as many of their bits as needed instead.
+ *
+ * <p>The random source is pluggable. The {@link #getDefault() default} generator draws random longs
+ * from {@link ThreadLocalRandom}, whose state is stored in the thread itself. {@link
+ * #createStriped(int)} returns a lock-free generator that distributes contention among several
+ * independent random streams, chosen by the id of the calling thread without any thread-local
+ * lookup. Any other thread-safe random long supplier can be plugged in using {@link
+ * #create(LongSupplier)}. A generator can be passed to the factory methods of {@link
+ * ConsistentSampler} and to the builders of the span processors.
+ */
+public final class RandomGenerator {
 
   private final LongSupplier threadSafeRandomLongSupplier;
 
-  private static final class ThreadLocalData {
-    private long randomBits = 0;
-    private int bitCount = 0;
-
-    private boolean nextRandomBit(LongSupplier threadSafeRandomLongSupplier) {
-      if ((bitCount & 0x3F) == 0) {
-        randomBits = threadSafeRandomLongSupplier.getAsLong();
-      }
-      boolean randomBit = ((randomBits >>> bitCount) & 1L) != 0L;
-      bitCount += 1;
-      return randomBit;
-    }
-
-    /**
-     * Returns a pseudorandomly chosen {@code boolean} value where the probability of returning
-     * {@code true} is predefined.
-     *
-     * <p>{@code true} needs to be returned with a success probability of {@code probability}. If
-     * the success probability is greater than 50% ({@code probability > 0.5}), the same can be
-     * achieved by returning {@code true} with a probability of 50%, and returning the result of a
-     * Bernoulli trial with a probability of {@code 2 * probability - 1}. The resulting success
-     * probability will be the same as {@code 0.5 + 0.5 * (2 * probability - 1) = probability}.
-     * Similarly, if the success probability is smaller than 50% ({@code probability <= 0.5}),
-     * {@code false} is returned with a probability of 50%. Otherwise, the result of a Bernoulli
-     * trial with success probability of {@code 2 * probability} is returned. Again, the resulting
-     * success probability is exactly as desired because {@code 0.5 * (2 * probability) =
-     * probability}. Recursive continuation of this approach allows realizing Bernoulli trials with
-     * arbitrary success probabilities using just few random bits.
-     *
-     * @param threadSafeRandomLongSupplier a thread-safe random long supplier
-     * @param probability the probability of returning {@code true}
-     * @return a random {@code boolean}
-     */
-    private boolean generateRandomBoolean(
-        LongSupplier threadSafeRandomLongSupplier, double probability) {
-      while (true) {
-        if (probability <= 0) {
-          return false;
-        }
-        if (probability >= 1) {
-          return true;
-        }
-        boolean b = probability > 0.5;
-        if (nextRandomBit(threadSafeRandomLongSupplier)) {
-          return b;
-        }
-        probability += probability;
-        if (b) {
-          probability -= 1;
-        }
-      }
-    }
-
-    /**
-     * Returns the number of leading zeros of a uniform random 64-bit integer.
-     *
-     * @param threadSafeRandomLongSupplier a thread-safe random long supplier
-     * @return the number of leading zeros
-     */
-    private int numberOfLeadingZerosOfRandomLong(LongSupplier threadSafeRandomLongSupplier) {
-      int count = 0;
-      while (count < Long.SIZE && nextRandomBit(threadSafeRandomLongSupplier)) {
-        count += 1;
-      }
-      return count;
-    }
-  }
-
-  private final ThreadLocal<ThreadLocalData> threadLocalData =
-      ThreadLocal.withInitial(ThreadLocalData::new);
-
   private static final RandomGenerator INSTANCE =
       new RandomGenerator(() -> ThreadLocalRandom.current().nextLong());
 
@@ -113,24 +58,87 @@ final class RandomGenerator {
     return INSTANCE;
   }
 
+  /**
+   * Creates a new lock-free random generator consisting of the given number of independent random
+   * streams, which are seeded randomly.
+   *
+   * <p>The stream is chosen by the id of the calling thread, so threads contend only if they are
+   * mapped to the same stream. The number of streams is rounded up to the next power of two.
+   *
+   * @param numberOfStripes the number of independent random streams, between 1 and 65536
+   * @return a random generator
+   */
+  public static RandomGenerator createStriped(int numberOfStripes) {
+    return createStriped(numberOfStripes, ThreadLocalRandom.current().nextLong());
+  }
+
+  /**
+   * Creates a new lock-free random generator consisting of the given number of independent random
+   * streams, whose states are derived from the given seed.
+   *
+   * @param numberOfStripes the number of independent random streams, between 1 and 65536
+   * @param seed the seed from which the states of all streams are derived
+   * @return a random generator
+   */
+  public static RandomGenerator createStriped(int numberOfStripes, long seed) {
+    return new RandomGenerator(new StripedRandomLongSupplier(numberOfStripes, seed));
+  }
+
   /**
    * Returns a pseudorandomly chosen {@code boolean} value where the probability of returning {@code
    * true} is predefined.
    *
+   * <p>{@code true} needs to be returned with a success probability of {@code probability}. If the
+   * success probability is greater than 50% ({@code probability > 0.5}), the same can be achieved
+   * by returning {@code true} with a probability of 50%, and returning the result of a Bernoulli
+   * trial with a probability of {@code 2 * probability - 1}. The resulting success probability will
+   * be the same as {@code 0.5 + 0.5 * (2 * probability - 1) = probability}. Similarly, if the
+   * success probability is smaller than 50% ({@code probability <= 0.5}), {@code false} is returned
+   * with a probability of 50%. Otherwise, the result of a Bernoulli trial with success probability
+   * of {@code 2 * probability} is returned. Again, the resulting success probability is exactly as
+   * desired because {@code 0.5 * (2 * probability) = probability}. Recursive continuation of this
+   * approach allows realizing Bernoulli trials with arbitrary success probabilities using just few
+   * random bits, which are all taken from a single random long in almost all cases.
+   *
    * @param probability the probability of returning {@code true}
    * @return a random {@code boolean}
    */
   public boolean nextBoolean(double probability) {
-    return threadLocalData.get().generateRandomBoolean(threadSafeRandomLongSupplier, probability);
+    long randomBits = 0;
+    int bitCount = 0;
+    while (true) {
+      if (probability <= 0) {
+        return false;
+      }
+      if (probability >= 1) {
+        return true;
+      }
+      if ((bitCount & 0x3F) == 0) {
+        randomBits = threadSafeRandomLongSupplier.getAsLong();
+      }
+      boolean b = probability > 0.5;
+      boolean randomBit = ((randomBits >>> bitCount) & 1L) != 0L;
+      bitCount += 1;
+      if (randomBit) {
+        return b;
+      }
+      probability += probability;
+      if (b) {
+        probability -= 1;
+      }
+    }
   }
 
   /**
    * Returns the number of leading zeros of a uniform random 64-bit integer.
    *
+   * <p>Equivalently, the number of consecutive 1-bits starting from the least significant bit of a
+   * single random long is returned, which has the same distribution.
+   *
    * @return the number of leading zeros
    */
   public int numberOfLeadingZerosOfRandomLong() {
-    return threadLocalData.get().numberOfLeadingZerosOfRandomLong(threadSafeRandomLongSupplier);
+    return Long.numberOfTrailingZeros(~threadSafeRandomLongSupplier.getAsLong());
   }
 
   /**
@@ -0,0 +1,534 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.TraceState;
+import io.opentelemetry.sdk.trace.ReadableSpan;
+import io.opentelemetry.sdk.trace.data.DelegatingSpanData;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A reservoir sampling buffer that collects a fixed number of spans.
+ *
+ * <p>Consistent sampling requires that spans are sampled only if r-value >= p-value, where p-value
+ * describes which sampling rate from the discrete set of possible sampling rates is applied.
+ * Consistent sampling allows to choose the sampling rate (the p-value) individually for every span.
+ * Therefore, the number of sampled spans can be reduced by increasing the p-value of spans, such
+ * that spans for which r-value < p-value get discarded. To reduce the number of sampled spans one
+ * can therefore apply the following procedure until the desired number of spans are left:
+ *
+ * <p>1) Randomly choose a span among the spans with smallest p-values
+ *
+ * <p>2) Increment its p-value by 1
+ *
+ * <p>3) Discard the span, if r-value < p-value
+ *
+ * <p>4) continue with 1)
+ *
+ * <p>By always incrementing one of the smallest p-values, this approach tries to balance the
+ * sampling rates (p-values). Balanced sampling rates are better for estimation (compare <a
+ * href="https://arxiv.org/abs/0803.0473">VarOpt sampling</a>).
+ *
+ * <p>This sampling approach can be implemented in a streaming fashion. In order to ensure that
+ * spans have fair chances regardless of processing order, a uniform random number (priority) is
+ * associated with its p-value. When choosing a span among all spans with smallest p-value, we take
+ * that with the smallest priority. For that, a priority queue is needed.
+ *
+ * <p>In the following, an equivalent and more efficient sampling approach is described, that is
+ * based on a priority queue where the minimum is the span with the smallest r-value. In this way
+ * the {@code add}-operation will have a worst case time complexity of {@code O(log n)} where {@code
+ * n} denotes the reservoir size. We use the following notation:
+ *
+ * <p>Z := {@code reservoirSize}
+ *
+ * <p>L := {@code maxDiscardedRValue}
+ *
+ * <p>R := {@code numberOfDiscardedSpansWithMaxDiscardedRValue}
+ *
+ * <p>K := {@code numSampledSpansWithGreaterRValueAndSmallPValue}
+ *
+ * <p>X := {@code numberOfSampledSpansWithMaxDiscardedRValue}
+ *
+ * <p>The sampling approach described above can be equivalently performed by keeping Z spans with
+ * largest r-values (in case of ties with highest priority) and adjusting the corresponding p-values
+ * in a finalization step. We know that the largest r-value among the dropped spans is L and that we
+ * had to discard exactly R spans with (r-value == L). This implies that their corresponding
+ * p-values were raised to (L + 1) which finally violated the sampling condition (r-value >=
+ * p-value). We only raise the p-value of some span, if it belongs to the set of spans with minimum
+ * p-value. Therefore, the minimum p-value must be given by L. To determine the p-values of all
+ * finally kept spans, we consider 3 cases:
+ *
+ * <p>1) For all X kept spans with r-value == L the corresponding p-value must also be L. Otherwise,
+ * the span would have been discarded. There are R spans with (r-value == L) which have been
+ * discarded. Therefore, among the original (X + R) spans with (r-value == L) we have kept X spans.
+ *
+ * <p>2) For spans with (p-value > L) the p-value will not be changed as they do not belong to the
+ * set of spans with minimal p-values.
+ *
+ * <p>3) For the remaining K spans for which (r-value > L) and (p-value <= L) the p-value needs to
+ * be adjusted. The new p-value will be either L or (L + 1). When starting to sample the first spans
+ * with (p-value == L), we have N = R + K + X spans which all have (r-value >= L) and (p-value ==
+ * L). This set can be divided into two sets of spans dependent on whether (r-value == L) or
+ * (r-value > L). We know that there were (R + X) spans with (r-value == L) and K spans with
+ * (r-value > L). When randomly selecting a span to increase its p-value, the span will only be
+ * discarded if the span belongs to the first set (r-value == L). We will call such an event
+ * "failure". If the selected span belongs to the second set (r-value > L), its p-value will be
+ * increased by 1 to (L + 1) but the span will not be dropped. The sampling procedure will be
+ * stopped after R "failures". The number of "successes" follows a <a
+ * href="https://en.wikipedia.org/wiki/Negative_hypergeometric_distribution">negative hypergeometric
+ * distribution</a>. Therefore, we need to sample a random value from a negative hypergeometric
+ * distribution with N = R + X + K elements of which K are "successes" and after drawing R
+ * "failures", in order to determine how many spans out of K will get a p-value equal to (L + 1).
+ * The expected number is given by R * K / (N - K + 1) = R * K / (R + X + 1). Instead of drawing the
+ * number from the negative hypergeometric distribution we could also set it to the stochastically
+ * rounded expected value. This makes this reservoir sampling approach not fully equivalent to the
+ * approach described initially, but leads to a smaller variance when estimating.
+ *
+ * <p>The priority queue is implemented as a binary heap of slot indices. The r-values, p-values and
+ * priorities of the kept spans are stored in parallel primitive arrays, so that no wrapper object
+ * is allocated per span. A span is only converted to {@link SpanData} when it enters the reservoir,
+ * and the slot of an evicted span is reused immediately, which allows the garbage collector to
+ * reclaim evicted spans before the end of the export period. The arrays grow on demand up to the
+ * reservoir size.
+ *
+ * <p>Optionally, the reservoir is also bounded by the total estimated serialized size of the kept
+ * spans (see {@link SpanSizeEstimator}), so that large spans weigh more than small ones. If a new
+ * span does not fit, the spans with smallest r-values (in case of ties with smallest priorities)
+ * are discarded until it fits, unless the new span itself ranks lowest. As spans of different sizes
+ * may be discarded to make room, a span arriving later might fit, although it ranks lower than a
+ * span that was discarded before. Such spans are rejected as well, so that the kept spans are
+ * always exactly those ranking higher than the largest discarded span, like in the case of a fixed
+ * number of spans. Hence L, R, X and K are defined and the p-values are adjusted exactly as
+ * described above. The sizes of the spans are independent of their r-values and priorities, so they
+ * only determine how many spans are kept, but not which ones. A span whose estimated size exceeds
+ * the size limit is treated as if it had the maximum size, and is kept, if it ranks highest.
+ *
+ * <p>With a size limit, spans are converted to {@link SpanData} when they are offered, since their
+ * size is estimated from their attributes, events and links.
+ *
+ * <p>Spans can be offered with a boost {@code b} (see {@link SpanPrioritizer}), in which case both
+ * their p-value and r-value are increased by {@code b} before they are ranked and adjusted as
+ * described above, and the boost is subtracted again from the adjusted p-value of the kept span.
+ * Since the r-value of a span is geometrically distributed beyond its p-value, shifting both by the
+ * same amount preserves this distribution, and the adjusted counts remain unbiased. A boosted span
+ * is kept if its increased r-value exceeds L, which is {@code 2^b} times as likely, unless its
+ * chance is already one. In return, its adjusted count is {@code 2^b} times smaller.
+ *
+ * <p>Spans sampled by threshold samplers are ranked by the r-value of their random value and
+ * offered with the largest p-value whose threshold does not exceed theirs (see {@link
+ * OtelTraceState#getPForSpan()}). Instead of replacing their p-value, their threshold is raised to
+ * the threshold of the adjusted p-value, if that is larger.
+ */
+final class Reservoir extends SpanReservoir {
+
+  private static final int INITIAL_CAPACITY = 16;
+  // the size limit of reservoirs bounded by the number of spans only
+  static final long UNLIMITED_BYTES = Long.MAX_VALUE;
+
+  private final int reservoirSize;
+  private final long maxNumberOfBytes;
+  private final RandomGenerator randomGenerator;
+  private int maxDiscardedRValue = 0;
+  // the largest priority of the discarded spans with maxDiscardedRValue
+  private long maxDiscardedPriority = Long.MIN_VALUE;
+  private long numberOfDiscardedSpansWithMaxDiscardedRValue = 0;
+
+  // the number of spans in use, and the number of slots allocated so far
+  private int size = 0;
+  private int numberOfSlots = 0;
+  private long numberOfBytes = 0;
+  private SpanData[] spans;
+  // the p-values and r-values include the boosts
+  private int[] pvals;
+  private int[] rvals;
+  private int[] boosts;
+  private long[] priorities;
+  // only used with a size limit
+  private long[] sizes;
+  // the positions [0, size) are a min-heap of the slots in use, ordered by r-value and, in case of
+  // ties, by priority, the positions [size, numberOfSlots) hold the slots freed to make room
+  private int[] heap;
+
+  Reservoir(int reservoirSize, long maxNumberOfBytes, RandomGenerator randomGenerator) {
+    if (reservoirSize < 1 || maxNumberOfBytes < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.reservoirSize = reservoirSize;
+    this.maxNumberOfBytes = maxNumberOfBytes;
+    this.randomGenerator = randomGenerator;
+    int initialCapacity = Math.min(reservoirSize, INITIAL_CAPACITY);
+    this.spans = new SpanData[initialCapacity];
+    this.pvals = new int[initialCapacity];
+    this.rvals = new int[initialCapacity];
+    this.boosts = new int[initialCapacity];
+    this.priorities = new long[initialCapacity];
+    this.sizes = new long[isSizeLimited() ? initialCapacity : 0];
+    this.heap = new int[initialCapacity];
+  }
+
+  private boolean isSizeLimited() {
+    return maxNumberOfBytes != UNLIMITED_BYTES;
+  }
+
+  /**
+   * Offers a span to the reservoir.
+   *
+   * <p>Without size limit, the span is only converted to {@link SpanData}, if it is kept by the
+   * reservoir.
+   *
+   * @param readableSpan the span
+   * @param pval the p-value of the span
+   * @param rval the r-value of the span
+   * @param priority the priority of the span
+   * @param boost the boost of the span
+   */
+  @Override
+  void add(ReadableSpan readableSpan, int pval, int rval, long priority, int boost) {
+    if (isSizeLimited()) {
+      SpanData spanData = readableSpan.toSpanData();
+      add(
+          spanData,
+          pval + boost,
+          rval + boost,
+          priority,
+          SpanSizeEstimator.estimateSize(spanData),
+          boost);
+      return;
+    }
+    int slot = offer(rval + boost, priority, 0);
+    if (slot >= 0) {
+      spans[slot] = readableSpan.toSpanData();
+      pvals[slot] = pval + boost;
+      boosts[slot] = boost;
+    }
+  }
+
+  // the given p-value and r-value already include the boost
+  private void add(SpanData spanData, int pval, int rval, long priority, long spanSize, int boost) {
+    int slot = offer(rval, priority, spanSize);
+    if (slot >= 0) {
+      spans[slot] = spanData;
+      pvals[slot] = pval;
+      boosts[slot] = boost;
+    }
+  }
+
+  /**
+   * Adds all spans of the given reservoir to this reservoir.
+   *
+   * <p>Since a reservoir keeps the spans with largest r-values (in case of ties with highest
+   * priority), the merged reservoir is the same as if all spans offered to the given reservoir had
+   * been directly offered to this reservoir. In particular, {@code maxDiscardedRValue} and {@code
+   * numberOfDiscardedSpansWithMaxDiscardedRValue} account for the spans discarded by both
+   * reservoirs, which is all that is needed to adjust the p-values in {@link #getResult()}. With a
+   * size limit, the spans of this reservoir that do not rank higher than the largest span discarded
+   * by the given reservoir are discarded as well.
+   *
+   * @param otherReservoir the reservoir to be merged into this one
+   */
+  @Override
+  void addAll(SpanReservoir otherReservoir) {
+    Reservoir other = (Reservoir) otherReservoir;
+    for (int pos = 0; pos < other.size; ++pos) {
+      int slot = other.heap[pos];
+      add(
+          other.spans[slot],
+          other.pvals[slot],
+          other.rvals[slot],
+          other.priorities[slot],
+          other.isSizeLimited() ? other.sizes[slot] : 0,
+          other.boosts[slot]);
+    }
+    recordDiscardedSpans(
+        other.maxDiscardedRValue,
+        other.maxDiscardedPriority,
+        other.numberOfDiscardedSpansWithMaxDiscardedRValue);
+    // without size limit, the kept spans of the other reservoir already fill this reservoir,
+    // if the other reservoir has discarded spans, and all of them rank higher than those
+    while (size > 0 && !isAboveMaxDiscarded(rvals[heap[0]], priorities[heap[0]])) {
+      discardHead();
+    }
+  }
+
+  /**
+   * Decides if a span with given r-value, priority and size is kept by the reservoir.
+   *
+   * <p>If the span is kept, its r-value, priority and size are already stored and the caller is
+   * responsible for setting the span and its p-value of the returned slot. If the reservoir is
+   * full, the spans with the smallest r-values (in case of ties with the smallest priorities) are
+   * discarded to make room for the new span, unless the new span ranks lowest.
+   *
+   * @param rval the r-value
+   * @param priority the priority
+   * @param spanSize the estimated size of the span, ignored without size limit
+   * @return the slot to store the span in, or -1 if the span is discarded
+   */
+  private int offer(int rval, long priority, long spanSize) {
+    if (!isAboveMaxDiscarded(rval, priority)) {
+      recordDiscardedSpans(rval, priority, 1);
+      return -1;
+    }
+    spanSize = Math.min(spanSize, maxNumberOfBytes);
+    while (size >= reservoirSize || numberOfBytes + spanSize > maxNumberOfBytes) {
+      int head = heap[0];
+      if (compareRthenPriority(rval, priority, rvals[head], priorities[head]) <= 0) {
+        recordDiscardedSpans(rval, priority, 1);
+        return -1;
+      }
+      if (numberOfBytes - getSize(head) + spanSize <= maxNumberOfBytes) {
+        // the new span takes the slot of the discarded one
+        recordDiscardedSpans(rvals[head], priorities[head], 1);
+        numberOfBytes -= getSize(head);
+        store(head, rval, priority, spanSize);
+        siftDown(0);
+        return head;
+      }
+      discardHead();
+    }
+
+    int slot;
+    if (size < numberOfSlots) {
+      slot = heap[size];
+    } else {
+      if (numberOfSlots == heap.length) {
+        grow();
+      }
+      slot = numberOfSlots;
+      numberOfSlots += 1;
+    }
+    store(slot, rval, priority, spanSize);
+    heap[size] = slot;
+    size += 1;
+    siftUp(size - 1);
+    return slot;
+  }
+
+  private void store(int slot, int rval, long priority, long spanSize) {
+    rvals[slot] = rval;
+    priorities[slot] = priority;
+    if (isSizeLimited()) {
+      sizes[slot] = spanSize;
+      numberOfBytes += spanSize;
+    }
+  }
+
+  private long getSize(int slot) {
+    return isSizeLimited() ? sizes[slot] : 0;
+  }
+
+  /** Discards the span at the head of the heap and keeps its slot for reuse. */
+  private void discardHead() {
+    int head = heap[0];
+    recordDiscardedSpans(rvals[head], priorities[head], 1);
+    numberOfBytes -= getSize(head);
+    spans[head] = null;
+    size -= 1;
+    heap[0] = heap[size];
+    heap[size] = head;
+    if (size > 0) {
+      siftDown(0);
+    }
+  }
+
+  private boolean isAboveMaxDiscarded(int rval, long priority) {
+    return numberOfDiscardedSpansWithMaxDiscardedRValue == 0
+        || compareRthenPriority(rval, priority, maxDiscardedRValue, maxDiscardedPriority) > 0;
+  }
+
+  private void grow() {
+    int newCapacity = (int) Math.min(reservoirSize, 2L * heap.length);
+    spans = Arrays.copyOf(spans, newCapacity);
+    pvals = Arrays.copyOf(pvals, newCapacity);
+    rvals = Arrays.copyOf(rvals, newCapacity);
+    boosts = Arrays.copyOf(boosts, newCapacity);
+    priorities = Arrays.copyOf(priorities, newCapacity);
+    if (isSizeLimited()) {
+      sizes = Arrays.copyOf(sizes, newCapacity);
+    }
+    heap = Arrays.copyOf(heap, newCapacity);
+  }
+
+  private static int compareRthenPriority(int rval1, long priority1, int rval2, long priority2) {
+    int compareR = Integer.compare(rval1, rval2);
+    if (compareR != 0) {
+      return compareR;
+    }
+    return Long.compare(priority1, priority2);
+  }
+
+  private boolean isLess(int slot1, int slot2) {
+    return compareRthenPriority(rvals[slot1], priorities[slot1], rvals[slot2], priorities[slot2])
+        < 0;
+  }
+
+  private void siftUp(int pos) {
+    int slot = heap[pos];
+    while (pos > 0) {
+      int parentPos = (pos - 1) >>> 1;
+      int parentSlot = heap[parentPos];
+      if (!isLess(slot, parentSlot)) {
+        break;
+      }
+      heap[pos] = parentSlot;
+      pos = parentPos;
+    }
+    heap[pos] = slot;
+  }
+
+  private void siftDown(int pos) {
+    int slot = heap[pos];
+    int half = size >>> 1;
+    while (pos < half) {
+      int childPos = 2 * pos + 1;
+      int childSlot = heap[childPos];
+      int rightPos = childPos + 1;
+      if (rightPos < size && isLess(heap[rightPos], childSlot)) {
+        childPos = rightPos;
+        childSlot = heap[rightPos];
+      }
+      if (!isLess(childSlot, slot)) {
+        break;
+      }
+      heap[pos] = childSlot;
+      pos = childPos;
+    }
+    heap[pos] = slot;
+  }
+
+  private void recordDiscardedSpans(int rval, long priority, long count) {
+    if (count == 0) {
+      return;
+    }
+    if (rval > maxDiscardedRValue || numberOfDiscardedSpansWithMaxDiscardedRValue == 0) {
+      maxDiscardedRValue = rval;
+      maxDiscardedPriority = priority;
+      numberOfDiscardedSpansWithMaxDiscardedRValue = count;
+    } else if (rval == maxDiscardedRValue) {
+      maxDiscardedPriority = Math.max(maxDiscardedPriority, priority);
+      numberOfDiscardedSpansWithMaxDiscardedRValue += count;
+    }
+  }
+
+  @Override
+  List<SpanData> getResult() {
+
+    List<SpanData> result = new ArrayList<>(size);
+    if (numberOfDiscardedSpansWithMaxDiscardedRValue == 0) {
+      for (int pos = 0; pos < size; ++pos) {
+        result.add(spans[heap[pos]]);
+      }
+      return result;
+    }
+
+    int numberOfSampledSpansWithMaxDiscardedRValue = 0;
+    int numSampledSpansWithGreaterRValueAndSmallPValue = 0;
+    for (int pos = 0; pos < size; ++pos) {
+      int slot = heap[pos];
+      if (rvals[slot] == maxDiscardedRValue) {
+        numberOfSampledSpansWithMaxDiscardedRValue += 1;
+      } else if (pvals[slot] <= maxDiscardedRValue) {
+        numSampledSpansWithGreaterRValueAndSmallPValue += 1;
+      }
+    }
+
+    double expectedNumPValueIncrements =
+        numSampledSpansWithGreaterRValueAndSmallPValue
+            * (numberOfDiscardedSpansWithMaxDiscardedRValue
+                / (double)
+                    (numberOfDiscardedSpansWithMaxDiscardedRValue
+                        + numberOfSampledSpansWithMaxDiscardedRValue
+                        + 1L));
+    int roundedExpectedNumPValueIncrements =
+        Math.toIntExact(randomGenerator.roundStochastically(expectedNumPValueIncrements));
+
+    BitSet incrementIndicators =
+        randomGenerator.generateRandomBitSet(
+            numSampledSpansWithGreaterRValueAndSmallPValue, roundedExpectedNumPValueIncrements);
+
+    int incrementIndicatorIndex = 0;
+    for (int pos = 0; pos < size; ++pos) {
+      int slot = heap[pos];
+      int pval = pvals[slot];
+      if (pval <= maxDiscardedRValue) {
+        pval = maxDiscardedRValue;
+        if (rvals[slot] > maxDiscardedRValue) {
+          if (incrementIndicators.get(incrementIndicatorIndex)) {
+            pval = maxDiscardedRValue + 1;
+          }
+          incrementIndicatorIndex += 1;
+        }
+      }
+
+      result.add(withAdjustedP(spans[slot], pval - boosts[slot], rvals[slot] - boosts[slot]));
+    }
+
+    return result;
+  }
+
+  @Override
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  @Override
+  boolean hasDiscardedSpans() {
+    return numberOfDiscardedSpansWithMaxDiscardedRValue > 0;
+  }
+
+  @Override
+  int getMaxDiscardedRValue() {
+    return maxDiscardedRValue;
+  }
+
+  /**
+   * Returns the given span with its sampling probability in the trace state lowered to the one of
+   * the adjusted p-value, in the format in which it was sampled (see {@link
+   * OtelTraceState#raiseP(int, int)}).
+   *
+   * @param spanData the span
+   * @param pval the adjusted p-value
+   * @param rval the r-value with which the span has been offered to the reservoir
+   * @return the span with updated trace state, or the given span if the trace state is unchanged
+   */
+  static SpanData withAdjustedP(SpanData spanData, int pval, int rval) {
+    SpanContext spanContext = spanData.getSpanContext();
+    TraceState traceState = spanContext.getTraceState();
+    String otelTraceStateString = traceState.get(OtelTraceState.TRACE_STATE_KEY);
+    OtelTraceState otelTraceState = OtelTraceState.parse(otelTraceStateString);
+    if (otelTraceState.raiseP(pval, rval)) {
+      return updateSpanDataWithOtelTraceState(spanData, otelTraceState);
+    }
+    return spanData;
+  }
+
+  private static SpanData updateSpanDataWithOtelTraceState(
+      SpanData spanData, OtelTraceState otelTraceState) {
+    SpanContext spanContext = spanData.getSpanContext();
+    TraceState traceState = spanContext.getTraceState();
+    String updatedOtelTraceStateString = otelTraceState.serialize();
+    TraceState updatedTraceState =
+        traceState.toBuilder()
+            .put(OtelTraceState.TRACE_STATE_KEY, updatedOtelTraceStateString)
+            .build();
+    SpanContext updatedSpanContext =
+        SpanContext.create(
+            spanContext.getTraceId(),
+            spanContext.getSpanId(),
+            spanContext.getTraceFlags(),
+            updatedTraceState);
+    return new DelegatingSpanData(spanData) {
+      @Override
+      public SpanContext getSpanContext() {
+        return updatedSpanContext;
+      }
+    };
+  }
+}
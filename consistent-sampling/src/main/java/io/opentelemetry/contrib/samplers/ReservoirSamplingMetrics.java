@@ -0,0 +1,135 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.DoubleCounter;
+import io.opentelemetry.api.metrics.DoubleHistogram;
+import io.opentelemetry.api.metrics.LongCounter;
+import io.opentelemetry.api.metrics.LongHistogram;
+import io.opentelemetry.api.metrics.Meter;
+
+/**
+ * The self-telemetry of the {@link ConsistentReservoirSamplingSpanProcessor}.
+ *
+ * <p>Nothing is recorded per span. The numbers of offered spans and the lock wait times are
+ * accumulated by every stripe under its own lock, and only summed up and recorded once per export
+ * period, when the reservoirs are swapped. The lock wait time is only measured for a random subset
+ * of {@code 1 / LOCK_WAIT_SAMPLING_RATE} of all spans, and scaled up accordingly, which keeps the
+ * calls of {@link System#nanoTime()} off the hot path.
+ */
+final class ReservoirSamplingMetrics {
+
+  // the lock wait time is measured for every LOCK_WAIT_SAMPLING_RATE-th span on average
+  static final int LOCK_WAIT_SAMPLING_RATE = 64;
+
+  private static final AttributeKey<Boolean> SUCCESS_KEY = AttributeKey.booleanKey("success");
+
+  private final Attributes attributes;
+  private final Attributes successAttributes;
+  private final Attributes failureAttributes;
+
+  private final LongCounter offeredSpans;
+  private final LongCounter keptSpans;
+  private final LongCounter discardedSpans;
+  private final LongHistogram maxDiscardedRValue;
+  private final DoubleHistogram exportDuration;
+  private final DoubleCounter lockWaitTime;
+
+  /**
+   * Constructor.
+   *
+   * @param meter the meter to create the instruments with
+   * @param attributes the attributes recorded with every measurement
+   */
+  ReservoirSamplingMetrics(Meter meter, Attributes attributes) {
+    this.attributes = attributes;
+    this.successAttributes = attributes.toBuilder().put(SUCCESS_KEY, true).build();
+    this.failureAttributes = attributes.toBuilder().put(SUCCESS_KEY, false).build();
+    this.offeredSpans =
+        meter
+            .counterBuilder("offeredSpans")
+            .setUnit("1")
+            .setDescription("The number of sampled spans offered to the reservoir")
+            .build();
+    this.keptSpans =
+        meter
+            .counterBuilder("keptSpans")
+            .setUnit("1")
+            .setDescription("The number of spans kept by the reservoir and passed to the exporter")
+            .build();
+    this.discardedSpans =
+        meter
+            .counterBuilder("discardedSpans")
+            .setUnit("1")
+            .setDescription("The number of spans discarded, because the reservoir was full")
+            .build();
+    this.maxDiscardedRValue =
+        meter
+            .histogramBuilder("maxDiscardedRValue")
+            .ofLongs()
+            .setUnit("1")
+            .setDescription(
+                "The largest discarded r-value of every stratum per export period, "
+                    + "which is the minimum p-value of the exported spans")
+            .build();
+    this.exportDuration =
+        meter
+            .histogramBuilder("exportDuration")
+            .setUnit("ms")
+            .setDescription("The duration of exports, including those that failed or timed out")
+            .build();
+    this.lockWaitTime =
+        meter
+            .counterBuilder("lockWaitTime")
+            .ofDoubles()
+            .setUnit("ms")
+            .setDescription("The estimated total time spent waiting for the reservoir locks")
+            .build();
+  }
+
+  /**
+   * Records the statistics of an export period.
+   *
+   * @param numberOfOfferedSpans the number of spans offered in the period
+   * @param numberOfKeptSpans the number of spans kept for the export
+   * @param sampledLockWaitNanos the sum of the lock wait times measured in the period
+   * @param reservoir the reservoir of the period
+   */
+  void recordPeriod(
+      long numberOfOfferedSpans,
+      long numberOfKeptSpans,
+      long sampledLockWaitNanos,
+      StratifiedReservoir reservoir) {
+    offeredSpans.add(numberOfOfferedSpans, attributes);
+    keptSpans.add(numberOfKeptSpans, attributes);
+    discardedSpans.add(Math.max(0, numberOfOfferedSpans - numberOfKeptSpans), attributes);
+    reservoir.forEachMaxDiscardedRValue(rval -> maxDiscardedRValue.record(rval, attributes));
+    lockWaitTime.add(sampledLockWaitNanos * (LOCK_WAIT_SAMPLING_RATE * 1e-6), attributes);
+  }
+
+  /**
+   * Records the duration and outcome of an export.
+   *
+   * @param isSuccess whether the export was successful
+   * @param durationNanos the duration of the export in nanoseconds
+   */
+  void recordExport(boolean isSuccess, long durationNanos) {
+    exportDuration.record(durationNanos * 1e-6, isSuccess ? successAttributes : failureAttributes);
+  }
+
+  /**
+   * Returns whether the lock wait time should be measured for a span with given priority. The
+   * priority is uniformly distributed, hence a random subset of spans is selected.
+   *
+   * @param priority the priority of the span
+   * @return true, if the lock wait time should be measured
+   */
+  static boolean isLockWaitMeasured(long priority) {
+    return (priority & (LOCK_WAIT_SAMPLING_RATE - 1)) == 0;
+  }
+}
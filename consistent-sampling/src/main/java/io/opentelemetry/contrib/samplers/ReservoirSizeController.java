@@ -0,0 +1,79 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+/**
+ * Adapts the reservoir size to the feedback of the exporter by additive increase and multiplicative
+ * decrease (AIMD), like a congestion window.
+ *
+ * <p>The reservoir size is halved, if an export fails, does not complete within the exporter
+ * timeout, takes longer than half of the exporter timeout, or if a batch has to be dropped because
+ * too many exports are pending. Otherwise, the reservoir size is increased by a constant step after
+ * every successful export of a period in which spans had to be discarded. If no spans have been
+ * discarded, a larger reservoir would not have exported more spans, hence the size is kept. The
+ * reservoir size always stays within the configured bounds. If both bounds are equal, the reservoir
+ * size is constant.
+ *
+ * <p>Feedback may be reported by the worker thread and the exporter thread concurrently.
+ */
+final class ReservoirSizeController {
+
+  // the number of additive increases needed to grow from the lower to the upper bound
+  private static final int NUMBER_OF_INCREASE_STEPS = 16;
+
+  private final int minReservoirSize;
+  private final int maxReservoirSize;
+  private final int increment;
+  private final long maxExportLatencyNanos;
+
+  private volatile int reservoirSize;
+
+  /**
+   * Constructor.
+   *
+   * @param reservoirSize the initial reservoir size
+   * @param minReservoirSize the lower bound of the reservoir size
+   * @param maxReservoirSize the upper bound of the reservoir size
+   * @param exporterTimeoutNanos the exporter timeout in nanoseconds
+   */
+  ReservoirSizeController(
+      int reservoirSize, int minReservoirSize, int maxReservoirSize, long exporterTimeoutNanos) {
+    this.reservoirSize = reservoirSize;
+    this.minReservoirSize = minReservoirSize;
+    this.maxReservoirSize = maxReservoirSize;
+    this.increment = Math.max(1, (maxReservoirSize - minReservoirSize) / NUMBER_OF_INCREASE_STEPS);
+    this.maxExportLatencyNanos = exporterTimeoutNanos / 2;
+  }
+
+  /** Returns the reservoir size to be used for the next export period. */
+  int getReservoirSize() {
+    return reservoirSize;
+  }
+
+  /**
+   * Reports the outcome of an export.
+   *
+   * @param isSuccess whether the export completed successfully within the exporter timeout
+   * @param latencyNanos the time the export took in nanoseconds
+   * @param hasDiscardedSpans whether spans have been discarded in the exported period
+   */
+  synchronized void recordExport(boolean isSuccess, long latencyNanos, boolean hasDiscardedSpans) {
+    if (!isSuccess || latencyNanos > maxExportLatencyNanos) {
+      decrease();
+    } else if (hasDiscardedSpans) {
+      reservoirSize = (int) Math.min(maxReservoirSize, (long) reservoirSize + increment);
+    }
+  }
+
+  /** Reports that a batch has been dropped, because the exporter is not keeping up. */
+  synchronized void recordDroppedExport() {
+    decrease();
+  }
+
+  private void decrease() {
+    reservoirSize = Math.max(minReservoirSize, reservoirSize / 2);
+  }
+}
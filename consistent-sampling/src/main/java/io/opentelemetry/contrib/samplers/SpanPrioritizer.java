@@ -0,0 +1,103 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import static io.opentelemetry.api.internal.Utils.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.sdk.trace.ReadableSpan;
+import java.time.Duration;
+
+/**
+ * Assigns boosts to spans, which increase their chances of being kept by {@link
+ * ConsistentReservoirSamplingSpanProcessor}.
+ *
+ * <p>A span with boost {@code b} competes for the reservoir as if both its p-value and its r-value
+ * were larger by {@code b}, hence it is kept about {@code 2^b} times as likely as a span without
+ * boost. The boost is subtracted again from the adjusted p-value of a kept span, so that its
+ * adjusted count is smaller by a factor of {@code 2^b} and the estimates derived from the adjusted
+ * counts remain unbiased.
+ *
+ * @see ConsistentReservoirSamplingSpanProcessorBuilder#setPrioritizer(SpanPrioritizer)
+ */
+@FunctionalInterface
+public interface SpanPrioritizer {
+
+  /**
+   * Returns the boost of the given span. Negative boosts are treated as zero, and boosts greater
+   * than the maximum r-value are treated as the maximum r-value.
+   *
+   * <p>This method is called for every ended span and should therefore be cheap.
+   *
+   * @param span the span
+   * @return the boost, which is the base 2 logarithm of the factor by which the chance of the span
+   *     to be kept is increased
+   */
+  int getBoost(ReadableSpan span);
+
+  /**
+   * Returns a {@link SpanPrioritizer} that boosts spans with status {@link StatusCode#ERROR}.
+   *
+   * <p>As the status is not available from {@link ReadableSpan}, every span is converted to {@link
+   * io.opentelemetry.sdk.trace.data.SpanData} to determine it.
+   *
+   * @param boost the boost of error spans
+   * @return a span prioritizer
+   */
+  static SpanPrioritizer errors(int boost) {
+    checkArgument(boost >= 0, "boost must be non-negative");
+    return span -> SpanStatus.isError(span) ? boost : 0;
+  }
+
+  /**
+   * Returns a {@link SpanPrioritizer} that boosts spans whose latency exceeds the given threshold.
+   *
+   * @param threshold the latency threshold
+   * @param boost the boost of slow spans
+   * @return a span prioritizer
+   */
+  static SpanPrioritizer latencyAbove(Duration threshold, int boost) {
+    requireNonNull(threshold, "threshold");
+    checkArgument(boost >= 0, "boost must be non-negative");
+    long thresholdNanos = threshold.toNanos();
+    return span -> (span.getLatencyNanos() > thresholdNanos) ? boost : 0;
+  }
+
+  /**
+   * Returns a {@link SpanPrioritizer} that boosts spans of the given kind.
+   *
+   * @param spanKind the span kind
+   * @param boost the boost of spans of the given kind
+   * @return a span prioritizer
+   */
+  static SpanPrioritizer spanKind(SpanKind spanKind, int boost) {
+    requireNonNull(spanKind, "spanKind");
+    checkArgument(boost >= 0, "boost must be non-negative");
+    return span -> (span.getKind() == spanKind) ? boost : 0;
+  }
+
+  /**
+   * Returns a {@link SpanPrioritizer} that assigns the largest boost of all given prioritizers.
+   *
+   * @param prioritizers the span prioritizers
+   * @return a span prioritizer
+   */
+  static SpanPrioritizer max(SpanPrioritizer... prioritizers) {
+    SpanPrioritizer[] copy = prioritizers.clone();
+    for (SpanPrioritizer prioritizer : copy) {
+      requireNonNull(prioritizer, "prioritizer");
+    }
+    return span -> {
+      int boost = 0;
+      for (SpanPrioritizer prioritizer : copy) {
+        boost = Math.max(boost, prioritizer.getBoost(span));
+      }
+      return boost;
+    };
+  }
+}
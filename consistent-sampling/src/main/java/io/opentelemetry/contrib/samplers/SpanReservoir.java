@@ -0,0 +1,71 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import io.opentelemetry.sdk.trace.ReadableSpan;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import java.util.List;
+
+/**
+ * A buffer that consistently samples the spans of an export period down to a bounded number of
+ * spans and adjusts the p-values of the kept spans at the end of the period.
+ */
+abstract class SpanReservoir {
+
+  /**
+   * Offers a span without boost to the reservoir.
+   *
+   * @param readableSpan the span
+   * @param pval the p-value of the span
+   * @param rval the r-value of the span
+   * @param priority the priority of the span
+   */
+  final void add(ReadableSpan readableSpan, int pval, int rval, long priority) {
+    add(readableSpan, pval, rval, priority, 0);
+  }
+
+  /**
+   * Offers a span to the reservoir.
+   *
+   * @param readableSpan the span
+   * @param pval the p-value of the span
+   * @param rval the r-value of the span
+   * @param priority the priority of the span
+   * @param boost the non-negative boost of the span (see {@link SpanPrioritizer})
+   */
+  abstract void add(ReadableSpan readableSpan, int pval, int rval, long priority, int boost);
+
+  /**
+   * Adds all spans of the given reservoir, which must be of the same type, to this reservoir.
+   *
+   * @param other the reservoir to be merged into this one
+   */
+  abstract void addAll(SpanReservoir other);
+
+  /**
+   * Returns the kept spans with adjusted p-values.
+   *
+   * @return the kept spans
+   */
+  abstract List<SpanData> getResult();
+
+  abstract boolean isEmpty();
+
+  /**
+   * Returns whether spans have been discarded, because the reservoir was full.
+   *
+   * @return true, if spans have been discarded
+   */
+  abstract boolean hasDiscardedSpans();
+
+  /**
+   * Returns the largest r-value of all discarded spans, which becomes the minimum p-value of the
+   * kept spans. Only meaningful, if spans have been discarded.
+   *
+   * @return the largest discarded r-value
+   */
+  abstract int getMaxDiscardedRValue();
+}
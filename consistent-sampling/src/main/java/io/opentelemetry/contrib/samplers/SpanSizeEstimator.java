@@ -0,0 +1,99 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.sdk.trace.data.EventData;
+import io.opentelemetry.sdk.trace.data.LinkData;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import java.util.List;
+
+/**
+ * Estimates the serialized size of a span in bytes, roughly as encoded by the OTLP protocol, from
+ * the numbers of its attributes, events and links and the lengths of its strings.
+ *
+ * <p>The estimate is cheap rather than exact. It is used to bound the memory of a reservoir and the
+ * size of an export request, for which the relative sizes of the spans are what matters. Strings
+ * are counted by their number of characters, numbers with their fixed sizes, and every field with a
+ * constant overhead for its tag and length. The resource and the instrumentation scope are not
+ * counted, as they are shared by many spans.
+ */
+final class SpanSizeEstimator {
+
+  // trace id, span id, parent span id, kind, start and end time, status code, and field tags
+  private static final long SPAN_OVERHEAD_BYTES = 64;
+  // time and field tags
+  private static final long EVENT_OVERHEAD_BYTES = 16;
+  // trace id, span id, and field tags
+  private static final long LINK_OVERHEAD_BYTES = 32;
+  // tags and lengths of the key-value pair and the value
+  private static final long ATTRIBUTE_OVERHEAD_BYTES = 6;
+  private static final long NUMBER_BYTES = 8;
+  private static final long BOOLEAN_BYTES = 1;
+
+  private SpanSizeEstimator() {}
+
+  /**
+   * Returns the estimated serialized size of the given span.
+   *
+   * @param spanData the span
+   * @return the estimated size in bytes, which is positive
+   */
+  static long estimateSize(SpanData spanData) {
+    long size = SPAN_OVERHEAD_BYTES;
+    size += spanData.getName().length();
+    size += estimateTraceStateSize(spanData.getSpanContext());
+    size += spanData.getStatus().getDescription().length();
+    size += estimateAttributesSize(spanData.getAttributes());
+    for (EventData event : spanData.getEvents()) {
+      size +=
+          EVENT_OVERHEAD_BYTES
+              + event.getName().length()
+              + estimateAttributesSize(event.getAttributes());
+    }
+    for (LinkData link : spanData.getLinks()) {
+      size +=
+          LINK_OVERHEAD_BYTES
+              + estimateTraceStateSize(link.getSpanContext())
+              + estimateAttributesSize(link.getAttributes());
+    }
+    return size;
+  }
+
+  private static long estimateTraceStateSize(SpanContext spanContext) {
+    long[] size = new long[1];
+    spanContext
+        .getTraceState()
+        .forEach((key, value) -> size[0] += key.length() + value.length() + 2);
+    return size[0];
+  }
+
+  private static long estimateAttributesSize(Attributes attributes) {
+    long[] size = new long[1];
+    attributes.forEach(
+        (key, value) ->
+            size[0] += ATTRIBUTE_OVERHEAD_BYTES + key.getKey().length() + estimateValueSize(value));
+    return size[0];
+  }
+
+  private static long estimateValueSize(Object value) {
+    if (value instanceof String) {
+      return ((String) value).length();
+    }
+    if (value instanceof Boolean) {
+      return BOOLEAN_BYTES;
+    }
+    if (value instanceof List) {
+      long size = 0;
+      for (Object element : (List<?>) value) {
+        size += estimateValueSize(element) + 1;
+      }
+      return size;
+    }
+    return NUMBER_BYTES;
+  }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.sdk.trace.ReadableSpan;
+
+/**
+ * Determines the status of spans, which is not available from {@link ReadableSpan}.
+ *
+ * <p>Until the SDK exposes the status of a {@link ReadableSpan}, the span is converted to {@link
+ * io.opentelemetry.sdk.trace.data.SpanData} to read it. Keeping this in one place allows all span
+ * processors to avoid the conversion, once the status becomes available.
+ */
+final class SpanStatus {
+
+  /**
+   * Returns the status code of the given span.
+   *
+   * @param span the span
+   * @return the status code
+   */
+  static StatusCode getStatusCode(ReadableSpan span) {
+    return span.toSpanData().getStatus().getStatusCode();
+  }
+
+  /**
+   * Returns whether the given span has status {@link StatusCode#ERROR}.
+   *
+   * @param span the span
+   * @return {@code true} if the span has an error status
+   */
+  static boolean isError(ReadableSpan span) {
+    return getStatusCode(span) == StatusCode.ERROR;
+  }
+
+  private SpanStatus() {}
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import static java.util.Objects.requireNonNull;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.sdk.trace.ReadableSpan;
+import javax.annotation.Nullable;
+
+/**
+ * Assigns spans to strata, for which {@link ConsistentReservoirSamplingSpanProcessor} keeps
+ * separate reservoirs.
+ *
+ * @see ConsistentReservoirSamplingSpanProcessorBuilder#setStratifier(SpanStratifier)
+ */
+@FunctionalInterface
+public interface SpanStratifier {
+
+  /**
+   * Returns the stratum of the given span. Spans with equal strata, as defined by {@link
+   * Object#equals(Object)} and {@link Object#hashCode()}, are sampled using the same reservoir.
+   *
+   * <p>This method is called for every ended span and should therefore be cheap.
+   *
+   * @param span the span
+   * @return the stratum, or null if the span should be assigned to the shared overflow stratum
+   */
+  @Nullable
+  Object getStratum(ReadableSpan span);
+
+  /**
+   * Returns a {@link SpanStratifier} that uses the span name as stratum.
+   *
+   * @return a span stratifier
+   */
+  static SpanStratifier spanName() {
+    return ReadableSpan::getName;
+  }
+
+  /**
+   * Returns a {@link SpanStratifier} that uses the span kind as stratum.
+   *
+   * @return a span stratifier
+   */
+  static SpanStratifier spanKind() {
+    return ReadableSpan::getKind;
+  }
+
+  /**
+   * Returns a {@link SpanStratifier} that uses the name of the instrumentation scope as stratum.
+   *
+   * @return a span stratifier
+   */
+  static SpanStratifier instrumentationScope() {
+    return span -> span.getInstrumentationScopeInfo().getName();
+  }
+
+  /**
+   * Returns a {@link SpanStratifier} that uses the value of the given attribute as stratum. Spans
+   * without this attribute are assigned to the overflow stratum.
+   *
+   * @param attributeKey the attribute key
+   * @return a span stratifier
+   */
+  static SpanStratifier attribute(AttributeKey<?> attributeKey) {
+    requireNonNull(attributeKey, "attributeKey");
+    return span -> span.getAttribute(attributeKey);
+  }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nullable;
+
+/**
+ * The strata of a single export period and their quotas, which are the sizes of the reservoirs used
+ * for the individual strata.
+ *
+ * <p>The number of strata is limited to {@code maxStrata} including a shared overflow stratum,
+ * which collects the spans without stratum and the spans of all strata beyond the limit. Strata are
+ * registered in the order they occur within a period.
+ *
+ * <p>The reservoir size is split among the strata as follows. Every stratum is guaranteed {@code
+ * minSpansPerStratum} spans. The remaining {@code reservoirSize - maxStrata * minSpansPerStratum}
+ * spans are distributed proportionally to the number of spans offered to the strata in the previous
+ * period. Strata which did not occur in the previous period, in particular all strata of the first
+ * period, only get the minimum quota. Whatever is not distributed is given to the overflow stratum.
+ * As at most {@code maxStrata} strata exist in a period, the sum of all quotas never exceeds the
+ * reservoir size.
+ *
+ * <p>Since the quotas are fixed before the period starts, every stratum is sampled by an
+ * independent reservoir of fixed size, whose adjusted p-values are correct for the spans of that
+ * stratum.
+ */
+final class Strata {
+
+  /** A stratum of a period. */
+  static final class Stratum {
+    private final int index;
+    private final int quota;
+    private final LongAdder numberOfOfferedSpans = new LongAdder();
+
+    private Stratum(int index, int quota) {
+      this.index = index;
+      this.quota = quota;
+    }
+
+    /** Returns the index of the stratum, which is less than {@code maxStrata}. */
+    int getIndex() {
+      return index;
+    }
+
+    /** Returns the maximum number of spans of this stratum that may be kept. */
+    int getQuota() {
+      return quota;
+    }
+
+    void recordOfferedSpan() {
+      numberOfOfferedSpans.increment();
+    }
+  }
+
+  private static final int OVERFLOW_STRATUM_INDEX = 0;
+
+  private final int maxStrata;
+  private final int minSpansPerStratum;
+  // quotas of strata that received more than the minimum, derived from the previous period
+  private final Map<Object, Integer> quotas;
+  private final Stratum overflowStratum;
+  private final ConcurrentHashMap<Object, Stratum> strata = new ConcurrentHashMap<>();
+  private final AtomicInteger nextIndex = new AtomicInteger(OVERFLOW_STRATUM_INDEX + 1);
+
+  private Strata(
+      int maxStrata, int minSpansPerStratum, Map<Object, Integer> quotas, int overflowQuota) {
+    this.maxStrata = maxStrata;
+    this.minSpansPerStratum = minSpansPerStratum;
+    this.quotas = quotas;
+    this.overflowStratum = new Stratum(OVERFLOW_STRATUM_INDEX, overflowQuota);
+  }
+
+  /**
+   * Creates the strata of the first period.
+   *
+   * <p>If {@code maxStrata} is 1, all spans are assigned to the overflow stratum, which gets the
+   * whole reservoir size. Otherwise, {@code maxStrata * minSpansPerStratum} must not exceed the
+   * reservoir size.
+   *
+   * @param reservoirSize the total number of spans that may be kept per period
+   * @param maxStrata the maximum number of strata including the overflow stratum
+   * @param minSpansPerStratum the minimum quota of every stratum
+   * @return the strata
+   */
+  static Strata create(int reservoirSize, int maxStrata, int minSpansPerStratum) {
+    return new Strata(
+        maxStrata,
+        minSpansPerStratum,
+        Collections.emptyMap(),
+        reservoirSize - (maxStrata - 1) * minSpansPerStratum);
+  }
+
+  /** Returns the maximum number of strata, which is an upper bound for all stratum indices. */
+  int getMaxStrata() {
+    return maxStrata;
+  }
+
+  /**
+   * Returns the stratum for the given key, which is registered if it does not exist yet. If the key
+   * is null or the maximum number of strata has been reached, the overflow stratum is returned.
+   *
+   * @param key the key of the stratum
+   * @return the stratum
+   */
+  Stratum getStratum(@Nullable Object key) {
+    if (key == null) {
+      return overflowStratum;
+    }
+    Stratum stratum = strata.get(key);
+    if (stratum == null) {
+      if (nextIndex.get() >= maxStrata) {
+        return overflowStratum;
+      }
+      stratum = strata.computeIfAbsent(key, this::createStratum);
+      if (stratum == null) {
+        return overflowStratum;
+      }
+    }
+    return stratum;
+  }
+
+  @Nullable
+  private Stratum createStratum(Object key) {
+    int index = nextIndex.getAndIncrement();
+    if (index >= maxStrata) {
+      // lost the race for the last index
+      return null;
+    }
+    return new Stratum(index, quotas.getOrDefault(key, minSpansPerStratum));
+  }
+
+  /**
+   * Creates the strata of the next period, whose quotas are derived from the number of spans
+   * offered to the strata of this period so far.
+   *
+   * @param reservoirSize the reservoir size of the next period, which must not be smaller than
+   *     {@code maxStrata * minSpansPerStratum} unless {@code maxStrata} is 1
+   * @return the strata of the next period
+   */
+  Strata next(int reservoirSize) {
+    long totalNumberOfOfferedSpans = overflowStratum.numberOfOfferedSpans.sum();
+    for (Stratum stratum : strata.values()) {
+      totalNumberOfOfferedSpans += stratum.numberOfOfferedSpans.sum();
+    }
+
+    int distributableSpans = reservoirSize - maxStrata * minSpansPerStratum;
+    int distributedSpans = 0;
+    Map<Object, Integer> nextQuotas = new HashMap<>();
+    if (totalNumberOfOfferedSpans > 0 && distributableSpans > 0) {
+      for (Map.Entry<Object, Stratum> entry : strata.entrySet()) {
+        double fraction =
+            entry.getValue().numberOfOfferedSpans.sum() / (double) totalNumberOfOfferedSpans;
+        // the minimum guards against the sum of rounded shares exceeding the distributable spans
+        int share =
+            Math.min(distributableSpans - distributedSpans, (int) (distributableSpans * fraction));
+        if (share > 0) {
+          nextQuotas.put(entry.getKey(), minSpansPerStratum + share);
+          distributedSpans += share;
+        }
+      }
+    }
+
+    return new Strata(
+        maxStrata,
+        minSpansPerStratum,
+        nextQuotas,
+        reservoirSize - (maxStrata - 1) * minSpansPerStratum - distributedSpans);
+  }
+}
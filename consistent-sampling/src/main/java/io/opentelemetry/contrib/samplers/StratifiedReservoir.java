@@ -0,0 +1,138 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import io.opentelemetry.contrib.samplers.Strata.Stratum;
+import io.opentelemetry.sdk.trace.ReadableSpan;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+import javax.annotation.Nullable;
+
+/**
+ * A reservoir sampling buffer that keeps a separate {@link SpanReservoir} for every stratum of an
+ * export period, whose size is given by the quota of the stratum.
+ *
+ * <p>The p-values of the kept spans are adjusted for every stratum individually, therefore the
+ * adjusted counts remain unbiased estimates of the number of spans in every stratum. With a single
+ * stratum, this is equivalent to a plain {@link SpanReservoir}.
+ */
+final class StratifiedReservoir {
+
+  private final Strata strata;
+  // creates the reservoir of a stratum for the given quota
+  private final IntFunction<SpanReservoir> reservoirFactory;
+  // indexed by stratum, created on demand
+  private final SpanReservoir[] reservoirs;
+
+  StratifiedReservoir(Strata strata, IntFunction<SpanReservoir> reservoirFactory) {
+    this.strata = strata;
+    this.reservoirFactory = reservoirFactory;
+    this.reservoirs = new SpanReservoir[strata.getMaxStrata()];
+  }
+
+  /**
+   * Offers a span to the reservoir of its stratum.
+   *
+   * @param stratumKey the key of the stratum, or null for the overflow stratum
+   * @param readableSpan the span
+   * @param pval the p-value of the span
+   * @param rval the r-value of the span
+   * @param priority the priority of the span
+   * @param boost the boost of the span
+   */
+  void add(
+      @Nullable Object stratumKey,
+      ReadableSpan readableSpan,
+      int pval,
+      int rval,
+      long priority,
+      int boost) {
+    Stratum stratum = strata.getStratum(stratumKey);
+    stratum.recordOfferedSpan();
+    SpanReservoir reservoir = reservoirs[stratum.getIndex()];
+    if (reservoir == null) {
+      reservoir = reservoirFactory.apply(stratum.getQuota());
+      reservoirs[stratum.getIndex()] = reservoir;
+    }
+    reservoir.add(readableSpan, pval, rval, priority, boost);
+  }
+
+  /**
+   * Adds all spans of the given reservoir, which must belong to the same strata, to this reservoir.
+   * The given reservoir must not be used afterwards, as its buffers may be taken over.
+   *
+   * @param other the reservoir to be merged into this one
+   */
+  void addAll(StratifiedReservoir other) {
+    for (int i = 0; i < reservoirs.length; ++i) {
+      SpanReservoir otherReservoir = other.reservoirs[i];
+      if (otherReservoir == null) {
+        continue;
+      }
+      if (reservoirs[i] == null) {
+        reservoirs[i] = otherReservoir;
+      } else {
+        reservoirs[i].addAll(otherReservoir);
+      }
+    }
+  }
+
+  /**
+   * Returns the kept spans of all strata with adjusted p-values.
+   *
+   * @return the kept spans
+   */
+  List<SpanData> getResult() {
+    List<SpanData> result = new ArrayList<>();
+    for (SpanReservoir reservoir : reservoirs) {
+      if (reservoir != null) {
+        result.addAll(reservoir.getResult());
+      }
+    }
+    return result;
+  }
+
+  boolean isEmpty() {
+    for (SpanReservoir reservoir : reservoirs) {
+      if (reservoir != null && !reservoir.isEmpty()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns whether spans of any stratum have been discarded, because the reservoir of the stratum
+   * was full.
+   *
+   * @return true, if spans have been discarded
+   */
+  boolean hasDiscardedSpans() {
+    for (SpanReservoir reservoir : reservoirs) {
+      if (reservoir != null && reservoir.hasDiscardedSpans()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Passes the largest discarded r-value of every stratum, whose reservoir has discarded spans, to
+   * the given consumer.
+   *
+   * @param consumer the consumer of the largest discarded r-values
+   */
+  void forEachMaxDiscardedRValue(IntConsumer consumer) {
+    for (SpanReservoir reservoir : reservoirs) {
+      if (reservoir != null && reservoir.hasDiscardedSpans()) {
+        consumer.accept(reservoir.getMaxDiscardedRValue());
+      }
+    }
+  }
+}
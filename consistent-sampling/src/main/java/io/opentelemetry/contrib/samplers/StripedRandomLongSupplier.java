@@ -0,0 +1,82 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * A lock-free, thread-safe random long supplier, which consists of several independent SplitMix64
+ * streams, the same algorithm as used by {@link java.util.SplittableRandom}.
+ *
+ * <p>The stream is chosen by the id of the calling thread, which does not require any thread-local
+ * state and therefore also works well with virtual threads. Every stream is advanced by a single
+ * atomic addition. The states of different streams are stored in different cache lines to avoid
+ * false sharing. Every stream has its own state and increment (gamma), both derived from the seed,
+ * as {@link java.util.SplittableRandom#split()} does.
+ */
+final class StripedRandomLongSupplier implements LongSupplier {
+
+  private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+  // the number of longs per cache line, states are stored in every STRIDE-th slot
+  private static final int STRIDE = 8;
+
+  private final int stripeMask;
+  private final AtomicLongArray states;
+  private final long[] gammas;
+
+  /**
+   * Constructor.
+   *
+   * @param numberOfStripes the number of streams, rounded up to the next power of two
+   * @param seed the seed from which the states and increments of all streams are derived
+   */
+  StripedRandomLongSupplier(int numberOfStripes, long seed) {
+    if (numberOfStripes < 1 || numberOfStripes > (1 << 16)) {
+      throw new IllegalArgumentException("Number of stripes must be between 1 and 65536!");
+    }
+    int numberOfStripesPowerOfTwo =
+        (numberOfStripes == 1) ? 1 : Integer.highestOneBit(numberOfStripes - 1) << 1;
+    this.stripeMask = numberOfStripesPowerOfTwo - 1;
+    this.states = new AtomicLongArray(numberOfStripesPowerOfTwo * STRIDE);
+    this.gammas = new long[numberOfStripesPowerOfTwo];
+    for (int i = 0; i < numberOfStripesPowerOfTwo; ++i) {
+      seed += GOLDEN_GAMMA;
+      states.set(i * STRIDE, mix64(seed));
+      seed += GOLDEN_GAMMA;
+      gammas[i] = mixGamma(seed);
+    }
+  }
+
+  @Override
+  public long getAsLong() {
+    return getAsLong((int) mix64(Thread.currentThread().getId()));
+  }
+
+  // visible for testing
+  long getAsLong(int stripeIndex) {
+    int stripe = stripeIndex & stripeMask;
+    long gamma = gammas[stripe];
+    return mix64(states.getAndAdd(stripe * STRIDE, gamma) + gamma);
+  }
+
+  // the finalizer of SplitMix64
+  private static long mix64(long z) {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+
+  // an odd increment with enough bit transitions, see java.util.SplittableRandom
+  private static long mixGamma(long z) {
+    z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+    z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+    z = (z ^ (z >>> 33)) | 1L;
+    int n = Long.bitCount(z ^ (z >>> 1));
+    return (n < 24) ? z ^ 0xaaaaaaaaaaaaaaaaL : z;
+  }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import io.opentelemetry.sdk.trace.ReadableSpan;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import javax.annotation.Nullable;
+
+/**
+ * A reservoir sampling buffer that keeps or discards whole traces, while its capacity is given by a
+ * maximum number of spans.
+ *
+ * <p>All spans of a trace are grouped by their trace id and must be offered with the same r-value
+ * and priority, which is the case for consistently sampled traces, if the priority is derived from
+ * the trace id. Like {@link Reservoir}, this reservoir keeps the traces with largest r-values, in
+ * case of ties with highest priority, as long as their total number of spans does not exceed the
+ * capacity. Whenever the capacity is exceeded, the trace with the smallest r-value and priority is
+ * discarded, and all further spans of traces that do not rank higher than any discarded trace are
+ * rejected. Hence, the kept traces are always exactly those ranking higher than the largest
+ * discarded trace, and a discarded trace is never partially exported.
+ *
+ * <p>The p-values are adjusted as described for {@link Reservoir} with traces as sampling units.
+ * Let L be the largest r-value of all discarded traces. All kept traces with (r-value == L) get a
+ * p-value of L. For the K kept traces with (r-value > L) and (p-value <= L) the p-value is set to L
+ * or (L + 1). As the priorities are uniformly distributed, the fraction f of traces with (r-value
+ * == L) that are kept is known from the largest discarded priority, and the expected number of
+ * traces with a p-value of (L + 1) is K * (1 - f), which makes the adjusted counts unbiased.
+ *
+ * <p>The number of spans per trace is limited as well. Every span is assigned a random level
+ * between 0 and the maximum r-value, which is at least k with probability 2^(-k). A trace only
+ * keeps the spans with a level of at least its thinning level, which starts at 0 and is incremented
+ * whenever the trace has more spans than the limit. The kept spans of a thinned trace are a
+ * consistent sample with probability 2^(-k) of all its spans, and their p-values are increased by
+ * the thinning level k of the trace in addition to the adjustment above. As a span is kept if and
+ * only if its level is at least the thinning level determined by the other spans of the trace
+ * alone, the adjusted counts remain unbiased.
+ *
+ * <p>Optionally, the capacity is also bounded by the total estimated serialized size of the kept
+ * spans (see {@link SpanSizeEstimator}). Traces are discarded in the same order, until both the
+ * number and the size of the kept spans are within their limits. The size of a single span is
+ * capped at the size limit.
+ */
+final class TraceReservoir extends SpanReservoir {
+
+  private static final class TraceSpan {
+    private final SpanData spanData;
+    private final int level;
+    private final long numberOfBytes;
+
+    private TraceSpan(SpanData spanData, int level, long numberOfBytes) {
+      this.spanData = spanData;
+      this.level = level;
+      this.numberOfBytes = numberOfBytes;
+    }
+  }
+
+  private static final class Trace {
+    private final String traceId;
+    private final int rval;
+    private final long priority;
+    private final List<TraceSpan> spans = new ArrayList<>();
+    private int minPval = Integer.MAX_VALUE;
+    private long numberOfBytes = 0;
+    // only spans with at least this level are kept
+    private int thinningLevel = 0;
+
+    private Trace(String traceId, int rval, long priority) {
+      this.traceId = traceId;
+      this.rval = rval;
+      this.priority = priority;
+    }
+  }
+
+  private static int compareRthenPriority(int rval1, long priority1, int rval2, long priority2) {
+    int compareR = Integer.compare(rval1, rval2);
+    if (compareR != 0) {
+      return compareR;
+    }
+    return Long.compare(priority1, priority2);
+  }
+
+  private final int maxNumberOfSpans;
+  private final long maxNumberOfBytes;
+  private final int maxSpansPerTrace;
+  private final RandomGenerator randomGenerator;
+
+  private final Map<String, Trace> traces = new HashMap<>();
+  // the trace with smallest r-value and, in case of ties, smallest priority is the head
+  private final PriorityQueue<Trace> queue =
+      new PriorityQueue<>(
+          (trace1, trace2) ->
+              compareRthenPriority(trace1.rval, trace1.priority, trace2.rval, trace2.priority));
+  private int numberOfSpans = 0;
+  private long numberOfBytes = 0;
+
+  // the largest discarded trace, only valid if hasDiscardedTraces is true
+  private boolean hasDiscardedTraces = false;
+  private int maxDiscardedRValue = 0;
+  private long maxDiscardedPriority = Long.MIN_VALUE;
+
+  TraceReservoir(
+      int maxNumberOfSpans,
+      long maxNumberOfBytes,
+      int maxSpansPerTrace,
+      RandomGenerator randomGenerator) {
+    if (maxNumberOfSpans < 1 || maxNumberOfBytes < 1 || maxSpansPerTrace < 1) {
+      throw new IllegalArgumentException();
+    }
+    this.maxNumberOfSpans = maxNumberOfSpans;
+    this.maxNumberOfBytes = maxNumberOfBytes;
+    this.maxSpansPerTrace = maxSpansPerTrace;
+    this.randomGenerator = randomGenerator;
+  }
+
+  /**
+   * Offers a span to the reservoir.
+   *
+   * <p>The span is only converted to {@link SpanData}, if its trace is kept by the reservoir at the
+   * time the span is offered.
+   *
+   * @param readableSpan the span
+   * @param pval the p-value of the span
+   * @param rval the r-value of the trace
+   * @param priority the priority of the trace
+   * @param boost ignored, as traces are ranked when their first span is offered, boosts are not
+   *     supported
+   */
+  @Override
+  void add(ReadableSpan readableSpan, int pval, int rval, long priority, int boost) {
+    Trace trace = getOrCreateTrace(readableSpan.getSpanContext().getTraceId(), rval, priority);
+    if (trace == null) {
+      return;
+    }
+    int level =
+        Math.min(randomGenerator.numberOfLeadingZerosOfRandomLong(), OtelTraceState.getMaxR());
+    if (level >= trace.thinningLevel) {
+      addSpan(trace, readableSpan.toSpanData(), pval, level);
+    }
+  }
+
+  /**
+   * Adds all spans of the given reservoir to this reservoir.
+   *
+   * <p>The merged reservoir is the same as if all spans offered to the given reservoir had been
+   * directly offered to this reservoir. The largest discarded trace of both reservoirs is taken
+   * into account, before the traces of the given reservoir are added, and the thinning level of a
+   * trace is the larger one of both reservoirs, before the spans of the given reservoir are added.
+   *
+   * @param otherReservoir the reservoir to be merged into this one
+   */
+  @Override
+  void addAll(SpanReservoir otherReservoir) {
+    TraceReservoir other = (TraceReservoir) otherReservoir;
+    if (other.hasDiscardedTraces) {
+      recordDiscardedTrace(other.maxDiscardedRValue, other.maxDiscardedPriority);
+      while (!queue.isEmpty() && !isAboveThreshold(queue.peek().rval, queue.peek().priority)) {
+        discardTrace(queue.poll());
+      }
+    }
+    for (Trace otherTrace : other.traces.values()) {
+      Trace trace = getOrCreateTrace(otherTrace.traceId, otherTrace.rval, otherTrace.priority);
+      if (trace == null) {
+        continue;
+      }
+      // the other trace has already dropped its spans below its thinning level
+      thinTrace(trace, otherTrace.thinningLevel);
+      for (TraceSpan span : otherTrace.spans) {
+        // the trace itself may have been discarded to make room for its spans
+        if (traces.get(trace.traceId) != trace) {
+          break;
+        }
+        if (span.level >= trace.thinningLevel) {
+          // the individual p-values are not needed, only their minimum per trace
+          addSpan(trace, span.spanData, otherTrace.minPval, span.level);
+        }
+      }
+    }
+  }
+
+  private boolean isAboveThreshold(int rval, long priority) {
+    return !hasDiscardedTraces
+        || compareRthenPriority(rval, priority, maxDiscardedRValue, maxDiscardedPriority) > 0;
+  }
+
+  @Nullable
+  private Trace getOrCreateTrace(String traceId, int rval, long priority) {
+    Trace trace = traces.get(traceId);
+    if (trace == null && isAboveThreshold(rval, priority)) {
+      trace = new Trace(traceId, rval, priority);
+      traces.put(traceId, trace);
+      queue.add(trace);
+    }
+    return trace;
+  }
+
+  private void addSpan(Trace trace, SpanData spanData, int pval, int level) {
+    long spanSize = 0;
+    if (maxNumberOfBytes != Reservoir.UNLIMITED_BYTES) {
+      spanSize = Math.min(SpanSizeEstimator.estimateSize(spanData), maxNumberOfBytes);
+    }
+    trace.spans.add(new TraceSpan(spanData, level, spanSize));
+    trace.minPval = Math.min(trace.minPval, pval);
+    trace.numberOfBytes += spanSize;
+    numberOfSpans += 1;
+    numberOfBytes += spanSize;
+    int thinningLevel = trace.thinningLevel;
+    while (trace.spans.size() > maxSpansPerTrace) {
+      thinningLevel += 1;
+      thinTrace(trace, thinningLevel);
+    }
+    while (numberOfSpans > maxNumberOfSpans || numberOfBytes > maxNumberOfBytes) {
+      discardTrace(queue.poll());
+    }
+  }
+
+  // drops the spans of the trace below the given thinning level, if it is larger than the current
+  private void thinTrace(Trace trace, int thinningLevel) {
+    if (thinningLevel <= trace.thinningLevel) {
+      return;
+    }
+    trace.thinningLevel = thinningLevel;
+    Iterator<TraceSpan> iterator = trace.spans.iterator();
+    while (iterator.hasNext()) {
+      TraceSpan span = iterator.next();
+      if (span.level < thinningLevel) {
+        iterator.remove();
+        trace.numberOfBytes -= span.numberOfBytes;
+        numberOfSpans -= 1;
+        numberOfBytes -= span.numberOfBytes;
+      }
+    }
+  }
+
+  private void discardTrace(Trace trace) {
+    traces.remove(trace.traceId);
+    numberOfSpans -= trace.spans.size();
+    numberOfBytes -= trace.numberOfBytes;
+    recordDiscardedTrace(trace.rval, trace.priority);
+  }
+
+  private void recordDiscardedTrace(int rval, long priority) {
+    if (isAboveThreshold(rval, priority)) {
+      hasDiscardedTraces = true;
+      maxDiscardedRValue = rval;
+      maxDiscardedPriority = priority;
+    }
+  }
+
+  @Override
+  List<SpanData> getResult() {
+    List<SpanData> result = new ArrayList<>(numberOfSpans);
+    if (!hasDiscardedTraces) {
+      for (Trace trace : traces.values()) {
+        for (TraceSpan span : trace.spans) {
+          result.add(
+              (trace.thinningLevel > 0)
+                  ? Reservoir.withAdjustedP(
+                      span.spanData, thinnedP(getP(span.spanData), trace.thinningLevel), trace.rval)
+                  : span.spanData);
+        }
+      }
+      return result;
+    }
+
+    int numberOfTracesWithGreaterRValueAndSmallPValue = 0;
+    for (Trace trace : traces.values()) {
+      if (trace.rval > maxDiscardedRValue && trace.minPval <= maxDiscardedRValue) {
+        numberOfTracesWithGreaterRValueAndSmallPValue += 1;
+      }
+    }
+
+    // the fraction of traces with (r-value == L) whose priority exceeds the largest discarded one
+    double fractionOfKeptTracesWithMaxDiscardedRValue =
+        ((double) Long.MAX_VALUE - (double) maxDiscardedPriority) / 0x1p64;
+    double expectedNumPValueIncrements =
+        numberOfTracesWithGreaterRValueAndSmallPValue
+            * (1. - fractionOfKeptTracesWithMaxDiscardedRValue);
+    int roundedExpectedNumPValueIncrements =
+        Math.toIntExact(randomGenerator.roundStochastically(expectedNumPValueIncrements));
+
+    BitSet incrementIndicators =
+        randomGenerator.generateRandomBitSet(
+            numberOfTracesWithGreaterRValueAndSmallPValue, roundedExpectedNumPValueIncrements);
+
+    int incrementIndicatorIndex = 0;
+    for (Trace trace : traces.values()) {
+      int adjustedPval = maxDiscardedRValue;
+      if (trace.rval > maxDiscardedRValue && trace.minPval <= maxDiscardedRValue) {
+        if (incrementIndicators.get(incrementIndicatorIndex)) {
+          adjustedPval = maxDiscardedRValue + 1;
+        }
+        incrementIndicatorIndex += 1;
+      }
+      for (TraceSpan span : trace.spans) {
+        int pval = getP(span.spanData);
+        if (pval <= maxDiscardedRValue) {
+          result.add(
+              Reservoir.withAdjustedP(
+                  span.spanData, thinnedP(adjustedPval, trace.thinningLevel), trace.rval));
+        } else if (trace.thinningLevel > 0) {
+          result.add(
+              Reservoir.withAdjustedP(
+                  span.spanData, thinnedP(pval, trace.thinningLevel), trace.rval));
+        } else {
+          result.add(span.spanData);
+        }
+      }
+    }
+    return result;
+  }
+
+  private static int thinnedP(int pval, int thinningLevel) {
+    return Math.min(pval + thinningLevel, OtelTraceState.getMaxR());
+  }
+
+  private static int getP(SpanData spanData) {
+    OtelTraceState otelTraceState =
+        OtelTraceState.parse(
+            spanData.getSpanContext().getTraceState().get(OtelTraceState.TRACE_STATE_KEY));
+    // the same p-value as when the span was offered
+    return otelTraceState.getPForSpan();
+  }
+
+  @Override
+  boolean isEmpty() {
+    return numberOfSpans == 0;
+  }
+
+  @Override
+  boolean hasDiscardedSpans() {
+    return hasDiscardedTraces;
+  }
+
+  @Override
+  int getMaxDiscardedRValue() {
+    return maxDiscardedRValue;
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.SpanId;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.TraceFlags;
+import io.opentelemetry.api.trace.TraceState;
+import io.opentelemetry.sdk.common.InstrumentationScopeInfo;
+import io.opentelemetry.sdk.resources.Resource;
+import io.opentelemetry.sdk.testing.trace.TestSpanData;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.data.StatusData;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+
+class BatchOrderingTest {
+
+  private static final Resource RESOURCE_1 =
+      Resource.create(Attributes.of(AttributeKey.stringKey("service.name"), "service1"));
+  private static final Resource RESOURCE_2 =
+      Resource.create(Attributes.of(AttributeKey.stringKey("service.name"), "service2"));
+  private static final InstrumentationScopeInfo SCOPE_1 = InstrumentationScopeInfo.create("scope1");
+  private static final InstrumentationScopeInfo SCOPE_2 = InstrumentationScopeInfo.create("scope2");
+
+  private static SpanData createSpan(
+      String name, Resource resource, InstrumentationScopeInfo scope, int traceIndex) {
+    return TestSpanData.builder()
+        .setName(name)
+        .setSpanContext(
+            SpanContext.create(
+                String.format("%032x", traceIndex),
+                SpanId.fromLong(name.charAt(0)),
+                TraceFlags.getSampled(),
+                TraceState.getDefault()))
+        .setResource(resource)
+        .setInstrumentationScopeInfo(scope)
+        .setKind(SpanKind.INTERNAL)
+        .setStartEpochNanos(1)
+        .setEndEpochNanos(2)
+        .setHasEnded(true)
+        .setStatus(StatusData.unset())
+        .build();
+  }
+
+  private static List<String> getNames(List<SpanData> spans) {
+    return spans.stream().map(SpanData::getName).collect(Collectors.toList());
+  }
+
+  @Test
+  void groupsByResourceScopeAndTrace() {
+    List<SpanData> batch =
+        new ArrayList<>(
+            Arrays.asList(
+                createSpan("a", RESOURCE_2, SCOPE_1, 3),
+                createSpan("b", RESOURCE_1, SCOPE_2, 2),
+                createSpan("c", RESOURCE_2, SCOPE_1, 1),
+                createSpan("d", RESOURCE_1, SCOPE_1, 2),
+                createSpan("e", RESOURCE_2, SCOPE_1, 3),
+                createSpan("f", RESOURCE_1, SCOPE_2, 1),
+                createSpan("g", RESOURCE_1, SCOPE_2, 2)));
+    BatchOrdering.groupByResourceScopeAndTrace(batch);
+    // resources and scopes in the order of their first occurrence, traces by trace id,
+    // spans of the same trace in their original order
+    assertThat(getNames(batch)).containsExactly("c", "a", "e", "d", "f", "b", "g");
+  }
+
+  @Test
+  void keepsEmptyAndSingletonBatches() {
+    List<SpanData> empty = new ArrayList<>();
+    BatchOrdering.groupByResourceScopeAndTrace(empty);
+    assertThat(empty).isEmpty();
+
+    List<SpanData> singleton =
+        new ArrayList<>(Collections.singletonList(createSpan("a", RESOURCE_1, SCOPE_1, 1)));
+    BatchOrdering.groupByResourceScopeAndTrace(singleton);
+    assertThat(getNames(singleton)).containsExactly("a");
+  }
+}
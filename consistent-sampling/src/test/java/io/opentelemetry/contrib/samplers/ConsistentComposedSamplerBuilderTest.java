@@ -0,0 +1,216 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.SpanKind;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class ConsistentComposedSamplerBuilderTest {
+
+  private static final class FixedPSampler extends ConsistentSampler {
+    private final int p;
+    private final boolean isStateless;
+    private final AtomicInteger numberOfCalls = new AtomicInteger();
+
+    private FixedPSampler(int p, boolean isStateless) {
+      this.p = p;
+      this.isStateless = isStateless;
+    }
+
+    static FixedPSampler stateless(int p) {
+      return new FixedPSampler(p, /* isStateless= */ true);
+    }
+
+    static FixedPSampler stateful(int p) {
+      return new FixedPSampler(p, /* isStateless= */ false);
+    }
+
+    @Override
+    protected int getP(int parentP, boolean isRoot) {
+      numberOfCalls.incrementAndGet();
+      return p;
+    }
+
+    @Override
+    boolean isStateless() {
+      return isStateless;
+    }
+
+    @Override
+    public String getDescription() {
+      return "FixedPSampler{p=" + p + '}';
+    }
+  }
+
+  private static int getP(ConsistentSampler sampler) {
+    return sampler.getP(3, false, "name", SpanKind.INTERNAL, Attributes.empty());
+  }
+
+  @Test
+  void sameDecisionsAsNestedComposition() {
+    SplittableRandom random = new SplittableRandom(0x1f3a5c7e9b2d4f60L);
+    for (int k = 0; k < 10000; ++k) {
+      int numberOfSamplers = 1 + random.nextInt(6);
+      List<ConsistentSampler> samplers = new ArrayList<>();
+      for (int i = 0; i < numberOfSamplers; ++i) {
+        // p-values in [-1, 63], with extreme values more likely
+        int p;
+        int choice = random.nextInt(4);
+        if (choice == 0) {
+          p = OtelTraceState.getInvalidP();
+        } else if (choice == 1) {
+          p = random.nextBoolean() ? 0 : OtelTraceState.getMaxP();
+        } else {
+          p = random.nextInt(OtelTraceState.getMaxP() + 1);
+        }
+        samplers.add(new FixedPSampler(p, random.nextBoolean()));
+      }
+
+      ConsistentSampler nestedAnd = samplers.get(0);
+      ConsistentSampler nestedOr = samplers.get(0);
+      for (int i = 1; i < numberOfSamplers; ++i) {
+        nestedAnd = nestedAnd.and(samplers.get(i));
+        nestedOr = nestedOr.or(samplers.get(i));
+      }
+      ConsistentSampler flatAnd = ConsistentSampler.composedAndBuilder().addAll(samplers).build();
+      ConsistentSampler flatOr = ConsistentSampler.composedOrBuilder().addAll(samplers).build();
+
+      assertThat(getP(flatAnd)).isEqualTo(getP(nestedAnd));
+      assertThat(flatAnd.getP(3, true)).isEqualTo(nestedAnd.getP(3, true));
+      assertThat(getP(flatOr)).isEqualTo(getP(nestedOr));
+      assertThat(flatOr.getP(3, true)).isEqualTo(nestedOr.getP(3, true));
+    }
+  }
+
+  @Test
+  void shortCircuitsStatelessSamplersOnly() {
+    FixedPSampler stateless1 = FixedPSampler.stateless(0);
+    FixedPSampler stateless2 = FixedPSampler.stateless(5);
+    FixedPSampler stateful = FixedPSampler.stateful(7);
+
+    // the stateful sampler is evaluated first, then the first stateless one returns the final 0
+    ConsistentSampler or =
+        ConsistentSampler.composedOrBuilder().add(stateless1).add(stateless2).add(stateful).build();
+    assertThat(getP(or)).isZero();
+    assertThat(stateless1.numberOfCalls.get()).isEqualTo(1);
+    assertThat(stateless2.numberOfCalls.get()).isZero();
+    assertThat(stateful.numberOfCalls.get()).isEqualTo(1);
+
+    FixedPSampler invalid = FixedPSampler.stateless(OtelTraceState.getInvalidP());
+    FixedPSampler max = FixedPSampler.stateless(OtelTraceState.getMaxP());
+    FixedPSampler stateless3 = FixedPSampler.stateless(2);
+    ConsistentSampler and =
+        ConsistentSampler.composedAndBuilder().add(max).add(invalid).add(stateless3).build();
+    assertThat(getP(and)).isEqualTo(OtelTraceState.getInvalidP());
+    assertThat(max.numberOfCalls.get()).isEqualTo(1);
+    assertThat(invalid.numberOfCalls.get()).isEqualTo(1);
+    assertThat(stateless3.numberOfCalls.get()).isZero();
+  }
+
+  @Test
+  void flattensAndDeduplicates() {
+    ConsistentSampler sampler1 = FixedPSampler.stateless(1);
+    ConsistentSampler sampler2 = FixedPSampler.stateless(2);
+    ConsistentSampler sampler3 = FixedPSampler.stateless(3);
+
+    ConsistentSampler composed =
+        ConsistentSampler.composedAndBuilder()
+            .add(sampler1.and(sampler2))
+            .add(ConsistentSampler.composedAndBuilder().add(sampler2).add(sampler3).build())
+            .add(sampler1.or(sampler3))
+            .build();
+    assertThat(composed).isInstanceOf(ConsistentMultiComposedSampler.class);
+    List<ConsistentSampler> components =
+        Arrays.asList(((ConsistentMultiComposedSampler) composed).getSamplers());
+    assertThat(components).hasSize(4);
+    assertThat(components.subList(0, 3)).containsExactly(sampler1, sampler2, sampler3);
+    assertThat(components.get(3)).isInstanceOf(ConsistentComposedOrSampler.class);
+    assertThat(composed.getDescription())
+        .isEqualTo(
+            "ConsistentMultiComposedSampler{operator=and,samplers=["
+                + "FixedPSampler{p=1},FixedPSampler{p=2},FixedPSampler{p=3},"
+                + "ConsistentComposedOrSampler{sampler1=FixedPSampler{p=1},"
+                + "sampler2=FixedPSampler{p=3}}]}");
+  }
+
+  @Test
+  void keepsRepeatedStatefulSamplers() {
+    FixedPSampler stateless = FixedPSampler.stateless(2);
+    FixedPSampler stateful = FixedPSampler.stateful(3);
+
+    // a stateful sampler added twice is evaluated twice, as by the nested composition
+    ConsistentSampler composed =
+        ConsistentSampler.composedAndBuilder()
+            .add(stateful.and(stateless))
+            .add(stateless.and(stateful))
+            .build();
+    assertThat(composed).isInstanceOf(ConsistentMultiComposedSampler.class);
+    assertThat(((ConsistentMultiComposedSampler) composed).getSamplers())
+        .containsExactly(stateful, stateful, stateless);
+    assertThat(getP(composed)).isEqualTo(3);
+    assertThat(stateful.numberOfCalls.get()).isEqualTo(2);
+    assertThat(stateless.numberOfCalls.get()).isEqualTo(1);
+  }
+
+  @Test
+  void keepsRepeatedProbabilityBasedSamplersDrawingRandomValues() {
+    AtomicInteger numberOfDraws = new AtomicInteger();
+    SplittableRandom random = new SplittableRandom(0x5d0b2e8c47a193f6L);
+    RandomGenerator randomGenerator =
+        RandomGenerator.create(
+            () -> {
+              numberOfDraws.incrementAndGet();
+              return random.nextLong();
+            });
+
+    // a probability that is not a power of two requires a random draw on every evaluation
+    ConsistentSampler randomized = ConsistentSampler.probabilityBased(0.3, randomGenerator);
+    FixedPSampler other = FixedPSampler.stateless(1);
+    ConsistentSampler composed =
+        ConsistentSampler.composedAndBuilder().add(randomized).add(other).add(randomized).build();
+    assertThat(composed).isInstanceOf(ConsistentMultiComposedSampler.class);
+    assertThat(((ConsistentMultiComposedSampler) composed).getSamplers())
+        .containsExactly(randomized, randomized, other);
+
+    // the same number of random values is drawn as by the nested composition
+    ConsistentSampler nested = randomized.and(other).and(randomized);
+    for (int i = 0; i < 100; ++i) {
+      numberOfDraws.set(0);
+      getP(nested);
+      int numberOfNestedDraws = numberOfDraws.getAndSet(0);
+      getP(composed);
+      assertThat(numberOfDraws.get()).isEqualTo(numberOfNestedDraws).isGreaterThanOrEqualTo(2);
+    }
+
+    // a power of two is sampled deterministically, the repeated sampler is evaluated once
+    ConsistentSampler deterministic = ConsistentSampler.probabilityBased(0.25, randomGenerator);
+    assertThat(
+            ConsistentSampler.composedOrBuilder()
+                .add(deterministic.or(deterministic))
+                .add(deterministic)
+                .build())
+        .isSameAs(deterministic);
+  }
+
+  @Test
+  void emptyAndSingleComposition() {
+    assertThat(ConsistentSampler.composedAndBuilder().build())
+        .isSameAs(ConsistentSampler.alwaysOn());
+    assertThat(ConsistentSampler.composedOrBuilder().build())
+        .isSameAs(ConsistentSampler.alwaysOff());
+    ConsistentSampler sampler = ConsistentSampler.probabilityBased(0.5);
+    assertThat(ConsistentSampler.composedOrBuilder().add(sampler).add(sampler).build())
+        .isSameAs(sampler);
+  }
+}
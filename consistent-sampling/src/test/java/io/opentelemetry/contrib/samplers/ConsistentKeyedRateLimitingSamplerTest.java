@@ -0,0 +1,236 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.trace.data.LinkData;
+import io.opentelemetry.sdk.trace.samplers.SamplingDecision;
+import io.opentelemetry.sdk.trace.samplers.SamplingResult;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import org.assertj.core.data.Percentage;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ConsistentKeyedRateLimitingSamplerTest {
+
+  private static final AttributeKey<String> ENDPOINT = AttributeKey.stringKey("endpoint");
+
+  private long[] nanoTime;
+  private LongSupplier nanoTimeSupplier;
+  private Context parentContext;
+  private String traceId;
+  private SpanKind spanKind;
+  private List<LinkData> parentLinks;
+
+  @BeforeEach
+  void init() {
+    nanoTime = new long[] {0L};
+    nanoTimeSupplier = () -> nanoTime[0];
+    parentContext = Context.root();
+    traceId = "0123456789abcdef0123456789abcdef";
+    spanKind = SpanKind.SERVER;
+    parentLinks = Collections.emptyList();
+  }
+
+  private void advanceTime(long nanosIncrement) {
+    nanoTime[0] += nanosIncrement;
+  }
+
+  private long getCurrentTimeNanos() {
+    return nanoTime[0];
+  }
+
+  private static ConsistentKeyedRateLimitingSampler createSampler(
+      double targetSpansPerSecondLimit,
+      int maxNumberOfKeys,
+      SplittableRandom random,
+      LongSupplier nanoTimeSupplier) {
+    return new ConsistentKeyedRateLimitingSampler(
+        targetSpansPerSecondLimit,
+        5,
+        (name, spanKind, attributes) -> attributes.get(ENDPOINT),
+        ENDPOINT.getKey(),
+        maxNumberOfKeys,
+        RandomGenerator.create(random::nextLong),
+        nanoTimeSupplier);
+  }
+
+  private boolean isSampled(ConsistentSampler sampler, Attributes attributes) {
+    SamplingResult samplingResult =
+        sampler.shouldSample(parentContext, traceId, "name", spanKind, attributes, parentLinks);
+    return SamplingDecision.RECORD_AND_SAMPLE.equals(samplingResult.getDecision());
+  }
+
+  @Test
+  void testInvalidArguments() {
+    assertThatThrownBy(() -> ConsistentSampler.rateLimitedPerSpanName(1000, 5, 0))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> ConsistentSampler.rateLimitedPerSpanName(-1, 5, 10))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> ConsistentSampler.rateLimitedPerAttribute(1000, 5, null, 10))
+        .isInstanceOf(NullPointerException.class);
+  }
+
+  @Test
+  void testFrequentKeyDoesNotStarveRareKey() {
+    double targetSpansPerSecondLimit = 100;
+    ConsistentSampler sampler =
+        createSampler(targetSpansPerSecondLimit, 10, new SplittableRandom(3L), nanoTimeSupplier);
+
+    Attributes frequent = Attributes.of(ENDPOINT, "frequent");
+    Attributes rare = Attributes.of(ENDPOINT, "rare");
+
+    // 10000 spans per second with the frequent key and 50 spans per second with the rare key
+    long nanosBetweenSpans = TimeUnit.MICROSECONDS.toNanos(100);
+    int numSpans = 1000000;
+    long numSampledFrequentSpansInLast5Seconds = 0;
+    long numSampledRareSpansInLast5Seconds = 0;
+    for (int i = 0; i < numSpans; ++i) {
+      advanceTime(nanosBetweenSpans);
+      boolean isLast5Seconds = getCurrentTimeNanos() > TimeUnit.SECONDS.toNanos(95);
+      if (isSampled(sampler, frequent) && isLast5Seconds) {
+        numSampledFrequentSpansInLast5Seconds += 1;
+      }
+      if (i % 200 == 0 && isSampled(sampler, rare) && isLast5Seconds) {
+        numSampledRareSpansInLast5Seconds += 1;
+      }
+    }
+
+    assertThat(numSampledFrequentSpansInLast5Seconds / 5.)
+        .isCloseTo(targetSpansPerSecondLimit, Percentage.withPercentage(5));
+    assertThat(numSampledRareSpansInLast5Seconds / 5.).isEqualTo(50.);
+  }
+
+  @Test
+  void testNumberOfKeysIsBounded() {
+    int maxNumberOfKeys = 20;
+    ConsistentKeyedRateLimitingSampler sampler =
+        createSampler(100, maxNumberOfKeys, new SplittableRandom(0L), nanoTimeSupplier);
+
+    for (int i = 0; i < 10000; ++i) {
+      advanceTime(TimeUnit.MICROSECONDS.toNanos(100));
+      isSampled(sampler, Attributes.of(ENDPOINT, "endpoint" + i));
+    }
+    // keys are evicted in batches down to the low-water mark
+    int numberOfKeys = sampler.getNumberOfKeys();
+    assertThat(numberOfKeys).isBetween(sampler.getLowWaterNumberOfKeys(), maxNumberOfKeys);
+
+    // spans without the attribute share a single key
+    for (int i = 0; i < 100; ++i) {
+      isSampled(sampler, Attributes.empty());
+    }
+    assertThat(sampler.getNumberOfKeys()).isBetween(numberOfKeys, maxNumberOfKeys);
+  }
+
+  @Test
+  void testEvictionIsAmortizedUnderKeyChurn() {
+    int maxNumberOfKeys = 800;
+    int numberOfSpans = 100000;
+    ConsistentKeyedRateLimitingSampler sampler =
+        createSampler(100, maxNumberOfKeys, new SplittableRandom(0L), nanoTimeSupplier);
+    assertThat(sampler.getLowWaterNumberOfKeys()).isEqualTo(700);
+
+    Attributes hot = Attributes.of(ENDPOINT, "hot");
+    for (int i = 0; i < numberOfSpans; ++i) {
+      advanceTime(ConsistentKeyedRateLimitingSampler.ACCESS_TIME_RESOLUTION_NANOS);
+      // every other span has a new key, the hot key is used in between
+      isSampled(sampler, (i % 2 == 0) ? hot : Attributes.of(ENDPOINT, "endpoint" + i));
+      assertThat(sampler.getNumberOfKeys()).isLessThanOrEqualTo(maxNumberOfKeys);
+    }
+
+    // a scan evicts about 100 keys, instead of a single one
+    long numberOfNewKeys = numberOfSpans / 2;
+    assertThat(sampler.getNumberOfEvictionScans()).isBetween(1L, numberOfNewKeys / 100);
+    assertThat(sampler.hasKey("hot")).isTrue();
+    // the most recent keys survive
+    for (int i = numberOfSpans - 2 * 600 + 1; i < numberOfSpans; i += 2) {
+      assertThat(sampler.hasKey("endpoint" + i)).isTrue();
+    }
+  }
+
+  @Test
+  void testLeastRecentlyUsedKeyIsEvicted() {
+    ConsistentKeyedRateLimitingSampler sampler =
+        createSampler(100, 3, new SplittableRandom(0L), nanoTimeSupplier);
+
+    for (String endpoint : new String[] {"a", "b", "c", "a", "d"}) {
+      advanceTime(ConsistentKeyedRateLimitingSampler.ACCESS_TIME_RESOLUTION_NANOS);
+      isSampled(sampler, Attributes.of(ENDPOINT, endpoint));
+    }
+    assertThat(sampler.getNumberOfKeys()).isEqualTo(3);
+    assertThat(sampler.hasKey("a")).isTrue();
+    assertThat(sampler.hasKey("b")).isFalse();
+    assertThat(sampler.hasKey("c")).isTrue();
+    assertThat(sampler.hasKey("d")).isTrue();
+  }
+
+  @Test
+  void testConcurrentSampling() throws InterruptedException {
+    int maxNumberOfKeys = 50;
+    ConsistentKeyedRateLimitingSampler sampler =
+        new ConsistentKeyedRateLimitingSampler(
+            100,
+            5,
+            (name, spanKind, attributes) -> attributes.get(ENDPOINT),
+            ENDPOINT.getKey(),
+            maxNumberOfKeys,
+            RandomGenerator.getDefault(),
+            System::nanoTime);
+
+    int numThreads = 4;
+    Thread[] threads = new Thread[numThreads];
+    for (int t = 0; t < numThreads; ++t) {
+      int threadIndex = t;
+      threads[t] =
+          new Thread(
+              () -> {
+                for (int i = 0; i < 100000; ++i) {
+                  // a key shared by all threads and keys unique to each thread
+                  String endpoint = (i % 2 == 0) ? "hot" : "endpoint" + threadIndex + "-" + i;
+                  isSampled(sampler, Attributes.of(ENDPOINT, endpoint));
+                }
+              });
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertThat(sampler.getNumberOfKeys()).isLessThanOrEqualTo(maxNumberOfKeys);
+    assertThat(sampler.hasKey("hot")).isTrue();
+  }
+
+  @Test
+  void testFirstSpanOfNewKeyIsSampled() {
+    ConsistentSampler sampler = createSampler(1, 10, new SplittableRandom(0L), nanoTimeSupplier);
+    advanceTime(TimeUnit.SECONDS.toNanos(1));
+    for (int i = 0; i < 10; ++i) {
+      assertThat(isSampled(sampler, Attributes.of(ENDPOINT, "endpoint" + i))).isTrue();
+    }
+  }
+
+  @Test
+  void testSpanNameIsPassedThroughComposedSamplers() {
+    ConsistentSampler sampler =
+        ConsistentSampler.parentBased(
+            ConsistentSampler.alwaysOff().or(ConsistentSampler.rateLimitedPerSpanName(1, 5, 10)));
+    for (int i = 0; i < 10; ++i) {
+      SamplingResult samplingResult =
+          sampler.shouldSample(
+              parentContext, traceId, "name" + i, spanKind, Attributes.empty(), parentLinks);
+      assertThat(samplingResult.getDecision()).isEqualTo(SamplingDecision.RECORD_AND_SAMPLE);
+    }
+  }
+}
@@ -18,6 +18,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.SplittableRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.LongSupplier;
 import org.assertj.core.data.Percentage;
 import org.junit.jupiter.api.BeforeEach;
@@ -208,4 +209,59 @@ class ConsistentRateLimitingSamplerTest {
     assertThat(numSampledSpansInLast5Seconds / 5.)
         .isCloseTo(targetSpansPerSecondLimit, Percentage.withPercentage(5));
   }
+
+  @Test
+  void testConstantRateConcurrently() throws InterruptedException {
+
+    double targetSpansPerSecondLimit = 1000;
+    double adaptationTimeSeconds = 5;
+    long nanosBetweenSpans = TimeUnit.MICROSECONDS.toNanos(100);
+    int numThreads = 4;
+    int numSpansPerThread = 250000;
+
+    // every span advances the shared clock, the time of the last span is recorded per thread
+    AtomicLong sharedNanoTime = new AtomicLong();
+    ThreadLocal<long[]> lastNanoTime = ThreadLocal.withInitial(() -> new long[1]);
+    LongSupplier concurrentNanoTimeSupplier =
+        () -> {
+          long time = sharedNanoTime.addAndGet(nanosBetweenSpans);
+          lastNanoTime.get()[0] = time;
+          return time;
+        };
+
+    ConsistentSampler sampler =
+        ConsistentSampler.rateLimited(
+            targetSpansPerSecondLimit,
+            adaptationTimeSeconds,
+            RandomGenerator.getDefault(),
+            concurrentNanoTimeSupplier);
+
+    AtomicLong numSampledSpansInLast5Seconds = new AtomicLong();
+    long totalNanos = nanosBetweenSpans * numThreads * numSpansPerThread;
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < numThreads; ++t) {
+      threads.add(
+          new Thread(
+              () -> {
+                for (int i = 0; i < numSpansPerThread; ++i) {
+                  SamplingResult samplingResult =
+                      sampler.shouldSample(
+                          parentContext, traceId, name, spanKind, attributes, parentLinks);
+                  if (SamplingDecision.RECORD_AND_SAMPLE.equals(samplingResult.getDecision())
+                      && lastNanoTime.get()[0] > totalNanos - TimeUnit.SECONDS.toNanos(5)) {
+                    numSampledSpansInLast5Seconds.incrementAndGet();
+                  }
+                }
+              }));
+    }
+    for (Thread thread : threads) {
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertThat(numSampledSpansInLast5Seconds.get() / 5.)
+        .isCloseTo(targetSpansPerSecondLimit, Percentage.withPercentage(5));
+  }
 }
@@ -20,16 +20,27 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.when;
 
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
 import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
 import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Context;
 import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.metrics.SdkMeterProvider;
+import io.opentelemetry.sdk.metrics.data.MetricData;
+import io.opentelemetry.sdk.testing.exporter.InMemoryMetricReader;
+import io.opentelemetry.sdk.trace.IdGenerator;
 import io.opentelemetry.sdk.trace.ReadableSpan;
 import io.opentelemetry.sdk.trace.SdkTracerProvider;
 import io.opentelemetry.sdk.trace.SpanProcessor;
+import io.opentelemetry.sdk.trace.data.LinkData;
 import io.opentelemetry.sdk.trace.data.SpanData;
 import io.opentelemetry.sdk.trace.export.SpanExporter;
 import io.opentelemetry.sdk.trace.samplers.Sampler;
 import io.opentelemetry.sdk.trace.samplers.SamplingResult;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -42,6 +53,7 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.LongSupplier;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import javax.annotation.Nullable;
 import org.hipparchus.distribution.discrete.BinomialDistribution;
@@ -161,6 +173,89 @@ class ConsistentReservoirSamplingSpanProcessorTest {
             () -> ConsistentReservoirSamplingSpanProcessor.create(exporter, 1, 1, 1, null))
         .isInstanceOf(NullPointerException.class)
         .hasMessage("randomGenerator");
+    assertThatThrownBy(
+            () ->
+                ConsistentReservoirSamplingSpanProcessor.builder(exporter)
+                    .setStripeCount(0)
+                    .build())
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("stripe count must be positive");
+    assertThatThrownBy(
+            () ->
+                ConsistentReservoirSamplingSpanProcessor.builder(exporter)
+                    .setMaxPendingExports(-1)
+                    .build())
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("max pending exports must be non-negative");
+    assertThatThrownBy(
+            () ->
+                ConsistentReservoirSamplingSpanProcessor.builder(exporter).setMaxStrata(0).build())
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("max strata must be positive");
+    assertThatThrownBy(
+            () ->
+                ConsistentReservoirSamplingSpanProcessor.builder(exporter)
+                    .setMinSpansPerStratum(0)
+                    .build())
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("min spans per stratum must be positive");
+    assertThatThrownBy(
+            () ->
+                ConsistentReservoirSamplingSpanProcessor.builder(exporter)
+                    .setReservoirSize(100)
+                    .setStratifier(SpanStratifier.spanName())
+                    .setMaxStrata(11)
+                    .setMinSpansPerStratum(10)
+                    .build())
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage(
+            "reservoir size must not be smaller than max strata times min spans per stratum");
+    assertThatThrownBy(
+            () -> ConsistentReservoirSamplingSpanProcessor.builder(exporter).setStratifier(null))
+        .isInstanceOf(NullPointerException.class)
+        .hasMessage("stratifier");
+    assertThatThrownBy(
+            () ->
+                ConsistentReservoirSamplingSpanProcessor.builder(exporter)
+                    .setMaxSpansPerTrace(0)
+                    .build())
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("max spans per trace must be positive");
+    assertThatThrownBy(
+            () ->
+                ConsistentReservoirSamplingSpanProcessor.builder(exporter)
+                    .setReservoirSize(100)
+                    .setAdaptiveReservoirSize(200, 300)
+                    .build())
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("min reservoir size must be positive and not greater than the reservoir size");
+    assertThatThrownBy(
+            () ->
+                ConsistentReservoirSamplingSpanProcessor.builder(exporter)
+                    .setReservoirSize(100)
+                    .setAdaptiveReservoirSize(10, 50)
+                    .build())
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("max reservoir size must not be smaller than the reservoir size");
+    assertThatThrownBy(
+            () ->
+                ConsistentReservoirSamplingSpanProcessor.builder(exporter)
+                    .setMaxReservoirBytes(0)
+                    .build())
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("max reservoir bytes must be positive");
+    assertThatThrownBy(
+            () -> ConsistentReservoirSamplingSpanProcessor.builder(exporter).setPrioritizer(null))
+        .isInstanceOf(NullPointerException.class)
+        .hasMessage("prioritizer");
+    assertThatThrownBy(
+            () ->
+                ConsistentReservoirSamplingSpanProcessor.builder(exporter)
+                    .setKeepWholeTraces(true)
+                    .setPrioritizer(SpanPrioritizer.errors(1))
+                    .build())
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("prioritizer must not be set if whole traces are kept");
   }
 
   @Test
@@ -241,11 +336,97 @@ class ConsistentReservoirSamplingSpanProcessorTest {
     shutdown(sdkTracerProvider);
   }
 
+  @Test
+  @Timeout(10)
+  void forceExportPipelined() {
+    WaitingSpanExporter exporter = new WaitingSpanExporter(100);
+    int reservoirSize = 50;
+    SpanProcessor processor =
+        ConsistentReservoirSamplingSpanProcessor.builder(exporter)
+            .setReservoirSize(reservoirSize)
+            .setExportPeriod(Duration.ofNanos(VERY_LONG_EXPORT_PERIOD_NANOS))
+            .setMaxPendingExports(2)
+            .build();
+
+    SdkTracerProvider sdkTracerProvider =
+        SdkTracerProvider.builder().addSpanProcessor(processor).build();
+    for (int i = 0; i < 100; i++) {
+      createEndedSpan("MySpanName/" + i, sdkTracerProvider);
+    }
+
+    CompletableResultCode flushResult = processor.forceFlush().join(10, TimeUnit.SECONDS);
+    assertThat(flushResult.isSuccess()).isTrue();
+    List<SpanData> exported = exporter.getExported();
+    assertThat(exported).isNotNull();
+    assertThat(exported.size()).isEqualTo(reservoirSize);
+
+    shutdown(sdkTracerProvider);
+  }
+
+  @Test
+  @Timeout(10)
+  void pipelinedExportDropsBatchesIfExporterIsSlow() throws InterruptedException {
+    CountDownLatch exportStarted = new CountDownLatch(1);
+    CountDownLatch exportReleased = new CountDownLatch(1);
+    List<SpanData> exported = new ArrayList<>();
+    SpanExporter blockingExporter = mock(SpanExporter.class);
+    when(blockingExporter.shutdown()).thenReturn(CompletableResultCode.ofSuccess());
+    when(blockingExporter.export(anyList()))
+        .thenAnswer(
+            invocation -> {
+              exportStarted.countDown();
+              exportReleased.await();
+              synchronized (exported) {
+                exported.addAll(invocation.getArgument(0));
+              }
+              return CompletableResultCode.ofSuccess();
+            });
+
+    ConsistentReservoirSamplingSpanProcessor processor =
+        ConsistentReservoirSamplingSpanProcessor.builder(blockingExporter)
+            .setReservoirSize(RESERVOIR_SIZE)
+            .setExportPeriod(Duration.ofNanos(EXPORT_PERIOD_10_MILLIS_AS_NANOS))
+            .setMaxPendingExports(1)
+            .build();
+    SdkTracerProvider sdkTracerProvider =
+        SdkTracerProvider.builder().addSpanProcessor(processor).build();
+
+    // the first batch blocks the exporter thread
+    createEndedSpan(SPAN_NAME_1, sdkTracerProvider);
+    exportStarted.await();
+    assertThat(processor.getPendingExportCount()).isEqualTo(1);
+
+    // the reservoir is still rotated, but the following batch is dropped
+    createEndedSpan(SPAN_NAME_2, sdkTracerProvider);
+    awaitReservoirEmpty(processor);
+    await().untilAsserted(() -> assertThat(processor.getDroppedExportCount()).isEqualTo(1));
+
+    exportReleased.countDown();
+    await().untilAsserted(() -> assertThat(processor.getPendingExportCount()).isZero());
+
+    // new spans are exported again
+    createEndedSpan(SPAN_NAME_3, sdkTracerProvider);
+    await()
+        .untilAsserted(
+            () -> {
+              synchronized (exported) {
+                assertThat(exported)
+                    .extracting(SpanData::getName)
+                    .containsExactly(SPAN_NAME_1, SPAN_NAME_3);
+              }
+            });
+    assertThat(processor.getDroppedExportCount()).isEqualTo(1);
+
+    shutdown(sdkTracerProvider);
+  }
+
   @Test
   void ignoresNullSpans() {
+    SpanExporter exporter = mock(SpanExporter.class);
+    when(exporter.shutdown()).thenReturn(CompletableResultCode.ofSuccess());
     SpanProcessor processor =
         ConsistentReservoirSamplingSpanProcessor.create(
-            mock(SpanExporter.class), RESERVOIR_SIZE, EXPORT_PERIOD_100_MILLIS_AS_NANOS);
+            exporter, RESERVOIR_SIZE, EXPORT_PERIOD_100_MILLIS_AS_NANOS);
     assertThatCode(
             () -> {
               processor.onStart(null, null);
@@ -486,6 +667,584 @@ class ConsistentReservoirSamplingSpanProcessorTest {
     shutdown(sdkTracerProvider);
   }
 
+  @Test
+  @Timeout(10)
+  void sizeLimitedReservoir() {
+    long maxReservoirBytes = 10_000;
+    int numberOfSpans = 1000;
+
+    WaitingSpanExporter exporter = new WaitingSpanExporter(0);
+    SpanProcessor processor =
+        ConsistentReservoirSamplingSpanProcessor.builder(exporter)
+            .setReservoirSize(numberOfSpans)
+            .setMaxReservoirBytes(maxReservoirBytes)
+            .setExportPeriod(Duration.ofNanos(VERY_LONG_EXPORT_PERIOD_NANOS))
+            .build();
+    SdkTracerProvider sdkTracerProvider =
+        SdkTracerProvider.builder()
+            .setSampler(ConsistentSampler.alwaysOn())
+            .addSpanProcessor(processor)
+            .build();
+
+    // the spans have sizes between roughly 100 and 1100 bytes
+    SplittableRandom random = new SplittableRandom(0x9b05688c2b3e6c1fL);
+    Tracer tracer = sdkTracerProvider.get(getClass().getName());
+    for (int i = 0; i < numberOfSpans; ++i) {
+      char[] value = new char[random.nextInt(1000)];
+      Arrays.fill(value, 'x');
+      tracer
+          .spanBuilder(SPAN_NAME_1)
+          .setAttribute(AttributeKey.stringKey("value"), new String(value))
+          .startSpan()
+          .end();
+    }
+    processor.forceFlush().join(10, TimeUnit.SECONDS);
+
+    List<SpanData> exported = exporter.getExported();
+    long totalSize = exported.stream().mapToLong(SpanSizeEstimator::estimateSize).sum();
+    // the adjusted p-values may have an additional digit in the trace state
+    assertThat(totalSize).isLessThanOrEqualTo(maxReservoirBytes + exported.size());
+    assertThat(exported).hasSizeBetween(5, 100);
+    assertThat(exported)
+        .allSatisfy(spanData -> assertThat(getAdjustedCount(spanData)).isGreaterThan(1));
+
+    shutdown(sdkTracerProvider);
+  }
+
+  @Test
+  @Timeout(100)
+  void stripedReservoir() throws InterruptedException {
+    int reservoirSize = 100;
+    int numberOfThreads = 8;
+    int numberOfSpansPerThread = 1000;
+    int numCycles = 100;
+
+    WaitingSpanExporter exporter = new WaitingSpanExporter(0);
+    SpanProcessor processor =
+        ConsistentReservoirSamplingSpanProcessor.builder(exporter)
+            .setReservoirSize(reservoirSize)
+            .setExportPeriod(Duration.ofNanos(VERY_LONG_EXPORT_PERIOD_NANOS))
+            .setStripeCount(numberOfThreads)
+            .build();
+    SdkTracerProvider sdkTracerProvider =
+        SdkTracerProvider.builder()
+            .setSampler(ConsistentSampler.alwaysOn())
+            .addSpanProcessor(processor)
+            .build();
+
+    double[] totalAdjustedCounts = new double[numCycles];
+    for (int k = 0; k < numCycles; ++k) {
+      List<Thread> threads = new ArrayList<>();
+      for (int t = 0; t < numberOfThreads; ++t) {
+        Thread thread =
+            new Thread(
+                () -> {
+                  for (int i = 0; i < numberOfSpansPerThread; ++i) {
+                    createEndedSpan(SPAN_NAME_1, sdkTracerProvider);
+                  }
+                });
+        thread.start();
+        threads.add(thread);
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+
+      processor.forceFlush().join(10, TimeUnit.SECONDS);
+      List<SpanData> exported = exporter.getExported();
+      assertThat(exported).hasSize(reservoirSize);
+
+      long totalAdjustedCount = 0;
+      for (SpanData spanData : exported) {
+        OtelTraceState otelTraceState =
+            OtelTraceState.parse(
+                spanData.getSpanContext().getTraceState().get(OtelTraceState.TRACE_STATE_KEY));
+        totalAdjustedCount += 1L << otelTraceState.getP();
+      }
+      totalAdjustedCounts[k] = totalAdjustedCount;
+    }
+
+    assertThat(
+            new TTest()
+                .tTest(numberOfThreads * (double) numberOfSpansPerThread, totalAdjustedCounts))
+        .isGreaterThan(0.01);
+
+    shutdown(sdkTracerProvider);
+  }
+
+  private static long getAdjustedCount(SpanData spanData) {
+    OtelTraceState otelTraceState =
+        OtelTraceState.parse(
+            spanData.getSpanContext().getTraceState().get(OtelTraceState.TRACE_STATE_KEY));
+    return 1L << otelTraceState.getP();
+  }
+
+  // samples spans named "threshold" with the threshold sampler, all others with the p-value sampler
+  private static Sampler mixedFormatSampler(
+      ConsistentSampler pSampler, ConsistentThresholdSampler thresholdSampler) {
+    return new Sampler() {
+      @Override
+      public SamplingResult shouldSample(
+          Context parentContext,
+          String traceId,
+          String name,
+          SpanKind spanKind,
+          Attributes attributes,
+          List<LinkData> parentLinks) {
+        Sampler sampler = name.equals("threshold") ? thresholdSampler : pSampler;
+        return sampler.shouldSample(
+            parentContext, traceId, name, spanKind, attributes, parentLinks);
+      }
+
+      @Override
+      public String getDescription() {
+        return "MixedFormatSampler";
+      }
+    };
+  }
+
+  // threshold samplers derive the random value from the trace id, which must be reproducible
+  private static IdGenerator idGenerator(SplittableRandom random) {
+    return new IdGenerator() {
+      @Override
+      public String generateSpanId() {
+        return String.format("%016x", random.nextLong() | 1);
+      }
+
+      @Override
+      public String generateTraceId() {
+        return String.format("%016x%016x", random.nextLong(), random.nextLong());
+      }
+    };
+  }
+
+  @Test
+  @Timeout(100)
+  void stratifiedReservoir() {
+    int reservoirSize = 100;
+    int numberOfFrequentSpans = 1000;
+    int numberOfRareSpans = 5;
+    int numberOfOverflowSpans = 100;
+    int numCycles = 300;
+
+    WaitingSpanExporter exporter = new WaitingSpanExporter(0);
+    SpanProcessor processor =
+        ConsistentReservoirSamplingSpanProcessor.builder(exporter)
+            .setReservoirSize(reservoirSize)
+            .setExportPeriod(Duration.ofNanos(VERY_LONG_EXPORT_PERIOD_NANOS))
+            .setStratifier(SpanStratifier.spanName())
+            .setMaxStrata(3)
+            .setMinSpansPerStratum(10)
+            .setRandomGenerator(
+                RandomGenerator.create(asThreadSafeLongSupplier(new SplittableRandom(0L))))
+            .build();
+    SdkTracerProvider sdkTracerProvider =
+        SdkTracerProvider.builder()
+            .setSampler(ConsistentSampler.alwaysOn())
+            .addSpanProcessor(processor)
+            .build();
+
+    double[] frequentAdjustedCounts = new double[numCycles];
+    double[] overflowAdjustedCounts = new double[numCycles];
+    for (int k = 0; k < numCycles; ++k) {
+      // the first two span names occupy the two strata besides the overflow stratum
+      createEndedSpan(SPAN_NAME_1, sdkTracerProvider);
+      createEndedSpan(SPAN_NAME_2, sdkTracerProvider);
+      for (int i = 1; i < numberOfFrequentSpans; ++i) {
+        createEndedSpan(SPAN_NAME_1, sdkTracerProvider);
+      }
+      for (int i = 1; i < numberOfRareSpans; ++i) {
+        createEndedSpan(SPAN_NAME_2, sdkTracerProvider);
+      }
+      for (int i = 0; i < numberOfOverflowSpans; ++i) {
+        createEndedSpan("MySpanName/overflow/" + (i % 10), sdkTracerProvider);
+      }
+
+      processor.forceFlush().join(10, TimeUnit.SECONDS);
+      List<SpanData> exported = exporter.getExported();
+      assertThat(exported).hasSizeLessThanOrEqualTo(reservoirSize);
+
+      long rareAdjustedCount = 0;
+      for (SpanData spanData : exported) {
+        if (SPAN_NAME_1.equals(spanData.getName())) {
+          frequentAdjustedCounts[k] += getAdjustedCount(spanData);
+        } else if (SPAN_NAME_2.equals(spanData.getName())) {
+          rareAdjustedCount += getAdjustedCount(spanData);
+        } else {
+          overflowAdjustedCounts[k] += getAdjustedCount(spanData);
+        }
+      }
+      // the rare spans fit into their stratum and are therefore all exported with p-value 0
+      assertThat(rareAdjustedCount).isEqualTo(numberOfRareSpans);
+    }
+
+    assertThat(new TTest().tTest(numberOfFrequentSpans, frequentAdjustedCounts))
+        .isGreaterThan(0.01);
+    assertThat(new TTest().tTest(numberOfOverflowSpans, overflowAdjustedCounts))
+        .isGreaterThan(0.01);
+
+    shutdown(sdkTracerProvider);
+  }
+
+  @Test
+  @Timeout(100)
+  void prioritizedReservoir() {
+    int reservoirSize = 100;
+    int numberOfSpans = 1000;
+    int numberOfErrorSpans = 10;
+    int numCycles = 100;
+
+    WaitingSpanExporter exporter = new WaitingSpanExporter(0);
+    SpanProcessor processor =
+        ConsistentReservoirSamplingSpanProcessor.builder(exporter)
+            .setReservoirSize(reservoirSize)
+            .setExportPeriod(Duration.ofNanos(VERY_LONG_EXPORT_PERIOD_NANOS))
+            .setPrioritizer(
+                SpanPrioritizer.max(
+                    SpanPrioritizer.errors(10), SpanPrioritizer.spanKind(SpanKind.SERVER, 1)))
+            .setRandomGenerator(
+                RandomGenerator.create(asThreadSafeLongSupplier(new SplittableRandom(0L))))
+            .build();
+    SdkTracerProvider sdkTracerProvider =
+        SdkTracerProvider.builder()
+            .setSampler(ConsistentSampler.alwaysOn())
+            .addSpanProcessor(processor)
+            .build();
+    Tracer tracer = sdkTracerProvider.get(getClass().getName());
+
+    double[] otherAdjustedCounts = new double[numCycles];
+    for (int k = 0; k < numCycles; ++k) {
+      for (int i = 0; i < numberOfSpans - numberOfErrorSpans; ++i) {
+        createEndedSpan(SPAN_NAME_1, sdkTracerProvider);
+      }
+      for (int i = 0; i < numberOfErrorSpans; ++i) {
+        tracer.spanBuilder(SPAN_NAME_2).startSpan().setStatus(StatusCode.ERROR).end();
+      }
+
+      processor.forceFlush().join(10, TimeUnit.SECONDS);
+      List<SpanData> exported = exporter.getExported();
+      assertThat(exported).hasSize(reservoirSize);
+
+      long errorAdjustedCount = 0;
+      for (SpanData spanData : exported) {
+        if (SPAN_NAME_2.equals(spanData.getName())) {
+          errorAdjustedCount += getAdjustedCount(spanData);
+        } else {
+          otherAdjustedCounts[k] += getAdjustedCount(spanData);
+        }
+      }
+      // the error spans are boosted so much that they are always kept with their p-value 0
+      assertThat(errorAdjustedCount).isEqualTo(numberOfErrorSpans);
+    }
+
+    assertThat(new TTest().tTest(numberOfSpans - numberOfErrorSpans, otherAdjustedCounts))
+        .isGreaterThan(0.01);
+
+    shutdown(sdkTracerProvider);
+  }
+
+  @Test
+  @Timeout(100)
+  void keepWholeTraces() {
+    int reservoirSize = 100;
+    int numberOfTraces = 200;
+    int numberOfChildSpans = 4;
+
+    WaitingSpanExporter exporter = new WaitingSpanExporter(0);
+    SpanProcessor processor =
+        ConsistentReservoirSamplingSpanProcessor.builder(exporter)
+            .setReservoirSize(reservoirSize)
+            .setExportPeriod(Duration.ofNanos(VERY_LONG_EXPORT_PERIOD_NANOS))
+            .setStripeCount(4)
+            .setKeepWholeTraces(true)
+            .build();
+    SdkTracerProvider sdkTracerProvider =
+        SdkTracerProvider.builder()
+            .setSampler(ConsistentSampler.alwaysOn())
+            .addSpanProcessor(processor)
+            .build();
+    Tracer tracer = sdkTracerProvider.get(getClass().getName());
+
+    for (int k = 0; k < 10; ++k) {
+      for (int i = 0; i < numberOfTraces; ++i) {
+        Span root = tracer.spanBuilder(SPAN_NAME_1).startSpan();
+        for (int j = 0; j < numberOfChildSpans; ++j) {
+          tracer
+              .spanBuilder(SPAN_NAME_2)
+              .setParent(root.storeInContext(Context.root()))
+              .startSpan()
+              .end();
+        }
+        root.end();
+      }
+
+      processor.forceFlush().join(10, TimeUnit.SECONDS);
+      List<SpanData> exported = exporter.getExported();
+      assertThat(exported).hasSize(reservoirSize);
+      Map<String, Long> spansPerTrace =
+          exported.stream()
+              .collect(Collectors.groupingBy(SpanData::getTraceId, Collectors.counting()));
+      assertThat(spansPerTrace.values()).allMatch(count -> count == numberOfChildSpans + 1);
+      // all spans of a trace have the same adjusted p-value
+      assertThat(
+              exported.stream()
+                  .collect(
+                      Collectors.groupingBy(
+                          SpanData::getTraceId,
+                          Collectors.mapping(
+                              ConsistentReservoirSamplingSpanProcessorTest::getAdjustedCount,
+                              Collectors.toSet())))
+                  .values())
+          .allMatch(adjustedCounts -> adjustedCounts.size() == 1);
+    }
+
+    shutdown(sdkTracerProvider);
+  }
+
+  @Test
+  @Timeout(100)
+  void rDerivedFromTraceId() {
+    int reservoirSize = 50;
+    int numberOfSpans = 1000;
+    int numCycles = 300;
+
+    WaitingSpanExporter exporter = new WaitingSpanExporter(0);
+    SpanProcessor processor =
+        ConsistentReservoirSamplingSpanProcessor.builder(exporter)
+            .setReservoirSize(reservoirSize)
+            .setExportPeriod(Duration.ofNanos(VERY_LONG_EXPORT_PERIOD_NANOS))
+            .setRandomGenerator(
+                RandomGenerator.create(asThreadSafeLongSupplier(new SplittableRandom(1L))))
+            .build();
+    SdkTracerProvider sdkTracerProvider =
+        SdkTracerProvider.builder()
+            .setSampler(ConsistentSampler.probabilityBased(0.5).withTraceIdRandomness())
+            .addSpanProcessor(processor)
+            .build();
+
+    double[] adjustedCounts = new double[numCycles];
+    for (int k = 0; k < numCycles; ++k) {
+      for (int i = 0; i < numberOfSpans; ++i) {
+        createEndedSpan(SPAN_NAME_1, sdkTracerProvider);
+      }
+      processor.forceFlush().join(10, TimeUnit.SECONDS);
+
+      List<SpanData> exported = exporter.getExported();
+      assertThat(exported).hasSize(reservoirSize);
+      for (SpanData spanData : exported) {
+        OtelTraceState otelTraceState =
+            OtelTraceState.parse(
+                spanData.getSpanContext().getTraceState().get(OtelTraceState.TRACE_STATE_KEY));
+        // the r-value is not propagated, but the p-value is consistent with the derived one
+        assertThat(otelTraceState.hasValidR()).isFalse();
+        assertThat(otelTraceState.getP())
+            .isLessThanOrEqualTo(
+                OtelTraceState.getRFromTraceId(spanData.getSpanContext().getTraceId()));
+        adjustedCounts[k] += getAdjustedCount(spanData);
+      }
+    }
+
+    assertThat(new TTest().tTest(numberOfSpans, adjustedCounts)).isGreaterThan(0.01);
+
+    shutdown(sdkTracerProvider);
+  }
+
+  @Test
+  @Timeout(100)
+  void thresholdAndPValueSpans() {
+    int reservoirSize = 50;
+    int numberOfSpans = 1000;
+    int numCycles = 300;
+    SplittableRandom random = new SplittableRandom(0x5be0cd19137e2179L);
+
+    WaitingSpanExporter exporter = new WaitingSpanExporter(0);
+    SpanProcessor processor =
+        ConsistentReservoirSamplingSpanProcessor.builder(exporter)
+            .setReservoirSize(reservoirSize)
+            .setExportPeriod(Duration.ofNanos(VERY_LONG_EXPORT_PERIOD_NANOS))
+            .setRandomGenerator(RandomGenerator.create(random::nextLong))
+            .build();
+    SdkTracerProvider sdkTracerProvider =
+        SdkTracerProvider.builder()
+            .setSampler(
+                mixedFormatSampler(
+                    ConsistentSampler.probabilityBased(
+                        0.5, RandomGenerator.create(random::nextLong)),
+                    ConsistentThresholdSampler.probabilityBased(0.3)))
+            .setIdGenerator(idGenerator(random))
+            .addSpanProcessor(processor)
+            .build();
+
+    double[] pAdjustedCounts = new double[numCycles];
+    double[] thresholdAdjustedCounts = new double[numCycles];
+    for (int k = 0; k < numCycles; ++k) {
+      for (int i = 0; i < numberOfSpans; ++i) {
+        createEndedSpan(i % 2 == 0 ? "p" : "threshold", sdkTracerProvider);
+      }
+      processor.forceFlush().join(10, TimeUnit.SECONDS);
+
+      List<SpanData> exported = exporter.getExported();
+      assertThat(exported).hasSize(reservoirSize);
+      for (SpanData spanData : exported) {
+        OtelTraceState otelTraceState =
+            OtelTraceState.parse(
+                spanData.getSpanContext().getTraceState().get(OtelTraceState.TRACE_STATE_KEY));
+        if (spanData.getName().equals("threshold")) {
+          // the threshold is raised, no p-value is added
+          assertThat(otelTraceState.hasValidThreshold()).isTrue();
+          assertThat(otelTraceState.hasValidP()).isFalse();
+          thresholdAdjustedCounts[k] += otelTraceState.getAdjustedCount();
+        } else {
+          assertThat(otelTraceState.hasValidThreshold()).isFalse();
+          pAdjustedCounts[k] += otelTraceState.getAdjustedCount();
+        }
+      }
+    }
+
+    assertThat(new TTest().tTest(numberOfSpans / 2., pAdjustedCounts)).isGreaterThan(0.01);
+    assertThat(new TTest().tTest(numberOfSpans / 2., thresholdAdjustedCounts)).isGreaterThan(0.01);
+
+    shutdown(sdkTracerProvider);
+  }
+
+  @Test
+  @Timeout(10)
+  void adaptiveReservoirSize() {
+    AtomicBoolean exporterFails = new AtomicBoolean(false);
+    List<SpanData> exported = new ArrayList<>();
+    SpanExporter exporter =
+        new SpanExporter() {
+          @Override
+          public CompletableResultCode export(Collection<SpanData> spans) {
+            if (exporterFails.get()) {
+              return CompletableResultCode.ofFailure();
+            }
+            exported.addAll(spans);
+            return CompletableResultCode.ofSuccess();
+          }
+
+          @Override
+          public CompletableResultCode flush() {
+            return CompletableResultCode.ofSuccess();
+          }
+
+          @Override
+          public CompletableResultCode shutdown() {
+            return CompletableResultCode.ofSuccess();
+          }
+        };
+    InMemoryMetricReader metricReader = InMemoryMetricReader.create();
+    SdkMeterProvider meterProvider =
+        SdkMeterProvider.builder().registerMetricReader(metricReader).build();
+    ConsistentReservoirSamplingSpanProcessor processor =
+        ConsistentReservoirSamplingSpanProcessor.builder(exporter)
+            .setReservoirSize(100)
+            .setAdaptiveReservoirSize(50, 420)
+            .setExportPeriod(Duration.ofNanos(VERY_LONG_EXPORT_PERIOD_NANOS))
+            .setMeterProvider(meterProvider)
+            .build();
+    SdkTracerProvider sdkTracerProvider =
+        SdkTracerProvider.builder()
+            .setSampler(ConsistentSampler.alwaysOn())
+            .addSpanProcessor(processor)
+            .build();
+
+    // the reservoir grows as long as spans are discarded and the exporter keeps up, the new size
+    // applies to the period following the one started when the export was triggered
+    for (int expectedSize : new int[] {100, 100, 123}) {
+      IntStream.range(0, 1000).forEach(i -> createEndedSpan(SPAN_NAME_1, sdkTracerProvider));
+      processor.forceFlush().join(10, TimeUnit.SECONDS);
+      assertThat(exported.size()).isEqualTo(expectedSize);
+      exported.clear();
+    }
+    assertThat(processor.getReservoirSize()).isEqualTo(169);
+    assertThat(metricReader.collectAllMetrics())
+        .anySatisfy(
+            metricData -> {
+              assertThat(metricData.getName()).isEqualTo("reservoirSize");
+              assertThat(metricData.getLongGaugeData().getPoints())
+                  .singleElement()
+                  .satisfies(point -> assertThat(point.getValue()).isEqualTo(169));
+            });
+
+    // the reservoir shrinks if the exporter fails
+    exporterFails.set(true);
+    createEndedSpan(SPAN_NAME_1, sdkTracerProvider);
+    processor.forceFlush().join(10, TimeUnit.SECONDS);
+    assertThat(processor.getReservoirSize()).isEqualTo(84);
+    createEndedSpan(SPAN_NAME_1, sdkTracerProvider);
+    processor.forceFlush().join(10, TimeUnit.SECONDS);
+    assertThat(processor.getReservoirSize()).isEqualTo(50);
+
+    shutdown(sdkTracerProvider);
+    meterProvider.shutdown().join(10, TimeUnit.SECONDS);
+  }
+
+  private static MetricData getMetric(InMemoryMetricReader metricReader, String name) {
+    return metricReader.collectAllMetrics().stream()
+        .filter(metricData -> metricData.getName().equals(name))
+        .findFirst()
+        .orElseThrow(() -> new AssertionError("missing metric " + name));
+  }
+
+  @Test
+  @Timeout(10)
+  void selfTelemetry() {
+    int reservoirSize = 10;
+    int numberOfSpans = 100;
+
+    WaitingSpanExporter exporter = new WaitingSpanExporter(reservoirSize);
+    InMemoryMetricReader metricReader = InMemoryMetricReader.create();
+    SdkMeterProvider meterProvider =
+        SdkMeterProvider.builder().registerMetricReader(metricReader).build();
+    SpanProcessor processor =
+        ConsistentReservoirSamplingSpanProcessor.builder(exporter)
+            .setReservoirSize(reservoirSize)
+            .setExportPeriod(Duration.ofNanos(VERY_LONG_EXPORT_PERIOD_NANOS))
+            .setMeterProvider(meterProvider)
+            .build();
+    SdkTracerProvider sdkTracerProvider =
+        SdkTracerProvider.builder()
+            .setSampler(ConsistentSampler.alwaysOn())
+            .addSpanProcessor(processor)
+            .build();
+
+    IntStream.range(0, numberOfSpans).forEach(i -> createEndedSpan(SPAN_NAME_1, sdkTracerProvider));
+    processor.forceFlush().join(10, TimeUnit.SECONDS);
+    assertThat(exporter.waitForExport()).hasSize(reservoirSize);
+
+    assertThat(getMetric(metricReader, "offeredSpans").getLongSumData().getPoints())
+        .singleElement()
+        .satisfies(point -> assertThat(point.getValue()).isEqualTo(numberOfSpans));
+    assertThat(getMetric(metricReader, "keptSpans").getLongSumData().getPoints())
+        .singleElement()
+        .satisfies(point -> assertThat(point.getValue()).isEqualTo(reservoirSize));
+    assertThat(getMetric(metricReader, "discardedSpans").getLongSumData().getPoints())
+        .singleElement()
+        .satisfies(point -> assertThat(point.getValue()).isEqualTo(numberOfSpans - reservoirSize));
+    assertThat(getMetric(metricReader, "maxDiscardedRValue").getHistogramData().getPoints())
+        .singleElement()
+        .satisfies(point -> assertThat(point.getCount()).isEqualTo(1));
+    assertThat(getMetric(metricReader, "lockWaitTime").getDoubleSumData().getPoints())
+        .singleElement()
+        .satisfies(point -> assertThat(point.getValue()).isGreaterThanOrEqualTo(0));
+    // the export duration is recorded after the exporter returned
+    await()
+        .untilAsserted(
+            () ->
+                assertThat(getMetric(metricReader, "exportDuration").getHistogramData().getPoints())
+                    .singleElement()
+                    .satisfies(
+                        point -> {
+                          assertThat(point.getCount()).isEqualTo(1);
+                          assertThat(point.getAttributes().get(AttributeKey.booleanKey("success")))
+                              .isTrue();
+                        }));
+
+    shutdown(sdkTracerProvider);
+    meterProvider.shutdown().join(10, TimeUnit.SECONDS);
+  }
+
   private enum Tests {
     VERIFY_MEAN,
     VERIFY_PVALUE_DISTRIBUTION,
@@ -535,6 +1294,8 @@ class ConsistentReservoirSamplingSpanProcessorTest {
             .build();
 
     Map<Integer, Long> observedPvalues = new HashMap<>();
+    // the p-values of the span created first in every cycle, if it was exported
+    Map<Integer, Long> observedPvaluesOfFirstSpan = new HashMap<>();
     Map<String, Long> spanNameCounts = new HashMap<>();
 
     double[] totalAdjustedCounts = new double[numCycles];
@@ -565,6 +1326,9 @@ class ConsistentReservoirSamplingSpanProcessorTest {
         assertTrue(traceState.hasValidR());
         assertTrue(traceState.hasValidP());
         observedPvalues.merge(traceState.getP(), 1L, Long::sum);
+        if (spanData.getName().equals("0")) {
+          observedPvaluesOfFirstSpan.merge(traceState.getP(), 1L, Long::sum);
+        }
         totalAdjustedCount += 1L << traceState.getP();
         spanNameCounts.merge(spanData.getName(), 1L, Long::sum);
       }
@@ -604,8 +1368,11 @@ class ConsistentReservoirSamplingSpanProcessorTest {
 
       double effectiveSamplingProbability =
           samplingProbability * p1 + (reservoirSize / (double) numberOfSpans) * (1. - p2);
+      // The exported spans of a cycle share the p-value derived from the largest discarded r-value,
+      // so their p-values are not independent, as the G-test assumes. Therefore, the test is
+      // applied to a single span per cycle, as the cycles are independent.
       verifyObservedPvaluesUsingGtest(
-          totalNumberOfSpans, observedPvalues, effectiveSamplingProbability);
+          numCycles, observedPvaluesOfFirstSpan, effectiveSamplingProbability);
     }
     if (tests.contains(Tests.VERIFY_ORDER_INDEPENDENCE)) {
       assertThat(spanNameCounts.size()).isEqualTo(numberOfSpans);
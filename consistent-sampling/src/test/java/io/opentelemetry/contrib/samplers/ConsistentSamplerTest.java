@@ -8,6 +8,7 @@ package io.opentelemetry.contrib.samplers;
 import static io.opentelemetry.contrib.samplers.OtelTraceState.getInvalidP;
 import static io.opentelemetry.contrib.samplers.OtelTraceState.getInvalidR;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
@@ -255,4 +256,174 @@ class ConsistentSamplerTest {
     assertConsistentSampling(3, 5, SAMPLED, getInvalidP(), 7, getInvalidP(), 5, SAMPLED);
     assertConsistentSampling(5, 3, NOT_SAMPLED, getInvalidP(), 7, getInvalidP(), 3, NOT_SAMPLED);
   }
+
+  @Test
+  void testCachedSamplingResults() {
+    String traceId = "0123456789abcdef0123456789abcdef";
+    String spanId = "0123456789abcdef";
+    Context parentContext = createParentContext(traceId, spanId, 2, 5, SAMPLED);
+    ConsistentSampler sampler = createConsistentSampler(3, 7);
+
+    SamplingResult samplingResult1 =
+        sampler.shouldSample(
+            parentContext,
+            traceId,
+            "name",
+            SpanKind.SERVER,
+            Attributes.empty(),
+            Collections.emptyList());
+    SamplingResult samplingResult2 =
+        sampler.shouldSample(
+            parentContext,
+            traceId,
+            "name",
+            SpanKind.SERVER,
+            Attributes.empty(),
+            Collections.emptyList());
+    assertThat(samplingResult2).isSameAs(samplingResult1);
+    assertThat(samplingResult1.getDecision()).isEqualTo(SamplingDecision.RECORD_AND_SAMPLE);
+
+    TraceState parentTraceState = Span.fromContext(parentContext).getSpanContext().getTraceState();
+    assertThat(samplingResult1.getUpdatedTraceState(parentTraceState).asMap())
+        .containsExactly(entry(OtelTraceState.TRACE_STATE_KEY, "p:3;r:5"));
+    assertThat(samplingResult1.getUpdatedTraceState(TraceState.getDefault()).asMap())
+        .containsExactly(entry(OtelTraceState.TRACE_STATE_KEY, "p:3;r:5"));
+  }
+
+  @Test
+  void testOtherKeyValuePairsArePreserved() {
+    String traceId = "0123456789abcdef0123456789abcdef";
+    String spanId = "0123456789abcdef";
+    TraceState parentTraceState =
+        TraceState.builder()
+            .put("foo", "bar")
+            .put(OtelTraceState.TRACE_STATE_KEY, "x:1;r:5;p:2")
+            .build();
+    SpanContext parentSpanContext =
+        SpanContext.create(traceId, spanId, TraceFlags.getSampled(), parentTraceState);
+    Context parentContext = Span.wrap(parentSpanContext).storeInContext(Context.root());
+    ConsistentSampler sampler = createConsistentSampler(3, 7);
+
+    SamplingResult samplingResult =
+        sampler.shouldSample(
+            parentContext,
+            traceId,
+            "name",
+            SpanKind.SERVER,
+            Attributes.empty(),
+            Collections.emptyList());
+    assertThat(samplingResult.getDecision()).isEqualTo(SamplingDecision.RECORD_AND_SAMPLE);
+    assertThat(samplingResult.getUpdatedTraceState(parentTraceState).asMap())
+        .containsOnly(entry(OtelTraceState.TRACE_STATE_KEY, "p:3;r:5;x:1"), entry("foo", "bar"));
+  }
+
+  private static SamplingResult sampleWithTraceIdRandomness(
+      ConsistentSampler sampler, String traceId, TraceState parentTraceState) {
+    Context parentContext = Context.root();
+    if (!parentTraceState.isEmpty()) {
+      SpanContext parentSpanContext =
+          SpanContext.create(
+              traceId, "0123456789abcdef", TraceFlags.getSampled(), parentTraceState);
+      parentContext = Span.wrap(parentSpanContext).storeInContext(Context.root());
+    }
+    return sampler
+        .withTraceIdRandomness()
+        .shouldSample(
+            parentContext,
+            traceId,
+            "name",
+            SpanKind.SERVER,
+            Attributes.empty(),
+            Collections.emptyList());
+  }
+
+  @Test
+  void testRDerivedFromTraceIdIsNotPropagated() {
+    // the r-value derived from this trace id is 4
+    String traceId = "0123456789abcdefabf0ffffffffffff";
+    ConsistentSampler sampler = ConsistentSampler.probabilityBased(0.25);
+
+    SamplingResult samplingResult =
+        sampleWithTraceIdRandomness(sampler, traceId, TraceState.getDefault());
+    assertThat(samplingResult.getDecision()).isEqualTo(SamplingDecision.RECORD_AND_SAMPLE);
+    assertThat(samplingResult.getUpdatedTraceState(TraceState.getDefault()).asMap())
+        .containsExactly(entry(OtelTraceState.TRACE_STATE_KEY, "p:2"));
+    assertThat(sampleWithTraceIdRandomness(sampler, traceId, TraceState.getDefault()))
+        .isSameAs(samplingResult);
+
+    samplingResult =
+        sampleWithTraceIdRandomness(
+            ConsistentSampler.probabilityBased(1. / 32), traceId, TraceState.getDefault());
+    assertThat(samplingResult.getDecision()).isEqualTo(SamplingDecision.DROP);
+    assertThat(samplingResult.getUpdatedTraceState(TraceState.getDefault()).isEmpty()).isTrue();
+  }
+
+  @Test
+  void testRDerivedFromTraceIdRespectsPropagatedR() {
+    // the r-value derived from this trace id is 0, but the propagated one takes precedence
+    String traceId = "0123456789abcdefab0fffffffffffff";
+    TraceState parentTraceState =
+        TraceState.builder().put(OtelTraceState.TRACE_STATE_KEY, "p:0;r:5").build();
+
+    SamplingResult samplingResult =
+        sampleWithTraceIdRandomness(
+            ConsistentSampler.probabilityBased(0.25), traceId, parentTraceState);
+    assertThat(samplingResult.getDecision()).isEqualTo(SamplingDecision.RECORD_AND_SAMPLE);
+    assertThat(samplingResult.getUpdatedTraceState(parentTraceState).asMap())
+        .containsExactly(entry(OtelTraceState.TRACE_STATE_KEY, "p:2;r:5"));
+  }
+
+  @Test
+  void testRDerivedFromTraceIdForParentWithPOnly() {
+    String traceId = "0123456789abcdefabf0ffffffffffff";
+    ConsistentSampler sampler =
+        ConsistentSampler.parentBased(ConsistentSampler.probabilityBased(0.5));
+
+    // the parent p-value is consistent with the derived r-value of 4
+    TraceState parentTraceState =
+        TraceState.builder().put("foo", "bar").put(OtelTraceState.TRACE_STATE_KEY, "p:3").build();
+    SamplingResult samplingResult = sampleWithTraceIdRandomness(sampler, traceId, parentTraceState);
+    assertThat(samplingResult.getDecision()).isEqualTo(SamplingDecision.RECORD_AND_SAMPLE);
+    assertThat(samplingResult.getUpdatedTraceState(parentTraceState)).isSameAs(parentTraceState);
+
+    // the parent p-value is inconsistent with the derived r-value of 4 and therefore ignored
+    parentTraceState =
+        TraceState.builder().put("foo", "bar").put(OtelTraceState.TRACE_STATE_KEY, "p:6").build();
+    samplingResult = sampleWithTraceIdRandomness(sampler, traceId, parentTraceState);
+    assertThat(samplingResult.getDecision()).isEqualTo(SamplingDecision.RECORD_AND_SAMPLE);
+    assertThat(samplingResult.getUpdatedTraceState(parentTraceState).asMap())
+        .containsOnly(entry("foo", "bar"));
+
+    // other key-value pairs are preserved
+    parentTraceState = TraceState.builder().put(OtelTraceState.TRACE_STATE_KEY, "x:1;p:3").build();
+    samplingResult = sampleWithTraceIdRandomness(sampler, traceId, parentTraceState);
+    assertThat(samplingResult.getDecision()).isEqualTo(SamplingDecision.RECORD_AND_SAMPLE);
+    assertThat(samplingResult.getUpdatedTraceState(parentTraceState).asMap())
+        .containsExactly(entry(OtelTraceState.TRACE_STATE_KEY, "p:3;x:1"));
+  }
+
+  @Test
+  void testWithTraceIdRandomnessIsIdempotent() {
+    ConsistentSampler sampler = ConsistentSampler.alwaysOn().withTraceIdRandomness();
+    assertThat(sampler.withTraceIdRandomness()).isSameAs(sampler);
+    assertThat(sampler.getDescription())
+        .isEqualTo("ConsistentTraceIdRandomnessSampler{delegate=ConsistentAlwaysOnSampler}");
+  }
+
+  @Test
+  void testTraceIdRandomnessCannotBeComposed() {
+    ConsistentSampler sampler = ConsistentSampler.alwaysOn().withTraceIdRandomness();
+    ConsistentSampler other = ConsistentSampler.probabilityBased(0.5);
+    assertThrows(IllegalArgumentException.class, () -> sampler.and(other));
+    assertThrows(IllegalArgumentException.class, () -> other.and(sampler));
+    assertThrows(IllegalArgumentException.class, () -> sampler.or(other));
+    assertThrows(IllegalArgumentException.class, () -> other.or(sampler));
+    assertThrows(IllegalArgumentException.class, () -> ConsistentSampler.parentBased(sampler));
+    assertThrows(
+        IllegalArgumentException.class, () -> ConsistentSampler.composedAndBuilder().add(sampler));
+
+    // the outermost sampler may derive r-values from the trace id
+    assertThat(other.and(ConsistentSampler.alwaysOff()).withTraceIdRandomness().getDescription())
+        .startsWith("ConsistentTraceIdRandomnessSampler{");
+  }
 }
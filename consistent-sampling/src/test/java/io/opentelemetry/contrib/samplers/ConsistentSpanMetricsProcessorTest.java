@@ -0,0 +1,284 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.MeterProvider;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.TraceFlags;
+import io.opentelemetry.api.trace.TraceState;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.metrics.SdkMeterProvider;
+import io.opentelemetry.sdk.metrics.data.DoublePointData;
+import io.opentelemetry.sdk.metrics.data.MetricData;
+import io.opentelemetry.sdk.testing.exporter.InMemoryMetricReader;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.data.LinkData;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
+import io.opentelemetry.sdk.trace.samplers.SamplingDecision;
+import io.opentelemetry.sdk.trace.samplers.SamplingResult;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ConsistentSpanMetricsProcessorTest {
+
+  private static final long START_MILLIS = 1_000_000;
+  private static final AttributeKey<Long> P_KEY = AttributeKey.longKey("p");
+  private static final Attributes SERVER_OK =
+      Attributes.of(
+          AttributeKey.stringKey("span.name"),
+          "A",
+          AttributeKey.stringKey("span.kind"),
+          "SERVER",
+          AttributeKey.stringKey("status.code"),
+          "UNSET");
+  private static final Attributes SERVER_ERROR =
+      SERVER_OK.toBuilder().put(AttributeKey.stringKey("status.code"), "ERROR").build();
+
+  // samples all spans and sets the p-value given by the attribute "p" of the span
+  private static final Sampler FIXED_P_SAMPLER =
+      new Sampler() {
+        @Override
+        public SamplingResult shouldSample(
+            Context parentContext,
+            String traceId,
+            String name,
+            SpanKind spanKind,
+            Attributes attributes,
+            List<LinkData> parentLinks) {
+          Long pval = attributes.get(P_KEY);
+          return new SamplingResult() {
+            @Override
+            public SamplingDecision getDecision() {
+              return SamplingDecision.RECORD_AND_SAMPLE;
+            }
+
+            @Override
+            public Attributes getAttributes() {
+              return Attributes.empty();
+            }
+
+            @Override
+            public TraceState getUpdatedTraceState(TraceState parentTraceState) {
+              if (pval == null) {
+                return parentTraceState;
+              }
+              return parentTraceState.toBuilder()
+                  .put(OtelTraceState.TRACE_STATE_KEY, "p:" + pval + ";r:62")
+                  .build();
+            }
+          };
+        }
+
+        @Override
+        public String getDescription() {
+          return "FixedPSampler";
+        }
+      };
+
+  private InMemoryMetricReader metricReader;
+  private SdkMeterProvider meterProvider;
+
+  @BeforeEach
+  void setUp() {
+    metricReader = InMemoryMetricReader.create();
+    meterProvider = SdkMeterProvider.builder().registerMetricReader(metricReader).build();
+  }
+
+  @AfterEach
+  void tearDown() {
+    meterProvider.shutdown().join(10, TimeUnit.SECONDS);
+  }
+
+  private static void createEndedSpan(
+      Tracer tracer, String name, long pval, StatusCode statusCode, long durationMillis) {
+    Span span =
+        tracer
+            .spanBuilder(name)
+            .setSpanKind(SpanKind.SERVER)
+            .setAttribute(P_KEY, pval)
+            .setStartTimestamp(START_MILLIS, TimeUnit.MILLISECONDS)
+            .startSpan();
+    span.setStatus(statusCode);
+    span.end(START_MILLIS + durationMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private List<MetricData> collect(String name) {
+    List<MetricData> metrics = new ArrayList<>(metricReader.collectAllMetrics());
+    metrics.removeIf(metricData -> !metricData.getName().equals(name));
+    return metrics;
+  }
+
+  private double getDoubleValue(String name, Attributes attributes) {
+    return collect(name).stream()
+        .flatMap(metricData -> metricData.getDoubleSumData().getPoints().stream())
+        .filter(point -> point.getAttributes().equals(attributes))
+        .mapToDouble(DoublePointData::getValue)
+        .sum();
+  }
+
+  private static Attributes withBucket(Attributes attributes, double bucketBoundary) {
+    return attributes.toBuilder().put(AttributeKey.doubleKey("le"), bucketBoundary).build();
+  }
+
+  @Test
+  void invalidConfig() {
+    assertThatThrownBy(() -> ConsistentSpanMetricsProcessor.builder(null))
+        .isInstanceOf(NullPointerException.class)
+        .hasMessage("meterProvider");
+    assertThatThrownBy(
+            () ->
+                ConsistentSpanMetricsProcessor.builder(MeterProvider.noop())
+                    .setMaxCardinality(0)
+                    .build())
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("max cardinality must be positive");
+    assertThatThrownBy(
+            () ->
+                ConsistentSpanMetricsProcessor.builder(MeterProvider.noop())
+                    .setDurationBucketBoundaries(Arrays.asList(1d, 1d))
+                    .build())
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("duration bucket boundaries must be strictly increasing");
+    assertThatThrownBy(
+            () ->
+                ConsistentSpanMetricsProcessor.builder(MeterProvider.noop())
+                    .setOverflowAttributes(null))
+        .isInstanceOf(NullPointerException.class)
+        .hasMessage("overflowAttributes");
+  }
+
+  @Test
+  void adjustedCount() {
+    assertThat(getAdjustedCount(null)).isEqualTo(1);
+    assertThat(getAdjustedCount("r:5")).isEqualTo(1);
+    assertThat(getAdjustedCount("p:0;r:5")).isEqualTo(1);
+    assertThat(getAdjustedCount("p:5;r:5")).isEqualTo(32);
+    assertThat(getAdjustedCount("p:62;r:62")).isEqualTo(0x1p62);
+    assertThat(getAdjustedCount("p:63")).isZero();
+    assertThat(getAdjustedCount("th:0")).isEqualTo(1);
+    assertThat(getAdjustedCount("th:8")).isEqualTo(2);
+    assertThat(getAdjustedCount("th:c")).isEqualTo(4);
+    // the threshold takes precedence over the p-value
+    assertThat(getAdjustedCount("p:5;th:c")).isEqualTo(4);
+  }
+
+  private static double getAdjustedCount(String otelTraceState) {
+    TraceState traceState =
+        (otelTraceState == null)
+            ? TraceState.getDefault()
+            : TraceState.builder().put(OtelTraceState.TRACE_STATE_KEY, otelTraceState).build();
+    return ConsistentSpanMetricsProcessor.getAdjustedCount(
+        SpanContext.create(
+            "0123456789abcdef0123456789abcdef",
+            "0123456789abcdef",
+            TraceFlags.getSampled(),
+            traceState));
+  }
+
+  @Test
+  void weightsSpansByAdjustedCount() {
+    ConsistentSpanMetricsProcessor processor =
+        ConsistentSpanMetricsProcessor.builder(meterProvider)
+            .setDurationBucketBoundaries(Arrays.asList(5d, 50d))
+            .build();
+    SdkTracerProvider tracerProvider =
+        SdkTracerProvider.builder().setSampler(FIXED_P_SAMPLER).addSpanProcessor(processor).build();
+    Tracer tracer = tracerProvider.get("test");
+
+    for (int i = 0; i < 10; ++i) {
+      createEndedSpan(tracer, "A", 2, StatusCode.UNSET, 3);
+    }
+    createEndedSpan(tracer, "A", 0, StatusCode.UNSET, 20);
+    createEndedSpan(tracer, "A", 3, StatusCode.ERROR, 100);
+    // an adjusted count of zero
+    createEndedSpan(tracer, "A", 63, StatusCode.UNSET, 3);
+
+    assertThat(getDoubleValue("estimatedSpanCount", SERVER_OK)).isEqualTo(41);
+    assertThat(getDoubleValue("estimatedSpanCount", SERVER_ERROR)).isEqualTo(8);
+    assertThat(getDoubleValue("estimatedSpanDuration", SERVER_OK)).isCloseTo(140, within(1e-6));
+    assertThat(getDoubleValue("estimatedSpanDuration", SERVER_ERROR)).isCloseTo(800, within(1e-6));
+    assertThat(getDoubleValue("estimatedSpanDurationBucket", withBucket(SERVER_OK, 5)))
+        .isEqualTo(40);
+    assertThat(getDoubleValue("estimatedSpanDurationBucket", withBucket(SERVER_OK, 50)))
+        .isEqualTo(41);
+    assertThat(getDoubleValue("estimatedSpanDurationBucket", withBucket(SERVER_ERROR, 50)))
+        .isZero();
+
+    tracerProvider.shutdown().join(10, TimeUnit.SECONDS);
+  }
+
+  @Test
+  void overflow() {
+    Attributes overflowAttributes = Attributes.of(AttributeKey.stringKey("span.name"), "other");
+    ConsistentSpanMetricsProcessor processor =
+        ConsistentSpanMetricsProcessor.builder(meterProvider)
+            .setMaxCardinality(2)
+            .setOverflowAttributes(overflowAttributes)
+            .build();
+    SdkTracerProvider tracerProvider =
+        SdkTracerProvider.builder().setSampler(FIXED_P_SAMPLER).addSpanProcessor(processor).build();
+    Tracer tracer = tracerProvider.get("test");
+
+    createEndedSpan(tracer, "A", 0, StatusCode.UNSET, 1);
+    createEndedSpan(tracer, "A", 0, StatusCode.ERROR, 1);
+    createEndedSpan(tracer, "B", 1, StatusCode.UNSET, 1);
+    createEndedSpan(tracer, "C", 2, StatusCode.UNSET, 1);
+    createEndedSpan(tracer, "A", 0, StatusCode.UNSET, 1);
+
+    assertThat(getDoubleValue("estimatedSpanCount", SERVER_OK)).isEqualTo(2);
+    assertThat(getDoubleValue("estimatedSpanCount", SERVER_ERROR)).isEqualTo(1);
+    assertThat(getDoubleValue("estimatedSpanCount", overflowAttributes)).isEqualTo(6);
+    assertThat(collect("estimatedSpanCount"))
+        .singleElement()
+        .satisfies(metricData -> assertThat(metricData.getDoubleSumData().getPoints()).hasSize(3));
+
+    tracerProvider.shutdown().join(10, TimeUnit.SECONDS);
+  }
+
+  @Test
+  void unbiasedEstimate() {
+    int numberOfSpans = 100000;
+    double samplingProbability = 0.1;
+    SplittableRandom random = new SplittableRandom(0x3e5c2a7f91b04d68L);
+    ConsistentSpanMetricsProcessor processor =
+        ConsistentSpanMetricsProcessor.builder(meterProvider).build();
+    SdkTracerProvider tracerProvider =
+        SdkTracerProvider.builder()
+            .setSampler(
+                ConsistentSampler.probabilityBased(
+                    samplingProbability, RandomGenerator.create(random::nextLong)))
+            .addSpanProcessor(processor)
+            .build();
+    Tracer tracer = tracerProvider.get("test");
+
+    for (int i = 0; i < numberOfSpans; ++i) {
+      tracer.spanBuilder("A").setSpanKind(SpanKind.SERVER).startSpan().end();
+    }
+
+    // the standard deviation of the estimate is sqrt(numberOfSpans * (1 / samplingProbability - 1))
+    double standardDeviation = Math.sqrt(numberOfSpans * (1 / samplingProbability - 1));
+    assertThat(getDoubleValue("estimatedSpanCount", SERVER_OK))
+        .isCloseTo(numberOfSpans, within(4 * standardDeviation));
+
+    tracerProvider.shutdown().join(10, TimeUnit.SECONDS);
+  }
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.TraceFlags;
+import io.opentelemetry.api.trace.TraceState;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.trace.IdGenerator;
+import io.opentelemetry.sdk.trace.ReadWriteSpan;
+import io.opentelemetry.sdk.trace.ReadableSpan;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.SpanProcessor;
+import io.opentelemetry.sdk.trace.data.LinkData;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
+import io.opentelemetry.sdk.trace.samplers.SamplingResult;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class ConsistentTailSamplingSpanProcessorTest {
+
+  private static final long START_MILLIS = 1_000_000;
+  private static final Duration LATENCY_THRESHOLD = Duration.ofMillis(500);
+
+  private static final class CollectingSpanProcessor implements SpanProcessor {
+    private final List<ReadableSpan> spans = new ArrayList<>();
+
+    @Override
+    public void onStart(Context parentContext, ReadWriteSpan span) {}
+
+    @Override
+    public boolean isStartRequired() {
+      return false;
+    }
+
+    @Override
+    public synchronized void onEnd(ReadableSpan span) {
+      spans.add(span);
+    }
+
+    @Override
+    public boolean isEndRequired() {
+      return true;
+    }
+
+    private synchronized List<ReadableSpan> getSpans() {
+      return new ArrayList<>(spans);
+    }
+  }
+
+  private final CollectingSpanProcessor downstreamProcessor = new CollectingSpanProcessor();
+  private final AtomicLong nanoTime = new AtomicLong();
+  private final List<SdkTracerProvider> tracerProviders = new ArrayList<>();
+
+  @AfterEach
+  void tearDown() {
+    for (SdkTracerProvider tracerProvider : tracerProviders) {
+      tracerProvider.shutdown().join(10, TimeUnit.SECONDS);
+    }
+  }
+
+  private Tracer createTracer(SpanProcessor processor) {
+    SdkTracerProvider tracerProvider =
+        SdkTracerProvider.builder()
+            .setSampler(ConsistentSampler.alwaysOn())
+            .addSpanProcessor(processor)
+            .build();
+    tracerProviders.add(tracerProvider);
+    return tracerProvider.get("test");
+  }
+
+  // samples spans whose name starts with "threshold" with the threshold sampler, all others with
+  // the p-value sampler
+  private static Sampler mixedFormatSampler(
+      ConsistentSampler pSampler, ConsistentThresholdSampler thresholdSampler) {
+    return new Sampler() {
+      @Override
+      public SamplingResult shouldSample(
+          Context parentContext,
+          String traceId,
+          String name,
+          SpanKind spanKind,
+          Attributes attributes,
+          List<LinkData> parentLinks) {
+        Sampler sampler = name.startsWith("threshold") ? thresholdSampler : pSampler;
+        return sampler.shouldSample(
+            parentContext, traceId, name, spanKind, attributes, parentLinks);
+      }
+
+      @Override
+      public String getDescription() {
+        return "MixedFormatSampler";
+      }
+    };
+  }
+
+  // threshold samplers derive the random value from the trace id, which must be reproducible
+  private static IdGenerator idGenerator(SplittableRandom random) {
+    return new IdGenerator() {
+      @Override
+      public String generateSpanId() {
+        return String.format("%016x", random.nextLong() | 1);
+      }
+
+      @Override
+      public String generateTraceId() {
+        return String.format("%016x%016x", random.nextLong(), random.nextLong());
+      }
+    };
+  }
+
+  private ConsistentTailSamplingSpanProcessorBuilder processorBuilder(
+      double samplingProbability, double boostedSamplingProbability) {
+    return ConsistentTailSamplingSpanProcessor.builder(downstreamProcessor)
+        .setSamplingProbability(samplingProbability)
+        .setBoostedSamplingProbability(boostedSamplingProbability)
+        .setLatencyThreshold(LATENCY_THRESHOLD)
+        .setDecisionWait(Duration.ofSeconds(10))
+        .setNanoTimeSupplier(nanoTime::get);
+  }
+
+  private static Span startSpan(Tracer tracer, String name, Context parentContext) {
+    return tracer
+        .spanBuilder(name)
+        .setParent(parentContext)
+        .setStartTimestamp(START_MILLIS, TimeUnit.MILLISECONDS)
+        .startSpan();
+  }
+
+  private static void endSpan(Span span, long latencyMillis) {
+    span.end(START_MILLIS + latencyMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private static int getP(ReadableSpan span) {
+    OtelTraceState otelTraceState =
+        OtelTraceState.parse(
+            span.getSpanContext().getTraceState().get(OtelTraceState.TRACE_STATE_KEY));
+    assertThat(otelTraceState.hasValidP()).isTrue();
+    return otelTraceState.getP();
+  }
+
+  private List<String> getTraceIds() {
+    List<String> traceIds = new ArrayList<>();
+    for (ReadableSpan span : downstreamProcessor.getSpans()) {
+      traceIds.add(span.getSpanContext().getTraceId());
+    }
+    return traceIds;
+  }
+
+  @Test
+  void invalidConfig() {
+    assertThatThrownBy(() -> ConsistentTailSamplingSpanProcessor.builder(null))
+        .isInstanceOf(NullPointerException.class)
+        .hasMessage("downstreamProcessor");
+    assertThatThrownBy(() -> processorBuilder(1.5, 1.5).build())
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("sampling probability must be in range [0.0, 1.0]");
+    assertThatThrownBy(() -> processorBuilder(0.5, 0.25).build())
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("boosted sampling probability must be in range [sampling probability, 1.0]");
+    assertThatThrownBy(
+            () -> processorBuilder(0.5, 1).setLatencyThreshold(Duration.ofMillis(-1)).build())
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("latency threshold must be non-negative");
+    assertThatThrownBy(() -> processorBuilder(0.5, 1).setDecisionWait(Duration.ZERO).build())
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("decision wait must be positive");
+    assertThatThrownBy(() -> processorBuilder(0.5, 1).setStripeCount(0).build())
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("stripe count must be positive");
+    assertThatThrownBy(
+            () -> processorBuilder(0.5, 1).setStripeCount(4).setMaxBufferedSpans(3).build())
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("max buffered spans must not be smaller than the stripe count");
+  }
+
+  @Test
+  void passesNotSampledSpansUnchanged() {
+    ConsistentTailSamplingSpanProcessor processor = processorBuilder(0, 1).build();
+    try {
+      ReadableSpan span = mock(ReadableSpan.class);
+      when(span.getSpanContext())
+          .thenReturn(
+              SpanContext.create(
+                  "0123456789abcdef0123456789abcdef",
+                  "0123456789abcdef",
+                  TraceFlags.getDefault(),
+                  TraceState.getDefault()));
+      processor.onEnd(span);
+      assertThat(downstreamProcessor.getSpans()).containsExactly(span);
+      assertThat(processor.getNumberOfBufferedSpans()).isZero();
+    } finally {
+      processor.shutdown().join(10, TimeUnit.SECONDS);
+    }
+  }
+
+  @Test
+  void boostsTracesWithErrorsAndLongLatencies() {
+    // other traces are dropped, traces with errors or long latencies are kept
+    Tracer tracer = createTracer(processorBuilder(0, 1).build());
+
+    Span normalRoot = startSpan(tracer, "normal", Context.root());
+    endSpan(startSpan(tracer, "child", Context.root().with(normalRoot)), 10);
+    endSpan(normalRoot, 20);
+
+    Span errorRoot = startSpan(tracer, "error", Context.root());
+    Span errorChild = startSpan(tracer, "child", Context.root().with(errorRoot));
+    errorChild.setStatus(StatusCode.ERROR);
+    endSpan(errorChild, 10);
+    assertThat(downstreamProcessor.getSpans()).isEmpty();
+    endSpan(errorRoot, 20);
+
+    Span slowRoot = startSpan(tracer, "slow", Context.root());
+    endSpan(startSpan(tracer, "child", Context.root().with(slowRoot)), 10);
+    endSpan(slowRoot, LATENCY_THRESHOLD.toMillis());
+
+    assertThat(getTraceIds())
+        .containsExactly(
+            errorRoot.getSpanContext().getTraceId(),
+            errorRoot.getSpanContext().getTraceId(),
+            slowRoot.getSpanContext().getTraceId(),
+            slowRoot.getSpanContext().getTraceId());
+    assertThat(downstreamProcessor.getSpans()).allSatisfy(span -> assertThat(getP(span)).isZero());
+  }
+
+  @Test
+  void keepsWholeTracesWithUnbiasedAdjustedCounts() {
+    int numberOfTraces = 20000;
+    int spansPerTrace = 3;
+    SplittableRandom random = new SplittableRandom(0x3c6ef372fe94f82bL);
+    // the p-values are exactly 2 for other traces and 1 for traces with errors
+    Tracer tracer =
+        createTracer(
+            processorBuilder(0.25, 0.5)
+                .setRandomGenerator(RandomGenerator.create(random::nextLong))
+                .setStripeCount(4)
+                .build());
+
+    Map<String, Boolean> isErrorTrace = new HashMap<>();
+    for (int i = 0; i < numberOfTraces; ++i) {
+      boolean isError = random.nextInt(10) == 0;
+      Span root = startSpan(tracer, "root", Context.root());
+      for (int j = 1; j < spansPerTrace; ++j) {
+        Span child = startSpan(tracer, "child", Context.root().with(root));
+        if (isError && j == 1) {
+          child.setStatus(StatusCode.ERROR);
+        }
+        endSpan(child, 10);
+      }
+      endSpan(root, 20);
+      isErrorTrace.put(root.getSpanContext().getTraceId(), isError);
+    }
+
+    Map<String, Integer> keptSpansPerTrace = new HashMap<>();
+    double estimatedNumberOfSpans = 0;
+    for (ReadableSpan span : downstreamProcessor.getSpans()) {
+      String traceId = span.getSpanContext().getTraceId();
+      int pval = getP(span);
+      assertThat(pval).isEqualTo(isErrorTrace.get(traceId) ? 1 : 2);
+      assertThat(span.toSpanData().getSpanContext()).isEqualTo(span.getSpanContext());
+      keptSpansPerTrace.merge(traceId, 1, Integer::sum);
+      estimatedNumberOfSpans += Math.pow(2, pval);
+    }
+    // traces are kept or dropped as a whole
+    assertThat(keptSpansPerTrace.values()).allSatisfy(n -> assertThat(n).isEqualTo(spansPerTrace));
+
+    // whole traces are kept, hence the variance is that of the estimated number of traces
+    double expectedNumberOfSpans = (double) numberOfTraces * spansPerTrace;
+    double standardDeviation = spansPerTrace * Math.sqrt(numberOfTraces * (1. / 0.25 - 1));
+    assertThat(estimatedNumberOfSpans)
+        .isCloseTo(expectedNumberOfSpans, within(4 * standardDeviation));
+  }
+
+  @Test
+  void keepsTracesOfBothFormatsWithUnbiasedAdjustedCounts() {
+    int numberOfTraces = 20000;
+    int spansPerTrace = 3;
+    SplittableRandom random = new SplittableRandom(0x9e3779b97f4a7c15L);
+    SdkTracerProvider tracerProvider =
+        SdkTracerProvider.builder()
+            .setSampler(
+                mixedFormatSampler(
+                    ConsistentSampler.alwaysOn(),
+                    ConsistentThresholdSampler.probabilityBased(0.75)))
+            .setIdGenerator(idGenerator(random))
+            .addSpanProcessor(
+                processorBuilder(0.25, 0.5)
+                    .setRandomGenerator(RandomGenerator.create(random::nextLong))
+                    .build())
+            .build();
+    tracerProviders.add(tracerProvider);
+    Tracer tracer = tracerProvider.get("test");
+
+    for (int i = 0; i < numberOfTraces; ++i) {
+      String prefix = (i % 2 == 0) ? "p-" : "threshold-";
+      Span root = startSpan(tracer, prefix + "root", Context.root());
+      for (int j = 1; j < spansPerTrace; ++j) {
+        endSpan(startSpan(tracer, prefix + "child", Context.root().with(root)), 10);
+      }
+      endSpan(root, 20);
+    }
+
+    double estimatedNumberOfPSpans = 0;
+    double estimatedNumberOfThresholdSpans = 0;
+    for (ReadableSpan span : downstreamProcessor.getSpans()) {
+      OtelTraceState otelTraceState =
+          OtelTraceState.parse(
+              span.getSpanContext().getTraceState().get(OtelTraceState.TRACE_STATE_KEY));
+      if (span.getName().startsWith("threshold")) {
+        // the sampling probability 0.75 is lowered to 0.25 by the threshold, no p-value is added
+        assertThat(otelTraceState.serialize()).isEqualTo("th:c");
+        estimatedNumberOfThresholdSpans += otelTraceState.getAdjustedCount();
+      } else {
+        assertThat(getP(span)).isEqualTo(2);
+        estimatedNumberOfPSpans += otelTraceState.getAdjustedCount();
+      }
+    }
+
+    double expectedNumberOfSpans = numberOfTraces / 2. * spansPerTrace;
+    double standardDeviation = spansPerTrace * Math.sqrt(numberOfTraces / 2. * (1. / 0.25 - 1));
+    assertThat(estimatedNumberOfPSpans)
+        .isCloseTo(expectedNumberOfSpans, within(4 * standardDeviation));
+    assertThat(estimatedNumberOfThresholdSpans)
+        .isCloseTo(expectedNumberOfSpans, within(4 * standardDeviation));
+  }
+
+  @Test
+  void decidesTracesAfterDecisionWait() {
+    ConsistentTailSamplingSpanProcessor processor = processorBuilder(1, 1).build();
+    Tracer tracer = createTracer(processor);
+
+    Span root = startSpan(tracer, "root", Context.root());
+    endSpan(startSpan(tracer, "child", Context.root().with(root)), 10);
+    assertThat(processor.getNumberOfBufferedSpans()).isOne();
+
+    nanoTime.addAndGet(TimeUnit.SECONDS.toNanos(9));
+    processor.expireTraces();
+    assertThat(downstreamProcessor.getSpans()).isEmpty();
+
+    nanoTime.addAndGet(TimeUnit.SECONDS.toNanos(1));
+    processor.expireTraces();
+    assertThat(processor.getNumberOfBufferedSpans()).isZero();
+    assertThat(downstreamProcessor.getSpans()).hasSize(1);
+
+    // late spans of decided traces are passed on immediately
+    endSpan(root, 20);
+    assertThat(downstreamProcessor.getSpans()).hasSize(2);
+    assertThat(processor.getNumberOfBufferedSpans()).isZero();
+  }
+
+  @Test
+  void decidesOldestTracesWhenSpanBudgetIsExceeded() {
+    ConsistentTailSamplingSpanProcessor processor =
+        processorBuilder(1, 1).setMaxBufferedSpans(2).build();
+    Tracer tracer = createTracer(processor);
+
+    List<Span> roots = new ArrayList<>();
+    for (int i = 0; i < 3; ++i) {
+      Span root = startSpan(tracer, "root", Context.root());
+      endSpan(startSpan(tracer, "child", Context.root().with(root)), 10);
+      roots.add(root);
+    }
+    assertThat(getTraceIds()).containsExactly(roots.get(0).getSpanContext().getTraceId());
+    assertThat(processor.getNumberOfBufferedSpans()).isEqualTo(2);
+
+    endSpan(roots.get(0), 20);
+    assertThat(getTraceIds())
+        .containsExactly(
+            roots.get(0).getSpanContext().getTraceId(), roots.get(0).getSpanContext().getTraceId());
+    assertThat(processor.getNumberOfBufferedSpans()).isEqualTo(2);
+  }
+
+  @Test
+  void decidesAllTracesOnFlushAndShutdown() {
+    ConsistentTailSamplingSpanProcessor processor = processorBuilder(1, 1).build();
+    Tracer tracer = createTracer(processor);
+
+    Span root = startSpan(tracer, "root", Context.root());
+    endSpan(startSpan(tracer, "child", Context.root().with(root)), 10);
+    assertThat(processor.forceFlush().join(10, TimeUnit.SECONDS).isSuccess()).isTrue();
+    assertThat(downstreamProcessor.getSpans()).hasSize(1);
+
+    Span otherRoot = startSpan(tracer, "root", Context.root());
+    endSpan(startSpan(tracer, "child", Context.root().with(otherRoot)), 10);
+    assertThat(processor.shutdown().join(10, TimeUnit.SECONDS).isSuccess()).isTrue();
+    assertThat(downstreamProcessor.getSpans()).hasSize(2);
+    assertThat(processor.getNumberOfBufferedSpans()).isZero();
+  }
+}
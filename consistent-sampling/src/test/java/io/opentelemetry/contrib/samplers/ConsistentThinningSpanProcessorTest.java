@@ -0,0 +1,358 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.TraceFlags;
+import io.opentelemetry.api.trace.TraceState;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.testing.exporter.InMemorySpanExporter;
+import io.opentelemetry.sdk.trace.IdGenerator;
+import io.opentelemetry.sdk.trace.ReadWriteSpan;
+import io.opentelemetry.sdk.trace.ReadableSpan;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.SpanProcessor;
+import io.opentelemetry.sdk.trace.data.LinkData;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
+import io.opentelemetry.sdk.trace.samplers.SamplingResult;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.hipparchus.stat.inference.TTest;
+import org.junit.jupiter.api.Test;
+
+class ConsistentThinningSpanProcessorTest {
+
+  private static final class CollectingSpanProcessor implements SpanProcessor {
+    private final List<ReadableSpan> spans = new ArrayList<>();
+
+    @Override
+    public void onStart(Context parentContext, ReadWriteSpan span) {}
+
+    @Override
+    public boolean isStartRequired() {
+      return false;
+    }
+
+    @Override
+    public void onEnd(ReadableSpan span) {
+      spans.add(span);
+    }
+
+    @Override
+    public boolean isEndRequired() {
+      return true;
+    }
+  }
+
+  private static int getP(SpanData spanData) {
+    return OtelTraceState.parse(
+            spanData.getSpanContext().getTraceState().get(OtelTraceState.TRACE_STATE_KEY))
+        .getP();
+  }
+
+  // samples spans named "threshold" with the threshold sampler, all others with the p-value sampler
+  private static Sampler mixedFormatSampler(
+      ConsistentSampler pSampler, ConsistentThresholdSampler thresholdSampler) {
+    return new Sampler() {
+      @Override
+      public SamplingResult shouldSample(
+          Context parentContext,
+          String traceId,
+          String name,
+          SpanKind spanKind,
+          Attributes attributes,
+          List<LinkData> parentLinks) {
+        Sampler sampler = name.equals("threshold") ? thresholdSampler : pSampler;
+        return sampler.shouldSample(
+            parentContext, traceId, name, spanKind, attributes, parentLinks);
+      }
+
+      @Override
+      public String getDescription() {
+        return "MixedFormatSampler";
+      }
+    };
+  }
+
+  // threshold samplers derive the random value from the trace id, which must be reproducible
+  private static IdGenerator idGenerator(SplittableRandom random) {
+    return new IdGenerator() {
+      @Override
+      public String generateSpanId() {
+        return String.format("%016x", random.nextLong() | 1);
+      }
+
+      @Override
+      public String generateTraceId() {
+        return String.format("%016x%016x", random.nextLong(), random.nextLong());
+      }
+    };
+  }
+
+  @Test
+  void invalidConfig() {
+    assertThatThrownBy(() -> ConsistentThinningSpanProcessor.builder(null, 1))
+        .isInstanceOf(NullPointerException.class)
+        .hasMessage("downstreamProcessor");
+    assertThatThrownBy(
+            () ->
+                ConsistentThinningSpanProcessor.builder(new CollectingSpanProcessor(), -1).build())
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("target spans per second limit must be non-negative");
+    assertThatThrownBy(
+            () ->
+                ConsistentThinningSpanProcessor.builder(new CollectingSpanProcessor(), 1)
+                    .setAdaptationTime(Duration.ofSeconds(-1))
+                    .build())
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessage("adaptation time must be non-negative");
+  }
+
+  @Test
+  void delegatesToDownstreamProcessor() {
+    SpanProcessor downstreamProcessor = mock(SpanProcessor.class);
+    CompletableResultCode shutdownResult = new CompletableResultCode();
+    CompletableResultCode flushResult = new CompletableResultCode();
+    when(downstreamProcessor.isStartRequired()).thenReturn(true);
+    when(downstreamProcessor.shutdown()).thenReturn(shutdownResult);
+    when(downstreamProcessor.forceFlush()).thenReturn(flushResult);
+    SpanProcessor processor =
+        ConsistentThinningSpanProcessor.builder(downstreamProcessor, 1).build();
+
+    assertThat(processor.isStartRequired()).isTrue();
+    assertThat(processor.isEndRequired()).isTrue();
+    ReadWriteSpan span = mock(ReadWriteSpan.class);
+    processor.onStart(Context.root(), span);
+    verify(downstreamProcessor).onStart(Context.root(), span);
+    assertThat(processor.forceFlush()).isSameAs(flushResult);
+    assertThat(processor.shutdown()).isSameAs(shutdownResult);
+  }
+
+  @Test
+  void passesSpansBelowTargetRate() {
+    CollectingSpanProcessor downstreamProcessor = new CollectingSpanProcessor();
+    AtomicLong nanoTime = new AtomicLong();
+    SpanProcessor processor =
+        ConsistentThinningSpanProcessor.builder(downstreamProcessor, 1000)
+            .setAdaptationTime(Duration.ofSeconds(1))
+            .setNanoTimeSupplier(nanoTime::get)
+            .build();
+    SdkTracerProvider tracerProvider =
+        SdkTracerProvider.builder()
+            .setSampler(ConsistentSampler.alwaysOn())
+            .addSpanProcessor(processor)
+            .build();
+
+    // 100 spans per second
+    for (int i = 0; i < 1000; ++i) {
+      nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(10));
+      tracerProvider.get("test").spanBuilder("span").startSpan().end();
+    }
+    assertThat(downstreamProcessor.spans).hasSize(1000);
+    assertThat(downstreamProcessor.spans)
+        .allSatisfy(span -> assertThat(getP(span.toSpanData())).isZero());
+
+    tracerProvider.shutdown().join(10, TimeUnit.SECONDS);
+  }
+
+  @Test
+  void passesNotSampledSpansUnchanged() {
+    CollectingSpanProcessor downstreamProcessor = new CollectingSpanProcessor();
+    SpanProcessor processor =
+        ConsistentThinningSpanProcessor.builder(downstreamProcessor, 0).build();
+
+    ReadableSpan span = mock(ReadableSpan.class);
+    when(span.getSpanContext())
+        .thenReturn(
+            SpanContext.create(
+                "0123456789abcdef0123456789abcdef",
+                "0123456789abcdef",
+                TraceFlags.getDefault(),
+                TraceState.getDefault()));
+    processor.onEnd(span);
+    assertThat(downstreamProcessor.spans).containsExactly(span);
+  }
+
+  @Test
+  void thinsToTargetRateWithUnbiasedAdjustedCounts() {
+    int numberOfSpans = 100000;
+    double targetSpansPerSecond = 100;
+    SplittableRandom random = new SplittableRandom(0x5d1e8c3b7a2f4096L);
+    RandomGenerator randomGenerator = RandomGenerator.create(random::nextLong);
+
+    CollectingSpanProcessor downstreamProcessor = new CollectingSpanProcessor();
+    AtomicLong nanoTime = new AtomicLong();
+    SpanProcessor processor =
+        ConsistentThinningSpanProcessor.builder(downstreamProcessor, targetSpansPerSecond)
+            .setAdaptationTime(Duration.ofSeconds(1))
+            .setRandomGenerator(randomGenerator)
+            .setNanoTimeSupplier(nanoTime::get)
+            .build();
+    // the sampled spans have p-values 1 and 2
+    SdkTracerProvider tracerProvider =
+        SdkTracerProvider.builder()
+            .setSampler(ConsistentSampler.probabilityBased(0.375, randomGenerator))
+            .addSpanProcessor(processor)
+            .build();
+
+    // 1000 spans per second, of which 375 are sampled
+    long seconds = numberOfSpans / 1000;
+    for (int i = 0; i < numberOfSpans; ++i) {
+      nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+      tracerProvider.get("test").spanBuilder("span").startSpan().end();
+    }
+
+    // the first second is needed to adapt to the rate
+    assertThat((double) downstreamProcessor.spans.size())
+        .isCloseTo(targetSpansPerSecond * seconds, within(targetSpansPerSecond * 2));
+    double estimatedNumberOfSpans = 0;
+    for (ReadableSpan span : downstreamProcessor.spans) {
+      int pval = getP(span.toSpanData());
+      assertThat(span.getSpanContext()).isEqualTo(span.toSpanData().getSpanContext());
+      assertThat(pval).isGreaterThanOrEqualTo(1);
+      estimatedNumberOfSpans += Math.pow(2, pval);
+    }
+    // the relative standard error of the estimate is roughly 1 / sqrt(number of kept spans)
+    assertThat(estimatedNumberOfSpans)
+        .isCloseTo(
+            numberOfSpans, within(4 * numberOfSpans / Math.sqrt(targetSpansPerSecond * seconds)));
+
+    tracerProvider.shutdown().join(10, TimeUnit.SECONDS);
+  }
+
+  @Test
+  void thinsSpansOfBothFormatsWithUnbiasedAdjustedCounts() {
+    int numberOfSpans = 100000;
+    double targetSpansPerSecond = 100;
+    SplittableRandom random = new SplittableRandom(0x2b7e151628aed2a6L);
+    RandomGenerator randomGenerator = RandomGenerator.create(random::nextLong);
+
+    CollectingSpanProcessor downstreamProcessor = new CollectingSpanProcessor();
+    AtomicLong nanoTime = new AtomicLong();
+    SpanProcessor processor =
+        ConsistentThinningSpanProcessor.builder(downstreamProcessor, targetSpansPerSecond)
+            .setAdaptationTime(Duration.ofSeconds(1))
+            .setRandomGenerator(randomGenerator)
+            .setNanoTimeSupplier(nanoTime::get)
+            .build();
+    SdkTracerProvider tracerProvider =
+        SdkTracerProvider.builder()
+            .setSampler(
+                mixedFormatSampler(
+                    ConsistentSampler.probabilityBased(0.375, randomGenerator),
+                    ConsistentThresholdSampler.probabilityBased(0.3)))
+            .setIdGenerator(idGenerator(random))
+            .addSpanProcessor(processor)
+            .build();
+
+    for (int i = 0; i < numberOfSpans; ++i) {
+      nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+      tracerProvider.get("test").spanBuilder(i % 2 == 0 ? "p" : "threshold").startSpan().end();
+    }
+
+    double estimatedNumberOfPSpans = 0;
+    double estimatedNumberOfThresholdSpans = 0;
+    int numberOfThresholdSpans = 0;
+    for (ReadableSpan span : downstreamProcessor.spans) {
+      OtelTraceState otelTraceState =
+          OtelTraceState.parse(
+              span.getSpanContext().getTraceState().get(OtelTraceState.TRACE_STATE_KEY));
+      if (span.getName().equals("threshold")) {
+        // the threshold is raised, no p-value is added
+        assertThat(otelTraceState.hasValidThreshold()).isTrue();
+        assertThat(otelTraceState.hasValidP()).isFalse();
+        numberOfThresholdSpans += 1;
+        estimatedNumberOfThresholdSpans += otelTraceState.getAdjustedCount();
+      } else {
+        assertThat(otelTraceState.hasValidThreshold()).isFalse();
+        estimatedNumberOfPSpans += otelTraceState.getAdjustedCount();
+      }
+    }
+    int numberOfPSpans = downstreamProcessor.spans.size() - numberOfThresholdSpans;
+    assertThat(numberOfPSpans).isPositive();
+    assertThat(numberOfThresholdSpans).isPositive();
+    // the relative standard error of the estimate is roughly 1 / sqrt(number of kept spans)
+    assertThat(estimatedNumberOfPSpans)
+        .isCloseTo(numberOfSpans / 2., within(2. * numberOfSpans / Math.sqrt(numberOfPSpans)));
+    assertThat(estimatedNumberOfThresholdSpans)
+        .isCloseTo(
+            numberOfSpans / 2., within(2. * numberOfSpans / Math.sqrt(numberOfThresholdSpans)));
+
+    tracerProvider.shutdown().join(10, TimeUnit.SECONDS);
+  }
+
+  @Test
+  void chainsIntoReservoirWithSpansNotSampledConsistently() {
+    int numberOfSpans = 1000;
+    int numCycles = 300;
+    int reservoirSize = 100;
+    SplittableRandom random = new SplittableRandom(0x1f83d9abfb41bd6bL);
+
+    InMemorySpanExporter exporter = InMemorySpanExporter.create();
+    SpanProcessor reservoirProcessor =
+        ConsistentReservoirSamplingSpanProcessor.builder(exporter)
+            .setReservoirSize(reservoirSize)
+            .setExportPeriod(Duration.ofSeconds(10000))
+            .setRandomGenerator(RandomGenerator.createStriped(1, random.nextLong()))
+            .build();
+    AtomicLong nanoTime = new AtomicLong();
+    SpanProcessor processor =
+        ConsistentThinningSpanProcessor.builder(reservoirProcessor, 250)
+            .setAdaptationTime(Duration.ofSeconds(1))
+            .setRandomGenerator(RandomGenerator.create(random::nextLong))
+            .setNanoTimeSupplier(nanoTime::get)
+            .build();
+    // the spans are not sampled consistently, the thinning processor draws their r-values
+    SdkTracerProvider tracerProvider =
+        SdkTracerProvider.builder()
+            .setSampler(Sampler.alwaysOn())
+            .setIdGenerator(idGenerator(random))
+            .addSpanProcessor(processor)
+            .build();
+
+    double[] adjustedCounts = new double[numCycles];
+    for (int k = 0; k < numCycles; ++k) {
+      // 1000 spans per second, of which about 250 are kept by the thinning processor
+      for (int i = 0; i < numberOfSpans; ++i) {
+        nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+        tracerProvider.get("test").spanBuilder("span").startSpan().end();
+      }
+      processor.forceFlush().join(10, TimeUnit.SECONDS);
+
+      List<SpanData> exported = exporter.getFinishedSpanItems();
+      exporter.reset();
+      assertThat(exported).hasSize(reservoirSize);
+      for (SpanData spanData : exported) {
+        OtelTraceState otelTraceState =
+            OtelTraceState.parse(
+                spanData.getSpanContext().getTraceState().get(OtelTraceState.TRACE_STATE_KEY));
+        // the r-value drawn by the thinning processor is propagated to the reservoir
+        assertThat(otelTraceState.hasValidR()).isTrue();
+        assertThat(otelTraceState.getP()).isBetween(1, otelTraceState.getR());
+        adjustedCounts[k] += otelTraceState.getAdjustedCount();
+      }
+    }
+
+    assertThat(new TTest().tTest(numberOfSpans, adjustedCounts)).isGreaterThan(0.01);
+
+    tracerProvider.shutdown().join(10, TimeUnit.SECONDS);
+  }
+}
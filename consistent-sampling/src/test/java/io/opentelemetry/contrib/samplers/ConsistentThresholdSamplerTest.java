@@ -0,0 +1,297 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.TraceFlags;
+import io.opentelemetry.api.trace.TraceState;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.trace.samplers.Sampler;
+import io.opentelemetry.sdk.trace.samplers.SamplingDecision;
+import io.opentelemetry.sdk.trace.samplers.SamplingResult;
+import java.util.Collections;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import org.assertj.core.data.Percentage;
+import org.junit.jupiter.api.Test;
+
+class ConsistentThresholdSamplerTest {
+
+  private static final String SPAN_ID = "0123456789abcdef";
+
+  private static String randomTraceId(SplittableRandom random) {
+    return String.format("%016x%016x", random.nextLong(), random.nextLong());
+  }
+
+  // a trace id whose rightmost 56 bits are given by the random value
+  private static String traceIdWithRandomValue(long randomValue) {
+    return String.format("0123456789abcdef00%014x", randomValue);
+  }
+
+  private static Context createParentContext(
+      String traceId, @Nullable String otelTraceState, boolean isSampled) {
+    TraceState traceState =
+        otelTraceState == null || otelTraceState.isEmpty()
+            ? TraceState.getDefault()
+            : TraceState.builder().put(OtelTraceState.TRACE_STATE_KEY, otelTraceState).build();
+    SpanContext spanContext =
+        SpanContext.create(
+            traceId,
+            SPAN_ID,
+            isSampled ? TraceFlags.getSampled() : TraceFlags.getDefault(),
+            traceState);
+    return Span.wrap(spanContext).storeInContext(Context.root());
+  }
+
+  private static SamplingResult sample(Sampler sampler, Context parentContext, String traceId) {
+    return sampler.shouldSample(
+        parentContext,
+        traceId,
+        "name",
+        SpanKind.SERVER,
+        Attributes.empty(),
+        Collections.emptyList());
+  }
+
+  private static boolean isSampled(SamplingResult samplingResult) {
+    return samplingResult.getDecision() == SamplingDecision.RECORD_AND_SAMPLE;
+  }
+
+  private static String getOtelTraceState(SamplingResult samplingResult, Context parentContext) {
+    TraceState parentTraceState = Span.fromContext(parentContext).getSpanContext().getTraceState();
+    String otelTraceState =
+        samplingResult.getUpdatedTraceState(parentTraceState).get(OtelTraceState.TRACE_STATE_KEY);
+    return otelTraceState == null ? "" : otelTraceState;
+  }
+
+  @Test
+  void testCalculateThreshold() {
+    assertEquals(0, ConsistentThresholdSampler.calculateThreshold(1.0));
+    assertEquals(0x80000000000000L, ConsistentThresholdSampler.calculateThreshold(0.5));
+    assertEquals(0xc0000000000000L, ConsistentThresholdSampler.calculateThreshold(0.25));
+    assertEquals(0xb3333333333334L, ConsistentThresholdSampler.calculateThreshold(0.3));
+    assertEquals(
+        OtelTraceState.getMaxThreshold(), ConsistentThresholdSampler.calculateThreshold(0.0));
+    assertThrows(
+        IllegalArgumentException.class, () -> ConsistentThresholdSampler.calculateThreshold(1.1));
+    assertThrows(
+        IllegalArgumentException.class, () -> ConsistentThresholdSampler.calculateThreshold(-0.1));
+    for (double samplingProbability : new double[] {0.0, 0.001, 0.3, 0.5, 0.9, 1.0}) {
+      assertThat(
+              ConsistentThresholdSampler.calculateSamplingProbability(
+                  ConsistentThresholdSampler.calculateThreshold(samplingProbability)))
+          .isCloseTo(samplingProbability, within(0x1p-56));
+    }
+  }
+
+  @Test
+  void testExactSamplingProbability() {
+    double samplingProbability = 0.3;
+    long threshold = ConsistentThresholdSampler.calculateThreshold(samplingProbability);
+    ConsistentThresholdSampler sampler =
+        ConsistentThresholdSampler.probabilityBased(samplingProbability);
+    SplittableRandom random = new SplittableRandom(0x2c4d5e6f7a8b9c0dL);
+    int numberOfSpans = 100000;
+    int numberOfSampledSpans = 0;
+    for (int i = 0; i < numberOfSpans; ++i) {
+      String traceId = randomTraceId(random);
+      SamplingResult samplingResult = sample(sampler, Context.root(), traceId);
+      boolean expectSampled = OtelTraceState.getRandomValueFromTraceId(traceId) >= threshold;
+      assertEquals(expectSampled, isSampled(samplingResult));
+      if (expectSampled) {
+        numberOfSampledSpans += 1;
+        assertEquals("th:b3333333333334", getOtelTraceState(samplingResult, Context.root()));
+      } else {
+        assertEquals("", getOtelTraceState(samplingResult, Context.root()));
+      }
+    }
+    double standardDeviation =
+        Math.sqrt(numberOfSpans * samplingProbability * (1 - samplingProbability));
+    assertThat((double) numberOfSampledSpans)
+        .isCloseTo(numberOfSpans * samplingProbability, within(4 * standardDeviation));
+  }
+
+  @Test
+  void testCachedSamplingResults() {
+    ConsistentThresholdSampler sampler = ConsistentThresholdSampler.probabilityBased(0.5);
+    String traceId = traceIdWithRandomValue(0x90000000000000L);
+    SamplingResult samplingResult = sample(sampler, Context.root(), traceId);
+    assertEquals("th:8", getOtelTraceState(samplingResult, Context.root()));
+    assertThat(sample(sampler, Context.root(), traceId)).isSameAs(samplingResult);
+  }
+
+  @Test
+  void testParentBasedRespectsParentThreshold() {
+    ConsistentThresholdSampler sampler =
+        ConsistentThresholdSampler.parentBased(ConsistentThresholdSampler.probabilityBased(1.0));
+
+    String traceId = traceIdWithRandomValue(0xd0000000000000L);
+    Context parentContext = createParentContext(traceId, "th:c", /* isSampled= */ true);
+    SamplingResult samplingResult = sample(sampler, parentContext, traceId);
+    assertThat(isSampled(samplingResult)).isTrue();
+    assertEquals("th:c", getOtelTraceState(samplingResult, parentContext));
+
+    // an explicitly propagated random value takes precedence over the trace id
+    parentContext = createParentContext(traceId, "th:c;rv:10000000000000", /* isSampled= */ false);
+    samplingResult = sample(sampler, parentContext, traceId);
+    assertThat(isSampled(samplingResult)).isFalse();
+    assertEquals("rv:10000000000000", getOtelTraceState(samplingResult, parentContext));
+
+    // the threshold is dropped, if inconsistent with the sampled flag
+    parentContext = createParentContext(traceId, "th:e", /* isSampled= */ true);
+    samplingResult = sample(sampler, parentContext, traceId);
+    assertThat(isSampled(samplingResult)).isTrue();
+    assertEquals("", getOtelTraceState(samplingResult, parentContext));
+  }
+
+  @Test
+  void testInteroperabilityWithPropagatedRValues() {
+    String traceId = "0123456789abcdef0123456789abcdef";
+
+    // the p-value is kept in traces with r-values, as long as the probability is a power of two
+    Context parentContext = createParentContext(traceId, "p:2;r:5", /* isSampled= */ true);
+    ConsistentThresholdSampler parentBased =
+        ConsistentThresholdSampler.parentBased(ConsistentThresholdSampler.probabilityBased(1.0));
+    SamplingResult samplingResult = sample(parentBased, parentContext, traceId);
+    assertThat(isSampled(samplingResult)).isTrue();
+    assertEquals("p:2;r:5", getOtelTraceState(samplingResult, parentContext));
+
+    samplingResult =
+        sample(ConsistentThresholdSampler.probabilityBased(0.125), parentContext, traceId);
+    assertThat(isSampled(samplingResult)).isTrue();
+    assertEquals("p:3;r:5", getOtelTraceState(samplingResult, parentContext));
+
+    samplingResult =
+        sample(ConsistentThresholdSampler.probabilityBased(0.03125), parentContext, traceId);
+    assertThat(isSampled(samplingResult)).isTrue();
+    assertEquals("p:5;r:5", getOtelTraceState(samplingResult, parentContext));
+
+    samplingResult =
+        sample(ConsistentThresholdSampler.probabilityBased(0.015625), parentContext, traceId);
+    assertThat(isSampled(samplingResult)).isFalse();
+    assertEquals("r:5", getOtelTraceState(samplingResult, parentContext));
+
+    // other probabilities are propagated as threshold
+    samplingResult =
+        sample(ConsistentThresholdSampler.probabilityBased(0.3), parentContext, traceId);
+    assertThat(isSampled(samplingResult)).isTrue();
+    assertEquals("r:5;th:b3333333333334", getOtelTraceState(samplingResult, parentContext));
+
+    // a p-value based sampler respects the decision for a probability that is not a power of two
+    Context thresholdParentContext =
+        createParentContext(
+            traceId, getOtelTraceState(samplingResult, parentContext), /* isSampled= */ true);
+    samplingResult =
+        sample(
+            ConsistentSampler.parentBased(ConsistentSampler.alwaysOff()),
+            thresholdParentContext,
+            traceId);
+    assertThat(isSampled(samplingResult)).isTrue();
+    assertEquals("r:5", getOtelTraceState(samplingResult, thresholdParentContext));
+  }
+
+  @Test
+  void testInteroperabilityWithRValuesDerivedFromTraceId() {
+    SplittableRandom random = new SplittableRandom(0x5be0cd19137e2179L);
+    ConsistentSampler rootSampler =
+        ConsistentSampler.probabilityBased(0.25).withTraceIdRandomness();
+    ConsistentThresholdSampler childSampler =
+        ConsistentThresholdSampler.parentBased(ConsistentThresholdSampler.probabilityBased(1.0));
+    for (int i = 0; i < 1000; ++i) {
+      String traceId = randomTraceId(random);
+      SamplingResult rootResult = sample(rootSampler, Context.root(), traceId);
+      Context parentContext =
+          createParentContext(
+              traceId, getOtelTraceState(rootResult, Context.root()), isSampled(rootResult));
+      SamplingResult childResult = sample(childSampler, parentContext, traceId);
+      assertEquals(isSampled(rootResult), isSampled(childResult));
+      if (isSampled(rootResult)) {
+        // the r-value derived from the trace id is propagated explicitly
+        assertEquals(
+            "p:2;r:" + OtelTraceState.getRFromTraceId(traceId),
+            getOtelTraceState(childResult, parentContext));
+      }
+    }
+  }
+
+  @Test
+  void testConsistentSamplerDerivesPAndRFromThresholdAndRandomValue() {
+    ConsistentSampler sampler = ConsistentSampler.probabilityBased(0.25);
+
+    // the random value has 3 leading ones, hence the r-value is 3
+    String traceId = traceIdWithRandomValue(0xe0000000000000L);
+    Context parentContext = createParentContext(traceId, "th:8", /* isSampled= */ true);
+    SamplingResult samplingResult = sample(sampler, parentContext, traceId);
+    assertThat(isSampled(samplingResult)).isTrue();
+    assertEquals("th:c", getOtelTraceState(samplingResult, parentContext));
+
+    parentContext =
+        createParentContext(traceId, "th:8;rv:80000000000000;x:1", /* isSampled= */ true);
+    samplingResult = sample(sampler, parentContext, traceId);
+    assertThat(isSampled(samplingResult)).isFalse();
+    assertEquals("rv:80000000000000;x:1", getOtelTraceState(samplingResult, parentContext));
+
+    // the threshold of the parent is translated into a p-value
+    samplingResult =
+        sample(
+            ConsistentSampler.parentBased(ConsistentSampler.alwaysOff()), parentContext, traceId);
+    assertThat(isSampled(samplingResult)).isTrue();
+    assertEquals("th:8;rv:80000000000000;x:1", getOtelTraceState(samplingResult, parentContext));
+  }
+
+  @Test
+  void testComposedSamplers() {
+    ConsistentThresholdSampler sampler1 = ConsistentThresholdSampler.probabilityBased(0.5);
+    ConsistentThresholdSampler sampler2 = ConsistentThresholdSampler.probabilityBased(0.3);
+    ConsistentThresholdSampler parentBased = ConsistentThresholdSampler.parentBased(sampler1);
+    long invalid = OtelTraceState.getInvalidThreshold();
+
+    assertEquals(0xb3333333333334L, sampler1.and(sampler2).getThreshold(invalid, true));
+    assertEquals(0x80000000000000L, sampler1.or(sampler2).getThreshold(invalid, true));
+    assertEquals(invalid, parentBased.and(sampler2).getThreshold(invalid, false));
+    assertEquals(0xb3333333333334L, parentBased.or(sampler2).getThreshold(invalid, false));
+    assertThat(sampler1.and(sampler1)).isSameAs(sampler1);
+    assertThat(sampler1.or(sampler1)).isSameAs(sampler1);
+
+    String traceId = traceIdWithRandomValue(0xa0000000000000L);
+    assertThat(isSampled(sample(sampler1.and(sampler2), Context.root(), traceId))).isFalse();
+    assertThat(isSampled(sample(sampler1.or(sampler2), Context.root(), traceId))).isTrue();
+  }
+
+  @Test
+  void testRateLimitedConstantRate() {
+    double targetSpansPerSecondLimit = 1000;
+    double adaptationTimeSeconds = 5;
+    long[] nanoTime = new long[] {0L};
+    ConsistentThresholdSampler sampler =
+        ConsistentThresholdSampler.rateLimited(
+            targetSpansPerSecondLimit, adaptationTimeSeconds, () -> nanoTime[0]);
+    SplittableRandom random = new SplittableRandom(0x1f83d9abfb41bd6bL);
+
+    long nanosBetweenSpans = TimeUnit.MICROSECONDS.toNanos(100);
+    int numSpans = 300000;
+    long numSampledSpansInLast5Seconds = 0;
+    for (int i = 0; i < numSpans; ++i) {
+      nanoTime[0] += nanosBetweenSpans;
+      if (isSampled(sample(sampler, Context.root(), randomTraceId(random)))
+          && nanoTime[0] > TimeUnit.SECONDS.toNanos(25)) {
+        numSampledSpansInLast5Seconds += 1;
+      }
+    }
+
+    assertThat(numSampledSpansInLast5Seconds / 5.)
+        .isCloseTo(targetSpansPerSecondLimit, Percentage.withPercentage(5));
+  }
+}
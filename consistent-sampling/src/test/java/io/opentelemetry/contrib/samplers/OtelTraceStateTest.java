@@ -6,7 +6,10 @@
 package io.opentelemetry.contrib.samplers;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.util.SplittableRandom;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import org.junit.jupiter.api.Assertions;
@@ -76,4 +79,206 @@ public class OtelTraceStateTest {
     assertEquals("", OtelTraceState.parse("_;p:6;r:10").serialize());
     assertEquals("", OtelTraceState.parse("5;p:6;r:10").serialize());
   }
+
+  private static String parsePacked(String ts) {
+    int packed = OtelTraceState.parsePacked(ts);
+    if (packed == OtelTraceState.HAS_OTHER_KEY_VALUE_PAIRS) {
+      return "other";
+    }
+    return OtelTraceState.getPackedP(packed) + "," + OtelTraceState.getPackedR(packed);
+  }
+
+  @Test
+  public void testParsePacked() {
+    assertEquals("-1,-1", parsePacked(null));
+    assertEquals("-1,-1", parsePacked(""));
+    assertEquals("-1,-1", parsePacked("a"));
+    assertEquals("5,-1", parsePacked("p:5"));
+    assertEquals("63,-1", parsePacked("p:63"));
+    assertEquals("-1,-1", parsePacked("p:64"));
+    assertEquals("-1,62", parsePacked("r:62"));
+    assertEquals("-1,-1", parsePacked("r:63"));
+    assertEquals("7,5", parsePacked("r:5;p:7"));
+    assertEquals("0,0", parsePacked("p:0;r:0"));
+    assertEquals("-1,-1", parsePacked("p:5;r:3;"));
+    assertEquals("-1,-1", parsePacked("x;p:5"));
+    assertEquals("other", parsePacked("x:3;p:5"));
+    assertEquals("other", parsePacked("p:5;r:3;x:3"));
+    assertEquals("-1,-1", parsePacked("a:" + getXString(255)));
+  }
+
+  @Test
+  public void testGetRFromTraceId() {
+    // only the rightmost 56 bits are used, the r-value is the number of their leading ones
+    assertEquals(0, OtelTraceState.getRFromTraceId("ffffffffffffffffff7fffffffffffff"));
+    assertEquals(0, OtelTraceState.getRFromTraceId("ffffffffffffffffff00000000000000"));
+    assertEquals(1, OtelTraceState.getRFromTraceId("00000000000000000080000000000000"));
+    assertEquals(4, OtelTraceState.getRFromTraceId("0123456789abcdefabf7ffffffffffff"));
+    assertEquals(55, OtelTraceState.getRFromTraceId("fffffffffffffffffffffffffffffffe"));
+    assertEquals(56, OtelTraceState.getRFromTraceId("ffffffffffffffff0fffffffffffffff"));
+    assertEquals(56, OtelTraceState.getRFromTraceId("ffffffffffffffffffffffffffffffff"));
+  }
+
+  @Test
+  public void testGetRFromTraceIdIsConsistentWithThresholds() {
+    SplittableRandom random = new SplittableRandom(0x2d8f4c61b7e03a95L);
+    for (int i = 0; i < 1000; ++i) {
+      String traceId = String.format("%016x%016x", random.nextLong(), random.nextLong());
+      int r = OtelTraceState.getRFromTraceId(traceId);
+      long randomValue = OtelTraceState.getRandomValueFromTraceId(traceId);
+      for (int p = 0; p <= 56; ++p) {
+        assertEquals(p <= r, randomValue >= OtelTraceState.getThresholdForP(p));
+      }
+    }
+  }
+
+  @Test
+  public void testGetRForSpan() {
+    String traceId = "0123456789abcdefabf7ffffffffffff";
+    assertEquals(3, OtelTraceState.parse("p:2;r:3").getRForSpan(traceId));
+    assertEquals(4, OtelTraceState.parse("p:2").getRForSpan(traceId));
+    assertEquals(4, OtelTraceState.parse("th:c").getRForSpan(traceId));
+    assertEquals(3, OtelTraceState.parse("th:c;rv:e0000000000000").getRForSpan(traceId));
+    // spans not sampled consistently may have been sampled based on their trace id
+    assertFalse(OtelTraceState.isValidR(OtelTraceState.parse("").getRForSpan(traceId)));
+    assertFalse(OtelTraceState.isValidR(OtelTraceState.parse("x:1").getRForSpan(traceId)));
+  }
+
+  @Test
+  public void testThresholdAndRandomValue() {
+    assertEquals("th:8", OtelTraceState.parse("th:8").serialize());
+    assertEquals("th:0", OtelTraceState.parse("th:0").serialize());
+    assertEquals("th:0", OtelTraceState.parse("th:00000").serialize());
+    assertEquals("th:b34", OtelTraceState.parse("th:b3400").serialize());
+    assertEquals("th:fffffffffffff", OtelTraceState.parse("th:fffffffffffff0").serialize());
+    assertEquals("th:ffffffffffffff", OtelTraceState.parse("th:ffffffffffffff").serialize());
+    assertEquals("", OtelTraceState.parse("th:").serialize());
+    assertEquals("", OtelTraceState.parse("th:fffffffffffffff").serialize());
+    assertEquals("", OtelTraceState.parse("th:B").serialize());
+    assertEquals("", OtelTraceState.parse("th:g").serialize());
+    assertEquals(0x80000000000000L, OtelTraceState.parse("th:8").getThreshold());
+    assertEquals(0xb3400000000000L, OtelTraceState.parse("th:b34").getThreshold());
+
+    assertEquals("rv:0123456789abcd", OtelTraceState.parse("rv:0123456789abcd").serialize());
+    assertEquals("", OtelTraceState.parse("rv:0123456789abc").serialize());
+    assertEquals("", OtelTraceState.parse("rv:0123456789abcde").serialize());
+    assertEquals(0x0123456789abcdL, OtelTraceState.parse("rv:0123456789abcd").getRandomValue());
+
+    assertEquals(
+        "p:2;r:5;th:c;rv:00000000000001;x:3",
+        OtelTraceState.parse("x:3;rv:00000000000001;th:c;r:5;p:2").serialize());
+    assertEquals("other", parsePacked("th:8"));
+    assertEquals("other", parsePacked("p:1;rv:0123456789abcd"));
+  }
+
+  @Test
+  public void testThresholdForP() {
+    assertEquals(0, OtelTraceState.getThresholdForP(0));
+    assertEquals(0x80000000000000L, OtelTraceState.getThresholdForP(1));
+    assertEquals(0xc0000000000000L, OtelTraceState.getThresholdForP(2));
+    assertEquals(0xfffffffffffffeL, OtelTraceState.getThresholdForP(55));
+    assertEquals(0xffffffffffffffL, OtelTraceState.getThresholdForP(56));
+    assertEquals(OtelTraceState.getMaxThreshold(), OtelTraceState.getThresholdForP(57));
+    assertEquals(OtelTraceState.getMaxThreshold(), OtelTraceState.getThresholdForP(63));
+    for (int p = 0; p <= 56; ++p) {
+      assertEquals(p, OtelTraceState.getPForThreshold(OtelTraceState.getThresholdForP(p)));
+    }
+    assertEquals(
+        OtelTraceState.getMaxP(),
+        OtelTraceState.getPForThreshold(OtelTraceState.getMaxThreshold()));
+    assertEquals(OtelTraceState.getInvalidP(), OtelTraceState.getPForThreshold(0xb3400000000000L));
+    assertEquals(
+        OtelTraceState.getInvalidP(),
+        OtelTraceState.getPForThreshold(OtelTraceState.getInvalidThreshold()));
+  }
+
+  @Test
+  public void testRandomValueFromR() {
+    String traceId = "0123456789abcdef0123456789abcdef";
+    assertEquals(0x23456789abcdefL, OtelTraceState.getRandomValueFromTraceId(traceId));
+    assertEquals(0x23456789abcdefL, OtelTraceState.getRandomValueFromR(0, traceId));
+    assertEquals(0xa3456789abcdefL, OtelTraceState.getRandomValueFromR(1, traceId));
+    assertEquals(0xc3456789abcdefL, OtelTraceState.getRandomValueFromR(2, traceId));
+    assertEquals(0xfffffffffffffeL, OtelTraceState.getRandomValueFromR(55, traceId));
+    assertEquals(0xffffffffffffffL, OtelTraceState.getRandomValueFromR(56, traceId));
+    assertEquals(0xffffffffffffffL, OtelTraceState.getRandomValueFromR(62, traceId));
+    for (int r = 0; r <= OtelTraceState.getMaxR(); ++r) {
+      long randomValue = OtelTraceState.getRandomValueFromR(r, traceId);
+      assertEquals(Math.min(r, 56), OtelTraceState.getRFromRandomValue(randomValue));
+      for (int p = 0; p <= 56; ++p) {
+        // decisions based on thresholds are the same as those based on p-values
+        assertEquals(p <= r, randomValue >= OtelTraceState.getThresholdForP(p));
+      }
+    }
+  }
+
+  @Test
+  public void testPForSpan() {
+    assertEquals(0, OtelTraceState.parse("").getPForSpan());
+    assertEquals(3, OtelTraceState.parse("p:3;r:5").getPForSpan());
+    assertEquals(0, OtelTraceState.parse("th:0").getPForSpan());
+    assertEquals(2, OtelTraceState.parse("th:c").getPForSpan());
+    // a sampling probability of 0.3 lies between 1/4 and 1/2
+    assertEquals(1, OtelTraceState.parse("th:b34").getPForSpan());
+    // the threshold takes precedence over a p-value
+    assertEquals(2, OtelTraceState.parse("p:5;th:c").getPForSpan());
+    assertEquals(56, OtelTraceState.parse("th:ffffffffffffff").getPForSpan());
+    SplittableRandom random = new SplittableRandom(0x5a3c91e2d7b04f68L);
+    for (int i = 0; i < 1000; ++i) {
+      long threshold = random.nextLong(OtelTraceState.getMaxThreshold());
+      int p = getPForThreshold(threshold);
+      assertTrue(OtelTraceState.getThresholdForP(p) <= threshold);
+      assertTrue(OtelTraceState.getThresholdForP(p + 1) > threshold);
+    }
+  }
+
+  private static int getPForThreshold(long threshold) {
+    OtelTraceState otelTraceState = OtelTraceState.parse("");
+    otelTraceState.setThreshold(threshold);
+    return otelTraceState.getPForSpan();
+  }
+
+  @Test
+  public void testAdjustedCount() {
+    assertEquals(1., OtelTraceState.parse("").getAdjustedCount());
+    assertEquals(1., OtelTraceState.parse("r:5").getAdjustedCount());
+    assertEquals(8., OtelTraceState.parse("p:3;r:5").getAdjustedCount());
+    assertEquals(0., OtelTraceState.parse("p:63").getAdjustedCount());
+    assertEquals(4., OtelTraceState.parse("th:c").getAdjustedCount());
+    assertEquals(1. / 0.3, OtelTraceState.parse("th:b3333333333334").getAdjustedCount(), 1e-9);
+    assertEquals(Math.scalb(1., 56), OtelTraceState.parse("th:ffffffffffffff").getAdjustedCount());
+    // the threshold takes precedence over a p-value
+    assertEquals(4., OtelTraceState.parse("p:5;th:c").getAdjustedCount());
+  }
+
+  @Test
+  public void testRaiseP() {
+    OtelTraceState otelTraceState = OtelTraceState.parse("p:1;r:5");
+    assertTrue(otelTraceState.raiseP(3, 5));
+    assertEquals("p:3;r:5", otelTraceState.serialize());
+
+    // the threshold is raised instead of adding a p-value
+    otelTraceState = OtelTraceState.parse("th:b34");
+    assertTrue(otelTraceState.raiseP(3, 4));
+    assertEquals("th:e", otelTraceState.serialize());
+    otelTraceState = OtelTraceState.parse("th:b34;rv:f0000000000000");
+    assertFalse(otelTraceState.raiseP(1, 4));
+    assertEquals("th:b34;rv:f0000000000000", otelTraceState.serialize());
+    otelTraceState = OtelTraceState.parse("th:8");
+    assertTrue(otelTraceState.raiseP(62, 62));
+    assertEquals("th:ffffffffffffff", otelTraceState.serialize());
+
+    // the r-value of spans with a p-value is derived from the trace id, and is not set
+    otelTraceState = OtelTraceState.parse("p:1");
+    assertTrue(otelTraceState.raiseP(3, 4));
+    assertEquals("p:3", otelTraceState.serialize());
+
+    // spans that were not sampled consistently do not get an explicit p-value of zero, and get the
+    // r-value with which they have been kept along with a p-value
+    otelTraceState = OtelTraceState.parse("x:1");
+    assertFalse(otelTraceState.raiseP(0, 4));
+    assertEquals("x:1", otelTraceState.serialize());
+    assertTrue(otelTraceState.raiseP(2, 4));
+    assertEquals("p:2;r:4;x:1", otelTraceState.serialize());
+  }
 }
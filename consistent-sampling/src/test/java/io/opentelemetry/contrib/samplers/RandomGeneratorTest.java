@@ -6,11 +6,17 @@
 package io.opentelemetry.contrib.samplers;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.assertj.core.api.Assertions.fail;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
+import java.util.List;
 import java.util.SplittableRandom;
 import java.util.stream.DoubleStream;
+import org.hipparchus.stat.inference.AlternativeHypothesis;
+import org.hipparchus.stat.inference.BinomialTest;
 import org.hipparchus.stat.inference.GTest;
 import org.junit.jupiter.api.Test;
 
@@ -75,4 +81,150 @@ public class RandomGeneratorTest {
     testGenerateRandomBitSet(0x602fdb45063e7b0fL, 1000, 990);
     testGenerateRandomBitSet(0xe0ef0cb214de3ec0L, 1000, 999);
   }
+
+  // the number of leading zeros is geometrically distributed, values >= 20 are pooled
+  private static final int NLZ_CATEGORIES = 21;
+
+  private static double[] expectedNumberOfLeadingZerosFrequencies() {
+    double[] expected = new double[NLZ_CATEGORIES];
+    for (int i = 0; i < NLZ_CATEGORIES - 1; ++i) {
+      expected[i] = Math.pow(0.5, i + 1);
+    }
+    expected[NLZ_CATEGORIES - 1] = Math.pow(0.5, NLZ_CATEGORIES - 1);
+    return expected;
+  }
+
+  private static void verifyNumberOfLeadingZerosOfRandomLong(RandomGenerator randomGenerator) {
+    int numCycles = 1000000;
+    long[] observed = new long[NLZ_CATEGORIES];
+    for (int i = 0; i < numCycles; ++i) {
+      observed[Math.min(randomGenerator.numberOfLeadingZerosOfRandomLong(), NLZ_CATEGORIES - 1)] +=
+          1;
+    }
+    assertThat(new GTest().gTest(expectedNumberOfLeadingZerosFrequencies(), observed))
+        .isGreaterThan(0.01);
+  }
+
+  private static void verifyNextBoolean(RandomGenerator randomGenerator) {
+    int numCycles = 100000;
+    for (double probability : new double[] {0., 1e-3, 0.1, 0.3, 0.5, 0.7, 0.999, 1.}) {
+      int numberOfSuccesses = 0;
+      for (int i = 0; i < numCycles; ++i) {
+        if (randomGenerator.nextBoolean(probability)) {
+          numberOfSuccesses += 1;
+        }
+      }
+      if (probability == 0.) {
+        assertThat(numberOfSuccesses).isZero();
+      } else if (probability == 1.) {
+        assertThat(numberOfSuccesses).isEqualTo(numCycles);
+      } else {
+        assertThat(
+                new BinomialTest()
+                    .binomialTest(
+                        numCycles, numberOfSuccesses, probability, AlternativeHypothesis.TWO_SIDED))
+            .isGreaterThan(0.01);
+      }
+    }
+  }
+
+  @Test
+  void testNumberOfLeadingZerosOfRandomLong() {
+    SplittableRandom splittableRandom = new SplittableRandom(0x3c1b8e07f95a2d64L);
+    verifyNumberOfLeadingZerosOfRandomLong(RandomGenerator.create(splittableRandom::nextLong));
+    verifyNumberOfLeadingZerosOfRandomLong(RandomGenerator.createStriped(8, 0x5e92a7d40c6b1f83L));
+  }
+
+  @Test
+  void testNextBoolean() {
+    SplittableRandom splittableRandom = new SplittableRandom(0xa4f06d2b87c3e519L);
+    verifyNextBoolean(RandomGenerator.create(splittableRandom::nextLong));
+    verifyNextBoolean(RandomGenerator.createStriped(8, 0x17d9c3b5e2084fa6L));
+  }
+
+  @Test
+  void testInvalidNumberOfStripes() {
+    assertThatThrownBy(() -> RandomGenerator.createStriped(0))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> RandomGenerator.createStriped((1 << 16) + 1, 0L))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test
+  void testStripedRandomGeneratorWithConcurrentThreads() throws InterruptedException {
+    // all threads share a single stream, so they must draw its values without losing or repeating
+    // any of them, regardless of how they interleave
+    long seed = 0x82e5b04f6d1c397aL;
+    StripedRandomLongSupplier supplier = new StripedRandomLongSupplier(1, seed);
+    int numThreads = 8;
+    int numCyclesPerThread = 200000;
+    long[] values = new long[numThreads * numCyclesPerThread];
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < numThreads; ++t) {
+      int offset = t * numCyclesPerThread;
+      Thread thread =
+          new Thread(
+              () -> {
+                for (int i = 0; i < numCyclesPerThread; ++i) {
+                  values[offset + i] = supplier.getAsLong();
+                }
+              });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    StripedRandomLongSupplier referenceSupplier = new StripedRandomLongSupplier(1, seed);
+    long[] expectedValues = new long[values.length];
+    for (int i = 0; i < expectedValues.length; ++i) {
+      expectedValues[i] = referenceSupplier.getAsLong();
+    }
+    Arrays.sort(values);
+    Arrays.sort(expectedValues);
+    assertThat(values).isEqualTo(expectedValues);
+
+    long[] observed = new long[NLZ_CATEGORIES];
+    for (long value : values) {
+      observed[Math.min(Long.numberOfLeadingZeros(value), NLZ_CATEGORIES - 1)] += 1;
+    }
+    assertThat(new GTest().gTest(expectedNumberOfLeadingZerosFrequencies(), observed))
+        .isGreaterThan(0.01);
+  }
+
+  @Test
+  void testStripesAreIndependent() {
+    int numberOfStripes = 4;
+    StripedRandomLongSupplier supplier =
+        new StripedRandomLongSupplier(numberOfStripes, 0x4b9d06e2f13a7c58L);
+    int numCycles = 250000;
+    // the numbers of leading zeros, capped at 3, of the values drawn from two stripes at the same
+    // position
+    long[][] observedPairs = new long[4][4];
+    long[] observedPerStripe = new long[NLZ_CATEGORIES];
+    for (int i = 0; i < numCycles; ++i) {
+      int[] nlz = new int[numberOfStripes];
+      for (int stripe = 0; stripe < numberOfStripes; ++stripe) {
+        nlz[stripe] =
+            Math.min(Long.numberOfLeadingZeros(supplier.getAsLong(stripe)), NLZ_CATEGORIES - 1);
+        observedPerStripe[nlz[stripe]] += 1;
+      }
+      observedPairs[Math.min(nlz[0], 3)][Math.min(nlz[1], 3)] += 1;
+    }
+    assertThat(new GTest().gTest(expectedNumberOfLeadingZerosFrequencies(), observedPerStripe))
+        .isGreaterThan(0.01);
+
+    // the values of two stripes at the same position are independent
+    double[] expected = new double[16];
+    long[] observed = new long[16];
+    for (int a = 0; a < 4; ++a) {
+      for (int b = 0; b < 4; ++b) {
+        expected[4 * a + b] =
+            Math.scalb(1., -Math.min(a + 1, 3)) * Math.scalb(1., -Math.min(b + 1, 3));
+        observed[4 * a + b] = observedPairs[a][b];
+      }
+    }
+    assertThat(new GTest().gTest(expected, observed)).isGreaterThan(0.01);
+  }
 }
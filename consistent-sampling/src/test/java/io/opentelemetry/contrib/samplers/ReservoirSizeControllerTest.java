@@ -0,0 +1,61 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class ReservoirSizeControllerTest {
+
+  private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+  private static final long FAST_EXPORT_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+  private static final long SLOW_EXPORT_NANOS = TimeUnit.SECONDS.toNanos(6);
+
+  @Test
+  void increasesAdditivelyUpToMaximum() {
+    ReservoirSizeController controller = new ReservoirSizeController(100, 100, 260, TIMEOUT_NANOS);
+    controller.recordExport(true, FAST_EXPORT_NANOS, true);
+    assertThat(controller.getReservoirSize()).isEqualTo(110);
+    controller.recordExport(true, FAST_EXPORT_NANOS, true);
+    assertThat(controller.getReservoirSize()).isEqualTo(120);
+    for (int i = 0; i < 100; ++i) {
+      controller.recordExport(true, FAST_EXPORT_NANOS, true);
+    }
+    assertThat(controller.getReservoirSize()).isEqualTo(260);
+  }
+
+  @Test
+  void keepsSizeIfNoSpansDiscarded() {
+    ReservoirSizeController controller = new ReservoirSizeController(100, 10, 1000, TIMEOUT_NANOS);
+    controller.recordExport(true, FAST_EXPORT_NANOS, false);
+    assertThat(controller.getReservoirSize()).isEqualTo(100);
+  }
+
+  @Test
+  void decreasesMultiplicativelyDownToMinimum() {
+    ReservoirSizeController controller =
+        new ReservoirSizeController(1000, 100, 1000, TIMEOUT_NANOS);
+    controller.recordExport(false, FAST_EXPORT_NANOS, true);
+    assertThat(controller.getReservoirSize()).isEqualTo(500);
+    controller.recordExport(true, SLOW_EXPORT_NANOS, true);
+    assertThat(controller.getReservoirSize()).isEqualTo(250);
+    controller.recordDroppedExport();
+    assertThat(controller.getReservoirSize()).isEqualTo(125);
+    controller.recordDroppedExport();
+    assertThat(controller.getReservoirSize()).isEqualTo(100);
+  }
+
+  @Test
+  void constantIfBoundsAreEqual() {
+    ReservoirSizeController controller = new ReservoirSizeController(100, 100, 100, TIMEOUT_NANOS);
+    controller.recordExport(true, FAST_EXPORT_NANOS, true);
+    controller.recordExport(false, FAST_EXPORT_NANOS, true);
+    controller.recordDroppedExport();
+    assertThat(controller.getReservoirSize()).isEqualTo(100);
+  }
+}
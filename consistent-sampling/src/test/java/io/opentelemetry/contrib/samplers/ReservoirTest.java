@@ -0,0 +1,251 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.sdk.trace.ReadableSpan;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.data.StatusData;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+
+class ReservoirTest {
+
+  private static final class TestSpan {
+    private final ReadableSpan readableSpan;
+    private final String name;
+    private final int rval;
+    private final long priority;
+
+    private TestSpan(String name, int rval, long priority) {
+      SpanData spanData = mock(SpanData.class);
+      when(spanData.getName()).thenReturn(name);
+      when(spanData.getSpanContext()).thenReturn(SpanContext.getInvalid());
+      when(spanData.getStatus()).thenReturn(StatusData.unset());
+      when(spanData.getAttributes()).thenReturn(Attributes.empty());
+      this.readableSpan = mock(ReadableSpan.class);
+      when(readableSpan.toSpanData()).thenReturn(spanData);
+      this.name = name;
+      this.rval = rval;
+      this.priority = priority;
+    }
+  }
+
+  private static List<TestSpan> generateSpans(long seed, int numberOfSpans) {
+    SplittableRandom random = new SplittableRandom(seed);
+    List<TestSpan> spans = new ArrayList<>();
+    for (int i = 0; i < numberOfSpans; ++i) {
+      spans.add(new TestSpan(Integer.toString(i), random.nextInt(4), random.nextLong()));
+    }
+    return spans;
+  }
+
+  // the names have random lengths, which makes the sizes of the spans vary
+  private static List<TestSpan> generateSpansOfDifferentSizes(long seed, int numberOfSpans) {
+    SplittableRandom random = new SplittableRandom(seed);
+    List<TestSpan> spans = new ArrayList<>();
+    for (int i = 0; i < numberOfSpans; ++i) {
+      String name = i + "/" + repeat('x', random.nextInt(1000));
+      spans.add(new TestSpan(name, random.nextInt(4), random.nextLong()));
+    }
+    return spans;
+  }
+
+  private static String repeat(char c, int count) {
+    char[] chars = new char[count];
+    Arrays.fill(chars, c);
+    return new String(chars);
+  }
+
+  // the sizes of the spans as offered, before their p-values were adjusted
+  private static long getTotalSize(List<TestSpan> spans, List<String> names) {
+    return spans.stream()
+        .filter(s -> names.contains(s.name))
+        .mapToLong(s -> SpanSizeEstimator.estimateSize(s.readableSpan.toSpanData()))
+        .sum();
+  }
+
+  private static List<String> getNames(List<SpanData> spans) {
+    return spans.stream().map(SpanData::getName).collect(Collectors.toList());
+  }
+
+  private static List<String> expectedNames(List<TestSpan> spans, int reservoirSize) {
+    return spans.stream()
+        .sorted(
+            Comparator.<TestSpan>comparingInt(s -> s.rval)
+                .thenComparingLong(s -> s.priority)
+                .reversed())
+        .limit(reservoirSize)
+        .map(s -> s.name)
+        .collect(Collectors.toList());
+  }
+
+  @Test
+  void keepsSpansWithLargestRValueAndPriority() {
+    int reservoirSize = 50;
+    List<TestSpan> spans = generateSpans(0x8b7f5ab3a9c1c3d2L, 1000);
+    Reservoir reservoir =
+        new Reservoir(reservoirSize, Reservoir.UNLIMITED_BYTES, RandomGenerator.getDefault());
+    for (TestSpan span : spans) {
+      reservoir.add(span.readableSpan, 0, span.rval, span.priority);
+    }
+    assertThat(getNames(reservoir.getResult()))
+        .containsExactlyInAnyOrderElementsOf(expectedNames(spans, reservoirSize));
+  }
+
+  @Test
+  void sizeLimitedReservoirKeepsSpansWithLargestRValueAndPriority() {
+    long maxNumberOfBytes = 20_000;
+    List<TestSpan> spans = generateSpansOfDifferentSizes(0x4f1bbcdcbfa53e0aL, 1000);
+    Reservoir reservoir = new Reservoir(1000, maxNumberOfBytes, RandomGenerator.getDefault());
+    for (TestSpan span : spans) {
+      reservoir.add(span.readableSpan, 0, span.rval, span.priority);
+    }
+    List<SpanData> result = reservoir.getResult();
+    assertThat(reservoir.hasDiscardedSpans()).isTrue();
+    assertThat(getTotalSize(spans, getNames(result))).isLessThanOrEqualTo(maxNumberOfBytes);
+    // the kept spans are always those ranking highest, their number depends on their sizes
+    assertThat(result.size()).isGreaterThan(10);
+    assertThat(getNames(result))
+        .containsExactlyInAnyOrderElementsOf(expectedNames(spans, result.size()));
+  }
+
+  @Test
+  void mergedSizeLimitedReservoirKeepsSpansWithLargestRValueAndPriority() {
+    long maxNumberOfBytes = 20_000;
+    List<TestSpan> spans = generateSpansOfDifferentSizes(0x6a09e667f3bcc908L, 1000);
+    Reservoir reservoir1 = new Reservoir(1000, maxNumberOfBytes, RandomGenerator.getDefault());
+    Reservoir reservoir2 = new Reservoir(1000, maxNumberOfBytes, RandomGenerator.getDefault());
+    for (int i = 0; i < spans.size(); ++i) {
+      TestSpan span = spans.get(i);
+      Reservoir reservoir = (i % 3 == 0) ? reservoir1 : reservoir2;
+      reservoir.add(span.readableSpan, 0, span.rval, span.priority);
+    }
+    reservoir1.addAll(reservoir2);
+    List<SpanData> result = reservoir1.getResult();
+    assertThat(getTotalSize(spans, getNames(result))).isLessThanOrEqualTo(maxNumberOfBytes);
+    assertThat(result.size()).isGreaterThan(10);
+    assertThat(getNames(result))
+        .containsExactlyInAnyOrderElementsOf(expectedNames(spans, result.size()));
+  }
+
+  @Test
+  void sizeLimitedReservoirHasUnbiasedAdjustedCounts() {
+    int numberOfSpans = 200;
+    int numberOfRuns = 1000;
+    SplittableRandom random = new SplittableRandom(0x510e527fade682d1L);
+    RandomGenerator randomGenerator = RandomGenerator.create(random::nextLong);
+    List<TestSpan> spans = generateSpansOfDifferentSizes(random.nextLong(), numberOfSpans);
+
+    double sumOfEstimates = 0;
+    for (int run = 0; run < numberOfRuns; ++run) {
+      Reservoir reservoir = new Reservoir(numberOfSpans, 10_000, randomGenerator);
+      for (TestSpan span : spans) {
+        // the r-values of consistently sampled spans with p-value 0 are geometrically distributed
+        int rval = Math.min(randomGenerator.numberOfLeadingZerosOfRandomLong(), 62);
+        reservoir.add(span.readableSpan, 0, rval, randomGenerator.nextLong());
+      }
+      for (SpanData spanData : reservoir.getResult()) {
+        OtelTraceState otelTraceState =
+            OtelTraceState.parse(
+                spanData.getSpanContext().getTraceState().get(OtelTraceState.TRACE_STATE_KEY));
+        int pval = otelTraceState.hasValidP() ? otelTraceState.getP() : 0;
+        sumOfEstimates += Math.pow(2, pval);
+      }
+    }
+    // every estimate has a relative standard error of roughly 1 / sqrt(10), as about 10 spans fit
+    double standardError = numberOfSpans / Math.sqrt(10 * numberOfRuns);
+    assertThat(sumOfEstimates / numberOfRuns).isCloseTo(numberOfSpans, within(4 * standardError));
+  }
+
+  @Test
+  void boostedSpansAreFavouredWithUnbiasedAdjustedCounts() {
+    int numberOfSpans = 200;
+    int numberOfBoostedSpans = 20;
+    int boost = 3;
+    int numberOfRuns = 1000;
+    SplittableRandom random = new SplittableRandom(0x9b05688c2b3e6c1fL);
+    RandomGenerator randomGenerator = RandomGenerator.create(random::nextLong);
+    List<TestSpan> spans = generateSpans(random.nextLong(), numberOfSpans);
+
+    double sumOfBoostedEstimates = 0;
+    double sumOfOtherEstimates = 0;
+    long numberOfKeptBoostedSpans = 0;
+    for (int run = 0; run < numberOfRuns; ++run) {
+      Reservoir reservoir = new Reservoir(20, Reservoir.UNLIMITED_BYTES, randomGenerator);
+      for (int i = 0; i < numberOfSpans; ++i) {
+        int rval = Math.min(randomGenerator.numberOfLeadingZerosOfRandomLong(), 62);
+        reservoir.add(
+            spans.get(i).readableSpan,
+            0,
+            rval,
+            randomGenerator.nextLong(),
+            (i < numberOfBoostedSpans) ? boost : 0);
+      }
+      for (SpanData spanData : reservoir.getResult()) {
+        OtelTraceState otelTraceState =
+            OtelTraceState.parse(
+                spanData.getSpanContext().getTraceState().get(OtelTraceState.TRACE_STATE_KEY));
+        int pval = otelTraceState.hasValidP() ? otelTraceState.getP() : 0;
+        if (Integer.parseInt(spanData.getName()) < numberOfBoostedSpans) {
+          sumOfBoostedEstimates += Math.pow(2, pval);
+          numberOfKeptBoostedSpans += 1;
+        } else {
+          sumOfOtherEstimates += Math.pow(2, pval);
+        }
+      }
+    }
+    // without boost, 2 of the 20 kept spans would be boosted ones on average
+    assertThat((double) numberOfKeptBoostedSpans / numberOfRuns).isGreaterThan(6);
+    double standardError = numberOfSpans / Math.sqrt(10 * numberOfRuns);
+    assertThat(sumOfBoostedEstimates / numberOfRuns)
+        .isCloseTo(numberOfBoostedSpans, within(4 * standardError));
+    assertThat(sumOfOtherEstimates / numberOfRuns)
+        .isCloseTo(numberOfSpans - numberOfBoostedSpans, within(4 * standardError));
+  }
+
+  @Test
+  void convertsOnlyKeptSpans() {
+    Reservoir reservoir = new Reservoir(1, Reservoir.UNLIMITED_BYTES, RandomGenerator.getDefault());
+    TestSpan kept = new TestSpan("kept", 2, 0);
+    TestSpan discarded = new TestSpan("discarded", 1, 0);
+    reservoir.add(kept.readableSpan, 0, kept.rval, kept.priority);
+    reservoir.add(discarded.readableSpan, 0, discarded.rval, discarded.priority);
+    assertThat(getNames(reservoir.getResult())).containsExactly("kept");
+    verify(discarded.readableSpan, never()).toSpanData();
+  }
+
+  @Test
+  void mergedReservoirKeepsSameSpans() {
+    int reservoirSize = 50;
+    List<TestSpan> spans = generateSpans(0x1d8e4e27c47d8f3aL, 1000);
+    Reservoir reservoir1 =
+        new Reservoir(reservoirSize, Reservoir.UNLIMITED_BYTES, RandomGenerator.getDefault());
+    Reservoir reservoir2 =
+        new Reservoir(reservoirSize, Reservoir.UNLIMITED_BYTES, RandomGenerator.getDefault());
+    for (int i = 0; i < spans.size(); ++i) {
+      TestSpan span = spans.get(i);
+      Reservoir reservoir = (i % 3 == 0) ? reservoir1 : reservoir2;
+      reservoir.add(span.readableSpan, 0, span.rval, span.priority);
+    }
+    reservoir1.addAll(reservoir2);
+    assertThat(getNames(reservoir1.getResult()))
+        .containsExactlyInAnyOrderElementsOf(expectedNames(spans, reservoirSize));
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.sdk.testing.trace.TestSpanData;
+import io.opentelemetry.sdk.trace.data.EventData;
+import io.opentelemetry.sdk.trace.data.LinkData;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.data.StatusData;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.jupiter.api.Test;
+
+class SpanSizeEstimatorTest {
+
+  private static TestSpanData.Builder spanDataBuilder() {
+    return TestSpanData.builder()
+        .setName("span")
+        .setKind(SpanKind.INTERNAL)
+        .setStartEpochNanos(1)
+        .setEndEpochNanos(2)
+        .setHasEnded(true)
+        .setStatus(StatusData.unset());
+  }
+
+  @Test
+  void countsAttributesEventsAndLinks() {
+    long emptySize = SpanSizeEstimator.estimateSize(spanDataBuilder().build());
+    assertThat(emptySize).isPositive();
+
+    SpanData withAttributes =
+        spanDataBuilder()
+            .setAttributes(
+                Attributes.of(
+                    AttributeKey.stringKey("key"),
+                    "0123456789",
+                    AttributeKey.longArrayKey("numbers"),
+                    Arrays.asList(1L, 2L)))
+            .setTotalAttributeCount(2)
+            .build();
+    // key lengths 3 and 7, string length 10, two numbers
+    assertThat(SpanSizeEstimator.estimateSize(withAttributes))
+        .isEqualTo(emptySize + 2 * 6 + 3 + 10 + 7 + 2 * 9);
+
+    SpanData withEvent =
+        spanDataBuilder()
+            .setEvents(Collections.singletonList(EventData.create(1, "event", Attributes.empty())))
+            .setTotalRecordedEvents(1)
+            .build();
+    assertThat(SpanSizeEstimator.estimateSize(withEvent)).isGreaterThan(emptySize + 5);
+
+    SpanData withLink =
+        spanDataBuilder()
+            .setLinks(
+                Collections.singletonList(
+                    LinkData.create(withEvent.getSpanContext(), Attributes.empty())))
+            .setTotalRecordedLinks(1)
+            .build();
+    assertThat(SpanSizeEstimator.estimateSize(withLink)).isGreaterThan(emptySize);
+  }
+
+  @Test
+  void growsWithStringLengths() {
+    SpanData shortSpan = spanDataBuilder().setName("a").build();
+    SpanData longSpan = spanDataBuilder().setName("abcdefghijklmnopqrstuvwxyz").build();
+    assertThat(SpanSizeEstimator.estimateSize(longSpan) - SpanSizeEstimator.estimateSize(shortSpan))
+        .isEqualTo(25);
+  }
+}
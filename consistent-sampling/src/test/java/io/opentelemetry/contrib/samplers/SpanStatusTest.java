@@ -0,0 +1,124 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.sdk.common.CompletableResultCode;
+import io.opentelemetry.sdk.trace.ReadWriteSpan;
+import io.opentelemetry.sdk.trace.ReadableSpan;
+import io.opentelemetry.sdk.trace.SdkTracerProvider;
+import io.opentelemetry.sdk.trace.SpanProcessor;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import io.opentelemetry.sdk.trace.data.StatusData;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class SpanStatusTest {
+
+  private static final class CollectingSpanProcessor implements SpanProcessor {
+    private final List<ReadableSpan> startedSpans = new ArrayList<>();
+    private final List<ReadableSpan> endedSpans = new ArrayList<>();
+
+    @Override
+    public void onStart(Context parentContext, ReadWriteSpan span) {
+      startedSpans.add(span);
+    }
+
+    @Override
+    public boolean isStartRequired() {
+      return true;
+    }
+
+    @Override
+    public void onEnd(ReadableSpan span) {
+      endedSpans.add(span);
+    }
+
+    @Override
+    public boolean isEndRequired() {
+      return true;
+    }
+
+    @Override
+    public CompletableResultCode shutdown() {
+      return CompletableResultCode.ofSuccess();
+    }
+  }
+
+  private CollectingSpanProcessor processor;
+  private SdkTracerProvider tracerProvider;
+  private Tracer tracer;
+
+  @BeforeEach
+  void setup() {
+    processor = new CollectingSpanProcessor();
+    tracerProvider = SdkTracerProvider.builder().addSpanProcessor(processor).build();
+    tracer = tracerProvider.get("test");
+  }
+
+  @AfterEach
+  void tearDown() {
+    tracerProvider.shutdown();
+  }
+
+  @Test
+  void sdkSpans() {
+    for (StatusCode statusCode : StatusCode.values()) {
+      Span span = tracer.spanBuilder("span").startSpan();
+      span.setStatus(statusCode);
+      span.end();
+    }
+
+    assertThat(processor.endedSpans).hasSize(3);
+    for (ReadableSpan span : processor.endedSpans) {
+      assertThat(SpanStatus.getStatusCode(span))
+          .isEqualTo(span.toSpanData().getStatus().getStatusCode());
+    }
+    assertThat(SpanStatus.isError(processor.endedSpans.get(StatusCode.ERROR.ordinal()))).isTrue();
+    assertThat(SpanStatus.isError(processor.endedSpans.get(StatusCode.OK.ordinal()))).isFalse();
+  }
+
+  @Test
+  void spansThatHaveNotEnded() {
+    Span span = tracer.spanBuilder("span").startSpan();
+    ReadableSpan readableSpan = processor.startedSpans.get(0);
+    assertThat(SpanStatus.getStatusCode(readableSpan)).isEqualTo(StatusCode.UNSET);
+    span.setStatus(StatusCode.ERROR);
+    assertThat(SpanStatus.getStatusCode(readableSpan)).isEqualTo(StatusCode.ERROR);
+    span.end();
+  }
+
+  @Test
+  void adjustedSpans() {
+    Span span = tracer.spanBuilder("span").startSpan();
+    span.setStatus(StatusCode.ERROR);
+    span.end();
+
+    ReadableSpan adjustedSpan =
+        AdjustedReadableSpan.create(processor.endedSpans.get(0), OtelTraceState.parse("p:1;r:1"));
+    assertThat(SpanStatus.getStatusCode(adjustedSpan)).isEqualTo(StatusCode.ERROR);
+  }
+
+  @Test
+  void otherSpans() {
+    SpanData spanData = mock(SpanData.class);
+    when(spanData.getStatus()).thenReturn(StatusData.error());
+    ReadableSpan span = mock(ReadableSpan.class);
+    when(span.toSpanData()).thenReturn(spanData);
+
+    assertThat(SpanStatus.getStatusCode(span)).isEqualTo(StatusCode.ERROR);
+  }
+}
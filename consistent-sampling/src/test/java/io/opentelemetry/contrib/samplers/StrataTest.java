@@ -0,0 +1,93 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import io.opentelemetry.contrib.samplers.Strata.Stratum;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+class StrataTest {
+
+  private static void offer(Strata strata, String key, int numberOfSpans) {
+    for (int i = 0; i < numberOfSpans; ++i) {
+      strata.getStratum(key).recordOfferedSpan();
+    }
+  }
+
+  @Test
+  void testFirstPeriod() {
+    Strata strata = Strata.create(100, 4, 10);
+    assertThat(strata.getStratum(null).getIndex()).isEqualTo(0);
+    assertThat(strata.getStratum(null).getQuota()).isEqualTo(70);
+    assertThat(strata.getStratum("a").getQuota()).isEqualTo(10);
+    assertThat(strata.getStratum("a").getIndex()).isEqualTo(1);
+    assertThat(strata.getStratum("b").getIndex()).isEqualTo(2);
+    assertThat(strata.getStratum("c").getIndex()).isEqualTo(3);
+    // the maximum number of strata is reached
+    assertThat(strata.getStratum("d")).isSameAs(strata.getStratum(null));
+    assertThat(strata.getStratum("c").getIndex()).isEqualTo(3);
+  }
+
+  @Test
+  void testQuotasAreProportionalToPreviousPeriod() {
+    Strata strata = Strata.create(100, 4, 10);
+    offer(strata, "a", 600);
+    offer(strata, "b", 300);
+    offer(strata, "c", 100);
+
+    Strata next = strata.next(100);
+    // 60 spans are distributed proportionally
+    assertThat(next.getStratum("b").getQuota()).isEqualTo(28);
+    assertThat(next.getStratum("x").getQuota()).isEqualTo(10);
+    assertThat(next.getStratum("a").getQuota()).isEqualTo(46);
+    // the maximum number of strata is reached, hence "c" is now assigned to the overflow stratum
+    assertThat(next.getStratum("c").getIndex()).isEqualTo(0);
+    // the share reserved for "c" is not given to the overflow stratum
+    assertThat(next.getStratum(null).getQuota()).isEqualTo(10);
+  }
+
+  @Test
+  void testSumOfQuotasIsBounded() {
+    int reservoirSize = 1000;
+    int maxStrata = 10;
+    Strata strata = Strata.create(reservoirSize, maxStrata, 7);
+    for (int period = 0; period < 20; ++period) {
+      for (int i = 0; i < 30; ++i) {
+        offer(strata, Integer.toString((i * 7 + period) % 30), i + 1);
+      }
+      offer(strata, null, 5);
+
+      Set<Integer> indices = new HashSet<>();
+      long sumOfQuotas = 0;
+      for (int i = 0; i < 30; ++i) {
+        Stratum stratum = strata.getStratum(Integer.toString(i));
+        if (indices.add(stratum.getIndex())) {
+          sumOfQuotas += stratum.getQuota();
+        }
+      }
+      if (indices.add(strata.getStratum(null).getIndex())) {
+        sumOfQuotas += strata.getStratum(null).getQuota();
+      }
+      assertThat(indices).hasSize(maxStrata);
+      assertThat(sumOfQuotas).isLessThanOrEqualTo(reservoirSize);
+
+      strata = strata.next(reservoirSize);
+    }
+  }
+
+  @Test
+  void testSingleStratum() {
+    Strata strata = Strata.create(100, 1, 1000);
+    offer(strata, "a", 1000);
+    assertThat(strata.getStratum("a").getQuota()).isEqualTo(100);
+    assertThat(strata.next(100).getStratum(null).getQuota()).isEqualTo(100);
+    // the reservoir size may change from one period to the next
+    assertThat(strata.next(50).getStratum(null).getQuota()).isEqualTo(50);
+  }
+}
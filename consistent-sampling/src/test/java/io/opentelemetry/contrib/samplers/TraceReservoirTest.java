@@ -0,0 +1,275 @@
+/*
+ * Copyright The OpenTelemetry Authors
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package io.opentelemetry.contrib.samplers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.TraceFlags;
+import io.opentelemetry.api.trace.TraceState;
+import io.opentelemetry.sdk.trace.ReadableSpan;
+import io.opentelemetry.sdk.trace.data.SpanData;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.stream.Collectors;
+import org.hipparchus.stat.inference.TTest;
+import org.junit.jupiter.api.Test;
+
+class TraceReservoirTest {
+
+  // spans are reused across traces with the same index, as creating mocks is expensive
+  private static final Map<String, ReadableSpan> spanPool = new HashMap<>();
+
+  private static String getTraceId(int traceIndex) {
+    return String.format("%032x", traceIndex + 1);
+  }
+
+  private static String getSpanId(int spanIndex) {
+    return String.format("%016x", spanIndex + 1);
+  }
+
+  private static ReadableSpan getSpan(int traceIndex, int spanIndex) {
+    return spanPool.computeIfAbsent(
+        traceIndex + "/" + spanIndex,
+        k -> {
+          SpanContext spanContext =
+              SpanContext.create(
+                  getTraceId(traceIndex),
+                  getSpanId(spanIndex),
+                  TraceFlags.getSampled(),
+                  TraceState.getDefault());
+          SpanData spanData = mock(SpanData.class);
+          when(spanData.getSpanContext()).thenReturn(spanContext);
+          ReadableSpan readableSpan = mock(ReadableSpan.class);
+          when(readableSpan.getSpanContext()).thenReturn(spanContext);
+          when(readableSpan.toSpanData()).thenReturn(spanData);
+          return readableSpan;
+        });
+  }
+
+  private static final class TestTrace {
+    private final String traceId;
+    private final int rval;
+    private final long priority;
+    private final List<ReadableSpan> spans = new ArrayList<>();
+
+    private TestTrace(int index, int rval, long priority, int numberOfSpans) {
+      this.traceId = getTraceId(index);
+      this.rval = rval;
+      this.priority = priority;
+      for (int i = 0; i < numberOfSpans; ++i) {
+        spans.add(getSpan(index, i));
+      }
+    }
+  }
+
+  private static final class TestSpan {
+    private final TestTrace trace;
+    private final ReadableSpan readableSpan;
+
+    private TestSpan(TestTrace trace, ReadableSpan readableSpan) {
+      this.trace = trace;
+      this.readableSpan = readableSpan;
+    }
+  }
+
+  private static List<TestTrace> generateTraces(
+      SplittableRandom random, int numberOfTraces, int maxSpansPerTrace) {
+    List<TestTrace> traces = new ArrayList<>();
+    for (int i = 0; i < numberOfTraces; ++i) {
+      int rval = Math.min(Long.numberOfLeadingZeros(random.nextLong()), OtelTraceState.getMaxR());
+      traces.add(new TestTrace(i, rval, random.nextLong(), 1 + random.nextInt(maxSpansPerTrace)));
+    }
+    return traces;
+  }
+
+  // the spans of all traces in random order
+  private static List<TestSpan> getShuffledSpans(List<TestTrace> traces, long seed) {
+    List<TestSpan> spans = new ArrayList<>();
+    for (TestTrace trace : traces) {
+      for (ReadableSpan readableSpan : trace.spans) {
+        spans.add(new TestSpan(trace, readableSpan));
+      }
+    }
+    Collections.shuffle(spans, new Random(seed));
+    return spans;
+  }
+
+  private static void add(TraceReservoir reservoir, TestSpan span) {
+    reservoir.add(span.readableSpan, 0, span.trace.rval, span.trace.priority);
+  }
+
+  private static Set<String> expectedTraceIds(List<TestTrace> traces, int maxNumberOfSpans) {
+    List<TestTrace> sorted =
+        traces.stream()
+            .sorted(
+                Comparator.<TestTrace>comparingInt(t -> t.rval)
+                    .thenComparingLong(t -> t.priority)
+                    .reversed())
+            .collect(Collectors.toList());
+    Set<String> traceIds = new HashSet<>();
+    int numberOfSpans = 0;
+    for (TestTrace trace : sorted) {
+      numberOfSpans += trace.spans.size();
+      if (numberOfSpans > maxNumberOfSpans) {
+        break;
+      }
+      traceIds.add(trace.traceId);
+    }
+    return traceIds;
+  }
+
+  private static Set<String> getTraceIds(List<SpanData> spans) {
+    return spans.stream().map(s -> s.getSpanContext().getTraceId()).collect(Collectors.toSet());
+  }
+
+  @Test
+  void keepsWholeTracesWithLargestRValueAndPriority() {
+    int maxNumberOfSpans = 100;
+    List<TestTrace> traces = generateTraces(new SplittableRandom(0x6a2f0d3c5b1e4f78L), 300, 8);
+    TraceReservoir reservoir =
+        new TraceReservoir(
+            maxNumberOfSpans, Reservoir.UNLIMITED_BYTES, 100, RandomGenerator.getDefault());
+    for (TestSpan span : getShuffledSpans(traces, 1L)) {
+      add(reservoir, span);
+    }
+
+    List<SpanData> result = reservoir.getResult();
+    Set<String> expectedTraceIds = expectedTraceIds(traces, maxNumberOfSpans);
+    assertThat(getTraceIds(result)).isEqualTo(expectedTraceIds);
+    long expectedNumberOfSpans =
+        traces.stream()
+            .filter(t -> expectedTraceIds.contains(t.traceId))
+            .mapToLong(t -> t.spans.size())
+            .sum();
+    assertThat(result).hasSize((int) expectedNumberOfSpans);
+  }
+
+  @Test
+  void mergedReservoirKeepsSameTraces() {
+    int maxNumberOfSpans = 100;
+    List<TestTrace> traces = generateTraces(new SplittableRandom(0x31c4e9a7d2b85f06L), 300, 8);
+    TraceReservoir reservoir1 =
+        new TraceReservoir(
+            maxNumberOfSpans, Reservoir.UNLIMITED_BYTES, 100, RandomGenerator.getDefault());
+    TraceReservoir reservoir2 =
+        new TraceReservoir(
+            maxNumberOfSpans, Reservoir.UNLIMITED_BYTES, 100, RandomGenerator.getDefault());
+    List<TestSpan> spans = getShuffledSpans(traces, 2L);
+    for (int i = 0; i < spans.size(); ++i) {
+      add((i % 3 == 0) ? reservoir1 : reservoir2, spans.get(i));
+    }
+    reservoir1.addAll(reservoir2);
+
+    List<SpanData> result = reservoir1.getResult();
+    assertThat(getTraceIds(result)).isEqualTo(expectedTraceIds(traces, maxNumberOfSpans));
+    assertThat(result).hasSizeLessThanOrEqualTo(maxNumberOfSpans);
+  }
+
+  @Test
+  void limitsNumberOfSpansPerTrace() {
+    TestTrace trace = new TestTrace(0, 0, 0, 10);
+    TraceReservoir reservoir =
+        new TraceReservoir(100, Reservoir.UNLIMITED_BYTES, 3, RandomGenerator.getDefault());
+    for (ReadableSpan span : trace.spans) {
+      reservoir.add(span, 0, trace.rval, trace.priority);
+    }
+    List<SpanData> result = reservoir.getResult();
+    assertThat(result).hasSizeLessThanOrEqualTo(3);
+    // all kept spans of the thinned trace have the same p-value
+    assertThat(result.stream().map(TraceReservoirTest::getP).distinct()).hasSizeLessThan(2);
+  }
+
+  @Test
+  void thinnedTracesHaveUnbiasedSpanCounts() {
+    SplittableRandom random = new SplittableRandom(0x5d09b3e6a87c412fL);
+    RandomGenerator randomGenerator = RandomGenerator.create(random.split()::nextLong);
+    int numCycles = 1000;
+    int numberOfSpans = 20;
+
+    double[] estimatedNumberOfSpans = new double[numCycles];
+    for (int k = 0; k < numCycles; ++k) {
+      TestTrace trace = new TestTrace(k % 10, 0, 0, numberOfSpans);
+      TraceReservoir reservoir =
+          new TraceReservoir(100, Reservoir.UNLIMITED_BYTES, 3, randomGenerator);
+      for (ReadableSpan span : trace.spans) {
+        reservoir.add(span, 0, trace.rval, trace.priority);
+      }
+      for (SpanData spanData : reservoir.getResult()) {
+        estimatedNumberOfSpans[k] += 1L << getP(spanData);
+      }
+    }
+
+    assertThat(new TTest().tTest(numberOfSpans, estimatedNumberOfSpans)).isGreaterThan(0.01);
+  }
+
+  @Test
+  void mergedReservoirKeepsThinnedSpans() {
+    TestTrace trace = new TestTrace(0, 0, 0, 50);
+    RandomGenerator randomGenerator = RandomGenerator.create(new SplittableRandom(3L)::nextLong);
+    TraceReservoir reservoir1 =
+        new TraceReservoir(100, Reservoir.UNLIMITED_BYTES, 5, randomGenerator);
+    TraceReservoir reservoir2 =
+        new TraceReservoir(100, Reservoir.UNLIMITED_BYTES, 5, randomGenerator);
+    for (int i = 0; i < trace.spans.size(); ++i) {
+      ((i % 2 == 0) ? reservoir1 : reservoir2).add(trace.spans.get(i), 0, 0, 0);
+    }
+    reservoir1.addAll(reservoir2);
+
+    List<SpanData> result = reservoir1.getResult();
+    assertThat(result).hasSizeLessThanOrEqualTo(5);
+    // 50 spans can only be reduced to 5 spans with a positive thinning level
+    assertThat(result).allSatisfy(spanData -> assertThat(getP(spanData)).isPositive());
+  }
+
+  private static int getP(SpanData spanData) {
+    OtelTraceState otelTraceState =
+        OtelTraceState.parse(
+            spanData.getSpanContext().getTraceState().get(OtelTraceState.TRACE_STATE_KEY));
+    return otelTraceState.hasValidP() ? otelTraceState.getP() : 0;
+  }
+
+  @Test
+  void adjustedCountsAreUnbiased() {
+    SplittableRandom random = new SplittableRandom(0x0b5e7c2d94a1f368L);
+    RandomGenerator randomGenerator = RandomGenerator.create(random.split()::nextLong);
+    int numCycles = 1000;
+    int maxNumberOfSpans = 100;
+
+    double[] estimatedNumberOfTraces = new double[numCycles];
+    int numberOfTraces = 200;
+    for (int k = 0; k < numCycles; ++k) {
+      List<TestTrace> traces = generateTraces(random, numberOfTraces, 4);
+      TraceReservoir reservoir =
+          new TraceReservoir(maxNumberOfSpans, Reservoir.UNLIMITED_BYTES, 100, randomGenerator);
+      for (TestSpan span : getShuffledSpans(traces, random.nextLong())) {
+        add(reservoir, span);
+      }
+      for (SpanData spanData : reservoir.getResult()) {
+        OtelTraceState otelTraceState =
+            OtelTraceState.parse(
+                spanData.getSpanContext().getTraceState().get(OtelTraceState.TRACE_STATE_KEY));
+        // only count the first span of every trace
+        if (spanData.getSpanContext().getSpanId().equals(getSpanId(0))) {
+          estimatedNumberOfTraces[k] +=
+              1L << (otelTraceState.hasValidP() ? otelTraceState.getP() : 0);
+        }
+      }
+    }
+
+    assertThat(new TTest().tTest(numberOfTraces, estimatedNumberOfTraces)).isGreaterThan(0.01);
+  }
+}
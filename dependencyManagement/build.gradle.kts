@@ -47,6 +47,11 @@ val DEPENDENCY_SETS = listOf(
         "0.12.0",
         listOf("simpleclient", "simpleclient_common", "simpleclient_httpserver")
     ),
+    DependencySet(
+        "org.openjdk.jmh",
+        "1.35",
+        listOf("jmh-core", "jmh-generator-bytecode")
+    ),
     DependencySet(
         "org.mockito",
         "4.3.1",